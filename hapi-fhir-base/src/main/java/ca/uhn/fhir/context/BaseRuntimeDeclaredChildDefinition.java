@@ -8,6 +8,7 @@ import java.util.List;
 import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.instance.model.api.IBase;
 
+import ca.uhn.fhir.model.api.IElementFieldAccessor;
 import ca.uhn.fhir.model.api.annotation.Child;
 import ca.uhn.fhir.model.api.annotation.Description;
 
@@ -16,6 +17,8 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 	private final String myElementName;
 	private final Field myField;
 	private final String myFormalDefinition;
+	private final IElementFieldAccessor myGeneratedAccessor;
+	private final int myGeneratedAccessorIndex;
 	private final int myMax;
 	private final int myMin;
 	private boolean myModifier;
@@ -45,6 +48,17 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		}
 
 		myField.setAccessible(true);
+
+		IElementFieldAccessor generatedAccessor = newGeneratedAccessor(theField);
+		int generatedAccessorIndex = generatedAccessor != null ? generatedAccessor.getFieldIndex(theField.getName()) : -1;
+		if (generatedAccessorIndex != -1) {
+			myGeneratedAccessor = generatedAccessor;
+			myGeneratedAccessorIndex = generatedAccessorIndex;
+		} else {
+			myGeneratedAccessor = null;
+			myGeneratedAccessorIndex = -1;
+		}
+
 		if (List.class.equals(myField.getType())) {
 			// TODO: verify that generic type is IElement
 			myAccessor = new FieldListAccessor();
@@ -89,6 +103,13 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		return myMutator;
 	}
 
+	private Object getFieldValue(Object theTarget) throws IllegalAccessException {
+		if (myGeneratedAccessor != null) {
+			return myGeneratedAccessor.getFieldValue(theTarget, myGeneratedAccessorIndex);
+		}
+		return myField.get(theTarget);
+	}
+
 	public String getShortDefinition() {
 		return myShortDefinition;
 	}
@@ -100,6 +121,14 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		return getChildByName(getValidChildNames().iterator().next());
 	}
 
+	/**
+	 * Returns <code>true</code> if this child's field is read and written through an accessor generated into the model
+	 * class instead of through reflection
+	 */
+	boolean isGeneratedAccessor() {
+		return myGeneratedAccessor != null;
+	}
+
 	public boolean isModifier() {
 		return myModifier;
 	}
@@ -108,13 +137,34 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		return mySummary;
 	}
 
+	private void setFieldValue(Object theTarget, Object theValue) throws IllegalAccessException {
+		if (myGeneratedAccessor != null) {
+			myGeneratedAccessor.setFieldValue(theTarget, myGeneratedAccessorIndex, theValue);
+		} else {
+			myField.set(theTarget, theValue);
+		}
+	}
+
+	private static IElementFieldAccessor newGeneratedAccessor(Field theField) {
+		for (Class<?> next : theField.getDeclaringClass().getDeclaredClasses()) {
+			if (IElementFieldAccessor.class.isAssignableFrom(next)) {
+				try {
+					return (IElementFieldAccessor) next.newInstance();
+				} catch (Exception e) {
+					throw new ConfigurationException("Failed to instantiate field accessor " + next.getName(), e);
+				}
+			}
+		}
+		return null;
+	}
+
 	private final class FieldListAccessor implements IAccessor {
 		@SuppressWarnings("unchecked")
 		@Override
 		public List<IBase> getValues(Object theTarget) {
 			List<IBase> retVal;
 			try {
-				retVal = (List<IBase>) myField.get(theTarget);
+				retVal = (List<IBase>) getFieldValue(theTarget);
 			} catch (Exception e) {
 				throw new ConfigurationException("Failed to get value", e);
 			}
@@ -135,10 +185,10 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		private void addValue(Object theTarget, IBase theValue, boolean theClear) {
 			try {
 				@SuppressWarnings("unchecked")
-				List<IBase> existingList = (List<IBase>) myField.get(theTarget);
+				List<IBase> existingList = (List<IBase>) getFieldValue(theTarget);
 				if (existingList == null) {
 					existingList = new ArrayList<IBase>(2);
-					myField.set(theTarget, existingList);
+					setFieldValue(theTarget, existingList);
 				}
 				if (theClear) {
 					existingList.clear();
@@ -159,7 +209,7 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		@Override
 		public List<IBase> getValues(Object theTarget) {
 			try {
-				Object values = myField.get(theTarget);
+				Object values = getFieldValue(theTarget);
 				if (values == null) {
 					return Collections.emptyList();
 				}
@@ -175,7 +225,7 @@ public abstract class BaseRuntimeDeclaredChildDefinition extends BaseRuntimeChil
 		@Override
 		public void addValue(Object theTarget, IBase theValue) {
 			try {
-				myField.set(theTarget, theValue);
+				setFieldValue(theTarget, theValue);
 			} catch (Exception e) {
 				throw new ConfigurationException("Failed to set value", e);
 			}
@@ -0,0 +1,48 @@
+package ca.uhn.fhir.model.api;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Reads and writes the {@link ca.uhn.fhir.model.api.annotation.Child child} fields of a model class directly instead
+ * of through reflection.
+ * <p>
+ * Implementations are generated by the tinder plugin as a public static nested class with a no-argument constructor
+ * inside the model class whose fields they access. When the {@link ca.uhn.fhir.context.FhirContext} scans a model
+ * class it uses such a nested class for every field it knows about, and falls back to reflection for any other field
+ * (and for model classes which have no nested accessor class).
+ * </p>
+ * <p>
+ * This interface is used by generated code and should not be considered part of the public API.
+ * </p>
+ */
+public interface IElementFieldAccessor {
+
+	/**
+	 * Returns the index to pass to {@link #getFieldValue(Object, int)} and {@link #setFieldValue(Object, int, Object)}
+	 * for the field with the given name, or <code>-1</code> if this accessor does not handle that field
+	 */
+	int getFieldIndex(String theFieldName);
+
+	Object getFieldValue(Object theTarget, int theFieldIndex);
+
+	void setFieldValue(Object theTarget, int theFieldIndex, Object theValue);
+
+}
@@ -32,6 +32,7 @@ public enum BundleEntrySearchModeEnum {
 
 	MATCH("match", "http://hl7.org/fhir/search-entry-mode"),
 	INCLUDE("include", "http://hl7.org/fhir/search-entry-mode"),
+	OUTCOME("outcome", "http://hl7.org/fhir/search-entry-mode"),
 	
 	;
 	
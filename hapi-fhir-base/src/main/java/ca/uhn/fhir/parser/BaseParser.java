@@ -41,6 +41,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseMetaType;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -318,9 +319,28 @@ public abstract class BaseParser implements IParser {
 
 	protected abstract void doEncodeBundleToWriter(Bundle theBundle, Writer theWriter) throws IOException, DataFormatException;
 
-	protected abstract void doEncodeResourceToWriter(IBaseResource theResource, Writer theWriter) throws IOException, DataFormatException;
+	/**
+	 * @param theStreamedEntries
+	 *           If not <code>null</code>, <code>theResource</code> is a Bundle resource and these entries are encoded in
+	 *           place of its own, with the output flushed after each one
+	 */
+	protected abstract void doEncodeResourceToWriter(IBaseResource theResource, Writer theWriter, Iterator<? extends IBase> theStreamedEntries) throws IOException, DataFormatException;
 
-	protected abstract <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader) throws DataFormatException;
+	/**
+	 * @param theBundleEntryHandler
+	 *           If not <code>null</code>, the entries of a root Bundle resource are passed to this handler as they are
+	 *           parsed instead of being added to the bundle
+	 */
+	protected abstract <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader, IBundleEntryHandler theBundleEntryHandler) throws DataFormatException;
+
+	@Override
+	public void encodeBundleEntriesToWriter(IBaseBundle theBundle, Iterator<? extends IBase> theEntries, Writer theWriter) throws IOException, DataFormatException {
+		Validate.notNull(theBundle, "theBundle can not be null");
+		Validate.notNull(theEntries, "theEntries can not be null");
+		Validate.notNull(theWriter, "theWriter can not be null");
+
+		doEncodeResourceToWriter(theBundle, theWriter, theEntries);
+	}
 
 	@Override
 	public String encodeBundleToString(Bundle theBundle) throws DataFormatException {
@@ -360,7 +380,7 @@ public abstract class BaseParser implements IParser {
 		Validate.notNull(theResource, "theResource can not be null");
 		Validate.notNull(theWriter, "theWriter can not be null");
 
-		doEncodeResourceToWriter(theResource, theWriter);
+		doEncodeResourceToWriter(theResource, theWriter, null);
 	}
 
 	@Override
@@ -469,9 +489,39 @@ public abstract class BaseParser implements IParser {
 		return parseBundle(reader);
 	}
 
+	@Override
+	public <T extends IBaseBundle> T parseBundleEntries(Class<T> theBundleType, Reader theReader, final IBundleEntryHandler theHandler) throws DataFormatException {
+		Validate.notNull(theBundleType, "theBundleType must not be null");
+		Validate.notNull(theHandler, "theHandler must not be null");
+
+		RuntimeResourceDefinition def = myContext.getResourceDefinition(theBundleType);
+		final BaseRuntimeElementCompositeDefinition<?> entryDef = (BaseRuntimeElementCompositeDefinition<?>) def.getChildByName("entry").getChildByName("entry");
+		final boolean[] metadataSent = new boolean[1];
+
+		T retVal = doParseResource(theBundleType, theReader, new IBundleEntryHandler() {
+			@Override
+			public void bundleMetadata(IBaseBundle theBundle) {
+				metadataSent[0] = true;
+				theHandler.bundleMetadata(theBundle);
+			}
+
+			@Override
+			public void entry(IBase theEntry, IBaseResource theResource) {
+				populateIdFromFullUrl(entryDef, theEntry);
+				theHandler.entry(theEntry, theResource);
+			}
+		});
+
+		if (!metadataSent[0]) {
+			theHandler.bundleMetadata(retVal);
+		}
+
+		return retVal;
+	}
+
 	@Override
 	public <T extends IBaseResource> T parseResource(Class<T> theResourceType, Reader theReader) throws DataFormatException {
-		T retVal = doParseResource(theResourceType, theReader);
+		T retVal = doParseResource(theResourceType, theReader, null);
 
 		RuntimeResourceDefinition def = myContext.getResourceDefinition(retVal);
 		if ("Bundle".equals(def.getName())) {
@@ -481,32 +531,7 @@ public abstract class BaseParser implements IParser {
 			List<IBase> entries = entryChild.getAccessor().getValues(retVal);
 			if (entries != null) {
 				for (IBase nextEntry : entries) {
-
-					/**
-					 * If Bundle.entry.fullUrl is populated, set the resource ID to that
-					 */
-					// TODO: should emit a warning and maybe notify the error handler if the resource ID doesn't match the
-					// fullUrl idPart
-					BaseRuntimeChildDefinition fullUrlChild = entryDef.getChildByName("fullUrl");
-					if (fullUrlChild == null) {
-						continue; // TODO: remove this once the data model in tinder plugin catches up to 1.2
-					}
-					List<IBase> fullUrl = fullUrlChild.getAccessor().getValues(nextEntry);
-					if (fullUrl != null && !fullUrl.isEmpty()) {
-						IPrimitiveType<?> value = (IPrimitiveType<?>) fullUrl.get(0);
-						if (value.isEmpty() == false) {
-							List<IBase> entryResources = entryDef.getChildByName("resource").getAccessor().getValues(nextEntry);
-							if (entryResources != null && entryResources.size() > 0) {
-								IBaseResource res = (IBaseResource) entryResources.get(0);
-								String versionId = res.getIdElement().getVersionIdPart();
-								res.setId(value.getValueAsString());
-								if (isNotBlank(versionId) && res.getIdElement().hasVersionIdPart() == false) {
-									res.setId(res.getIdElement().withVersion(versionId));
-								}
-							}
-						}
-					}
-
+					populateIdFromFullUrl(entryDef, nextEntry);
 				}
 			}
 
@@ -591,6 +616,33 @@ public abstract class BaseParser implements IParser {
 		return theValues;
 	}
 
+	/**
+	 * If Bundle.entry.fullUrl is populated, set the resource ID to that
+	 */
+	private void populateIdFromFullUrl(BaseRuntimeElementCompositeDefinition<?> theEntryDef, IBase theEntry) {
+		// TODO: should emit a warning and maybe notify the error handler if the resource ID doesn't match the
+		// fullUrl idPart
+		BaseRuntimeChildDefinition fullUrlChild = theEntryDef.getChildByName("fullUrl");
+		if (fullUrlChild == null) {
+			return; // TODO: remove this once the data model in tinder plugin catches up to 1.2
+		}
+		List<IBase> fullUrl = fullUrlChild.getAccessor().getValues(theEntry);
+		if (fullUrl != null && !fullUrl.isEmpty()) {
+			IPrimitiveType<?> value = (IPrimitiveType<?>) fullUrl.get(0);
+			if (value.isEmpty() == false) {
+				List<IBase> entryResources = theEntryDef.getChildByName("resource").getAccessor().getValues(theEntry);
+				if (entryResources != null && entryResources.size() > 0) {
+					IBaseResource res = (IBaseResource) entryResources.get(0);
+					String versionId = res.getIdElement().getVersionIdPart();
+					res.setId(value.getValueAsString());
+					if (isNotBlank(versionId) && res.getIdElement().hasVersionIdPart() == false) {
+						res.setId(res.getIdElement().withVersion(versionId));
+					}
+				}
+			}
+		}
+	}
+
 	@Override
 	public void setEncodeElements(Set<String> theEncodeElements) {
 		myEncodeElementsIncludesStars = false;
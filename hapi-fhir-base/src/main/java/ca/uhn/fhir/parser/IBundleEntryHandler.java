@@ -0,0 +1,55 @@
+package ca.uhn.fhir.parser;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Receives the contents of a Bundle resource one entry at a time as it is being parsed. See
+ * {@link IParser#parseBundleEntries(Class, java.io.Reader, IBundleEntryHandler)}.
+ */
+public interface IBundleEntryHandler {
+
+	/**
+	 * Invoked exactly once per bundle: before the first entry is parsed or, if the bundle has no entries, after the
+	 * whole bundle has been parsed.
+	 *
+	 * @param theBundle
+	 *           The bundle, populated with every element which appears before the entries in the document (id, meta,
+	 *           type, total, link, etc.). The bundle never contains any entries.
+	 */
+	void bundleMetadata(IBaseBundle theBundle);
+
+	/**
+	 * Invoked once for every entry, after it has been completely parsed. The parser does not keep a reference to the
+	 * entry after this method returns.
+	 *
+	 * @param theEntry
+	 *           The <code>Bundle.entry</code> element
+	 * @param theResource
+	 *           The resource in the entry, or <code>null</code> if the entry has no resource (e.g. a delete in a
+	 *           transaction)
+	 */
+	void entry(IBase theEntry, IBaseResource theResource);
+
+}
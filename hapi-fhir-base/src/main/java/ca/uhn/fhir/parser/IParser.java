@@ -23,9 +23,12 @@ package ca.uhn.fhir.parser;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.Iterator;
 import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import ca.uhn.fhir.context.ConfigurationException;
@@ -44,6 +47,20 @@ import ca.uhn.fhir.rest.server.EncodingEnum;
  */
 public interface IParser {
 
+	/**
+	 * Encodes a Bundle resource whose entries are supplied by an iterator instead of being held in the bundle. Each
+	 * entry is retrieved from the iterator only when it is about to be encoded, and the output is flushed after each
+	 * entry, so a bundle of any size can be written while holding only one entry in memory at a time.
+	 * 
+	 * @param theBundle
+	 *           The bundle containing everything except the entries (any entries in the bundle itself are not encoded)
+	 * @param theEntries
+	 *           Supplies the <code>Bundle.entry</code> elements to encode, in order
+	 * @param theWriter
+	 *           The writer to encode to
+	 */
+	void encodeBundleEntriesToWriter(IBaseBundle theBundle, Iterator<? extends IBase> theEntries, Writer theWriter) throws IOException, DataFormatException;
+
 	String encodeBundleToString(Bundle theBundle) throws DataFormatException;
 
 	void encodeBundleToWriter(Bundle theBundle, Writer theWriter) throws IOException, DataFormatException;
@@ -117,6 +134,28 @@ public interface IParser {
 	 */
 	<T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, Reader theReader);
 
+	/**
+	 * Parses a Bundle resource incrementally, handing each entry to a handler as soon as it has been parsed instead of
+	 * collecting all of the entries in the returned bundle. This means that bundles of any size can be processed
+	 * without holding more than one entry in memory at a time.
+	 * <p>
+	 * Each entry is processed in the same way as by {@link #parseResource(Class, Reader)} (e.g. the resource ID is
+	 * populated from <code>Bundle.entry.fullUrl</code>), except that references between resources in different
+	 * entries are not linked to each other, since the other entries are no longer available.
+	 * </p>
+	 * 
+	 * @param theBundleType
+	 *           The Bundle resource type to parse (e.g. <code>ca.uhn.fhir.model.dstu2.resource.Bundle</code>)
+	 * @param theReader
+	 *           The reader to parse input from. Note that the Reader will not be closed by the parser upon completion.
+	 * @param theHandler
+	 *           The handler which will receive the bundle metadata and each of its entries
+	 * @return The parsed bundle, which contains everything except the entries
+	 * @throws DataFormatException
+	 *            If the bundle can not be parsed because the data is not recognized or invalid for any reason
+	 */
+	<T extends IBaseBundle> T parseBundleEntries(Class<T> theBundleType, Reader theReader, IBundleEntryHandler theHandler) throws DataFormatException;
+
 	/**
 	 * Parse a DSTU1 style Atom Bundle. Note that as of DSTU2, Bundle is a resource so you should use
 	 * {@link #parseResource(Class, Reader)} with the Bundle class found in the
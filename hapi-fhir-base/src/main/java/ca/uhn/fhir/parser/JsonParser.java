@@ -107,8 +107,8 @@ import ca.uhn.fhir.util.ElementUtil;
  */
 public class JsonParser extends BaseParser implements IParser {
 
-	private static final Set<String> BUNDLE_TEXTNODE_CHILDREN_DSTU1;
-	private static final Set<String> BUNDLE_TEXTNODE_CHILDREN_DSTU2;
+	static final Set<String> BUNDLE_TEXTNODE_CHILDREN_DSTU1;
+	static final Set<String> BUNDLE_TEXTNODE_CHILDREN_DSTU2;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JsonParser.HeldExtension.class);
 
 	static {
@@ -129,6 +129,7 @@ public class JsonParser extends BaseParser implements IParser {
 
 	private FhirContext myContext;
 	private boolean myPrettyPrint;
+	private boolean myUseStreamingParser = true;
 
 	/**
 	 * Do not use this constructor, the recommended way to obtain a new instance of the JSON parser is to invoke
@@ -188,35 +189,24 @@ public class JsonParser extends BaseParser implements IParser {
 	}
 
 	@Override
-	protected void doEncodeResourceToWriter(IBaseResource theResource, Writer theWriter) throws IOException {
+	protected void doEncodeResourceToWriter(IBaseResource theResource, Writer theWriter, Iterator<? extends IBase> theStreamedEntries) throws IOException {
 		JsonGenerator eventWriter = createJsonGenerator(theWriter);
 
 		RuntimeResourceDefinition resDef = myContext.getResourceDefinition(theResource);
-		encodeResourceToJsonStreamWriter(resDef, theResource, eventWriter, null, false);
+		encodeResourceToJsonStreamWriter(resDef, theResource, eventWriter, null, false, theStreamedEntries);
 		eventWriter.flush();
 	}
 
 	@Override
-	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader) {
+	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader, IBundleEntryHandler theBundleEntryHandler) {
+		if (myUseStreamingParser) {
+			return new JsonStreamParser(this, myContext, theReader).parseResource(theResourceType, theBundleEntryHandler);
+		}
+
 		try {
 			JsonReader reader = Json.createReader(theReader);
 			JsonObject object = reader.readObject();
-
-			JsonValue resourceTypeObj = object.get("resourceType");
-			assertObjectOfType(resourceTypeObj, JsonValue.ValueType.STRING, "resourceType");
-			String resourceType = ((JsonString) resourceTypeObj).getString();
-
-			ParserState<? extends IBaseResource> state = ParserState.getPreResourceInstance(theResourceType, myContext, true, getErrorHandler());
-			state.enteringNewElement(null, resourceType);
-
-			parseChildren(object, state);
-
-			state.endingElement();
-
-			@SuppressWarnings("unchecked")
-			T retVal = (T) state.getObject();
-
-			return retVal;
+			return parseResource(theResourceType, object, theBundleEntryHandler);
 		} catch (JsonParsingException e) {
 			throw new DataFormatException("Failed to parse JSON: " + e.getMessage(), e);
 		}
@@ -277,7 +267,7 @@ public class JsonParser extends BaseParser implements IParser {
 			IResource resource = nextEntry.getResource();
 			if (resource != null && !resource.isEmpty() && !deleted) {
 				RuntimeResourceDefinition resDef = myContext.getResourceDefinition(resource);
-				encodeResourceToJsonStreamWriter(resDef, resource, eventWriter, "content", false);
+				encodeResourceToJsonStreamWriter(resDef, resource, eventWriter, "content", false, null);
 			}
 
 			if (nextEntry.getSummary().isEmpty() == false) {
@@ -331,7 +321,7 @@ public class JsonParser extends BaseParser implements IParser {
 			IResource resource = nextEntry.getResource();
 			if (resource != null && !resource.isEmpty() && !deleted) {
 				RuntimeResourceDefinition resDef = myContext.getResourceDefinition(resource);
-				encodeResourceToJsonStreamWriter(resDef, resource, theEventWriter, "resource", false);
+				encodeResourceToJsonStreamWriter(resDef, resource, theEventWriter, "resource", false, null);
 			}
 
 			if (nextEntry.getSearchMode().isEmpty() == false || nextEntry.getScore().isEmpty() == false) {
@@ -450,7 +440,7 @@ public class JsonParser extends BaseParser implements IParser {
 			if (theNextValue instanceof IBaseExtension) {
 				theWriter.write("url", ((IBaseExtension<?, ?>) theNextValue).getUrl());
 			}
-			encodeCompositeElementToStreamWriter(theResDef, theResource, theNextValue, theWriter, childCompositeDef, theContainedResource, theChildElem);
+			encodeCompositeElementToStreamWriter(theResDef, theResource, theNextValue, theWriter, childCompositeDef, theContainedResource, theChildElem, null);
 			theWriter.writeEnd();
 			break;
 		}
@@ -487,7 +477,7 @@ public class JsonParser extends BaseParser implements IParser {
 
 				for (IBaseResource next : containedResources) {
 					IIdType resourceId = getContainedResources().getResourceId(next);
-					encodeResourceToJsonStreamWriter(theResDef, next, theWriter, null, true, fixContainedResourceId(resourceId.getValue()));
+					encodeResourceToJsonStreamWriter(theResDef, next, theWriter, null, true, fixContainedResourceId(resourceId.getValue()), null);
 				}
 
 				theWriter.writeEnd();
@@ -515,7 +505,7 @@ public class JsonParser extends BaseParser implements IParser {
 		case RESOURCE:
 			IBaseResource resource = (IBaseResource) theNextValue;
 			RuntimeResourceDefinition def = myContext.getResourceDefinition(resource);
-			encodeResourceToJsonStreamWriter(def, resource, theWriter, theChildName, false);
+			encodeResourceToJsonStreamWriter(def, resource, theWriter, theChildName, false, null);
 			break;
 		case UNDECL_EXT:
 		default:
@@ -524,7 +514,12 @@ public class JsonParser extends BaseParser implements IParser {
 
 	}
 
-	private void encodeCompositeElementChildrenToStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, IBase theNextValue, JsonGenerator theEventWriter, List<? extends BaseRuntimeChildDefinition> theChildren, boolean theContainedResource, CompositeChildElement theParent)
+	/**
+	 * @param theStreamedEntries
+	 *           If not <code>null</code>, these are encoded as the values of the <code>entry</code> child, with the
+	 *           output flushed after each one
+	 */
+	private void encodeCompositeElementChildrenToStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, IBase theNextValue, JsonGenerator theEventWriter, List<? extends BaseRuntimeChildDefinition> theChildren, boolean theContainedResource, CompositeChildElement theParent, Iterator<? extends IBase> theStreamedEntries)
 			throws IOException {
 		for (CompositeChildElement nextChildElem : super.compositeChildIterator(theChildren, theContainedResource, theParent)) {
 
@@ -551,11 +546,21 @@ public class JsonParser extends BaseParser implements IParser {
 				continue;
 			}
 
-			List<? extends IBase> values = nextChild.getAccessor().getValues(theNextValue);
-			values = super.preProcessValues(nextChild, values);
+			boolean streamed = theStreamedEntries != null && "entry".equals(nextChild.getElementName());
+			Iterator<? extends IBase> values;
+			if (streamed) {
+				values = theStreamedEntries;
+				if (!values.hasNext()) {
+					continue;
+				}
+			} else {
+				List<? extends IBase> valueList = nextChild.getAccessor().getValues(theNextValue);
+				valueList = super.preProcessValues(nextChild, valueList);
 
-			if (values == null || values.isEmpty()) {
-				continue;
+				if (valueList == null || valueList.isEmpty()) {
+					continue;
+				}
+				values = valueList.iterator();
 			}
 
 			String currentChildName = null;
@@ -565,7 +570,8 @@ public class JsonParser extends BaseParser implements IParser {
 			ArrayList<ArrayList<HeldExtension>> modifierExtensions = new ArrayList<ArrayList<HeldExtension>>(0);
 
 			int valueIdx = 0;
-			for (IBase nextValue : values) {
+			while (values.hasNext()) {
+				IBase nextValue = values.next();
 
 				if (nextValue == null || nextValue.isEmpty()) {
 					if (nextValue instanceof BaseContainedDt) {
@@ -641,6 +647,9 @@ public class JsonParser extends BaseParser implements IParser {
 
 				}
 
+				if (streamed) {
+					theEventWriter.flush();
+				}
 				valueIdx++;
 			}
 
@@ -689,14 +698,18 @@ public class JsonParser extends BaseParser implements IParser {
 		}
 	}
 
-	private void encodeCompositeElementToStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, IBase theNextValue, JsonGenerator theEventWriter, BaseRuntimeElementCompositeDefinition<?> resDef, boolean theContainedResource, CompositeChildElement theParent)
+	private void encodeCompositeElementToStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, IBase theNextValue, JsonGenerator theEventWriter, BaseRuntimeElementCompositeDefinition<?> resDef, boolean theContainedResource, CompositeChildElement theParent, Iterator<? extends IBase> theStreamedEntries)
 			throws IOException, DataFormatException {
 		extractAndWriteExtensionsAsDirectChild(theNextValue, theEventWriter, resDef, theResDef, theResource, null);
-		encodeCompositeElementChildrenToStreamWriter(theResDef, theResource, theNextValue, theEventWriter, resDef.getExtensions(), theContainedResource, theParent);
-		encodeCompositeElementChildrenToStreamWriter(theResDef, theResource, theNextValue, theEventWriter, resDef.getChildren(), theContainedResource, theParent);
+		encodeCompositeElementChildrenToStreamWriter(theResDef, theResource, theNextValue, theEventWriter, resDef.getExtensions(), theContainedResource, theParent, null);
+		encodeCompositeElementChildrenToStreamWriter(theResDef, theResource, theNextValue, theEventWriter, resDef.getChildren(), theContainedResource, theParent, theStreamedEntries);
 	}
 
-	private void encodeResourceToJsonStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, JsonGenerator theEventWriter, String theObjectNameOrNull, boolean theContainedResource) throws IOException {
+	/**
+	 * @param theStreamedEntries
+	 *           If not <code>null</code>, the resource is a Bundle and these entries are encoded in place of its own
+	 */
+	private void encodeResourceToJsonStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, JsonGenerator theEventWriter, String theObjectNameOrNull, boolean theContainedResource, Iterator<? extends IBase> theStreamedEntries) throws IOException {
 		String resourceId = null;
 		if (theResource instanceof IResource) {
 			IResource res = (IResource) theResource;
@@ -718,10 +731,10 @@ public class JsonParser extends BaseParser implements IParser {
 			resourceId = null;
 		}
 
-		encodeResourceToJsonStreamWriter(theResDef, theResource, theEventWriter, theObjectNameOrNull, theContainedResource, resourceId);
+		encodeResourceToJsonStreamWriter(theResDef, theResource, theEventWriter, theObjectNameOrNull, theContainedResource, resourceId, theStreamedEntries);
 	}
 
-	private void encodeResourceToJsonStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, JsonGenerator theEventWriter, String theObjectNameOrNull, boolean theContainedResource, String theResourceId) throws IOException {
+	private void encodeResourceToJsonStreamWriter(RuntimeResourceDefinition theResDef, IBaseResource theResource, JsonGenerator theEventWriter, String theObjectNameOrNull, boolean theContainedResource, String theResourceId, Iterator<? extends IBase> theStreamedEntries) throws IOException {
 		if (!theContainedResource) {
 			super.containResourcesForEncoding(theResource);
 		}
@@ -773,7 +786,7 @@ public class JsonParser extends BaseParser implements IParser {
 					for (BaseCodingDt securityLabel : securityLabels) {
 						theEventWriter.writeStartObject();
 						BaseRuntimeElementCompositeDefinition<?> def = (BaseRuntimeElementCompositeDefinition<?>) myContext.getElementDefinition(securityLabel.getClass());
-						encodeCompositeElementChildrenToStreamWriter(resDef, resource, securityLabel, theEventWriter, def.getChildren(), theContainedResource, null);
+						encodeCompositeElementChildrenToStreamWriter(resDef, resource, securityLabel, theEventWriter, def.getChildren(), theContainedResource, null, null);
 						theEventWriter.writeEnd();
 					}
 					theEventWriter.writeEnd();
@@ -803,7 +816,7 @@ public class JsonParser extends BaseParser implements IParser {
 			theEventWriter.write("contentType", bin.getContentType());
 			theEventWriter.write("content", bin.getContentAsBase64());
 		} else {
-			encodeCompositeElementToStreamWriter(theResDef, theResource, theResource, theEventWriter, resDef, theContainedResource, new CompositeChildElement(resDef));
+			encodeCompositeElementToStreamWriter(theResDef, theResource, theResource, theEventWriter, resDef, theContainedResource, new CompositeChildElement(resDef), theStreamedEntries);
 		}
 
 		theEventWriter.writeEnd();
@@ -929,7 +942,7 @@ public class JsonParser extends BaseParser implements IParser {
 		return EncodingEnum.JSON;
 	}
 
-	private void parseAlternates(JsonValue theAlternateVal, ParserState<?> theState, String theElementName) {
+	void parseAlternates(JsonValue theAlternateVal, ParserState<?> theState, String theElementName) {
 		if (theAlternateVal == null || theAlternateVal.getValueType() == ValueType.NULL) {
 			return;
 		}
@@ -974,6 +987,10 @@ public class JsonParser extends BaseParser implements IParser {
 
 	@Override
 	public <T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, Reader theReader) {
+		if (myUseStreamingParser) {
+			return new JsonStreamParser(this, myContext, theReader).parseBundle(theResourceType);
+		}
+
 		JsonReader reader;
 		JsonObject object;
 
@@ -981,11 +998,12 @@ public class JsonParser extends BaseParser implements IParser {
 			reader = Json.createReader(theReader);
 			object = reader.readObject();
 		} catch (JsonParsingException e) {
-			if (e.getMessage().startsWith("Unexpected char 39")) {
-				throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage() + " - This may indicate that single quotes are being used as JSON escapes where double quotes are required", e);
-			}
-			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+			throw toDataFormatException(e);
 		}
+		return parseBundle(theResourceType, object);
+	}
+
+	<T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, JsonObject object) {
 		JsonValue resourceTypeObj = object.get("resourceType");
 		assertObjectOfType(resourceTypeObj, JsonValue.ValueType.STRING, "resourceType");
 		String resourceType = ((JsonString) resourceTypeObj).getString();
@@ -993,12 +1011,7 @@ public class JsonParser extends BaseParser implements IParser {
 			throw new DataFormatException("Trying to parse bundle but found resourceType other than 'Bundle'. Found: '" + resourceType + "'");
 		}
 
-		ParserState<Bundle> state = ParserState.getPreAtomInstance(myContext, theResourceType, true, getErrorHandler());
-		if (myContext.getVersion().getVersion().isNewerThan(FhirVersionEnum.DSTU1)) {
-			state.enteringNewElement(null, "Bundle");
-		} else {
-			state.enteringNewElement(null, "feed");
-		}
+		ParserState<Bundle> state = newBundleState(theResourceType);
 
 		parseBundleChildren(object, state);
 
@@ -1009,6 +1022,25 @@ public class JsonParser extends BaseParser implements IParser {
 		return retVal;
 	}
 
+	/**
+	 * Parses one of the objects in the <code>link</code> array of a bundle
+	 */
+	void parseBundleLink(JsonObject theLinkObject, ParserState<?> theState) {
+		theState.enteringNewElement(null, "link");
+		if (myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+			theState.attributeValue("rel", theLinkObject.getString("rel", null));
+			theState.attributeValue("href", theLinkObject.getString("href", null));
+		} else {
+			theState.enteringNewElement(null, "relation");
+			theState.attributeValue("value", theLinkObject.getString("relation", null));
+			theState.endingElement();
+			theState.enteringNewElement(null, "url");
+			theState.attributeValue("value", theLinkObject.getString("url", null));
+			theState.endingElement();
+		}
+		theState.endingElement();
+	}
+
 	private void parseBundleChildren(JsonObject theObject, ParserState<?> theState) {
 		for (String nextName : theObject.keySet()) {
 			if ("resourceType".equals(nextName)) {
@@ -1025,13 +1057,7 @@ public class JsonParser extends BaseParser implements IParser {
 				if ("link".equals(nextName)) {
 					JsonArray entries = grabJsonArray(theObject, nextName, "link");
 					for (JsonValue jsonValue : entries) {
-						theState.enteringNewElement(null, "link");
-						JsonObject linkObj = (JsonObject) jsonValue;
-						String rel = linkObj.getString("rel", null);
-						String href = linkObj.getString("href", null);
-						theState.attributeValue("rel", rel);
-						theState.attributeValue("href", href);
-						theState.endingElement();
+						parseBundleLink((JsonObject) jsonValue, theState);
 					}
 					continue;
 				} else if (BUNDLE_TEXTNODE_CHILDREN_DSTU1.contains(nextName)) {
@@ -1044,17 +1070,7 @@ public class JsonParser extends BaseParser implements IParser {
 				if ("link".equals(nextName)) {
 					JsonArray entries = grabJsonArray(theObject, nextName, "link");
 					for (JsonValue jsonValue : entries) {
-						theState.enteringNewElement(null, "link");
-						JsonObject linkObj = (JsonObject) jsonValue;
-						String rel = linkObj.getString("relation", null);
-						String href = linkObj.getString("url", null);
-						theState.enteringNewElement(null, "relation");
-						theState.attributeValue("value", rel);
-						theState.endingElement();
-						theState.enteringNewElement(null, "url");
-						theState.attributeValue("value", href);
-						theState.endingElement();
-						theState.endingElement();
+						parseBundleLink((JsonObject) jsonValue, theState);
 					}
 					continue;
 				} else if (BUNDLE_TEXTNODE_CHILDREN_DSTU2.contains(nextName)) {
@@ -1083,7 +1099,7 @@ public class JsonParser extends BaseParser implements IParser {
 		}
 	}
 
-	private void parseChildren(JsonObject theObject, ParserState<?> theState) {
+	void parseChildren(JsonObject theObject, ParserState<?> theState) {
 		String elementId = null;
 		for (String nextName : theObject.keySet()) {
 			if ("resourceType".equals(nextName)) {
@@ -1126,12 +1142,16 @@ public class JsonParser extends BaseParser implements IParser {
 		}
 
 		if (elementId != null) {
-			IBase object = (IBase) theState.getObject();
-			if (object instanceof IIdentifiableElement) {
-				((IIdentifiableElement) object).setElementSpecificId(elementId);
-			} else if (object instanceof IBaseResource) {
-				((IBaseResource) object).getIdElement().setValue(elementId);
-			}
+			setElementId(theState, elementId);
+		}
+	}
+
+	void setElementId(ParserState<?> theState, String theElementId) {
+		IBase object = (IBase) theState.getObject();
+		if (object instanceof IIdentifiableElement) {
+			((IIdentifiableElement) object).setElementSpecificId(theElementId);
+		} else if (object instanceof IBaseResource) {
+			((IBaseResource) object).getIdElement().setValue(theElementId);
 		}
 	}
 
@@ -1146,7 +1166,7 @@ public class JsonParser extends BaseParser implements IParser {
 		return (JsonArray) object;
 	}
 
-	private void parseChildren(ParserState<?> theState, String theName, JsonValue theJsonVal, JsonValue theAlternateVal, String theAlternateName) {
+	void parseChildren(ParserState<?> theState, String theName, JsonValue theJsonVal, JsonValue theAlternateVal, String theAlternateName) {
 		switch (theJsonVal.getValueType()) {
 		case ARRAY: {
 			JsonArray nextArray = (JsonArray) theJsonVal;
@@ -1202,7 +1222,7 @@ public class JsonParser extends BaseParser implements IParser {
 		}
 	}
 
-	private void parseExtension(ParserState<?> theState, JsonArray theValues, boolean theIsModifier) {
+	void parseExtension(ParserState<?> theState, JsonArray theValues, boolean theIsModifier) {
 		for (int i = 0; i < theValues.size(); i++) {
 			JsonObject nextExtObj = theValues.getJsonObject(i);
 			String url = nextExtObj.getString("url");
@@ -1252,6 +1272,35 @@ public class JsonParser extends BaseParser implements IParser {
 	// theState.endingElement();
 	// }
 
+	ParserState<Bundle> newBundleState(Class<? extends IBaseResource> theResourceType) {
+		ParserState<Bundle> state = ParserState.getPreAtomInstance(myContext, theResourceType, true, getErrorHandler());
+		if (myContext.getVersion().getVersion().isNewerThan(FhirVersionEnum.DSTU1)) {
+			state.enteringNewElement(null, "Bundle");
+		} else {
+			state.enteringNewElement(null, "feed");
+		}
+		return state;
+	}
+
+	<T extends IBaseResource> T parseResource(Class<T> theResourceType, JsonObject theObject, IBundleEntryHandler theBundleEntryHandler) {
+		JsonValue resourceTypeObj = theObject.get("resourceType");
+		assertObjectOfType(resourceTypeObj, JsonValue.ValueType.STRING, "resourceType");
+		String resourceType = ((JsonString) resourceTypeObj).getString();
+
+		ParserState<? extends IBaseResource> state = ParserState.getPreResourceInstance(theResourceType, myContext, true, getErrorHandler());
+		state.setBundleEntryHandler(theBundleEntryHandler);
+		state.enteringNewElement(null, resourceType);
+
+		parseChildren(theObject, state);
+
+		state.endingElement();
+
+		@SuppressWarnings("unchecked")
+		T retVal = (T) state.getObject();
+
+		return retVal;
+	}
+
 	@Override
 	public TagList parseTagList(Reader theReader) {
 		JsonReader reader = Json.createReader(theReader);
@@ -1277,6 +1326,26 @@ public class JsonParser extends BaseParser implements IParser {
 		return this;
 	}
 
+	/**
+	 * If set to <code>true</code> (the default), resources and bundles are parsed directly from a stream of JSON tokens.
+	 * If set to <code>false</code>, the whole document is first read into a <code>javax.json</code> object tree and the
+	 * tree is then parsed, which needs memory for both the tree and the parsed resource at the same time.
+	 * <p>
+	 * Both produce the same result, the streaming parser is faster and uses less memory for large documents.
+	 * </p>
+	 */
+	public IParser setUseStreamingParser(boolean theUseStreamingParser) {
+		myUseStreamingParser = theUseStreamingParser;
+		return this;
+	}
+
+	static DataFormatException toDataFormatException(JsonParsingException theException) {
+		if (theException.getMessage().startsWith("Unexpected char 39")) {
+			return new DataFormatException("Failed to parse JSON encoded FHIR content: " + theException.getMessage() + " - This may indicate that single quotes are being used as JSON escapes where double quotes are required", theException);
+		}
+		return new DataFormatException("Failed to parse JSON encoded FHIR content: " + theException.getMessage(), theException);
+	}
+
 	private boolean writeAtomLinkInDstu1Format(JsonGenerator theEventWriter, String theRel, StringDt theLink, boolean theStarted) {
 		boolean retVal = theStarted;
 		if (isNotBlank(theLink.getValue())) {
@@ -0,0 +1,685 @@
+package ca.uhn.fhir.parser;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParserFactory;
+import javax.json.stream.JsonParsingException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.model.api.Bundle;
+
+/**
+ * Parses a JSON resource or bundle by driving a {@link ParserState} directly from the stream of tokens read by a
+ * <code>javax.json</code> stream parser, instead of first reading the whole document into a {@link JsonObject} tree.
+ * This is used by {@link JsonParser} (see {@link JsonParser#setUseStreamingParser(boolean)}), and produces the same
+ * results as its tree based parsing.
+ * <p>
+ * A few things in FHIR JSON can't be handled in a single pass, and are handled as follows:
+ * <ul>
+ * <li>The <code>_[name]</code> object holding the ID and extensions of a primitive may come before or after the
+ * primitive itself, so primitives are held until their <code>_[name]</code> has been read or the enclosing object
+ * ends. Primitives are small, so this costs little.</li>
+ * <li>A resource can't be parsed until its <code>resourceType</code> is known, and an extension can't be parsed until
+ * its <code>url</code> is known. These are normally the first property of their object, but if they aren't, that
+ * object (only) is read into a tree and handed to the tree based parsing in {@link JsonParser}.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Instances are not thread safe, and may only be used for one document.
+ * </p>
+ */
+class JsonStreamParser {
+
+	private static final JsonBuilderFactory ourBuilderFactory = Json.createBuilderFactory(null);
+	private static final JsonParserFactory ourParserFactory = Json.createParserFactory(null);
+
+	private final FhirContext myContext;
+	private final JsonParser myParser;
+	private final javax.json.stream.JsonParser myStream;
+
+	JsonStreamParser(JsonParser theParser, FhirContext theContext, Reader theReader) {
+		myParser = theParser;
+		myContext = theContext;
+		myStream = ourParserFactory.createParser(theReader);
+	}
+
+	private void addToArray(JsonArrayBuilder theBuilder, Event theEvent) {
+		switch (theEvent) {
+		case START_OBJECT:
+			theBuilder.add(readObject(myStream.next()));
+			break;
+		case START_ARRAY:
+			theBuilder.add(readArray());
+			break;
+		case VALUE_STRING:
+			theBuilder.add(myStream.getString());
+			break;
+		case VALUE_NUMBER:
+			theBuilder.add(myStream.getBigDecimal());
+			break;
+		case VALUE_TRUE:
+			theBuilder.add(JsonValue.TRUE);
+			break;
+		case VALUE_FALSE:
+			theBuilder.add(JsonValue.FALSE);
+			break;
+		case VALUE_NULL:
+			theBuilder.addNull();
+			break;
+		default:
+			throw unexpected(theEvent, "a value");
+		}
+	}
+
+	private void addToObject(JsonObjectBuilder theBuilder, String theName, Event theEvent) {
+		switch (theEvent) {
+		case START_OBJECT:
+			theBuilder.add(theName, readObject(myStream.next()));
+			break;
+		case START_ARRAY:
+			theBuilder.add(theName, readArray());
+			break;
+		case VALUE_STRING:
+			theBuilder.add(theName, myStream.getString());
+			break;
+		case VALUE_NUMBER:
+			theBuilder.add(theName, myStream.getBigDecimal());
+			break;
+		case VALUE_TRUE:
+			theBuilder.add(theName, JsonValue.TRUE);
+			break;
+		case VALUE_FALSE:
+			theBuilder.add(theName, JsonValue.FALSE);
+			break;
+		case VALUE_NULL:
+			theBuilder.addNull(theName);
+			break;
+		default:
+			throw unexpected(theEvent, "a value");
+		}
+	}
+
+	private void emitPrimitive(ParserState<?> theState, String theName, Object thePrimitive, JsonValue theAlternate) {
+		if (thePrimitive == null) {
+			// JSON null, which is ignored along with its alternate
+			return;
+		}
+		if (thePrimitive instanceof JsonValue) {
+			// An object or array mixed into an array of primitives
+			myParser.parseChildren(theState, theName, (JsonValue) thePrimitive, theAlternate, '_' + theName);
+			return;
+		}
+		theState.enteringNewElement(null, theName);
+		theState.attributeValue("value", ((Primitive) thePrimitive).myValue);
+		myParser.parseAlternates(theAlternate, theState, '_' + theName);
+		theState.endingElement();
+	}
+
+	private void emitPrimitives(ParserState<?> theState, String theName, PendingPrimitive thePending, JsonValue theAlternate) {
+		if (!thePending.myArray) {
+			emitPrimitive(theState, theName, thePending.myValues.get(0), theAlternate);
+			return;
+		}
+
+		JsonArray alternates = null;
+		if (theAlternate != null && theAlternate.getValueType() == JsonValue.ValueType.ARRAY) {
+			alternates = (JsonArray) theAlternate;
+		}
+		for (int i = 0; i < thePending.myValues.size(); i++) {
+			JsonValue nextAlternate = null;
+			if (alternates != null && i < alternates.size()) {
+				nextAlternate = alternates.get(i);
+			}
+			emitPrimitive(theState, theName, thePending.myValues.get(i), nextAlternate);
+		}
+	}
+
+	private void expectStartObject() {
+		if (!myStream.hasNext()) {
+			throw new DataFormatException("Failed to parse JSON: the content is empty");
+		}
+		Event event = myStream.next();
+		if (event != Event.START_OBJECT) {
+			throw new DataFormatException("Failed to parse JSON: expected a JSON object but found " + toValueTypeName(event));
+		}
+	}
+
+	private boolean isResourceTypeKey(Event theEvent) {
+		return theEvent == Event.KEY_NAME && "resourceType".equals(myStream.getString());
+	}
+
+	private String nextKey(Event theEvent) {
+		if (theEvent != Event.KEY_NAME) {
+			throw unexpected(theEvent, "a property name");
+		}
+		return myStream.getString();
+	}
+
+	private void nextStartArray(String thePosition) {
+		Event event = myStream.next();
+		if (event != Event.START_ARRAY) {
+			throw new DataFormatException("Syntax error parsing JSON FHIR structure: Expected ARRAY at element '" + thePosition + "', found '" + toValueTypeName(event) + "'");
+		}
+	}
+
+	Bundle parseBundle(Class<? extends IBaseResource> theResourceType) {
+		try {
+			expectStartObject();
+
+			Event event = myStream.next();
+			if (!isResourceTypeKey(event)) {
+				return myParser.parseBundle(theResourceType, readObject(event));
+			}
+			String resourceType = readResourceTypeValue();
+			if (!"Bundle".equals(resourceType)) {
+				throw new DataFormatException("Trying to parse bundle but found resourceType other than 'Bundle'. Found: '" + resourceType + "'");
+			}
+
+			ParserState<Bundle> state = myParser.newBundleState(theResourceType);
+			parseBundleChildren(state);
+			state.endingElement();
+
+			return state.getObject();
+		} catch (JsonParsingException e) {
+			throw JsonParser.toDataFormatException(e);
+		}
+	}
+
+	/**
+	 * Streaming equivalent of <code>JsonParser#parseBundleChildren(JsonObject, ParserState)</code>, called after the
+	 * opening brace of the object (and possibly its <code>resourceType</code>) has been read
+	 */
+	private void parseBundleChildren(ParserState<?> theState) {
+		boolean dstu1 = myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1;
+		for (Event event = myStream.next(); event != Event.END_OBJECT; event = myStream.next()) {
+			String nextName = nextKey(event);
+			if ("resourceType".equals(nextName)) {
+				skipValue(myStream.next());
+			} else if ("entry".equals(nextName)) {
+				nextStartArray("entry");
+				for (Event next = myStream.next(); next != Event.END_ARRAY; next = myStream.next()) {
+					if (next != Event.START_OBJECT) {
+						throw unexpected(next, "an entry object");
+					}
+					theState.enteringNewElement(null, "entry");
+					parseBundleChildren(theState);
+					theState.endingElement();
+				}
+			} else if ("link".equals(nextName)) {
+				nextStartArray("link");
+				for (Event next = myStream.next(); next != Event.END_ARRAY; next = myStream.next()) {
+					if (next != Event.START_OBJECT) {
+						throw unexpected(next, "a link object");
+					}
+					myParser.parseBundleLink(readObject(myStream.next()), theState);
+				}
+			} else if (dstu1 && JsonParser.BUNDLE_TEXTNODE_CHILDREN_DSTU1.contains(nextName)) {
+				Event valueEvent = myStream.next();
+				theState.enteringNewElement(null, nextName);
+				if (valueEvent == Event.VALUE_STRING) {
+					theState.string(myStream.getString());
+				} else {
+					skipValue(valueEvent);
+					theState.string(null);
+				}
+				theState.endingElement();
+			} else if (!dstu1 && JsonParser.BUNDLE_TEXTNODE_CHILDREN_DSTU2.contains(nextName)) {
+				Event valueEvent = myStream.next();
+				theState.enteringNewElement(null, nextName);
+				if (valueEvent == Event.VALUE_STRING) {
+					theState.attributeValue("value", myStream.getString());
+				} else if (valueEvent == Event.VALUE_NUMBER) {
+					theState.attributeValue("value", myStream.getBigDecimal().toString());
+				} else {
+					throw new DataFormatException("Unexpected JSON object for entry '" + nextName + "'");
+				}
+				theState.endingElement();
+			} else {
+				parseValue(theState, nextName, myStream.next());
+			}
+		}
+	}
+
+	/**
+	 * Streaming equivalent of <code>JsonParser#parseChildren(JsonObject, ParserState)</code>, called after the opening
+	 * brace of the object (and possibly its <code>resourceType</code>) has been read
+	 */
+	private void parseChildren(ParserState<?> theState) {
+		boolean dstu1 = myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1;
+		String elementId = null;
+		Map<String, PendingPrimitive> pending = null;
+		Map<String, JsonValue> alternates = null;
+
+		for (Event event = myStream.next(); event != Event.END_OBJECT; event = myStream.next()) {
+			String nextName = nextKey(event);
+			Event valueEvent = myStream.next();
+
+			if ("resourceType".equals(nextName)) {
+				skipValue(valueEvent);
+				continue;
+			} else if ("extension".equals(nextName) || "modifierExtension".equals(nextName)) {
+				if (valueEvent != Event.START_ARRAY) {
+					throw new DataFormatException("Syntax error parsing JSON FHIR structure: Expected ARRAY at element '" + nextName + "', found '" + toValueTypeName(valueEvent) + "'");
+				}
+				parseExtensions(theState, "modifierExtension".equals(nextName));
+				continue;
+			} else if (nextName.length() > 0 && nextName.charAt(0) == '_') {
+				if ("_id".equals(nextName) && valueEvent == Event.VALUE_STRING) {
+					// _id is incorrect, but some early examples in the FHIR spec used it
+					elementId = myStream.getString();
+					continue;
+				}
+				if (valueEvent == Event.VALUE_NULL) {
+					continue;
+				}
+				JsonValue alternate = readValue(valueEvent);
+				String baseName = nextName.substring(1);
+				PendingPrimitive pendingPrimitive = pending != null ? pending.remove(baseName) : null;
+				if (pendingPrimitive != null) {
+					emitPrimitives(theState, baseName, pendingPrimitive, alternate);
+				} else {
+					if (alternates == null) {
+						alternates = new HashMap<String, JsonValue>();
+					}
+					alternates.put(baseName, alternate);
+				}
+				continue;
+			} else if ("id".equals(nextName)) {
+				if (valueEvent == Event.VALUE_NULL) {
+					continue;
+				}
+				if (valueEvent == Event.VALUE_STRING) {
+					elementId = myStream.getString();
+				}
+				if (dstu1) {
+					skipValue(valueEvent);
+					continue;
+				}
+			}
+
+			if (pending != null && valueEvent == Event.START_ARRAY && "entry".equals(nextName) && theState.isStreamingBundleEntries()) {
+				/*
+				 * Bundle entries are handed off as they are parsed, so the bundle's own primitives (type, total, etc.)
+				 * have to be in place before the first entry starts
+				 */
+				for (Map.Entry<String, PendingPrimitive> next : pending.entrySet()) {
+					emitPrimitives(theState, next.getKey(), next.getValue(), null);
+				}
+				pending = null;
+			}
+
+			JsonValue alternate = alternates != null ? alternates.remove(nextName) : null;
+			switch (valueEvent) {
+			case START_OBJECT:
+				parseObject(theState, nextName, alternate);
+				break;
+			case START_ARRAY: {
+				Event first = myStream.next();
+				if (first == Event.START_OBJECT || first == Event.START_ARRAY) {
+					JsonArray alternateArray = alternate instanceof JsonArray ? (JsonArray) alternate : null;
+					int index = 0;
+					for (Event next = first; next != Event.END_ARRAY; next = myStream.next()) {
+						JsonValue nextAlternate = null;
+						if (alternateArray != null && index < alternateArray.size()) {
+							nextAlternate = alternateArray.get(index);
+						}
+						if (next == Event.START_OBJECT) {
+							parseObject(theState, nextName, nextAlternate);
+						} else if (next == Event.START_ARRAY) {
+							myParser.parseChildren(theState, nextName, readArray(), nextAlternate, '_' + nextName);
+						} else {
+							emitPrimitive(theState, nextName, readPrimitive(next), nextAlternate);
+						}
+						index++;
+					}
+				} else {
+					PendingPrimitive pendingPrimitive = new PendingPrimitive(true);
+					for (Event next = first; next != Event.END_ARRAY; next = myStream.next()) {
+						if (next == Event.START_OBJECT || next == Event.START_ARRAY) {
+							pendingPrimitive.myValues.add(readValue(next));
+						} else {
+							pendingPrimitive.myValues.add(readPrimitive(next));
+						}
+					}
+					if (alternate != null) {
+						emitPrimitives(theState, nextName, pendingPrimitive, alternate);
+					} else {
+						if (pending == null) {
+							pending = new LinkedHashMap<String, PendingPrimitive>();
+						}
+						pending.put(nextName, pendingPrimitive);
+					}
+				}
+				break;
+			}
+			case VALUE_NULL:
+				break;
+			default: {
+				PendingPrimitive pendingPrimitive = new PendingPrimitive(false);
+				pendingPrimitive.myValues.add(readPrimitive(valueEvent));
+				if (alternate != null) {
+					emitPrimitives(theState, nextName, pendingPrimitive, alternate);
+				} else {
+					if (pending == null) {
+						pending = new LinkedHashMap<String, PendingPrimitive>();
+					}
+					pending.put(nextName, pendingPrimitive);
+				}
+				break;
+			}
+			}
+		}
+
+		if (pending != null) {
+			for (Map.Entry<String, PendingPrimitive> next : pending.entrySet()) {
+				emitPrimitives(theState, next.getKey(), next.getValue(), null);
+			}
+		}
+
+		if (elementId != null) {
+			myParser.setElementId(theState, elementId);
+		}
+	}
+
+	/**
+	 * Called after the opening bracket of an <code>extension</code> or <code>modifierExtension</code> array has been
+	 * read
+	 */
+	private void parseExtensions(ParserState<?> theState, boolean theIsModifier) {
+		for (Event event = myStream.next(); event != Event.END_ARRAY; event = myStream.next()) {
+			if (event != Event.START_OBJECT) {
+				throw unexpected(event, "an extension object");
+			}
+
+			event = myStream.next();
+			if (event != Event.KEY_NAME || !"url".equals(myStream.getString())) {
+				JsonArray array = ourBuilderFactory.createArrayBuilder().add(readObject(event)).build();
+				myParser.parseExtension(theState, array, theIsModifier);
+				continue;
+			}
+			theState.enteringNewElementExtension(null, readString("url"), theIsModifier);
+
+			for (event = myStream.next(); event != Event.END_OBJECT; event = myStream.next()) {
+				String nextName = nextKey(event);
+				if ("url".equals(nextName)) {
+					skipValue(myStream.next());
+				} else if ("extension".equals(nextName)) {
+					nextStartArray(nextName);
+					parseExtensions(theState, false);
+				} else if ("modifierExtension".equals(nextName)) {
+					nextStartArray(nextName);
+					parseExtensions(theState, true);
+				} else {
+					parseValue(theState, nextName, myStream.next());
+				}
+			}
+
+			theState.endingElement();
+		}
+	}
+
+	/**
+	 * Called after the opening brace of an object valued element has been read
+	 */
+	private void parseObject(ParserState<?> theState, String theName, JsonValue theAlternate) {
+		theState.enteringNewElement(null, theName);
+		myParser.parseAlternates(theAlternate, theState, '_' + theName);
+
+		if (theState.isPreResource()) {
+			Event event = myStream.next();
+			if (!isResourceTypeKey(event)) {
+				JsonObject object = readObject(event);
+				String resType = object.getString("resourceType", null);
+				if (isBlank(resType)) {
+					throw new DataFormatException("Missing required element 'resourceType' from JSON resource object, unable to parse");
+				}
+				theState.enteringNewElement(null, resType);
+				myParser.parseChildren(object, theState);
+				theState.endingElement();
+			} else {
+				String resType = readResourceTypeValue();
+				if (isBlank(resType)) {
+					throw new DataFormatException("Missing required element 'resourceType' from JSON resource object, unable to parse");
+				}
+				theState.enteringNewElement(null, resType);
+				parseChildren(theState);
+				theState.endingElement();
+			}
+		} else {
+			parseChildren(theState);
+		}
+
+		theState.endingElement();
+	}
+
+	<T extends IBaseResource> T parseResource(Class<T> theResourceType, IBundleEntryHandler theBundleEntryHandler) {
+		try {
+			expectStartObject();
+
+			Event event = myStream.next();
+			if (!isResourceTypeKey(event)) {
+				return myParser.parseResource(theResourceType, readObject(event), theBundleEntryHandler);
+			}
+			String resourceType = readResourceTypeValue();
+
+			ParserState<? extends IBaseResource> state = ParserState.getPreResourceInstance(theResourceType, myContext, true, myParser.getErrorHandler());
+			state.setBundleEntryHandler(theBundleEntryHandler);
+			state.enteringNewElement(null, resourceType);
+			parseChildren(state);
+			state.endingElement();
+
+			@SuppressWarnings("unchecked")
+			T retVal = (T) state.getObject();
+			return retVal;
+		} catch (JsonParsingException e) {
+			throw new DataFormatException("Failed to parse JSON: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Streaming equivalent of <code>JsonParser#parseChildren(ParserState, String, JsonValue, null, null)</code>, for
+	 * elements which can't have alternates
+	 */
+	private void parseValue(ParserState<?> theState, String theName, Event theEvent) {
+		switch (theEvent) {
+		case START_ARRAY:
+			for (Event next = myStream.next(); next != Event.END_ARRAY; next = myStream.next()) {
+				parseValue(theState, theName, next);
+			}
+			break;
+		case START_OBJECT:
+			parseObject(theState, theName, null);
+			break;
+		case VALUE_NULL:
+			break;
+		default:
+			emitPrimitive(theState, theName, readPrimitive(theEvent), null);
+			break;
+		}
+	}
+
+	/**
+	 * Called after the opening bracket of an array has been read, reads up to and including the closing bracket
+	 */
+	private JsonArray readArray() {
+		JsonArrayBuilder builder = ourBuilderFactory.createArrayBuilder();
+		for (Event event = myStream.next(); event != Event.END_ARRAY; event = myStream.next()) {
+			addToArray(builder, event);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reads an object into a tree, starting with the event after its opening brace (which is either its first property
+	 * name or its closing brace)
+	 */
+	private JsonObject readObject(Event theEvent) {
+		JsonObjectBuilder builder = ourBuilderFactory.createObjectBuilder();
+		for (Event event = theEvent; event != Event.END_OBJECT; event = myStream.next()) {
+			String name = nextKey(event);
+			addToObject(builder, name, myStream.next());
+		}
+		return builder.build();
+	}
+
+	private Primitive readPrimitive(Event theEvent) {
+		switch (theEvent) {
+		case VALUE_STRING:
+			return new Primitive(myStream.getString());
+		case VALUE_NUMBER:
+			// Same text as the JsonNumber#toString() used by the tree based parsing
+			return new Primitive(myStream.getBigDecimal().toString());
+		case VALUE_TRUE:
+			return new Primitive("true");
+		case VALUE_FALSE:
+			return new Primitive("false");
+		case VALUE_NULL:
+			return null;
+		default:
+			throw unexpected(theEvent, "a value");
+		}
+	}
+
+	private String readResourceTypeValue() {
+		Event event = myStream.next();
+		if (event != Event.VALUE_STRING) {
+			throw new DataFormatException("Invalid content of element resourceType, expected " + JsonValue.ValueType.STRING);
+		}
+		return myStream.getString();
+	}
+
+	private String readString(String thePosition) {
+		Event event = myStream.next();
+		if (event != Event.VALUE_STRING) {
+			throw unexpected(event, "a string for '" + thePosition + "'");
+		}
+		return myStream.getString();
+	}
+
+	/**
+	 * Reads a value into a tree, given its first event
+	 */
+	private JsonValue readValue(Event theEvent) {
+		if (theEvent == Event.START_OBJECT) {
+			return readObject(myStream.next());
+		}
+		if (theEvent == Event.START_ARRAY) {
+			return readArray();
+		}
+		JsonArrayBuilder builder = ourBuilderFactory.createArrayBuilder();
+		addToArray(builder, theEvent);
+		return builder.build().get(0);
+	}
+
+	/**
+	 * Skips a value, given its first event
+	 */
+	private void skipValue(Event theEvent) {
+		if (theEvent != Event.START_OBJECT && theEvent != Event.START_ARRAY) {
+			return;
+		}
+		int depth = 1;
+		while (depth > 0) {
+			switch (myStream.next()) {
+			case START_OBJECT:
+			case START_ARRAY:
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				depth--;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private DataFormatException unexpected(Event theEvent, String theExpected) {
+		return new DataFormatException("Syntax error parsing JSON FHIR structure: Expected " + theExpected + " at line " + myStream.getLocation().getLineNumber() + " column " + myStream.getLocation().getColumnNumber() + ", found " + toValueTypeName(theEvent));
+	}
+
+	private static String toValueTypeName(Event theEvent) {
+		switch (theEvent) {
+		case START_OBJECT:
+			return JsonValue.ValueType.OBJECT.name();
+		case START_ARRAY:
+			return JsonValue.ValueType.ARRAY.name();
+		case VALUE_STRING:
+			return JsonValue.ValueType.STRING.name();
+		case VALUE_NUMBER:
+			return JsonValue.ValueType.NUMBER.name();
+		case VALUE_TRUE:
+			return JsonValue.ValueType.TRUE.name();
+		case VALUE_FALSE:
+			return JsonValue.ValueType.FALSE.name();
+		case VALUE_NULL:
+			return JsonValue.ValueType.NULL.name();
+		default:
+			return theEvent.name();
+		}
+	}
+
+	/**
+	 * A primitive value, or an array of primitive values, which is waiting for its <code>_[name]</code> alternate
+	 */
+	private static class PendingPrimitive {
+		private final boolean myArray;
+		/**
+		 * Contains {@link Primitive} instances, <code>null</code> for JSON nulls, and {@link JsonValue} trees for any
+		 * objects mixed in to an array of primitives
+		 */
+		private final List<Object> myValues = new ArrayList<Object>(1);
+
+		PendingPrimitive(boolean theArray) {
+			myArray = theArray;
+		}
+	}
+
+	private static class Primitive {
+		private final String myValue;
+
+		Primitive(String theValue) {
+			myValue = theValue;
+		}
+	}
+
+}
@@ -36,6 +36,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseElement;
 import org.hl7.fhir.instance.model.api.IBaseExtension;
 import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
@@ -87,11 +88,14 @@ import ca.uhn.fhir.util.IModelVisitor;
 class ParserState<T> {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ParserState.class);
+	private IBundleEntryHandler myBundleEntryHandler;
+	private boolean myBundleMetadataSent;
 	private FhirContext myContext;
 	private boolean myJsonMode;
 	private T myObject;
 	private BaseState myState;
 	private IParserErrorHandler myErrorHandler;
+	private IBaseBundle myStreamedBundle;
 
 	private ParserState(FhirContext theContext, boolean theJsonMode, IParserErrorHandler theErrorHandler) {
 		myContext = theContext;
@@ -128,6 +132,15 @@ class ParserState<T> {
 		return myState.isPreResource();
 	}
 
+	/**
+	 * Returns <code>true</code> if a bundle entry handler has been supplied (see
+	 * {@link #setBundleEntryHandler(IBundleEntryHandler)}), meaning that everything which comes before the entries of
+	 * the bundle should be handed to this state before the first entry is started
+	 */
+	public boolean isStreamingBundleEntries() {
+		return myBundleEntryHandler != null;
+	}
+
 	private Object newContainedDt(IResource theTarget) {
 
 		Object newChildInstance;
@@ -196,10 +209,32 @@ class ParserState<T> {
 		}
 	}
 
+	private void rootResourceCreated(IBaseResource theResource) {
+		if (myBundleEntryHandler != null && theResource instanceof IBaseBundle) {
+			myStreamedBundle = (IBaseBundle) theResource;
+		}
+	}
+
+	/**
+	 * If set, and the resource being parsed is a Bundle, each entry of the bundle is passed to the given handler as
+	 * soon as it has been parsed and is then removed from the bundle, instead of being kept in the bundle
+	 */
+	void setBundleEntryHandler(IBundleEntryHandler theBundleEntryHandler) {
+		myBundleEntryHandler = theBundleEntryHandler;
+	}
+
 	public void string(String theData) {
 		myState.string(theData);
 	}
 
+	/**
+	 * Returns <code>true</code> if the current state needs to be passed XML events via {@link #xmlEvent(XMLEvent)}. Parsers
+	 * which do not otherwise create event objects can use this to avoid creating them when they would be ignored.
+	 */
+	public boolean isXmlEventsWanted() {
+		return myState.isXmlEventsWanted();
+	}
+
 	public boolean verifyNamespace(String theExpect, String theActual) {
 		if (myJsonMode) {
 			return true;
@@ -880,6 +915,10 @@ class ParserState<T> {
 			// ignore by default
 		}
 
+		public boolean isXmlEventsWanted() {
+			return false;
+		}
+
 		public void wereBack() {
 			// allow an implementor to override
 		}
@@ -1623,8 +1662,17 @@ class ParserState<T> {
 			case RESOURCE_BLOCK: {
 				RuntimeResourceBlockDefinition blockTarget = (RuntimeResourceBlockDefinition) target;
 				IBase newBlockInstance = blockTarget.newInstance();
+				ElementCompositeState newState;
+				if (myInstance == myStreamedBundle && "entry".equals(theChildName)) {
+					if (!myBundleMetadataSent) {
+						myBundleMetadataSent = true;
+						myBundleEntryHandler.bundleMetadata(myStreamedBundle);
+					}
+					newState = new StreamedBundleEntryState(getPreResourceState(), blockTarget, newBlockInstance, child);
+				} else {
+					newState = new ElementCompositeState(getPreResourceState(), blockTarget, newBlockInstance);
+				}
 				child.getMutator().addValue(myInstance, newBlockInstance);
-				ElementCompositeState newState = new ElementCompositeState(getPreResourceState(), blockTarget, newBlockInstance);
 				push(newState);
 				return;
 			}
@@ -1985,6 +2033,9 @@ class ParserState<T> {
 			if (myMutator != null) {
 				myMutator.addValue(myTarget, getCurrentElement());
 			}
+			if (myEntry == null && myMutator == null) {
+				rootResourceCreated(getCurrentElement());
+			}
 		}
 
 	}
@@ -2032,6 +2083,9 @@ class ParserState<T> {
 			if (myMutator != null) {
 				myMutator.addValue(myTarget, getCurrentElement());
 			}
+			if (myTarget == null) {
+				rootResourceCreated(getCurrentElement());
+			}
 		}
 
 	}
@@ -2476,6 +2530,39 @@ class ParserState<T> {
 
 	}
 
+	/**
+	 * An entry in a bundle whose entries are being passed to a {@link IBundleEntryHandler}. Once the entry is complete
+	 * it is handed to the handler and removed from the bundle, so that only one entry is held at a time.
+	 */
+	private class StreamedBundleEntryState extends ElementCompositeState {
+
+		private BaseRuntimeChildDefinition myEntryChild;
+		private BaseRuntimeElementCompositeDefinition<?> myEntryDefinition;
+		private IBase myEntry;
+
+		public StreamedBundleEntryState(PreResourceState thePreResourceState, BaseRuntimeElementCompositeDefinition<?> theDef, IBase theEntry, BaseRuntimeChildDefinition theEntryChild) {
+			super(thePreResourceState, theDef, theEntry);
+			myEntryDefinition = theDef;
+			myEntry = theEntry;
+			myEntryChild = theEntryChild;
+		}
+
+		@Override
+		public void endingElement() {
+			super.endingElement();
+
+			IBaseResource resource = null;
+			List<IBase> resources = myEntryDefinition.getChildByName("resource").getAccessor().getValues(myEntry);
+			if (resources != null && resources.size() > 0) {
+				resource = (IBaseResource) resources.get(0);
+			}
+
+			myEntryChild.getAccessor().getValues(myStreamedBundle).remove(myEntry);
+			myBundleEntryHandler.entry(myEntry, resource);
+		}
+
+	}
+
 	private class SwallowChildrenWholeState extends BaseState {
 
 		private int myDepth;
@@ -2679,6 +2766,11 @@ class ParserState<T> {
 			return myDt;
 		}
 
+		@Override
+		public boolean isXmlEventsWanted() {
+			return true;
+		}
+
 		@Override
 		public void xmlEvent(XMLEvent theEvent) {
 			if (theEvent.isEndElement()) {
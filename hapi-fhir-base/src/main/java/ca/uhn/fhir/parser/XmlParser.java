@@ -36,6 +36,7 @@ import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.Characters;
@@ -44,6 +45,7 @@ import javax.xml.stream.events.EntityReference;
 import javax.xml.stream.events.Namespace;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.XMLEventAllocator;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IAnyResource;
@@ -110,6 +112,7 @@ public class XmlParser extends BaseParser implements IParser {
 
 	private FhirContext myContext;
 	private boolean myPrettyPrint;
+	private boolean myUseCursorParser = true;
 
 	/**
 	 * Do not use this constructor, the recommended way to obtain a new instance of the XML parser is to invoke {@link FhirContext#newXmlParser()}.
@@ -141,6 +144,16 @@ public class XmlParser extends BaseParser implements IParser {
 		// return streamReader;
 	}
 
+	private XMLStreamReader createXmlStreamReader(Reader theReader) {
+		try {
+			return XmlUtil.createXmlStreamReader(theReader);
+		} catch (FactoryConfigurationError e1) {
+			throw new ConfigurationException("Failed to initialize STaX event factory", e1);
+		} catch (XMLStreamException e1) {
+			throw new DataFormatException(e1);
+		}
+	}
+
 	private XMLStreamWriter createXmlWriter(Writer theWriter) throws XMLStreamException {
 		XMLStreamWriter eventWriter;
 		eventWriter = XmlUtil.createXmlStreamWriter(theWriter);
@@ -173,12 +186,12 @@ public class XmlParser extends BaseParser implements IParser {
 	}
 
 	@Override
-	public void doEncodeResourceToWriter(IBaseResource theResource, Writer theWriter) throws DataFormatException {
+	public void doEncodeResourceToWriter(IBaseResource theResource, Writer theWriter, Iterator<? extends IBase> theStreamedEntries) throws DataFormatException {
 		XMLStreamWriter eventWriter;
 		try {
 			eventWriter = createXmlWriter(theWriter);
 
-			encodeResourceToXmlStreamWriter(theResource, eventWriter, false);
+			encodeResourceToXmlStreamWriter(theResource, eventWriter, false, theStreamedEntries);
 			eventWriter.flush();
 		} catch (XMLStreamException e) {
 			throw new ConfigurationException("Failed to initialize STaX event factory", e);
@@ -186,9 +199,83 @@ public class XmlParser extends BaseParser implements IParser {
 	}
 
 	@Override
-	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader) {
-		XMLEventReader streamReader = createStreamReader(theReader);
-		return parseResource(theResourceType, streamReader);
+	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader, IBundleEntryHandler theBundleEntryHandler) {
+		ParserState<T> parserState = ParserState.getPreResourceInstance(theResourceType, myContext, false, getErrorHandler());
+		parserState.setBundleEntryHandler(theBundleEntryHandler);
+		return doXmlLoop(theReader, parserState);
+	}
+
+	private <T> T doXmlCursorLoop(XMLStreamReader theStreamReader, XMLEventAllocator theEventAllocator, ParserState<T> theParserState) {
+		ourLog.trace("Entering XML cursor parsing loop with state: {}", theParserState);
+
+		try {
+			while (theStreamReader.hasNext()) {
+				int eventType = theStreamReader.next();
+				try {
+					boolean xmlEventsWanted;
+					switch (eventType) {
+					case XMLStreamConstants.START_ELEMENT:
+						String localName = theStreamReader.getLocalName();
+						boolean isModifier = "modifierExtension".equals(localName);
+						if (isModifier || "extension".equals(localName)) {
+							String url = theStreamReader.getAttributeValue(null, "url");
+							if (isBlank(url)) {
+								throw new DataFormatException("Extension element has no 'url' attribute");
+							}
+							theParserState.enteringNewElementExtension(null, url, isModifier);
+						} else {
+							theParserState.enteringNewElement(theStreamReader.getNamespaceURI(), localName);
+						}
+
+						for (int i = 0; i < theStreamReader.getAttributeCount(); i++) {
+							theParserState.attributeValue(theStreamReader.getAttributeLocalName(i), theStreamReader.getAttributeValue(i));
+						}
+						xmlEventsWanted = theParserState.isXmlEventsWanted();
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						theParserState.endingElement();
+						if (theParserState.isComplete()) {
+							return theParserState.getObject();
+						}
+						xmlEventsWanted = theParserState.isXmlEventsWanted();
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						theParserState.string(theStreamReader.getText());
+						xmlEventsWanted = theParserState.isXmlEventsWanted();
+						break;
+					default:
+						xmlEventsWanted = theParserState.isXmlEventsWanted();
+						break;
+					}
+
+					/*
+					 * Event objects are only created while inside content which keeps them (i.e. narrative XHTML), everything
+					 * else is read straight from the cursor
+					 */
+					if (xmlEventsWanted) {
+						theParserState.xmlEvent(theEventAllocator.allocate(theStreamReader));
+					}
+
+				} catch (DataFormatException e) {
+					throw new DataFormatException("DataFormatException at [" + theStreamReader.getLocation().toString() + "]: " + e.getMessage(), e);
+				}
+			}
+			return null;
+		} catch (XMLStreamException e) {
+			throw new DataFormatException(e);
+		}
+	}
+
+	private <T> T doXmlLoop(Reader theReader, ParserState<T> theParserState) {
+		if (myUseCursorParser) {
+			XMLEventAllocator eventAllocator = XmlUtil.createXmlEventAllocator();
+			if (eventAllocator != null) {
+				return doXmlCursorLoop(createXmlStreamReader(theReader), eventAllocator, theParserState);
+			}
+		}
+		return doXmlLoop(createStreamReader(theReader), theParserState);
 	}
 
 	private <T> T doXmlLoop(XMLEventReader streamReader, ParserState<T> parserState) {
@@ -364,7 +451,7 @@ public class XmlParser extends BaseParser implements IParser {
 			if (resource != null && !resource.isEmpty() && !deleted) {
 				eventWriter.writeStartElement("content");
 				eventWriter.writeAttribute("type", "text/xml");
-				encodeResourceToXmlStreamWriter(resource, eventWriter, false);
+				encodeResourceToXmlStreamWriter(resource, eventWriter, false, null);
 				eventWriter.writeEndElement(); // content
 			} else {
 				ourLog.debug("Bundle entry contains null resource");
@@ -429,7 +516,7 @@ public class XmlParser extends BaseParser implements IParser {
 			IResource resource = nextEntry.getResource();
 			if (resource != null && !resource.isEmpty() && !deleted) {
 				theEventWriter.writeStartElement("resource");
-				encodeResourceToXmlStreamWriter(resource, theEventWriter, false);
+				encodeResourceToXmlStreamWriter(resource, theEventWriter, false, null);
 				theEventWriter.writeEndElement(); // content
 			} else {
 				ourLog.debug("Bundle entry contains null resource");
@@ -506,7 +593,7 @@ public class XmlParser extends BaseParser implements IParser {
 				theEventWriter.writeAttribute("url", theExtensionUrl);
 			}
 			BaseRuntimeElementCompositeDefinition<?> childCompositeDef = (BaseRuntimeElementCompositeDefinition<?>) childDef;
-			encodeCompositeElementToStreamWriter(theResource, nextValue, theEventWriter, childCompositeDef, theIncludedResource, theParent);
+			encodeCompositeElementToStreamWriter(theResource, nextValue, theEventWriter, childCompositeDef, theIncludedResource, theParent, null);
 			theEventWriter.writeEndElement();
 			break;
 		}
@@ -529,7 +616,7 @@ public class XmlParser extends BaseParser implements IParser {
 			for (IBaseResource next : getContainedResources().getContainedResources()) {
 				IIdType resourceId = getContainedResources().getResourceId(next);
 				theEventWriter.writeStartElement("contained");
-				encodeResourceToXmlStreamWriter(next, theEventWriter, true, fixContainedResourceId(resourceId.getValue()));
+				encodeResourceToXmlStreamWriter(next, theEventWriter, true, fixContainedResourceId(resourceId.getValue()), null);
 				theEventWriter.writeEndElement();
 			}
 			break;
@@ -537,7 +624,7 @@ public class XmlParser extends BaseParser implements IParser {
 		case RESOURCE: {
 			theEventWriter.writeStartElement(childName);
 			IBaseResource resource = (IBaseResource) nextValue;
-			encodeResourceToXmlStreamWriter(resource, theEventWriter, false);
+			encodeResourceToXmlStreamWriter(resource, theEventWriter, false, null);
 			theEventWriter.writeEndElement();
 			break;
 		}
@@ -568,8 +655,13 @@ public class XmlParser extends BaseParser implements IParser {
 
 	}
 
+	/**
+	 * @param theStreamedEntries
+	 *           If not <code>null</code>, these are encoded as the values of the <code>entry</code> child, with the
+	 *           output flushed after each one
+	 */
 	private void encodeCompositeElementChildrenToStreamWriter(IBaseResource theResource, IBase theElement, XMLStreamWriter theEventWriter, List<? extends BaseRuntimeChildDefinition> theChildren,
-			boolean theContainedResource, CompositeChildElement theParent) throws XMLStreamException, DataFormatException {
+			boolean theContainedResource, CompositeChildElement theParent, Iterator<? extends IBase> theStreamedEntries) throws XMLStreamException, DataFormatException {
 		for (CompositeChildElement nextChildElem : super.compositeChildIterator(theChildren, theContainedResource, theParent)) {
 
 			BaseRuntimeChildDefinition nextChild = nextChildElem.getDef();
@@ -599,13 +691,21 @@ public class XmlParser extends BaseParser implements IParser {
 						nextChildElem);
 			} else {
 
-				List<? extends IBase> values = nextChild.getAccessor().getValues(theElement);
-				values = super.preProcessValues(nextChild, values);
+				boolean streamed = theStreamedEntries != null && "entry".equals(nextChild.getElementName());
+				Iterator<? extends IBase> values;
+				if (streamed) {
+					values = theStreamedEntries;
+				} else {
+					List<? extends IBase> valueList = nextChild.getAccessor().getValues(theElement);
+					valueList = super.preProcessValues(nextChild, valueList);
 
-				if (values == null || values.isEmpty()) {
-					continue;
+					if (valueList == null || valueList.isEmpty()) {
+						continue;
+					}
+					values = valueList.iterator();
 				}
-				for (IBase nextValue : values) {
+				while (values.hasNext()) {
+					IBase nextValue = values.next();
 					if ((nextValue == null || nextValue.isEmpty())) {
 						continue;
 					}
@@ -638,16 +738,20 @@ public class XmlParser extends BaseParser implements IParser {
 					} else {
 						encodeChildElementToStreamWriter(theResource, theEventWriter, nextValue, childName, childDef, extensionUrl, theContainedResource, nextChildElem);
 					}
+
+					if (streamed) {
+						theEventWriter.flush();
+					}
 				}
 			}
 		}
 	}
 
 	private void encodeCompositeElementToStreamWriter(IBaseResource theResource, IBase theElement, XMLStreamWriter theEventWriter, BaseRuntimeElementCompositeDefinition<?> theElementDefinition,
-			boolean theIncludedResource, CompositeChildElement theParent) throws XMLStreamException, DataFormatException {
+			boolean theIncludedResource, CompositeChildElement theParent, Iterator<? extends IBase> theStreamedEntries) throws XMLStreamException, DataFormatException {
 		encodeExtensionsIfPresent(theResource, theEventWriter, theElement, theIncludedResource);
-		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, theElementDefinition.getExtensions(), theIncludedResource, theParent);
-		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, theElementDefinition.getChildren(), theIncludedResource, theParent);
+		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, theElementDefinition.getExtensions(), theIncludedResource, theParent, null);
+		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, theElementDefinition.getChildren(), theIncludedResource, theParent, theStreamedEntries);
 	}
 
 	private void encodeExtensionsIfPresent(IBaseResource theResource, XMLStreamWriter theWriter, IBase theElement, boolean theIncludedResource) throws XMLStreamException, DataFormatException {
@@ -684,7 +788,7 @@ public class XmlParser extends BaseParser implements IParser {
 	}
 
 	private void encodeResourceToStreamWriterInDstu2Format(RuntimeResourceDefinition theResDef, IBaseResource theResource, IBase theElement, XMLStreamWriter theEventWriter,
-			BaseRuntimeElementCompositeDefinition<?> resDef, boolean theIncludedResource) throws XMLStreamException, DataFormatException {
+			BaseRuntimeElementCompositeDefinition<?> resDef, boolean theIncludedResource, Iterator<? extends IBase> theStreamedEntries) throws XMLStreamException, DataFormatException {
 		/*
 		 * DSTU2 requires extensions to come in a specific spot within the encoded content - This is a bit of a messy way to make that happen, but hopefully this won't matter as much once we use the HL7
 		 * structures
@@ -705,16 +809,20 @@ public class XmlParser extends BaseParser implements IParser {
 
 		CompositeChildElement parent = new CompositeChildElement(theResDef);
 
-		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, preExtensionChildren, theIncludedResource, parent);
+		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, preExtensionChildren, theIncludedResource, parent, null);
 
 		encodeExtensionsIfPresent(theResource, theEventWriter, theElement, theIncludedResource);
-		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, resDef.getExtensions(), theIncludedResource, parent);
+		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, resDef.getExtensions(), theIncludedResource, parent, null);
 
-		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, postExtensionChildren, theIncludedResource, parent);
+		encodeCompositeElementChildrenToStreamWriter(theResource, theElement, theEventWriter, postExtensionChildren, theIncludedResource, parent, theStreamedEntries);
 
 	}
 
-	private void encodeResourceToXmlStreamWriter(IBaseResource theResource, XMLStreamWriter theEventWriter, boolean theIncludedResource) throws XMLStreamException, DataFormatException {
+	/**
+	 * @param theStreamedEntries
+	 *           If not <code>null</code>, the resource is a Bundle and these entries are encoded in place of its own
+	 */
+	private void encodeResourceToXmlStreamWriter(IBaseResource theResource, XMLStreamWriter theEventWriter, boolean theIncludedResource, Iterator<? extends IBase> theStreamedEntries) throws XMLStreamException, DataFormatException {
 		String resourceId = null;
 		if (theResource instanceof IResource) {
 			// HAPI structs
@@ -734,10 +842,10 @@ public class XmlParser extends BaseParser implements IParser {
 			resourceId = null;
 		}
 
-		encodeResourceToXmlStreamWriter(theResource, theEventWriter, theIncludedResource, resourceId);
+		encodeResourceToXmlStreamWriter(theResource, theEventWriter, theIncludedResource, resourceId, theStreamedEntries);
 	}
 
-	private void encodeResourceToXmlStreamWriter(IBaseResource theResource, XMLStreamWriter theEventWriter, boolean theContainedResource, String theResourceId) throws XMLStreamException {
+	private void encodeResourceToXmlStreamWriter(IBaseResource theResource, XMLStreamWriter theEventWriter, boolean theContainedResource, String theResourceId, Iterator<? extends IBase> theStreamedEntries) throws XMLStreamException {
 		if (!theContainedResource) {
 			super.containResourcesForEncoding(theResource);
 		}
@@ -754,7 +862,7 @@ public class XmlParser extends BaseParser implements IParser {
 
 			// HL7.org Structures
 			writeOptionalTagWithValue(theEventWriter, "id", theResourceId);
-			encodeCompositeElementToStreamWriter(theResource, theResource, theEventWriter, resDef, theContainedResource, new CompositeChildElement(resDef));
+			encodeCompositeElementToStreamWriter(theResource, theResource, theEventWriter, resDef, theContainedResource, new CompositeChildElement(resDef), theStreamedEntries);
 
 		} else {
 
@@ -790,7 +898,7 @@ public class XmlParser extends BaseParser implements IParser {
 					for (BaseCodingDt securityLabel : securityLabels) {
 						theEventWriter.writeStartElement("security");
 						BaseRuntimeElementCompositeDefinition<?> def = (BaseRuntimeElementCompositeDefinition<?>) myContext.getElementDefinition(securityLabel.getClass());
-						encodeCompositeElementChildrenToStreamWriter(resource, securityLabel, theEventWriter, def.getChildren(), theContainedResource, null);
+						encodeCompositeElementChildrenToStreamWriter(resource, securityLabel, theEventWriter, def.getChildren(), theContainedResource, null, null);
 						theEventWriter.writeEndElement();
 					}
 					if (tags != null) {
@@ -813,7 +921,7 @@ public class XmlParser extends BaseParser implements IParser {
 					writeOptionalTagWithValue(theEventWriter, "contentType", bin.getContentType());
 					writeOptionalTagWithValue(theEventWriter, "content", bin.getContentAsBase64());
 				} else {
-					encodeResourceToStreamWriterInDstu2Format(resDef, theResource, theResource, theEventWriter, resDef, theContainedResource);
+					encodeResourceToStreamWriterInDstu2Format(resDef, theResource, theResource, theEventWriter, resDef, theContainedResource, theStreamedEntries);
 				}
 
 			} else {
@@ -830,7 +938,7 @@ public class XmlParser extends BaseParser implements IParser {
 					}
 					theEventWriter.writeCharacters(bin.getContentAsBase64());
 				} else {
-					encodeCompositeElementToStreamWriter(theResource, theResource, theEventWriter, resDef, theContainedResource, new CompositeChildElement(resDef));
+					encodeCompositeElementToStreamWriter(theResource, theResource, theEventWriter, resDef, theContainedResource, new CompositeChildElement(resDef), null);
 				}
 
 			}
@@ -1011,27 +1119,14 @@ public class XmlParser extends BaseParser implements IParser {
 
 	@Override
 	public <T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, Reader theReader) {
-		XMLEventReader streamReader = createStreamReader(theReader);
-
-		return parseBundle(streamReader, theResourceType);
-	}
-
-	private Bundle parseBundle(XMLEventReader theStreamReader, Class<? extends IBaseResource> theResourceType) {
 		ParserState<Bundle> parserState = ParserState.getPreAtomInstance(myContext, theResourceType, false, getErrorHandler());
-		return doXmlLoop(theStreamReader, parserState);
-	}
-
-	private <T extends IBaseResource> T parseResource(Class<T> theResourceType, XMLEventReader theStreamReader) {
-		ParserState<T> parserState = ParserState.getPreResourceInstance(theResourceType, myContext, false, getErrorHandler());
-		return doXmlLoop(theStreamReader, parserState);
+		return doXmlLoop(theReader, parserState);
 	}
 
 	@Override
 	public TagList parseTagList(Reader theReader) {
-		XMLEventReader streamReader = createStreamReader(theReader);
-
 		ParserState<TagList> parserState = ParserState.getPreTagListInstance(myContext, false, getErrorHandler());
-		return doXmlLoop(streamReader, parserState);
+		return doXmlLoop(theReader, parserState);
 	}
 
 	@Override
@@ -1040,6 +1135,19 @@ public class XmlParser extends BaseParser implements IParser {
 		return this;
 	}
 
+	/**
+	 * If set to <code>true</code> (the default), documents are parsed using the StAX cursor API ({@link XMLStreamReader}), which
+	 * only creates event objects for narrative XHTML. If set to <code>false</code>, the StAX event API is used and an
+	 * event object is created for every element, attribute and text node in the document.
+	 * <p>
+	 * Both produce the same result, the cursor parser allocates considerably less while parsing.
+	 * </p>
+	 */
+	public IParser setUseCursorParser(boolean theUseCursorParser) {
+		myUseCursorParser = theUseCursorParser;
+		return this;
+	}
+
 	/**
 	 * This is just to work around the fact that casting java.util.List<ca.uhn.fhir.model.api.ExtensionDt> to java.util.List<? extends org.hl7.fhir.instance.model.api.IBaseExtension<?, ?>> seems to be
 	 * rejected by the compiler some of the time.
@@ -30,6 +30,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -37,6 +38,7 @@ import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 
@@ -344,6 +346,16 @@ abstract class BaseResourceReturningMethodBinding extends BaseMethodBinding<Obje
 				}
 
 				IVersionSpecificBundleFactory bundleFactory = theServer.getFhirContext().newBundleFactory();
+				if (theServer.getBundleStreamingChunkSize() > 0 && theServer.getInterceptors().isEmpty()) {
+					Iterator<IBase> entries = bundleFactory.initializeStreamingBundleFromBundleProvider(theServer, result, responseEncoding, theRequest.getFhirServerBase(), linkSelf, prettyPrint, 0,
+							count, null, getResponseBundleType(), includes, theServer.getBundleStreamingChunkSize());
+					if (entries != null) {
+						RestfulServerUtils.streamResponseAsResource(theServer, response, bundleFactory.getResourceBundle(), prettyPrint, summaryMode, Constants.STATUS_HTTP_200_OK,
+								theRequest.isRespondGzip(), isAddContentLocationHeader(), theRequest, entries);
+						break;
+					}
+				}
+
 				bundleFactory.initializeBundleFromBundleProvider(theServer, result, responseEncoding, theRequest.getFhirServerBase(), linkSelf, prettyPrint, 0, count, null, getResponseBundleType(),
 						includes);
 				Bundle bundle = bundleFactory.getDstu1Bundle();
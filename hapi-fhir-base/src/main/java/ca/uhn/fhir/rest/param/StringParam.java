@@ -32,6 +32,7 @@ import ca.uhn.fhir.rest.server.Constants;
 
 public class StringParam extends BaseParam implements IQueryParameterType {
 
+	private boolean myContains;
 	private boolean myExact;
 	private String myValue;
 
@@ -51,6 +52,8 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 	String doGetQueryParameterQualifier() {
 		if (isExact()) {
 			return Constants.PARAMQUALIFIER_STRING_EXACT;
+		} else if (isContains()) {
+			return Constants.PARAMQUALIFIER_STRING_CONTAINS;
 		} else {
 			return null;
 		}
@@ -68,6 +71,7 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		} else {
 			setExact(false);
 		}
+		setContains(Constants.PARAMQUALIFIER_STRING_CONTAINS.equals(theQualifier));
 		myValue = ParameterUtil.unescape(theValue);
 	}
 
@@ -87,10 +91,22 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		return StringUtils.isEmpty(myValue);
 	}
 
+	/**
+	 * Returns <code>true</code> if the <code>:contains</code> qualifier is set, meaning that the value may match
+	 * anywhere within the string being searched instead of only at its start
+	 */
+	public boolean isContains() {
+		return myContains;
+	}
+
 	public boolean isExact() {
 		return myExact;
 	}
 
+	public void setContains(boolean theContains) {
+		myContains = theContains;
+	}
+
 	public void setExact(boolean theExact) {
 		myExact = theExact;
 	}
@@ -106,6 +122,9 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		if (myExact) {
 			builder.append("exact", myExact);
 		}
+		if (myContains) {
+			builder.append("contains", myContains);
+		}
 		if (getMissing() != null) {
 			builder.append("missing", getMissing().booleanValue());
 		}
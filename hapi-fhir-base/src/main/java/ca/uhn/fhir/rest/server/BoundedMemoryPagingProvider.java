@@ -0,0 +1,471 @@
+package ca.uhn.fhir.rest.server;
+
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.SerializationException;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.model.primitive.InstantDt;
+
+/**
+ * Paging provider which keeps result lists in memory, bounded by their estimated size in bytes and by how long they
+ * have been idle, instead of by count as {@link FifoMemoryPagingProvider} does.
+ * <p>
+ * Result lists are held in a concurrent map, so storing and retrieving lists does not serialize requests on a single
+ * lock. Pages of resources loaded through a retrieved list are also cached so that repeated requests for the same page
+ * do not need to reload them. Cached pages are held in serialized form and every request gets its own deserialized
+ * copy of the resources, since the server modifies resources while encoding a response (e.g. by adding metadata or
+ * assigning IDs to contained resources) and so they can not be shared between requests. Pages which can not be
+ * serialized are not cached. When the weight of the cache exceeds {@link #getMaximumWeight() the maximum},
+ * cached pages are dropped first (least recently used lists first), which keeps the underlying result lists (e.g. the
+ * list of matching resource IDs) available for paging. Only if that is not enough are whole result lists evicted.
+ * </p>
+ * <p>
+ * Each cached page weighs the length of its serialized form. Result lists are opaque, so their weight is an
+ * estimate: each one is assumed to cost {@link #getEstimatedBytesPerResult()} bytes per result it contains.
+ * </p>
+ */
+public class BoundedMemoryPagingProvider implements IPagingProvider {
+
+	/**
+	 * Default value for {@link #setMaximumWeight(long)}: 64MB
+	 */
+	public static final long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024L * 1024L;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BoundedMemoryPagingProvider.class);
+
+	private final AtomicLong myDroppedPageCount = new AtomicLong();
+	private boolean myCacheLoadedPages = true;
+	private int myDefaultPageSize = 10;
+	private int myEstimatedBytesPerResult = 64;
+	private final AtomicLong myEstimatedWeight = new AtomicLong();
+	private final AtomicLong myEvictionCount = new AtomicLong();
+	private final ReentrantLock myEvictionLock = new ReentrantLock();
+	private final AtomicLong myHitCount = new AtomicLong();
+	private long myIdleTimeoutMillis = 10 * DateUtils.MILLIS_PER_MINUTE;
+	private int myMaximumPageSize = 50;
+	private long myMaximumWeight;
+	private final AtomicLong myMissCount = new AtomicLong();
+	private volatile long myNextIdleSweep;
+	private final ConcurrentMap<String, CachedResultList> myResultLists = new ConcurrentHashMap<String, CachedResultList>();
+
+	/**
+	 * Constructor which uses a maximum weight of {@link #DEFAULT_MAXIMUM_WEIGHT}
+	 */
+	public BoundedMemoryPagingProvider() {
+		this(DEFAULT_MAXIMUM_WEIGHT);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theMaximumWeight
+	 *           The maximum estimated weight (in bytes) of all cached result lists and pages
+	 */
+	public BoundedMemoryPagingProvider(long theMaximumWeight) {
+		setMaximumWeight(theMaximumWeight);
+	}
+
+	private void addWeight(long theWeight) {
+		myEstimatedWeight.addAndGet(theWeight);
+	}
+
+	/**
+	 * Returns the current time. Package-private so that tests can control the clock.
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private void evictIfNeeded() {
+		long now = currentTimeMillis();
+		if (myEstimatedWeight.get() <= myMaximumWeight && now < myNextIdleSweep) {
+			return;
+		}
+
+		/*
+		 * If another thread is already evicting there's no need to wait for it
+		 */
+		if (!myEvictionLock.tryLock()) {
+			return;
+		}
+		try {
+			List<CachedResultList> lists = new ArrayList<CachedResultList>(myResultLists.values());
+
+			if (now >= myNextIdleSweep) {
+				long cutoff = now - myIdleTimeoutMillis;
+				for (CachedResultList next : lists) {
+					if (next.getLastAccess() < cutoff) {
+						remove(next);
+					}
+				}
+				myNextIdleSweep = now + Math.max(myIdleTimeoutMillis / 10, 1);
+			}
+
+			if (myEstimatedWeight.get() <= myMaximumWeight) {
+				return;
+			}
+
+			Collections.sort(lists, new Comparator<CachedResultList>() {
+				@Override
+				public int compare(CachedResultList theO1, CachedResultList theO2) {
+					long l1 = theO1.getLastAccess();
+					long l2 = theO2.getLastAccess();
+					return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+				}
+			});
+
+			for (CachedResultList next : lists) {
+				if (myEstimatedWeight.get() <= myMaximumWeight) {
+					return;
+				}
+				next.dropPages();
+			}
+
+			for (CachedResultList next : lists) {
+				if (myEstimatedWeight.get() <= myMaximumWeight) {
+					return;
+				}
+				remove(next);
+			}
+		} finally {
+			myEvictionLock.unlock();
+		}
+	}
+
+	@Override
+	public int getDefaultPageSize() {
+		return myDefaultPageSize;
+	}
+
+	/**
+	 * Returns the number of cached pages of resources which have been dropped in order to reduce the weight of the
+	 * cache, without evicting the result list they belonged to
+	 */
+	public long getDroppedPageCount() {
+		return myDroppedPageCount.get();
+	}
+
+	/**
+	 * Returns the estimated number of bytes used by each result in a stored result list (default is 64)
+	 */
+	public int getEstimatedBytesPerResult() {
+		return myEstimatedBytesPerResult;
+	}
+
+	/**
+	 * Returns the current weight (in bytes) of all cached result lists and pages
+	 */
+	public long getEstimatedWeight() {
+		return myEstimatedWeight.get();
+	}
+
+	/**
+	 * Returns the number of result lists which have been removed from the cache, either because they were idle for
+	 * longer than {@link #getIdleTimeoutMillis()} or because the cache was over its maximum weight
+	 */
+	public long getEvictionCount() {
+		return myEvictionCount.get();
+	}
+
+	/**
+	 * Returns the number of calls to {@link #retrieveResultList(String)} which found a result list
+	 */
+	public long getHitCount() {
+		return myHitCount.get();
+	}
+
+	/**
+	 * Returns <code>true</code> (which is the default) if pages of resources loaded through a retrieved result list
+	 * are cached
+	 */
+	public boolean isCacheLoadedPages() {
+		return myCacheLoadedPages;
+	}
+
+	/**
+	 * Returns the number of milliseconds after which a result list which has not been accessed is removed from the
+	 * cache (default is 10 minutes)
+	 */
+	public long getIdleTimeoutMillis() {
+		return myIdleTimeoutMillis;
+	}
+
+	@Override
+	public int getMaximumPageSize() {
+		return myMaximumPageSize;
+	}
+
+	/**
+	 * Returns the maximum estimated weight (in bytes) of all cached result lists and pages
+	 */
+	public long getMaximumWeight() {
+		return myMaximumWeight;
+	}
+
+	/**
+	 * Returns the number of calls to {@link #retrieveResultList(String)} which did not find a result list, either
+	 * because the ID was unknown or because the list had been evicted
+	 */
+	public long getMissCount() {
+		return myMissCount.get();
+	}
+
+	/**
+	 * Returns the number of result lists currently held in the cache
+	 */
+	public int getResultListCount() {
+		return myResultLists.size();
+	}
+
+	private void remove(CachedResultList theList) {
+		if (myResultLists.remove(theList.getId(), theList)) {
+			theList.evict();
+			myEvictionCount.incrementAndGet();
+		}
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(String theId) {
+		CachedResultList retVal = myResultLists.get(theId);
+		if (retVal != null && retVal.getLastAccess() < currentTimeMillis() - myIdleTimeoutMillis) {
+			remove(retVal);
+			retVal = null;
+		}
+
+		if (retVal == null) {
+			myMissCount.incrementAndGet();
+		} else {
+			myHitCount.incrementAndGet();
+			retVal.touch();
+		}
+
+		evictIfNeeded();
+		return retVal;
+	}
+
+	public BoundedMemoryPagingProvider setDefaultPageSize(int theDefaultPageSize) {
+		Validate.isTrue(theDefaultPageSize > 0, "size must be greater than 0");
+		myDefaultPageSize = theDefaultPageSize;
+		return this;
+	}
+
+	/**
+	 * Sets whether pages of resources loaded through a retrieved result list are cached (default is
+	 * <code>true</code>)
+	 */
+	public BoundedMemoryPagingProvider setCacheLoadedPages(boolean theCacheLoadedPages) {
+		myCacheLoadedPages = theCacheLoadedPages;
+		return this;
+	}
+
+	/**
+	 * Sets the estimated number of bytes used by each result in a stored result list (default is 64)
+	 */
+	public BoundedMemoryPagingProvider setEstimatedBytesPerResult(int theEstimatedBytesPerResult) {
+		Validate.isTrue(theEstimatedBytesPerResult >= 0, "theEstimatedBytesPerResult must not be negative");
+		myEstimatedBytesPerResult = theEstimatedBytesPerResult;
+		return this;
+	}
+
+	/**
+	 * Sets the number of milliseconds after which a result list which has not been accessed is removed from the
+	 * cache (default is 10 minutes)
+	 */
+	public BoundedMemoryPagingProvider setIdleTimeoutMillis(long theIdleTimeoutMillis) {
+		Validate.isTrue(theIdleTimeoutMillis > 0, "theIdleTimeoutMillis must be greater than 0");
+		myIdleTimeoutMillis = theIdleTimeoutMillis;
+		myNextIdleSweep = 0;
+		return this;
+	}
+
+	public BoundedMemoryPagingProvider setMaximumPageSize(int theMaximumPageSize) {
+		Validate.isTrue(theMaximumPageSize > 0, "size must be greater than 0");
+		myMaximumPageSize = theMaximumPageSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum estimated weight (in bytes) of all cached result lists and pages
+	 */
+	public BoundedMemoryPagingProvider setMaximumWeight(long theMaximumWeight) {
+		Validate.isTrue(theMaximumWeight > 0, "theMaximumWeight must be greater than 0");
+		myMaximumWeight = theMaximumWeight;
+		return this;
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		String key = UUID.randomUUID().toString();
+		long weight = (long) Math.max(theList.size(), 0) * myEstimatedBytesPerResult;
+
+		CachedResultList list = new CachedResultList(key, theList, weight);
+		addWeight(weight);
+		myResultLists.put(key, list);
+
+		evictIfNeeded();
+		return key;
+	}
+
+	/**
+	 * A stored result list, along with any pages of resources which have been loaded from it
+	 */
+	private class CachedResultList implements IBundleProvider {
+
+		private volatile boolean myEvicted;
+		private final String myId;
+		private volatile long myLastAccess;
+		private final ConcurrentMap<Long, CachedPage> myPages = new ConcurrentHashMap<Long, CachedPage>();
+		private final IBundleProvider myWrap;
+		private final long myWeight;
+
+		public CachedResultList(String theId, IBundleProvider theWrap, long theWeight) {
+			myId = theId;
+			myWrap = theWrap;
+			myWeight = theWeight;
+			myLastAccess = currentTimeMillis();
+		}
+
+		/**
+		 * Drops all cached pages, but leaves the result list itself in place
+		 */
+		public void dropPages() {
+			for (Long next : new ArrayList<Long>(myPages.keySet())) {
+				CachedPage page = myPages.remove(next);
+				if (page != null) {
+					addWeight(-pageWeight(page));
+					myDroppedPageCount.incrementAndGet();
+				}
+			}
+		}
+
+		public void evict() {
+			myEvicted = true;
+			addWeight(-myWeight);
+			for (Long next : new ArrayList<Long>(myPages.keySet())) {
+				CachedPage page = myPages.remove(next);
+				if (page != null) {
+					addWeight(-pageWeight(page));
+				}
+			}
+		}
+
+		public String getId() {
+			return myId;
+		}
+
+		public long getLastAccess() {
+			return myLastAccess;
+		}
+
+		@Override
+		public InstantDt getPublished() {
+			return myWrap.getPublished();
+		}
+
+		@Override
+		public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+			touch();
+
+			Long key = (((long) theFromIndex) << 32) | (theToIndex & 0xFFFFFFFFL);
+			CachedPage page = myPages.get(key);
+			if (page != null) {
+				return page.copyResources();
+			}
+
+			List<IBaseResource> retVal = myWrap.getResources(theFromIndex, theToIndex);
+			if (!myCacheLoadedPages || myEvicted) {
+				return retVal;
+			}
+
+			try {
+				page = new CachedPage(retVal);
+			} catch (SerializationException e) {
+				ourLog.debug("Not caching page of result list {} because it can not be serialized: {}", myId, e.toString());
+				return retVal;
+			}
+			if (myPages.putIfAbsent(key, page) == null) {
+				addWeight(pageWeight(page));
+				if (myEvicted && myPages.remove(key, page)) {
+					// Evicted while we were loading the page
+					addWeight(-pageWeight(page));
+				}
+				evictIfNeeded();
+			}
+
+			return retVal;
+		}
+
+		private long pageWeight(CachedPage thePage) {
+			return thePage.getWeight();
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return myWrap.preferredPageSize();
+		}
+
+		@Override
+		public int size() {
+			return myWrap.size();
+		}
+
+		public void touch() {
+			myLastAccess = currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * A page of resources, held in serialized form so that each request gets its own copy
+	 */
+	private static class CachedPage {
+
+		private final byte[] myBytes;
+
+		public CachedPage(List<IBaseResource> theResources) {
+			myBytes = SerializationUtils.serialize(new ArrayList<IBaseResource>(theResources));
+		}
+
+		public List<IBaseResource> copyResources() {
+			return SerializationUtils.deserialize(myBytes);
+		}
+
+		public long getWeight() {
+			return myBytes.length;
+		}
+
+	}
+
+}
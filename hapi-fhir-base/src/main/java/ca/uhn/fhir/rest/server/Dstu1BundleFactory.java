@@ -25,12 +25,14 @@ import static org.apache.commons.lang3.StringUtils.*;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
@@ -362,6 +364,13 @@ public class Dstu1BundleFactory implements IVersionSpecificBundleFactory {
 		myBundle.getTotalResults().setValue(theTotalResults);
 	}
 
+	@Override
+	public Iterator<IBase> initializeStreamingBundleFromBundleProvider(RestfulServer theServer, IBundleProvider theResult, EncodingEnum theResponseEncoding, String theServerBase,
+			String theCompleteUrl, boolean thePrettyPrint, int theOffset, Integer theLimit, String theSearchId, BundleTypeEnum theBundleType, Set<Include> theIncludes, int theChunkSize) {
+		// Atom bundles are always built in full before they are encoded
+		return null;
+	}
+
 	@Override
 	public void initializeWithBundleResource(IBaseResource theResource) {
 		throw new UnsupportedOperationException("DSTU1 server doesn't support resource style bundles");
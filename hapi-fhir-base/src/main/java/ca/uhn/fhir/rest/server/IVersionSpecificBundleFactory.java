@@ -21,9 +21,11 @@ package ca.uhn.fhir.rest.server;
  */
 
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 
@@ -49,6 +51,18 @@ public interface IVersionSpecificBundleFactory {
 
 	void initializeBundleFromResourceList(String theAuthor, List<? extends IBaseResource> theResult, String theServerBase, String theCompleteUrl, int theTotalResults, BundleTypeEnum theBundleType);
 
+	/**
+	 * Like {@link #initializeBundleFromBundleProvider(RestfulServer, IBundleProvider, EncodingEnum, String, String, boolean, int, Integer, String, BundleTypeEnum, Set)},
+	 * except that the entries are not added to the bundle. Instead they are returned as an iterator which loads the
+	 * resources from the bundle provider <code>theChunkSize</code> at a time as it is advanced, so that they can be
+	 * encoded as they are loaded.
+	 * 
+	 * @return The entries, or <code>null</code> if this factory can not stream its bundles (in which case nothing has
+	 *         been initialized)
+	 */
+	Iterator<IBase> initializeStreamingBundleFromBundleProvider(RestfulServer theServer, IBundleProvider theResult, EncodingEnum theResponseEncoding, String theServerBase, String theCompleteUrl,
+			boolean thePrettyPrint, int theOffset, Integer theCount, String theSearchId, BundleTypeEnum theBundleType, Set<Include> theIncludes, int theChunkSize);
+
 	void initializeWithBundleResource(IBaseResource theResource);
 
 	List<IBaseResource> toListOfResources();
@@ -33,6 +33,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,6 +49,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import ca.uhn.fhir.context.ConfigurationException;
@@ -87,6 +89,7 @@ public class RestfulServer extends HttpServlet {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RestfulServer.class);
 	private AddProfileTagEnum myAddProfileTag;
 	private BundleInclusionRule myBundleInclusionRule = BundleInclusionRule.BASED_ON_INCLUDES;
+	private int myBundleStreamingChunkSize;
 	private boolean myDefaultPrettyPrint = false;
 	private EncodingEnum myDefaultResponseEncoding = EncodingEnum.XML;
 	private ETagSupportEnum myETagSupport = DEFAULT_ETAG_SUPPORT;
@@ -330,6 +333,16 @@ public class RestfulServer extends HttpServlet {
 		return myBundleInclusionRule;
 	}
 
+	/**
+	 * Returns the number of resources which are loaded from an {@link IBundleProvider} at a time when a page of search
+	 * results is streamed to the client, or <code>0</code> if search results are not streamed.
+	 *
+	 * @see #setBundleStreamingChunkSize(int)
+	 */
+	public int getBundleStreamingChunkSize() {
+		return myBundleStreamingChunkSize;
+	}
+
 	/**
 	 * Returns the default encoding to return (XML/JSON) if an incoming request does not specify a preference (either with the <code>_format</code> URL parameter, or with an <code>Accept</code> header
 	 * in the request. The default is {@link EncodingEnum#XML}. Will not return null.
@@ -510,6 +523,16 @@ public class RestfulServer extends HttpServlet {
 		String linkSelfBase = getServerAddressStrategy().determineServerBase(getServletContext(), theRequest.getServletRequest());
 		String linkSelf = linkSelfBase + theRequest.getCompleteUrl().substring(theRequest.getCompleteUrl().indexOf('?'));
 
+		if (getBundleStreamingChunkSize() > 0 && getInterceptors().isEmpty()) {
+			Iterator<IBase> entries = bundleFactory.initializeStreamingBundleFromBundleProvider(this, resultList, responseEncoding, theRequest.getFhirServerBase(), linkSelf, prettyPrint, start, count,
+					thePagingAction, null, includes, getBundleStreamingChunkSize());
+			if (entries != null) {
+				RestfulServerUtils.streamResponseAsResource(this, theResponse, bundleFactory.getResourceBundle(), prettyPrint, summaryMode, Constants.STATUS_HTTP_200_OK, theRequest.isRespondGzip(), false,
+						theRequest, entries);
+				return;
+			}
+		}
+
 		bundleFactory.initializeBundleFromBundleProvider(this, resultList, responseEncoding, theRequest.getFhirServerBase(), linkSelf, prettyPrint, start, count, thePagingAction, null, includes);
 
 		Bundle bundle = bundleFactory.getDstu1Bundle();
@@ -1121,6 +1144,26 @@ public class RestfulServer extends HttpServlet {
 		myBundleInclusionRule = theBundleInclusionRule;
 	}
 
+	/**
+	 * If set to a value greater than <code>0</code>, pages of search results are streamed to the client: the bundle's
+	 * metadata and links are written first, and the resources are then loaded from the {@link IBundleProvider} this many
+	 * at a time, with each entry being written (and flushed) as soon as it has been loaded. This reduces both the time
+	 * before the client receives the first byte of a large page and the memory needed to return it.
+	 * <p>
+	 * Results are only streamed for resource style bundles using the HAPI DSTU2 structures (DSTU1 bundles and the HL7.org
+	 * DSTU2 structures fall back to building the whole bundle before it is written), and only when no interceptors are
+	 * registered, since interceptors expect to be given the complete bundle. Note that a failure while loading a chunk can only be reported
+	 * by truncating the response, since the response status has already been sent by then.
+	 * </p>
+	 * <p>
+	 * The default is <code>0</code> (search results are not streamed)
+	 * </p>
+	 */
+	public void setBundleStreamingChunkSize(int theBundleStreamingChunkSize) {
+		Validate.isTrue(theBundleStreamingChunkSize >= 0, "theBundleStreamingChunkSize must not be negative");
+		myBundleStreamingChunkSize = theBundleStreamingChunkSize;
+	}
+
 	/**
 	 * Should the server "pretty print" responses by default (requesting clients can always override this default by supplying an <code>Accept</code> header in the request, or a <code>_pretty</code>
 	 * parameter in the request URL.
@@ -32,6 +32,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,7 +48,9 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.utils.DateUtils;
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 
@@ -568,6 +571,17 @@ public class RestfulServerUtils {
 
 	public static void streamResponseAsResource(RestfulServer theServer, HttpServletResponse theHttpResponse, IBaseResource theResource, boolean theRequestIsBrowser, Set<SummaryEnum> theSummaryMode,
 			int stausCode, boolean theRespondGzip, boolean theAddContentLocationHeader, RequestDetails theRequestDetails) throws IOException {
+		streamResponseAsResource(theServer, theHttpResponse, theResource, theRequestIsBrowser, theSummaryMode, stausCode, theRespondGzip, theAddContentLocationHeader, theRequestDetails, null);
+	}
+
+	/**
+	 * @param theStreamedEntries
+	 *           If not <code>null</code>, <code>theResource</code> is a bundle which contains no entries, and these
+	 *           entries are encoded in its place as they are returned by the iterator (see
+	 *           {@link IParser#encodeBundleEntriesToWriter(IBaseBundle, Iterator, Writer)})
+	 */
+	public static void streamResponseAsResource(RestfulServer theServer, HttpServletResponse theHttpResponse, IBaseResource theResource, boolean theRequestIsBrowser, Set<SummaryEnum> theSummaryMode,
+			int stausCode, boolean theRespondGzip, boolean theAddContentLocationHeader, RequestDetails theRequestDetails, Iterator<? extends IBase> theStreamedEntries) throws IOException {
 		theHttpResponse.setStatus(stausCode);
 
 		// Determine response encoding
@@ -667,7 +681,11 @@ public class RestfulServerUtils {
 				writer.append(((IResource) theResource).getText().getDiv().getValueAsString());
 			} else {
 				IParser parser = getNewParser(theServer.getFhirContext(), theRequestDetails);
-				parser.encodeResourceToWriter(theResource, writer);
+				if (theStreamedEntries != null) {
+					parser.encodeBundleEntriesToWriter((IBaseBundle) theResource, theStreamedEntries, writer);
+				} else {
+					parser.encodeResourceToWriter(theResource, writer);
+				}
 			}
 		} finally {
 			writer.close();
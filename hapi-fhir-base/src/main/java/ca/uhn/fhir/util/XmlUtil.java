@@ -43,7 +43,9 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLResolver;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.util.XMLEventAllocator;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.codehaus.stax2.XMLOutputFactory2;
@@ -1534,6 +1536,27 @@ public class XmlUtil {
 		return er;
 	}
 
+	/**
+	 * Creates a cursor based reader, which does not allocate an event object for every item in the document
+	 */
+	public static XMLStreamReader createXmlStreamReader(Reader reader) throws FactoryConfigurationError, XMLStreamException {
+		XMLInputFactory inputFactory = getOrCreateInputFactory();
+		XMLStreamReader retVal = inputFactory.createXMLStreamReader(reader);
+		return retVal;
+	}
+
+	/**
+	 * Returns a new allocator which can turn the current position of a {@link XMLStreamReader} into an event, or
+	 * <code>null</code> if the StAX implementation does not provide one
+	 */
+	public static XMLEventAllocator createXmlEventAllocator() throws FactoryConfigurationError {
+		XMLEventAllocator allocator = getOrCreateInputFactory().getEventAllocator();
+		if (allocator == null) {
+			return null;
+		}
+		return allocator.newInstance();
+	}
+
 	public static XMLStreamWriter createXmlStreamWriter(Writer theWriter) throws FactoryConfigurationError, XMLStreamException {
 		XMLOutputFactory outputFactory = getOrCreateOutputFactory();
 		XMLStreamWriter retVal = outputFactory.createXMLStreamWriter(theWriter);
@@ -0,0 +1,178 @@
+package ca.uhn.fhir.rest.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.primitive.InstantDt;
+
+public class BoundedMemoryPagingProviderTest {
+
+	private long myNow;
+	private BoundedMemoryPagingProvider mySvc;
+
+	@Before
+	public void before() {
+		myNow = 1000000L;
+		mySvc = newSvc(10000);
+	}
+
+	private BoundedMemoryPagingProvider newSvc(long theMaximumWeight) {
+		BoundedMemoryPagingProvider retVal = new BoundedMemoryPagingProvider(theMaximumWeight) {
+			@Override
+			long currentTimeMillis() {
+				return myNow;
+			}
+		};
+		retVal.setEstimatedBytesPerResult(10);
+		retVal.setIdleTimeoutMillis(60000);
+		return retVal;
+	}
+
+	/**
+	 * The serialized length of a page of <code>theCount</code> resources loaded from a {@link CountingBundleProvider}
+	 */
+	private static long pageWeight(int theCount) {
+		return SerializationUtils.serialize(new ArrayList<IBaseResource>(new CountingBundleProvider(theCount).getResources(0, theCount))).length;
+	}
+
+	@Test
+	public void testCachedPageIsNotReloaded() {
+		CountingBundleProvider list = new CountingBundleProvider(20);
+		String id = mySvc.storeResultList(list);
+
+		IBundleProvider retrieved = mySvc.retrieveResultList(id);
+		assertEquals(20, retrieved.size());
+		assertEquals(10, retrieved.getResources(0, 10).size());
+		assertEquals(10, retrieved.getResources(0, 10).size());
+		assertEquals(1, list.myLoadCount);
+		assertEquals(20 * 10 + pageWeight(10), mySvc.getEstimatedWeight());
+
+		assertEquals(10, retrieved.getResources(10, 20).size());
+		assertEquals(2, list.myLoadCount);
+	}
+
+	@Test
+	public void testCacheLoadedPagesDisabled() {
+		mySvc.setCacheLoadedPages(false);
+		CountingBundleProvider list = new CountingBundleProvider(20);
+		IBundleProvider retrieved = mySvc.retrieveResultList(mySvc.storeResultList(list));
+		retrieved.getResources(0, 10);
+		retrieved.getResources(0, 10);
+		assertEquals(2, list.myLoadCount);
+		assertEquals(20 * 10, mySvc.getEstimatedWeight());
+	}
+
+	@Test
+	public void testDropPagesBeforeEvictingLists() {
+		// Room for both lists and one of their pages
+		mySvc = newSvc(200 * 10 + pageWeight(50) + pageWeight(50) / 2);
+
+		CountingBundleProvider list1 = new CountingBundleProvider(100);
+		String id1 = mySvc.storeResultList(list1);
+		mySvc.retrieveResultList(id1).getResources(0, 50);
+		assertEquals(100 * 10 + pageWeight(50), mySvc.getEstimatedWeight());
+
+		myNow++;
+		CountingBundleProvider list2 = new CountingBundleProvider(100);
+		String id2 = mySvc.storeResultList(list2);
+		mySvc.retrieveResultList(id2).getResources(0, 50);
+
+		// The first list's page has been dropped, but the list itself is still available
+		assertEquals(1, mySvc.getDroppedPageCount());
+		assertEquals(0, mySvc.getEvictionCount());
+		assertEquals(2, mySvc.getResultListCount());
+		assertEquals(200 * 10 + pageWeight(50), mySvc.getEstimatedWeight());
+
+		mySvc.retrieveResultList(id1).getResources(0, 50);
+		assertEquals(2, list1.myLoadCount);
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsedListWhenOverWeight() {
+		String id1 = mySvc.storeResultList(new CountingBundleProvider(400));
+		myNow++;
+		String id2 = mySvc.storeResultList(new CountingBundleProvider(400));
+		myNow++;
+		mySvc.retrieveResultList(id1);
+		myNow++;
+		String id3 = mySvc.storeResultList(new CountingBundleProvider(400));
+
+		assertEquals(1, mySvc.getEvictionCount());
+		assertNotNull(mySvc.retrieveResultList(id1));
+		assertNull(mySvc.retrieveResultList(id2));
+		assertNotNull(mySvc.retrieveResultList(id3));
+		assertEquals(800 * 10, mySvc.getEstimatedWeight());
+	}
+
+	@Test
+	public void testExpireIdleLists() {
+		String id1 = mySvc.storeResultList(new CountingBundleProvider(10));
+		String id2 = mySvc.storeResultList(new CountingBundleProvider(10));
+
+		myNow += 30000;
+		assertNotNull(mySvc.retrieveResultList(id1));
+
+		myNow += 40000;
+		assertNotNull(mySvc.retrieveResultList(id1));
+		assertNull(mySvc.retrieveResultList(id2));
+
+		assertEquals(1, mySvc.getEvictionCount());
+		assertEquals(2, mySvc.getHitCount());
+		assertEquals(1, mySvc.getMissCount());
+		assertEquals(1, mySvc.getResultListCount());
+		assertEquals(10 * 10, mySvc.getEstimatedWeight());
+	}
+
+	@Test
+	public void testUnknownIdIsMiss() {
+		assertNull(mySvc.retrieveResultList("FOO"));
+		assertEquals(0, mySvc.getHitCount());
+		assertEquals(1, mySvc.getMissCount());
+	}
+
+	private static class CountingBundleProvider implements IBundleProvider {
+
+		private int myLoadCount;
+		private final int mySize;
+
+		public CountingBundleProvider(int theSize) {
+			mySize = theSize;
+		}
+
+		@Override
+		public InstantDt getPublished() {
+			return InstantDt.withCurrentTime();
+		}
+
+		@Override
+		public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+			myLoadCount++;
+			List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+			for (int i = theFromIndex; i < Math.min(theToIndex, mySize); i++) {
+				retVal.add(null);
+			}
+			return retVal;
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return mySize;
+		}
+
+	}
+
+}
@@ -22,46 +22,54 @@ package ca.uhn.fhir.jpa.dao;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceContextType;
+import javax.persistence.PersistenceException;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.xml.stream.events.XMLEvent;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.hibernate.exception.ConstraintViolationException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import com.google.common.base.Function;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.ConfigurationException;
@@ -84,6 +92,7 @@ import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedUniqueString;
 import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
@@ -102,6 +111,7 @@ import ca.uhn.fhir.model.dstu.resource.BaseResource;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.model.primitive.XhtmlDt;
 import ca.uhn.fhir.model.valueset.BundleEntryTransactionMethodEnum;
 import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
@@ -121,10 +131,12 @@ import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.UrlUtil;
 import net.sourceforge.cobertura.CoverageIgnore;
 
 public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
@@ -151,6 +163,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		resourceMetaAndParams.put(Constants.PARAM_PROFILE, UriAndListParam.class);
 		resourceMetaParams.put(Constants.PARAM_SECURITY, TokenParam.class);
 		resourceMetaAndParams.put(Constants.PARAM_SECURITY, TokenAndListParam.class);
+		resourceMetaParams.put(Constants.PARAM_CONTENT, StringParam.class);
+		resourceMetaAndParams.put(Constants.PARAM_CONTENT, StringAndListParam.class);
+		resourceMetaParams.put(Constants.PARAM_TEXT, StringParam.class);
+		resourceMetaAndParams.put(Constants.PARAM_TEXT, StringAndListParam.class);
 		RESOURCE_META_PARAMS = Collections.unmodifiableMap(resourceMetaParams);
 		RESOURCE_META_AND_PARAMS = Collections.unmodifiableMap(resourceMetaAndParams);
 	}
@@ -160,6 +176,17 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	public static final String NS_JPA_PROFILE = "https://github.com/jamesagnew/hapi-fhir/ns/jpa/profile";
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirDao.class);
 
+	/**
+	 * The maximum number of page boundaries remembered by each history bundle provider
+	 */
+	private static final int HISTORY_MAX_CURSORS = 100;
+
+	/**
+	 * The maximum number of history keys loaded at once when skipping forward to a page which can't be reached from a
+	 * remembered page boundary
+	 */
+	private static final int HISTORY_SKIP_CHUNK_SIZE = 1000;
+
 	private static final Map<FhirVersionEnum, FhirContext> ourRetrievalContexts = new HashMap<FhirVersionEnum, FhirContext>();
 	public static final String UCUM_NS = "http://unitsofmeasure.org";
 
@@ -172,17 +199,35 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	private EntityManager myEntityManager;
 
+	@Autowired
+	private ForcedIdCache myForcedIdCache;
+
+	/**
+	 * Only present if full-text searching is enabled
+	 */
+	@Autowired(required = false)
+	private IFulltextSearchSvc myFulltextSearchSvc;
+
 	private List<IDaoListener> myListeners = new ArrayList<IDaoListener>();
 	@Autowired
 	private PlatformTransactionManager myPlatformTransactionManager;
 
+	@Autowired
+	private ResourceBodyCache myResourceBodyCache;
+
 	@Autowired
 	private List<IFhirResourceDao<?>> myResourceDaos;
 
-	private Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
+	private volatile Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
 
 	private ISearchParamExtractor mySearchParamExtractor;
 
+	@Autowired
+	private SubscriptionMatcher mySubscriptionMatcher;
+
+	@Autowired
+	private TagDefinitionCache myTagDefinitionCache;
+
 	protected void createForcedIdIfNeeded(ResourceTable entity, IIdType id) {
 		if (id.isEmpty() == false && id.hasIdPart()) {
 			if (isValidPid(id)) {
@@ -204,6 +249,8 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	protected Set<ResourceLink> extractResourceLinks(ResourceTable theEntity, IResource theResource) {
 		Set<ResourceLink> retVal = new HashSet<ResourceLink>();
 
+		prefetchForcedIds(Collections.singletonList(theResource));
+
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
 		for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
 
@@ -425,6 +472,13 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return myContext;
 	}
 
+	/**
+	 * Returns the full-text search service, or <code>null</code> if full-text searching is not enabled
+	 */
+	protected IFulltextSearchSvc getFulltextSearchSvc() {
+		return myFulltextSearchSvc;
+	}
+
 	public FhirContext getContext(FhirVersionEnum theVersion) {
 		FhirVersionEnum ver = theVersion != null ? theVersion : FhirVersionEnum.DSTU1;
 		synchronized (ourRetrievalContexts) {
@@ -440,52 +494,40 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@SuppressWarnings("unchecked")
 	protected <R extends IBaseResource> IFhirResourceDao<R> getDao(Class<R> theType) {
 		if (myResourceTypeToDao == null) {
-			myResourceTypeToDao = new HashMap<Class<? extends IBaseResource>, IFhirResourceDao<?>>();
+			/*
+			 * Build the map before publishing it, since this may be called by several reindexing threads at once
+			 */
+			Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> resourceTypeToDao = new HashMap<Class<? extends IBaseResource>, IFhirResourceDao<?>>();
 			for (IFhirResourceDao<?> next : myResourceDaos) {
-				myResourceTypeToDao.put(next.getResourceType(), next);
+				resourceTypeToDao.put(next.getResourceType(), next);
 			}
 
 			if (this instanceof IFhirResourceDao<?>) {
 				IFhirResourceDao<?> thiz = (IFhirResourceDao<?>) this;
-				myResourceTypeToDao.put(thiz.getResourceType(), thiz);
+				resourceTypeToDao.put(thiz.getResourceType(), thiz);
 			}
 
+			myResourceTypeToDao = resourceTypeToDao;
 		}
 
 		return (IFhirResourceDao<R>) myResourceTypeToDao.get(theType);
 	}
 
 	protected TagDefinition getTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
-		Root<TagDefinition> from = cq.from(TagDefinition.class);
-
-		//@formatter:off
-		if (isNotBlank(theScheme)) {
-			cq.where(
-				builder.and(
-					builder.equal(from.get("myTagType"), theTagType), 
-					builder.equal(from.get("mySystem"), theScheme), 
-					builder.equal(from.get("myCode"), theTerm))
-				);
-		} else {
-			cq.where(
-				builder.and(
-					builder.equal(from.get("myTagType"), theTagType), 
-					builder.isNull(from.get("mySystem")), 
-					builder.equal(from.get("myCode"), theTerm))
-				);
-		}
-		//@formatter:on
+		return myTagDefinitionCache.getTag(theTagType, theScheme, theTerm, theLabel);
+	}
 
-		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
-		try {
-			return q.getSingleResult();
-		} catch (NoResultException e) {
-			TagDefinition retVal = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
-			myEntityManager.persist(retVal);
-			return retVal;
+	/**
+	 * Returns the definition of the given tag, from the tag definition cache if possible
+	 */
+	private TagDefinition getTagDefinition(BaseTag theTag) {
+		if (theTag.getTagId() != null) {
+			TagDefinition retVal = myTagDefinitionCache.getTagById(theTag.getTagId());
+			if (retVal != null) {
+				return retVal;
+			}
 		}
+		return theTag.getTag();
 	}
 
 	protected TagList getTags(Class<? extends IResource> theResourceType, IIdType theResourceId) {
@@ -528,90 +570,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected IBundleProvider history(String theResourceName, Long theId, Date theSince) {
-		final List<HistoryTuple> tuples = new ArrayList<HistoryTuple>();
-
-		final InstantDt end = createHistoryToTimestamp();
-
-		StopWatch timer = new StopWatch();
-
-		int limit = 10000;
-
-		// Get list of IDs
-		searchHistoryCurrentVersion(theResourceName, theId, theSince, end.getValue(), limit, tuples);
-		ourLog.info("Retrieved {} history IDs from current versions in {} ms", tuples.size(), timer.getMillisAndRestart());
-
-		searchHistoryHistory(theResourceName, theId, theSince, end.getValue(), limit, tuples);
-		ourLog.info("Retrieved {} history IDs from previous versions in {} ms", tuples.size(), timer.getMillisAndRestart());
-
-		// Sort merged list
-		Collections.sort(tuples, Collections.reverseOrder());
-		assert tuples.size() < 2 || !tuples.get(tuples.size() - 2).getUpdated().before(tuples.get(tuples.size() - 1).getUpdated()) : tuples.toString();
-
-		return new IBundleProvider() {
-
-			@Override
-			public InstantDt getPublished() {
-				return end;
-			}
-
-			@Override
-			public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
-				final StopWatch timer = new StopWatch();
-				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
-				return template.execute(new TransactionCallback<List<IBaseResource>>() {
-					@Override
-					public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
-						List<BaseHasResource> resEntities = Lists.newArrayList();
-
-						List<HistoryTuple> tupleSubList = tuples.subList(theFromIndex, theToIndex);
-						searchHistoryCurrentVersion(tupleSubList, resEntities);
-						ourLog.info("Loaded history from current versions in {} ms", timer.getMillisAndRestart());
-
-						searchHistoryHistory(tupleSubList, resEntities);
-						ourLog.info("Loaded history from previous versions in {} ms", timer.getMillisAndRestart());
-
-						Collections.sort(resEntities, new Comparator<BaseHasResource>() {
-							@Override
-							public int compare(BaseHasResource theO1, BaseHasResource theO2) {
-								return theO2.getUpdated().getValue().compareTo(theO1.getUpdated().getValue());
-							}
-						});
-
-						int limit = theToIndex - theFromIndex;
-						if (resEntities.size() > limit) {
-							resEntities = resEntities.subList(0, limit);
-						}
-
-						ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
-						for (BaseHasResource next : resEntities) {
-							RuntimeResourceDefinition type;
-							try {
-								type = myContext.getResourceDefinition(next.getResourceType());
-							} catch (DataFormatException e) {
-								if (next.getFhirVersion() != getContext().getVersion().getVersion()) {
-									ourLog.info("Ignoring history resource of type[{}] because it is not compatible with version[{}]", next.getResourceType(), getContext().getVersion().getVersion());
-									continue;
-								}
-								throw e;
-							}
-							IResource resource = (IResource) toResource(type.getImplementingClass(), next, true);
-							retVal.add(resource);
-						}
-						return retVal;
-					}
-				});
-			}
-
-			@Override
-			public int size() {
-				return tuples.size();
-			}
-
-			@Override
-			public Integer preferredPageSize() {
-				return null;
-			}
-		};
+		return new HistoryBundleProvider(theResourceName, theId, theSince, createHistoryToTimestamp());
 	}
 
 	protected boolean isValidPid(IIdType theId) {
@@ -646,20 +605,16 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			}
 		}
 
-		String encoded = myConfig.getResourceEncoding().newParser(myContext).encodeResourceToString(theResource);
 		ResourceEncodingEnum encoding = myConfig.getResourceEncoding();
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
 		try {
-			switch (encoding) {
-			case JSON:
-				theEntity.setResource(encoded.getBytes("UTF-8"));
-				break;
-			case JSONC:
-				theEntity.setResource(GZipUtil.compress(encoded));
-				break;
-			}
-		} catch (UnsupportedEncodingException e) {
+			EncodeBuffer buffer = new EncodeBuffer();
+			Writer writer = new OutputStreamWriter(buffer, Constants.CHARSET_UTF8);
+			encoding.newParser(myContext).encodeResourceToWriter(theResource, writer);
+			writer.flush();
+			theEntity.setResource(encoding.getCodec().encode(buffer.getBuffer(), buffer.size()));
+		} catch (IOException e) {
 			throw new InternalErrorException(e);
 		}
 
@@ -768,12 +723,74 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			throw new InvalidRequestException("Invalid match URL[" + theMatchUrl + "] - URL has no search parameters");
 		}
 
+		/*
+		 * A row in the unique index is an answer on its own, but a missing row isn't: resources which were stored
+		 * before the parameter was configured as unique (or which are still waiting for a reindexing pass) don't
+		 * have one, so in that case we fall back to a regular search
+		 */
+		String uniqueIndexString = toUniqueIndexString(resourceDef.getName(), paramMap);
+		if (uniqueIndexString != null) {
+			TypedQuery<Long> q = myEntityManager.createQuery("SELECT u.myResourceId FROM ResourceIndexedUniqueString u WHERE u.myIndexString = :STRING", Long.class);
+			q.setParameter("STRING", uniqueIndexString);
+			List<Long> uniqueMatches = q.getResultList();
+			if (!uniqueMatches.isEmpty()) {
+				return new HashSet<Long>(uniqueMatches);
+			}
+		}
+
 		IFhirResourceDao<R> dao = getDao(theResourceType);
 		Set<Long> ids = dao.searchForIdsWithAndOr(paramMap);
 
 		return ids;
 	}
 
+	/**
+	 * If the given match URL parameters consist of a single <code>system|code</code> value for a parameter which has
+	 * been configured as unique (see {@link DaoConfig#setUniqueSearchParameters(Set)}), returns the string which that
+	 * value is stored under in the unique index. Otherwise returns <code>null</code>, meaning that the match URL must be
+	 * resolved using a search.
+	 */
+	private String toUniqueIndexString(String theResourceType, SearchParameterMap theParamMap) {
+		if (theParamMap.size() != 1 || theParamMap.getLastUpdated() != null) {
+			return null;
+		}
+		String paramName = theParamMap.keySet().iterator().next();
+		if (!myConfig.isUniqueSearchParameter(theResourceType, paramName)) {
+			return null;
+		}
+		List<List<? extends IQueryParameterType>> andList = theParamMap.get(paramName);
+		if (andList.size() != 1 || andList.get(0).size() != 1 || !(andList.get(0).get(0) instanceof TokenParam)) {
+			return null;
+		}
+		TokenParam param = (TokenParam) andList.get(0).get(0);
+		if (param.isText() || param.getMissing() != null) {
+			return null;
+		}
+		return toUniqueIndexString(theResourceType, paramName, param.getSystem(), param.getValue());
+	}
+
+	/**
+	 * Returns the string which a value of a unique search parameter is stored under in the unique index, or
+	 * <code>null</code> if the value can't be stored there
+	 */
+	static String toUniqueIndexString(String theResourceType, String theParamName, String theSystem, String theValue) {
+		if (isBlank(theSystem) || isBlank(theValue)) {
+			return null;
+		}
+		if (theSystem.length() >= ResourceIndexedSearchParamToken.MAX_LENGTH || theValue.length() >= ResourceIndexedSearchParamToken.MAX_LENGTH) {
+			/*
+			 * Token index rows hold values truncated to MAX_LENGTH, so a value of that length may be the start of a
+			 * longer one and different values could share it
+			 */
+			return null;
+		}
+		String retVal = theResourceType + '?' + theParamName + '=' + UrlUtil.escape(theSystem) + "%7C" + UrlUtil.escape(theValue);
+		if (retVal.length() > ResourceIndexedUniqueString.MAX_STRING_LENGTH) {
+			return null;
+		}
+		return retVal;
+	}
+
 	public static SearchParameterMap translateMatchUrl(String theMatchUrl, RuntimeResourceDefinition resourceDef) {
 		SearchParameterMap paramMap = new SearchParameterMap();
 		List<NameValuePair> parameters;
@@ -871,140 +888,50 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		myListeners.add(theListener);
 	}
 
-	private void searchHistoryCurrentVersion(List<HistoryTuple> theTuples, List<BaseHasResource> theRetVal) {
-		Collection<HistoryTuple> tuples = Collections2.filter(theTuples, new com.google.common.base.Predicate<HistoryTuple>() {
-			@Override
-			public boolean apply(HistoryTuple theInput) {
-				return theInput.isHistory() == false;
-			}
-		});
-		Collection<Long> ids = Collections2.transform(tuples, new Function<HistoryTuple, Long>() {
-			@Override
-			public Long apply(HistoryTuple theInput) {
-				return theInput.getId();
+	/**
+	 * Loads the entities for the given history keys, in the same order as the keys
+	 */
+	private List<BaseHasResource> loadHistoryEntities(List<HistoryTuple> theTuples) {
+		List<Long> currentIds = new ArrayList<Long>();
+		List<Long> historyIds = new ArrayList<Long>();
+		for (HistoryTuple next : theTuples) {
+			if (next.isHistory()) {
+				historyIds.add(next.getId());
+			} else {
+				currentIds.add(next.getId());
 			}
-		});
-		if (ids.isEmpty()) {
-			return;
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(ids));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<ResourceTable> q = myEntityManager.createQuery(cq);
-		for (ResourceTable next : q.getResultList()) {
-			theRetVal.add(next);
-		}
-	}
-
-	private void searchHistoryCurrentVersion(String theResourceName, Long theId, Date theSince, Date theEnd, Integer theLimit, List<HistoryTuple> tuples) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<?> from = cq.from(ResourceTable.class);
-		cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
-
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		if (theSince != null) {
-			Predicate low = builder.greaterThanOrEqualTo(from.<Date> get("myUpdated"), theSince);
-			predicates.add(low);
-		}
-
-		Predicate high = builder.lessThan(from.<Date> get("myUpdated"), theEnd);
-		predicates.add(high);
-
-		if (theResourceName != null) {
-			predicates.add(builder.equal(from.get("myResourceType"), theResourceName));
-		}
-		if (theId != null) {
-			predicates.add(builder.equal(from.get("myId"), theId));
-		}
-
-		cq.where(builder.and(predicates.toArray(new Predicate[0])));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
-		if (theLimit != null && theLimit < myConfig.getHardSearchLimit()) {
-			q.setMaxResults(theLimit);
-		} else {
-			q.setMaxResults(myConfig.getHardSearchLimit());
-		}
-		for (Tuple next : q.getResultList()) {
-			long id = next.get(0, Long.class);
-			Date updated = next.get(1, Date.class);
-			tuples.add(new HistoryTuple(false, updated, id));
 		}
-	}
 
-	private void searchHistoryHistory(List<HistoryTuple> theTuples, List<BaseHasResource> theRetVal) {
-		Collection<HistoryTuple> tuples = Collections2.filter(theTuples, new com.google.common.base.Predicate<HistoryTuple>() {
-			@Override
-			public boolean apply(HistoryTuple theInput) {
-				return theInput.isHistory() == true;
-			}
-		});
-		Collection<Long> ids = Collections2.transform(tuples, new Function<HistoryTuple, Long>() {
-			@Override
-			public Long apply(HistoryTuple theInput) {
-				return (Long) theInput.getId();
+		Map<Long, BaseHasResource> current = new HashMap<Long, BaseHasResource>();
+		if (!currentIds.isEmpty()) {
+			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+			CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
+			Root<ResourceTable> from = cq.from(ResourceTable.class);
+			cq.where(from.get("myId").in(currentIds));
+			for (ResourceTable next : myEntityManager.createQuery(cq).getResultList()) {
+				current.put(next.getId(), next);
 			}
-		});
-		if (ids.isEmpty()) {
-			return;
 		}
 
-		ourLog.info("Retrieving {} history elements from ResourceHistoryTable", ids.size());
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceHistoryTable> cq = builder.createQuery(ResourceHistoryTable.class);
-		Root<ResourceHistoryTable> from = cq.from(ResourceHistoryTable.class);
-		cq.where(from.get("myId").in(ids));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<ResourceHistoryTable> q = myEntityManager.createQuery(cq);
-		for (ResourceHistoryTable next : q.getResultList()) {
-			theRetVal.add(next);
-		}
-	}
-
-	private void searchHistoryHistory(String theResourceName, Long theResourceId, Date theSince, Date theEnd, Integer theLimit, List<HistoryTuple> tuples) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<?> from = cq.from(ResourceHistoryTable.class);
-		cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
-
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		if (theSince != null) {
-			Predicate low = builder.greaterThanOrEqualTo(from.<Date> get("myUpdated"), theSince);
-			predicates.add(low);
-		}
-
-		Predicate high = builder.lessThan(from.<Date> get("myUpdated"), theEnd);
-		predicates.add(high);
-
-		if (theResourceName != null) {
-			predicates.add(builder.equal(from.get("myResourceType"), theResourceName));
-		}
-		if (theResourceId != null) {
-			predicates.add(builder.equal(from.get("myResourceId"), theResourceId));
+		Map<Long, BaseHasResource> history = new HashMap<Long, BaseHasResource>();
+		if (!historyIds.isEmpty()) {
+			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+			CriteriaQuery<ResourceHistoryTable> cq = builder.createQuery(ResourceHistoryTable.class);
+			Root<ResourceHistoryTable> from = cq.from(ResourceHistoryTable.class);
+			cq.where(from.get("myId").in(historyIds));
+			for (ResourceHistoryTable next : myEntityManager.createQuery(cq).getResultList()) {
+				history.put(next.getId(), next);
+			}
 		}
 
-		cq.where(builder.and(predicates.toArray(new Predicate[0])));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
-		if (theLimit != null && theLimit < myConfig.getHardSearchLimit()) {
-			q.setMaxResults(theLimit);
-		} else {
-			q.setMaxResults(myConfig.getHardSearchLimit());
-		}
-		for (Tuple next : q.getResultList()) {
-			Long id = next.get(0, Long.class);
-			Date updated = (Date) next.get(1);
-			tuples.add(new HistoryTuple(true, updated, id));
+		List<BaseHasResource> retVal = new ArrayList<BaseHasResource>(theTuples.size());
+		for (HistoryTuple next : theTuples) {
+			BaseHasResource entity = next.isHistory() ? history.get(next.getId()) : current.get(next.getId());
+			if (entity != null) {
+				retVal.add(entity);
+			}
 		}
+		return retVal;
 	}
 
 	protected MetaDt toMetaDt(Collection<TagDefinition> tagDefinitions) {
@@ -1048,6 +975,28 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return retVal;
 	}
 
+	/**
+	 * Returns the decoded text of the given entity, from the {@link ResourceBodyCache} if possible. Only current
+	 * versions are added to the cache, so that reading the history of a resource doesn't push them out.
+	 */
+	private String getResourceText(BaseHasResource theEntity) throws IOException {
+		boolean current = theEntity instanceof ResourceTable;
+		Long pid = current ? theEntity.getId() : ((ResourceHistoryTable) theEntity).getResourceId();
+		String retVal = myResourceBodyCache.get(pid, theEntity.getVersion());
+		if (retVal == null) {
+			InputStream stream = theEntity.getEncoding().getCodec().decode(theEntity.getResource());
+			try {
+				retVal = IOUtils.toString(stream, Constants.CHARSET_UTF8);
+			} finally {
+				IOUtils.closeQuietly(stream);
+			}
+			if (current) {
+				myResourceBodyCache.put(pid, theEntity.getVersion(), retVal);
+			}
+		}
+		return retVal;
+	}
+
 	protected IBaseResource toResource(BaseHasResource theEntity, boolean theForHistoryOperation) {
 		RuntimeResourceDefinition type = myContext.getResourceDefinition(theEntity.getResourceType());
 		return toResource(type.getImplementingClass(), theEntity, theForHistoryOperation);
@@ -1055,24 +1004,18 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 	@SuppressWarnings("unchecked")
 	protected <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation) {
-		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-		case JSON:
-			try {
-				resourceText = new String(theEntity.getResource(), "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Should not happen", e);
-			}
-			break;
-		case JSONC:
-			resourceText = GZipUtil.decompress(theEntity.getResource());
-			break;
-		}
-
-		IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
-		R retVal;
+		R retVal = null;
+		Reader reader = null;
 		try {
-			retVal = parser.parseResource(theResourceType, resourceText);
+			if (theEntity.getDeleted() == null) {
+				IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
+				if (myResourceBodyCache.isEnabled()) {
+					retVal = parser.parseResource(theResourceType, getResourceText(theEntity));
+				} else {
+					reader = new InputStreamReader(theEntity.getEncoding().getCodec().decode(theEntity.getResource()), Constants.CHARSET_UTF8);
+					retVal = parser.parseResource(theResourceType, reader);
+				}
+			}
 		} catch (Exception e) {
 			StringBuilder b = new StringBuilder();
 			b.append("Failed to parse database resource[");
@@ -1088,9 +1031,11 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			String msg = b.toString();
 			ourLog.error(msg, e);
 			throw new DataFormatException(msg, e);
+		} finally {
+			IOUtils.closeQuietly(reader);
 		}
 
-		IResource res = (IResource) retVal;
+		IResource res;
 		if (theEntity.getDeleted() != null) {
 			res = (IResource) myContext.getResourceDefinition(theResourceType).newInstance();
 			retVal = (R) res;
@@ -1098,7 +1043,11 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			if (theForHistoryOperation) {
 				ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.put(res, BundleEntryTransactionMethodEnum.DELETE);
 			}
-		} else if (theForHistoryOperation) {
+		} else {
+			res = (IResource) retVal;
+		}
+
+		if (theEntity.getDeleted() == null && theForHistoryOperation) {
 			/*
 			 * If the create and update times match, this was when the resource was created so we should mark it as a POST. Otherwise, it's a PUT.
 			 */
@@ -1127,20 +1076,21 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			TagList tagList = new TagList();
 			List<BaseCodingDt> securityLabels = new ArrayList<BaseCodingDt>();
 			List<IdDt> profiles = new ArrayList<IdDt>();
-			for (BaseTag next : tags) {
-				switch (next.getTag().getTagType()) {
+			for (BaseTag nextTag : tags) {
+				TagDefinition next = getTagDefinition(nextTag);
+				switch (next.getTagType()) {
 				case PROFILE:
-					profiles.add(new IdDt(next.getTag().getCode()));
+					profiles.add(new IdDt(next.getCode()));
 					break;
 				case SECURITY_LABEL:
 					BaseCodingDt secLabel = myContext.getVersion().newCodingDt();
-					secLabel.setSystem(next.getTag().getSystem());
-					secLabel.setCode(next.getTag().getCode());
-					secLabel.setDisplay(next.getTag().getDisplay());
+					secLabel.setSystem(next.getSystem());
+					secLabel.setCode(next.getCode());
+					secLabel.setDisplay(next.getDisplay());
 					securityLabels.add(secLabel);
 					break;
 				case TAG:
-					tagList.add(new Tag(next.getTag().getSystem(), next.getTag().getCode(), next.getTag().getDisplay()));
+					tagList.add(new Tag(next.getSystem(), next.getCode(), next.getDisplay()));
 					break;
 				}
 			}
@@ -1166,27 +1116,51 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return myContext.getResourceDefinition(theResource).getName();
 	}
 
+	/**
+	 * Loads the PIDs for all of the client assigned IDs referred to by the given resources into the forced ID cache
+	 * using as few queries as possible, so that resolving the references one at a time afterwards doesn't need a
+	 * query per reference
+	 */
+	protected void prefetchForcedIds(Collection<? extends IResource> theResources) {
+		Set<String> forcedIds = new HashSet<String>();
+		FhirTerser terser = getContext().newTerser();
+		for (IResource nextResource : theResources) {
+			if (nextResource == null) {
+				continue;
+			}
+			for (BaseResourceReferenceDt nextRef : terser.getAllPopulatedChildElementsOfType(nextResource, BaseResourceReferenceDt.class)) {
+				IdDt nextId = nextRef.getReference();
+				if (nextId.isEmpty() || nextId.isLocal() || !nextId.hasResourceType() || !nextId.hasIdPart()) {
+					continue;
+				}
+				if (!isValidPid(nextId)) {
+					forcedIds.add(nextId.getIdPart());
+				}
+			}
+		}
+		if (forcedIds.size() > 1) {
+			translateForcedIdsToPids(forcedIds);
+		}
+	}
+
 	protected Long translateForcedIdToPid(IIdType theId) {
 		if (isValidPid(theId)) {
 			return theId.getIdPartAsLong();
 		} else {
-			TypedQuery<ForcedId> q = myEntityManager.createNamedQuery("Q_GET_FORCED_ID", ForcedId.class);
-			q.setParameter("ID", theId.getIdPart());
-			try {
-				return q.getSingleResult().getResourcePid();
-			} catch (NoResultException e) {
+			Long retVal = myForcedIdCache.getPid(theId.getIdPart());
+			if (retVal == null) {
 				throw new ResourceNotFoundException(theId);
 			}
+			return retVal;
 		}
 	}
 
-	protected String translatePidIdToForcedId(Long theId) {
-		ForcedId forcedId = myEntityManager.find(ForcedId.class, theId);
-		if (forcedId != null) {
-			return forcedId.getForcedId();
-		} else {
-			return theId.toString();
-		}
+	/**
+	 * Returns the PIDs of the resources with the given client assigned IDs, looking up any which aren't already cached
+	 * with as few queries as possible. IDs which don't belong to any resource are not included in the returned map.
+	 */
+	protected Map<String, Long> translateForcedIdsToPids(Collection<String> theForcedIds) {
+		return myForcedIdCache.getPids(theForcedIds);
 	}
 
 	protected ResourceTable updateEntity(final IResource theResource, ResourceTable entity, boolean theUpdateHistory, Date theDeletedTimestampOrNull, Date theUpdateTime) {
@@ -1222,43 +1196,14 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			theEntity.setVersion(theEntity.getVersion() + 1);
 		}
 
-		boolean paramsStringPopulated = theEntity.isParamsStringPopulated();
-		boolean paramsTokenPopulated = theEntity.isParamsTokenPopulated();
-		boolean paramsNumberPopulated = theEntity.isParamsNumberPopulated();
-		boolean paramsQuantityPopulated = theEntity.isParamsQuantityPopulated();
-		boolean paramsDatePopulated = theEntity.isParamsDatePopulated();
-		boolean paramsCoordsPopulated = theEntity.isParamsCoordsPopulated();
-		boolean paramsUriPopulated = theEntity.isParamsUriPopulated();
-		boolean hasLinks = theEntity.isHasLinks();
-
-		Collection<ResourceIndexedSearchParamString> paramsString = new ArrayList<ResourceIndexedSearchParamString>(theEntity.getParamsString());
-		Collection<ResourceIndexedSearchParamToken> paramsToken = new ArrayList<ResourceIndexedSearchParamToken>(theEntity.getParamsToken());
-		Collection<ResourceIndexedSearchParamNumber> paramsNumber = new ArrayList<ResourceIndexedSearchParamNumber>(theEntity.getParamsNumber());
-		Collection<ResourceIndexedSearchParamQuantity> paramsQuantity = new ArrayList<ResourceIndexedSearchParamQuantity>(theEntity.getParamsQuantity());
-		Collection<ResourceIndexedSearchParamDate> paramsDate = new ArrayList<ResourceIndexedSearchParamDate>(theEntity.getParamsDate());
-		Collection<ResourceIndexedSearchParamUri> paramsUri = new ArrayList<ResourceIndexedSearchParamUri>(theEntity.getParamsUri());
-		Collection<ResourceIndexedSearchParamCoords> paramsCoords = new ArrayList<ResourceIndexedSearchParamCoords>(theEntity.getParamsCoords());
-		Collection<ResourceLink> resourceLinks = new ArrayList<ResourceLink>(theEntity.getResourceLinks());
-
-		Set<ResourceIndexedSearchParamString> stringParams = null;
-		Set<ResourceIndexedSearchParamToken> tokenParams = null;
-		Set<ResourceIndexedSearchParamNumber> numberParams = null;
-		Set<ResourceIndexedSearchParamQuantity> quantityParams = null;
-		Set<ResourceIndexedSearchParamDate> dateParams = null;
-		Set<ResourceIndexedSearchParamUri> uriParams = null;
-		Set<ResourceIndexedSearchParamCoords> coordsParams = null;
-		Set<ResourceLink> links = null;
+		myResourceBodyCache.invalidate(theEntity.getId());
+
+		ResourceIndexedSearchParams existingParams = new ResourceIndexedSearchParams(theEntity);
+		ResourceIndexedSearchParams newParams = null;
 
 		if (theDeletedTimestampOrNull != null) {
 
-			stringParams = Collections.emptySet();
-			tokenParams = Collections.emptySet();
-			numberParams = Collections.emptySet();
-			quantityParams = Collections.emptySet();
-			dateParams = Collections.emptySet();
-			uriParams = Collections.emptySet();
-			coordsParams = Collections.emptySet();
-			links = Collections.emptySet();
+			newParams = new ResourceIndexedSearchParams();
 			theEntity.setDeleted(theDeletedTimestampOrNull);
 			theEntity.setUpdated(theDeletedTimestampOrNull);
 
@@ -1268,46 +1213,17 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 			if (thePerformIndexing) {
 
-				stringParams = extractSearchParamStrings(theEntity, theResource);
-				numberParams = extractSearchParamNumber(theEntity, theResource);
-				quantityParams = extractSearchParamQuantity(theEntity, theResource);
-				dateParams = extractSearchParamDates(theEntity, theResource);
-				uriParams = extractSearchParamUri(theEntity, theResource);
-				coordsParams = extractSearchParamCoords(theEntity, theResource);
+				newParams = extractSearchParams(theEntity, theResource);
+				newParams.setLinks(extractResourceLinks(theEntity, theResource));
 
 				// ourLog.info("Indexing resource: {}", entity.getId());
-				ourLog.trace("Storing string indexes: {}", stringParams);
-
-				tokenParams = new HashSet<ResourceIndexedSearchParamToken>();
-				for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(theEntity, theResource)) {
-					if (next instanceof ResourceIndexedSearchParamToken) {
-						tokenParams.add((ResourceIndexedSearchParamToken) next);
-					} else {
-						stringParams.add((ResourceIndexedSearchParamString) next);
-					}
-				}
+				ourLog.trace("Storing string indexes: {}", newParams.getStringParams());
 
-				links = extractResourceLinks(theEntity, theResource);
 				populateResourceIntoEntity(theResource, theEntity);
 
 				theEntity.setUpdated(theUpdateTime);
 				theEntity.setLanguage(theResource.getLanguage().getValue());
-				theEntity.setParamsString(stringParams);
-				theEntity.setParamsStringPopulated(stringParams.isEmpty() == false);
-				theEntity.setParamsToken(tokenParams);
-				theEntity.setParamsTokenPopulated(tokenParams.isEmpty() == false);
-				theEntity.setParamsNumber(numberParams);
-				theEntity.setParamsNumberPopulated(numberParams.isEmpty() == false);
-				theEntity.setParamsQuantity(quantityParams);
-				theEntity.setParamsQuantityPopulated(quantityParams.isEmpty() == false);
-				theEntity.setParamsDate(dateParams);
-				theEntity.setParamsDatePopulated(dateParams.isEmpty() == false);
-				theEntity.setParamsUri(uriParams);
-				theEntity.setParamsUriPopulated(uriParams.isEmpty() == false);
-				theEntity.setParamsCoords(coordsParams);
-				theEntity.setParamsCoordsPopulated(coordsParams.isEmpty() == false);
-				theEntity.setResourceLinks(links);
-				theEntity.setHasLinks(links.isEmpty() == false);
+				newParams.populateEntityFlags(theEntity);
 				theEntity.setIndexStatus(INDEX_STATUS_INDEXED);
 
 			} else {
@@ -1321,7 +1237,8 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 		}
 
-		if (theEntity.getId() == null) {
+		boolean isNew = theEntity.getId() == null;
+		if (isNew) {
 			myEntityManager.persist(theEntity);
 
 			if (theEntity.getForcedId() != null) {
@@ -1336,92 +1253,208 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			postUpdate(theEntity, (T) theResource);
 		}
 
-		if (thePerformIndexing) {
+		boolean uniqueIndexUpdated = false;
+		if (newParams != null) {
+			uniqueIndexUpdated = storeIndexes(theResource, theEntity, isNew, existingParams, newParams);
+		}
 
-			if (paramsStringPopulated) {
-				for (ResourceIndexedSearchParamString next : paramsString) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamString next : stringParams) {
-				myEntityManager.persist(next);
+		try {
+			myEntityManager.flush();
+		} catch (PersistenceException e) {
+			if (uniqueIndexUpdated && e.getCause() instanceof ConstraintViolationException) {
+				// Another transaction has just stored the same unique value
+				throw new ResourceVersionConflictException("Can not store resource " + theEntity.getIdDt().toUnqualifiedVersionless().getValue() + " as a resource with the same value for a unique search parameter was stored concurrently");
 			}
+			throw e;
+		}
 
-			if (paramsTokenPopulated) {
-				for (ResourceIndexedSearchParamToken next : paramsToken) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamToken next : tokenParams) {
-				myEntityManager.persist(next);
-			}
+		/*
+		 * Only new versions are matched against subscriptions. Reindexing (which doesn't create a new version)
+		 * must not deliver a resource again.
+		 */
+		if (myConfig.isSubscriptionEnabled() && thePerformIndexing && theUpdateVersion && theDeletedTimestampOrNull == null) {
+			mySubscriptionMatcher.flagMatches(theEntity, getDao(theResource.getClass()));
+		}
 
-			if (paramsNumberPopulated) {
-				for (ResourceIndexedSearchParamNumber next : paramsNumber) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceIndexedSearchParamNumber next : numberParams) {
-				myEntityManager.persist(next);
+		if (theResource != null) {
+			theResource.setId(theEntity.getIdDt());
+		}
+
+		return theEntity;
+	}
+
+	/**
+	 * Extracts the search index rows from a resource, other than its resource links (which are resolved against the
+	 * database by {@link #extractResourceLinks(ResourceTable, IResource)}). This does not use the database, so bulk
+	 * imports call it from their worker threads.
+	 */
+	ResourceIndexedSearchParams extractSearchParams(ResourceTable theEntity, IResource theResource) {
+		return new ResourceIndexedSearchParams(extractSearchParamStrings(theEntity, theResource), extractSearchParamTokens(theEntity, theResource), extractSearchParamNumber(theEntity, theResource),
+				extractSearchParamQuantity(theEntity, theResource), extractSearchParamDates(theEntity, theResource), extractSearchParamUri(theEntity, theResource),
+				extractSearchParamCoords(theEntity, theResource));
+	}
+
+	/**
+	 * Brings every index of a resource in line with the index rows which were just extracted from it: the search index
+	 * rows, the unique index and the full-text index. This must be called after the entity has been persisted or
+	 * merged, and is used by every path which writes resources (including bulk imports) so that they all maintain the
+	 * same indexes.
+	 * 
+	 * @param theExisting
+	 *           The rows currently stored for the resource
+	 * @param theNew
+	 *           The rows extracted from the new version of the resource (which are empty if it is being deleted)
+	 * @return Were any unique index rows inserted?
+	 * @throws ResourceVersionConflictException
+	 *            If a unique index value is already used by another resource
+	 */
+	boolean storeIndexes(IResource theResource, ResourceTable theEntity, boolean theIsNew, ResourceIndexedSearchParams theExisting, ResourceIndexedSearchParams theNew) {
+
+		/*
+		 * Only rows which have actually changed are deleted or inserted, and these are all written by the next flush,
+		 * which lets Hibernate send them to the database as JDBC batches
+		 */
+		theEntity.setParamsString(synchronizeIndexRows(theExisting.getStringParams(), theNew.getStringParams()));
+		theEntity.setParamsToken(synchronizeIndexRows(theExisting.getTokenParams(), theNew.getTokenParams()));
+		theEntity.setParamsNumber(synchronizeIndexRows(theExisting.getNumberParams(), theNew.getNumberParams()));
+		theEntity.setParamsQuantity(synchronizeIndexRows(theExisting.getQuantityParams(), theNew.getQuantityParams()));
+		theEntity.setParamsDate(synchronizeIndexRows(theExisting.getDateParams(), theNew.getDateParams()));
+		theEntity.setParamsUri(synchronizeIndexRows(theExisting.getUriParams(), theNew.getUriParams()));
+		theEntity.setParamsCoords(synchronizeIndexRows(theExisting.getCoordsParams(), theNew.getCoordsParams()));
+		theEntity.setResourceLinks(synchronizeIndexRows(theExisting.getLinks(), theNew.getLinks()));
+
+		boolean retVal = false;
+		if (!myConfig.getUniqueSearchParameters().isEmpty()) {
+			retVal = updateUniqueIndex(theEntity, theIsNew, theNew.getTokenParams());
+		}
+
+		if (myFulltextSearchSvc != null) {
+			if (theEntity.getDeleted() == null) {
+				populateFullTextFields(theResource, theEntity, theNew.getStringParams());
 			}
+			myFulltextSearchSvc.updateIndex(theEntity);
+		}
 
-			if (paramsQuantityPopulated) {
-				for (ResourceIndexedSearchParamQuantity next : paramsQuantity) {
-					myEntityManager.remove(next);
+		return retVal;
+	}
+
+	/**
+	 * Brings the rows of the unique index (see {@link DaoConfig#setUniqueSearchParameters(Set)}) for a resource in line
+	 * with the token values which were just extracted from it
+	 * 
+	 * @return Were any rows inserted?
+	 * @throws ResourceVersionConflictException
+	 *            If one of the values is already used by another resource
+	 */
+	private boolean updateUniqueIndex(ResourceTable theEntity, boolean theIsNew, Collection<ResourceIndexedSearchParamToken> theTokenParams) {
+		String resourceType = theEntity.getResourceType();
+		Set<String> toInsert = new HashSet<String>();
+		for (ResourceIndexedSearchParamToken next : theTokenParams) {
+			if (myConfig.isUniqueSearchParameter(resourceType, next.getParamName())) {
+				String nextString = toUniqueIndexString(resourceType, next.getParamName(), next.getSystem(), next.getValue());
+				if (nextString != null) {
+					toInsert.add(nextString);
 				}
 			}
-			for (ResourceIndexedSearchParamQuantity next : quantityParams) {
-				myEntityManager.persist(next);
-			}
+		}
 
-			// Store date SP's
-			if (paramsDatePopulated) {
-				for (ResourceIndexedSearchParamDate next : paramsDate) {
+		if (!theIsNew) {
+			TypedQuery<ResourceIndexedUniqueString> q = myEntityManager.createQuery("SELECT u FROM ResourceIndexedUniqueString u WHERE u.myResourceId = :RES_ID", ResourceIndexedUniqueString.class);
+			q.setParameter("RES_ID", theEntity.getId());
+			for (ResourceIndexedUniqueString next : q.getResultList()) {
+				if (!toInsert.remove(next.getIndexString())) {
 					myEntityManager.remove(next);
 				}
 			}
-			for (ResourceIndexedSearchParamDate next : dateParams) {
-				myEntityManager.persist(next);
-			}
+		}
 
-			// Store URI SP's
-			if (paramsUriPopulated) {
-				for (ResourceIndexedSearchParamUri next : paramsUri) {
-					myEntityManager.remove(next);
+		if (toInsert.isEmpty()) {
+			return false;
+		}
+
+		TypedQuery<ResourceIndexedUniqueString> q = myEntityManager.createQuery("SELECT u FROM ResourceIndexedUniqueString u WHERE u.myIndexString IN (:STRINGS)", ResourceIndexedUniqueString.class);
+		q.setParameter("STRINGS", toInsert);
+		for (ResourceIndexedUniqueString next : q.getResultList()) {
+			String existingId = next.getResource().getIdDt().toUnqualifiedVersionless().getValue();
+			throw new ResourceVersionConflictException("Can not store resource " + theEntity.getIdDt().toUnqualifiedVersionless().getValue() + " as resource " + existingId + " already has the value " + next.getIndexString() + " for a unique search parameter");
+		}
+
+		for (String next : toInsert) {
+			myEntityManager.persist(new ResourceIndexedUniqueString(theEntity, next));
+		}
+		return true;
+	}
+
+	/**
+	 * Populates the (non-persistent) fields of the entity which are stored in the full-text index
+	 */
+	@SuppressWarnings("rawtypes")
+	private void populateFullTextFields(IResource theResource, ResourceTable theEntity, Collection<ResourceIndexedSearchParamString> theStringParams) {
+		StringBuilder narrative = new StringBuilder();
+		XhtmlDt div = theResource.getText().getDiv();
+		if (div != null && div.getValue() != null) {
+			for (XMLEvent next : div.getValue()) {
+				if (next.isCharacters()) {
+					narrative.append(next.asCharacters().getData()).append(' ');
 				}
 			}
-			for (ResourceIndexedSearchParamUri next : uriParams) {
-				myEntityManager.persist(next);
-			}
+		}
 
-			// Store Coords SP's
-			if (paramsCoordsPopulated) {
-				for (ResourceIndexedSearchParamCoords next : paramsCoords) {
-					myEntityManager.remove(next);
-				}
+		StringBuilder content = new StringBuilder(narrative);
+		for (IPrimitiveType next : myContext.newTerser().getAllPopulatedChildElementsOfType(theResource, IPrimitiveType.class)) {
+			if (next instanceof XhtmlDt) {
+				continue;
 			}
-			for (ResourceIndexedSearchParamCoords next : coordsParams) {
-				myEntityManager.persist(next);
+			String nextValue = next.getValueAsString();
+			if (isNotBlank(nextValue)) {
+				content.append(nextValue).append(' ');
 			}
+		}
 
-			if (hasLinks) {
-				for (ResourceLink next : resourceLinks) {
-					myEntityManager.remove(next);
-				}
-			}
-			for (ResourceLink next : links) {
-				myEntityManager.persist(next);
+		Map<String, List<String>> stringParamValues = new HashMap<String, List<String>>();
+		for (ResourceIndexedSearchParamString next : theStringParams) {
+			List<String> values = stringParamValues.get(next.getParamName());
+			if (values == null) {
+				values = new ArrayList<String>();
+				stringParamValues.put(next.getParamName(), values);
 			}
+			values.add(next.getValueExact());
+		}
 
-		} // if thePerformIndexing
+		theEntity.setNarrativeText(narrative.toString());
+		theEntity.setContentText(content.toString());
+		theEntity.setStringParamValues(stringParamValues);
+	}
 
-		myEntityManager.flush();
+	/**
+	 * Brings the stored index rows of one type for a resource in line with the rows which were just extracted from it.
+	 * Existing rows which are equal to an extracted row are kept as-is, existing rows which no longer apply are removed,
+	 * and only the extracted rows which don't already exist are persisted.
+	 * 
+	 * @param theExisting
+	 *           The rows currently stored for the resource
+	 * @param theNew
+	 *           The rows extracted from the new version of the resource
+	 * @return The rows which belong to the resource after the update
+	 */
+	private <P> Collection<P> synchronizeIndexRows(Collection<P> theExisting, Collection<P> theNew) {
+		Set<P> toInsert = new HashSet<P>(theNew);
+		List<P> retVal = new ArrayList<P>(toInsert.size());
 
-		if (theResource != null) {
-			theResource.setId(theEntity.getIdDt());
+		for (P next : theExisting) {
+			if (toInsert.remove(next)) {
+				retVal.add(next);
+			} else {
+				myEntityManager.remove(next);
+			}
 		}
 
-		return theEntity;
+		for (P next : toInsert) {
+			myEntityManager.persist(next);
+			retVal.add(next);
+		}
+
+		return retVal;
 	}
 
 	/**
@@ -1481,4 +1514,251 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return new String(out).toUpperCase();
 	}
 
+	/**
+	 * Pages through the history of the server, of a resource type, or of a single resource, newest entries first.
+	 * Current versions are read from HFJ_RESOURCE and previous versions from HFJ_RES_VER. Each page is produced by
+	 * loading at most one page worth of keys from each table, in descending order of (RES_UPDATED, PID) and starting
+	 * after the last key of each table which appeared on the previous page, and merging them. The provider remembers
+	 * where a limited number of pages ended so that paging forward never has to start again from the beginning, and
+	 * nothing proportional to the size of the history is ever held in memory.
+	 */
+	private class HistoryBundleProvider implements IBundleProvider {
+
+		private Integer myCount;
+		private final TreeMap<Integer, HistoryCursor> myCursors = new TreeMap<Integer, HistoryCursor>();
+		private final InstantDt myEnd;
+		private final Long myResourceId;
+		private final String myResourceName;
+		private final Date mySince;
+
+		HistoryBundleProvider(String theResourceName, Long theResourceId, Date theSince, InstantDt theEnd) {
+			myResourceName = theResourceName;
+			myResourceId = theResourceId;
+			mySince = theSince;
+			myEnd = theEnd;
+			myCursors.put(0, new HistoryCursor(null, null));
+		}
+
+		private List<Predicate> createPredicates(CriteriaBuilder theBuilder, Root<?> theFrom, boolean theHistory) {
+			List<Predicate> retVal = new ArrayList<Predicate>();
+			if (mySince != null) {
+				retVal.add(theBuilder.greaterThanOrEqualTo(theFrom.<Date> get("myUpdated"), mySince));
+			}
+			retVal.add(theBuilder.lessThan(theFrom.<Date> get("myUpdated"), myEnd.getValue()));
+			if (myResourceName != null) {
+				retVal.add(theBuilder.equal(theFrom.get("myResourceType"), myResourceName));
+			}
+			if (myResourceId != null) {
+				retVal.add(theBuilder.equal(theFrom.get(theHistory ? "myResourceId" : "myId"), myResourceId));
+			}
+			return retVal;
+		}
+
+		@Override
+		public InstantDt getPublished() {
+			return myEnd;
+		}
+
+		@Override
+		public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			return template.execute(new TransactionCallback<List<IBaseResource>>() {
+				@Override
+				public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+					StopWatch timer = new StopWatch();
+
+					List<HistoryTuple> tuples = loadPage(theFromIndex, theToIndex);
+					ourLog.info("Loaded {} history keys for entries {}-{} in {} ms", new Object[] { tuples.size(), theFromIndex, theToIndex, timer.getMillisAndRestart() });
+
+					List<BaseHasResource> resEntities = loadHistoryEntities(tuples);
+					ourLog.info("Loaded {} history entries in {} ms", resEntities.size(), timer.getMillisAndRestart());
+
+					ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
+					for (BaseHasResource next : resEntities) {
+						RuntimeResourceDefinition type;
+						try {
+							type = myContext.getResourceDefinition(next.getResourceType());
+						} catch (DataFormatException e) {
+							if (next.getFhirVersion() != getContext().getVersion().getVersion()) {
+								ourLog.info("Ignoring history resource of type[{}] because it is not compatible with version[{}]", next.getResourceType(), getContext().getVersion().getVersion());
+								continue;
+							}
+							throw e;
+						}
+						IResource resource = (IResource) toResource(type.getImplementingClass(), next, true);
+						retVal.add(resource);
+					}
+					return retVal;
+				}
+			});
+		}
+
+		/**
+		 * Loads the keys of up to the given number of entries from one of the two tables, starting after the given
+		 * key (or at the start of the history if it is <code>null</code>)
+		 */
+		private List<HistoryTuple> loadKeys(boolean theHistory, HistoryTuple theAfter, int theMaxResults) {
+			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+			CriteriaQuery<Tuple> cq = builder.createTupleQuery();
+			Root<?> from = cq.from(theHistory ? ResourceHistoryTable.class : ResourceTable.class);
+			cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
+
+			List<Predicate> predicates = createPredicates(builder, from, theHistory);
+			if (theAfter != null) {
+				Predicate earlier = builder.lessThan(from.<Date> get("myUpdated"), theAfter.getUpdated());
+				Predicate sameTimeLowerPid = builder.and(builder.equal(from.get("myUpdated"), theAfter.getUpdated()), builder.lessThan(from.<Long> get("myId"), theAfter.getId()));
+				predicates.add(builder.or(earlier, sameTimeLowerPid));
+			}
+			cq.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+			cq.orderBy(builder.desc(from.get("myUpdated")), builder.desc(from.get("myId")));
+
+			TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
+			q.setMaxResults(theMaxResults);
+
+			List<HistoryTuple> retVal = new ArrayList<HistoryTuple>();
+			for (Tuple next : q.getResultList()) {
+				retVal.add(new HistoryTuple(theHistory, next.get(1, Date.class), next.get(0, Long.class)));
+			}
+			return retVal;
+		}
+
+		/**
+		 * Adds the keys of up to the given number of entries following the given cursor to a list
+		 * 
+		 * @return The cursor positioned after the last of the added entries
+		 */
+		private HistoryCursor loadNext(HistoryCursor theCursor, int theCount, List<HistoryTuple> theResults) {
+			List<HistoryTuple> candidates = new ArrayList<HistoryTuple>();
+			candidates.addAll(loadKeys(false, theCursor.getLastCurrent(), theCount));
+			candidates.addAll(loadKeys(true, theCursor.getLastHistory(), theCount));
+			Collections.sort(candidates, Collections.reverseOrder());
+
+			HistoryTuple lastCurrent = theCursor.getLastCurrent();
+			HistoryTuple lastHistory = theCursor.getLastHistory();
+			for (HistoryTuple next : candidates.subList(0, Math.min(theCount, candidates.size()))) {
+				theResults.add(next);
+				if (next.isHistory()) {
+					lastHistory = next;
+				} else {
+					lastCurrent = next;
+				}
+			}
+			return new HistoryCursor(lastCurrent, lastHistory);
+		}
+
+		private List<HistoryTuple> loadPage(int theFromIndex, int theToIndex) {
+			Entry<Integer, HistoryCursor> start;
+			synchronized (this) {
+				start = myCursors.floorEntry(theFromIndex);
+			}
+
+			int index = start.getKey();
+			HistoryCursor cursor = start.getValue();
+			List<HistoryTuple> retVal = new ArrayList<HistoryTuple>();
+
+			// Skip forward to the start of the page (this is only needed if pages are requested out of order)
+			if (index < theFromIndex) {
+				ourLog.debug("Skipping from history entry {} to {}", index, theFromIndex);
+				while (index < theFromIndex) {
+					int count = Math.min(theFromIndex - index, HISTORY_SKIP_CHUNK_SIZE);
+					retVal.clear();
+					cursor = loadNext(cursor, count, retVal);
+					if (retVal.size() < count) {
+						return new ArrayList<HistoryTuple>();
+					}
+					index += count;
+				}
+				retVal.clear();
+				rememberCursor(index, cursor);
+			}
+
+			cursor = loadNext(cursor, theToIndex - theFromIndex, retVal);
+			if (retVal.size() > 0) {
+				rememberCursor(theFromIndex + retVal.size(), cursor);
+			}
+			return retVal;
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return null;
+		}
+
+		private synchronized void rememberCursor(int theIndex, HistoryCursor theCursor) {
+			myCursors.put(theIndex, theCursor);
+			if (myCursors.size() > HISTORY_MAX_CURSORS) {
+				// Forget the oldest page boundary other than the start of the history
+				myCursors.remove(myCursors.higherKey(0));
+			}
+		}
+
+		@Override
+		public synchronized int size() {
+			if (myCount == null) {
+				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+				myCount = template.execute(new TransactionCallback<Integer>() {
+					@Override
+					public Integer doInTransaction(TransactionStatus theStatus) {
+						long retVal = 0;
+						for (boolean nextHistory : new boolean[] { false, true }) {
+							CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+							CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+							Root<?> from = cq.from(nextHistory ? ResourceHistoryTable.class : ResourceTable.class);
+							cq.select(builder.count(from));
+							List<Predicate> predicates = createPredicates(builder, from, nextHistory);
+							cq.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+							retVal += myEntityManager.createQuery(cq).getSingleResult();
+						}
+						return (int) Math.min(retVal, Integer.MAX_VALUE);
+					}
+				});
+			}
+			return myCount;
+		}
+
+	}
+
+	/**
+	 * A position in a history: the last key from each of HFJ_RESOURCE and HFJ_RES_VER which has already been paged
+	 * through (either of which is <code>null</code> if no entries from that table have been reached yet)
+	 */
+	private static class HistoryCursor {
+
+		private final HistoryTuple myLastCurrent;
+		private final HistoryTuple myLastHistory;
+
+		HistoryCursor(HistoryTuple theLastCurrent, HistoryTuple theLastHistory) {
+			myLastCurrent = theLastCurrent;
+			myLastHistory = theLastHistory;
+		}
+
+		HistoryTuple getLastCurrent() {
+			return myLastCurrent;
+		}
+
+		HistoryTuple getLastHistory() {
+			return myLastHistory;
+		}
+
+	}
+
+	/**
+	 * Buffer which resources are serialized into before being handed to an
+	 * {@link ca.uhn.fhir.jpa.entity.IResourceBodyCodec}, which exposes its backing array so that it doesn't need to be
+	 * copied first
+	 */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+
+		private static final int INITIAL_SIZE = 8 * 1024;
+
+		public EncodeBuffer() {
+			super(INITIAL_SIZE);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+
+	}
+
 }
@@ -26,11 +26,10 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -45,6 +44,7 @@ import javax.persistence.PersistenceContextType;
 import javax.persistence.TemporalType;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
+import javax.persistence.criteria.AbstractQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Expression;
@@ -58,30 +58,34 @@ import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Subquery;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.Lists;
+
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.RuntimeChildResourceDefinition;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
-import ca.uhn.fhir.jpa.dao.SearchParameterMap.EverythingModeEnum;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.BaseTag;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamCoords;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
@@ -92,6 +96,7 @@ import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
 import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchInclude;
 import ca.uhn.fhir.jpa.entity.SearchResult;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
@@ -139,6 +144,7 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 import ca.uhn.fhir.util.FhirTerser;
 import ca.uhn.fhir.util.ObjectUtil;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
 
 @Transactional(propagation = Propagation.REQUIRED)
 public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseHapiFhirDao<T>implements IFhirResourceDao<T> {
@@ -147,6 +153,11 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 	static final String OO_SEVERITY_INFO = "information";
 	static final String OO_SEVERITY_WARN = "warning";
 
+	/**
+	 * Number of PIDs which are written to HFJ_SEARCH_RESULT in a single batch when search results are stored
+	 */
+	static final int SEARCH_RESULT_BATCH_SIZE = 500;
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirResourceDao.class);
 
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
@@ -158,6 +169,9 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 	@Autowired
 	private DaoConfig myDaoConfig;
 
+	@Autowired
+	private IncludeResolver myIncludeResolver;
+
 	private String myResourceName;
 	private Class<T> myResourceType;
 	private String mySecondaryPrimaryKeyParamName;
@@ -165,13 +179,12 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 	@Autowired()
 	private ISearchResultDao mySearchResultDao;
 
-	private Set<Long> addPredicateComposite(RuntimeSearchParam theParamDef, Set<Long> thePids, List<? extends IQueryParameterType> theNextAnd) {
+	private Predicate addPredicateComposite(RuntimeSearchParam theParamDef, List<? extends IQueryParameterType> theNextAnd, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		// TODO: fail if missing is set for a composite query
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceTable> from = subQ.from(ResourceTable.class);
+		subQ.select(from.get("myId").as(Long.class));
 
 		IQueryParameterType or = theNextAnd.get(0);
 		if (!(or instanceof CompositeParam<?, ?>)) {
@@ -181,143 +194,76 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 		RuntimeSearchParam left = theParamDef.getCompositeOf().get(0);
 		IQueryParameterType leftValue = cp.getLeftValue();
-		Predicate leftPredicate = createCompositeParamPart(builder, from, left, leftValue);
+		Predicate leftPredicate = createCompositeParamPart(theBuilder, from, left, leftValue);
 
 		RuntimeSearchParam right = theParamDef.getCompositeOf().get(1);
 		IQueryParameterType rightValue = cp.getRightValue();
-		Predicate rightPredicate = createCompositeParamPart(builder, from, right, rightValue);
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, leftPredicate, rightPredicate, inPids));
-		} else {
-			cq.where(builder.and(type, leftPredicate, rightPredicate));
-		}
+		Predicate rightPredicate = createCompositeParamPart(theBuilder, from, right, rightValue);
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate correlation = theBuilder.equal(from.get("myId"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, leftPredicate, rightPredicate, correlation));
 
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateDate(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateDate(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		if (theList == null || theList.isEmpty()) {
-			return thePids;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsDate", theParamName, ResourceIndexedSearchParamDate.class);
+			return addPredicateParamMissing(theParamName, ResourceIndexedSearchParamDate.class, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamDate> from = cq.from(ResourceIndexedSearchParamDate.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamDate> from = subQ.from(ResourceIndexedSearchParamDate.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresent(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
 			IQueryParameterType params = nextOr;
-			Predicate p = createPredicateDate(builder, from, params);
+			Predicate p = createPredicateDate(theBuilder, from, params);
 			codePredicates.add(p);
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+		Predicate correlation = theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, name, masterCodePredicate, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateId(Set<Long> theExistingPids, Set<Long> thePids) {
-		if (thePids == null || thePids.isEmpty()) {
-			return Collections.emptySet();
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
-
-		Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate idPrecidate = from.get("myId").in(thePids);
-
-		cq.where(builder.and(typePredicate, idPrecidate));
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		HashSet<Long> found = new HashSet<Long>(q.getResultList());
-		if (!theExistingPids.isEmpty()) {
-			theExistingPids.retainAll(found);
-			return theExistingPids;
-		} else {
-			return found;
-		}
+	private Predicate addPredicateId(Set<Long> thePids, Root<ResourceTable> theFrom) {
+		return theFrom.get("myId").in(thePids);
 	}
 
-	// private Set<Long> addPredicateComposite(String theParamName, Set<Long> thePids, List<? extends
-	// IQueryParameterType> theList) {
-	// }
-
-	private Set<Long> addPredicateLanguage(Set<Long> thePids, List<List<? extends IQueryParameterType>> theList) {
-		Set<Long> retVal = thePids;
-		if (theList == null || theList.isEmpty()) {
-			return retVal;
-		}
-		for (List<? extends IQueryParameterType> nextList : theList) {
-
-			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-			Root<ResourceTable> from = cq.from(ResourceTable.class);
-			cq.select(from.get("myId").as(Long.class));
-
-			Set<String> values = new HashSet<String>();
-			for (IQueryParameterType next : nextList) {
-				if (next instanceof StringParam) {
-					String nextValue = ((StringParam) next).getValue();
-					if (isBlank(nextValue)) {
-						continue;
-					}
-					values.add(nextValue);
-				} else {
-					throw new InternalErrorException("Lanugage parameter must be of type " + StringParam.class.getCanonicalName() + " - Got " + next.getClass().getCanonicalName());
+	private Predicate addPredicateLanguage(List<? extends IQueryParameterType> theList, Root<ResourceTable> theFrom) {
+		Set<String> values = new HashSet<String>();
+		for (IQueryParameterType next : theList) {
+			if (next instanceof StringParam) {
+				String nextValue = ((StringParam) next).getValue();
+				if (isBlank(nextValue)) {
+					continue;
 				}
-			}
-
-			if (values.isEmpty()) {
-				return retVal;
-			}
-
-			Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
-			Predicate langPredicate = from.get("myLanguage").as(String.class).in(values);
-			Predicate masterCodePredicate = builder.and(typePredicate, langPredicate);
-			Predicate notDeletedPredicate = builder.isNull(from.get("myDeleted"));
-
-			if (retVal.size() > 0) {
-				Predicate inPids = (from.get("myId").in(retVal));
-				cq.where(builder.and(masterCodePredicate, inPids, notDeletedPredicate));
+				values.add(nextValue);
 			} else {
-				cq.where(builder.and(masterCodePredicate, notDeletedPredicate));
+				throw new InternalErrorException("Lanugage parameter must be of type " + StringParam.class.getCanonicalName() + " - Got " + next.getClass().getCanonicalName());
 			}
+		}
 
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			retVal = new HashSet<Long>(q.getResultList());
-			if (retVal.isEmpty()) {
-				return retVal;
-			}
+		if (values.isEmpty()) {
+			return null;
 		}
 
-		return retVal;
+		return theFrom.get("myLanguage").as(String.class).in(values);
 	}
 
 	private boolean addPredicateMissingFalseIfPresent(CriteriaBuilder theBuilder, String theParamName, Root<? extends BaseResourceIndexedSearchParam> from, List<Predicate> codePredicates,
@@ -350,25 +296,60 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		return missingFalse;
 	}
 
-	private Set<Long> addPredicateNumber(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	/**
+	 * Selects the resources with coordinates in the bounding box of the given near search. This is only a first pass,
+	 * the distance to each candidate is checked afterward by {@link #filterByDistance(List, NearSearch, boolean)}.
+	 */
+	private Predicate addPredicateNear(String theParamName, NearSearch theNear, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamCoords> from = subQ.from(ResourceIndexedSearchParamCoords.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
+
+		List<Predicate> cellPredicates = new ArrayList<Predicate>();
+		for (long[] nextRange : theNear.getGridCellRanges()) {
+			cellPredicates.add(theBuilder.between(from.<Long> get("myGridCell"), nextRange[0], nextRange[1]));
+		}
+		Predicate cells = theBuilder.or(cellPredicates.toArray(new Predicate[0]));
+
+		List<Predicate> andPredicates = new ArrayList<Predicate>();
+		andPredicates.add(theBuilder.equal(from.get("myResourceType"), myResourceName));
+		andPredicates.add(theBuilder.equal(from.get("myParamName"), theParamName));
+		andPredicates.add(cells);
+		andPredicates.add(theBuilder.between(from.<Double> get("myLatitude"), theNear.getMinLatitude(), theNear.getMaxLatitude()));
+		if (!theNear.isAllLongitudes()) {
+			Path<Double> longitude = from.<Double> get("myLongitude");
+			if (theNear.getMinLongitude() < -180.0) {
+				andPredicates.add(theBuilder.or(theBuilder.ge(longitude, theNear.getMinLongitude() + 360.0), theBuilder.le(longitude, theNear.getMaxLongitude())));
+			} else if (theNear.getMaxLongitude() > 180.0) {
+				andPredicates.add(theBuilder.or(theBuilder.ge(longitude, theNear.getMinLongitude()), theBuilder.le(longitude, theNear.getMaxLongitude() - 360.0)));
+			} else {
+				andPredicates.add(theBuilder.between(longitude, theNear.getMinLongitude(), theNear.getMaxLongitude()));
+			}
+		}
+		andPredicates.add(theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId")));
+		subQ.where(theBuilder.and(andPredicates.toArray(new Predicate[0])));
+
+		return theBuilder.exists(subQ);
+	}
+
+	private Predicate addPredicateNumber(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		if (theList == null || theList.isEmpty()) {
-			return thePids;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsNumber", theParamName, ResourceIndexedSearchParamNumber.class);
+			return addPredicateParamMissing(theParamName, ResourceIndexedSearchParamNumber.class, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamNumber> from = cq.from(ResourceIndexedSearchParamNumber.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamNumber> from = subQ.from(ResourceIndexedSearchParamNumber.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType params = nextOr;
 
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresent(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
@@ -377,7 +358,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 				BigDecimal value = param.getValue();
 				if (value == null) {
-					return thePids;
+					return null;
 				}
 
 				Path<Object> fromObj = from.get("myValue");
@@ -385,22 +366,22 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 					double mul = value.doubleValue() * 1.01;
 					double low = value.doubleValue() - mul;
 					double high = value.doubleValue() + mul;
-					Predicate lowPred = builder.ge(fromObj.as(Long.class), low);
-					Predicate highPred = builder.le(fromObj.as(Long.class), high);
-					codePredicates.add(builder.and(lowPred, highPred));
+					Predicate lowPred = theBuilder.ge(fromObj.as(Long.class), low);
+					Predicate highPred = theBuilder.le(fromObj.as(Long.class), high);
+					codePredicates.add(theBuilder.and(lowPred, highPred));
 				} else {
 					switch (param.getComparator()) {
 					case GREATERTHAN:
-						codePredicates.add(builder.greaterThan(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.greaterThan(fromObj.as(BigDecimal.class), value));
 						break;
 					case GREATERTHAN_OR_EQUALS:
-						codePredicates.add(builder.ge(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.ge(fromObj.as(BigDecimal.class), value));
 						break;
 					case LESSTHAN:
-						codePredicates.add(builder.lessThan(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.lessThan(fromObj.as(BigDecimal.class), value));
 						break;
 					case LESSTHAN_OR_EQUALS:
-						codePredicates.add(builder.le(fromObj.as(BigDecimal.class), value));
+						codePredicates.add(theBuilder.le(fromObj.as(BigDecimal.class), value));
 						break;
 					}
 				}
@@ -410,104 +391,61 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+		Predicate correlation = theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, name, masterCodePredicate, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateParamMissing(Set<Long> thePids, String joinName, String theParamName, Class<? extends BaseResourceIndexedSearchParam> theParamTable) {
-		String resourceType = getContext().getResourceDefinition(getResourceType()).getName();
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
-
-		Subquery<Long> subQ = cq.subquery(Long.class);
+	private Predicate addPredicateParamMissing(String theParamName, Class<? extends BaseResourceIndexedSearchParam> theParamTable, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery,
+			Root<ResourceTable> theFrom) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
 		Root<? extends BaseResourceIndexedSearchParam> subQfrom = subQ.from(theParamTable);
 		subQ.select(subQfrom.get("myResourcePid").as(Long.class));
-		Predicate subQname = builder.equal(subQfrom.get("myParamName"), theParamName);
-		Predicate subQtype = builder.equal(subQfrom.get("myResourceType"), resourceType);
-		subQ.where(builder.and(subQtype, subQname));
-
-		Predicate joinPredicate = builder.not(builder.in(from.get("myId")).value(subQ));
-		Predicate typePredicate = builder.equal(from.get("myResourceType"), resourceType);
-		Predicate notDeletedPredicate = builder.isNull(from.get("myDeleted"));
-
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myId").in(thePids));
-			cq.where(builder.and(inPids, typePredicate, joinPredicate, notDeletedPredicate));
-		} else {
-			cq.where(builder.and(typePredicate, joinPredicate, notDeletedPredicate));
-		}
+		Predicate subQname = theBuilder.equal(subQfrom.get("myParamName"), theParamName);
+		Predicate subQtype = theBuilder.equal(subQfrom.get("myResourceType"), myResourceName);
+		Predicate correlation = theBuilder.equal(subQfrom.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(subQtype, subQname, correlation));
 
 		ourLog.info("Adding :missing qualifier for parameter '{}'", theParamName);
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		List<Long> resultList = q.getResultList();
-		HashSet<Long> retVal = new HashSet<Long>(resultList);
-		return retVal;
+		return theBuilder.not(theBuilder.exists(subQ));
 	}
 
-	private Set<Long> addPredicateParamMissingResourceLink(Set<Long> thePids, String joinName, String theParamName) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
-
-		Subquery<Long> subQ = cq.subquery(Long.class);
+	private Predicate addPredicateParamMissingResourceLink(String theParamName, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
 		Root<ResourceLink> subQfrom = subQ.from(ResourceLink.class);
 		subQ.select(subQfrom.get("mySourceResourcePid").as(Long.class));
 
-		// subQ.where(builder.equal(subQfrom.get("myParamName"), theParamName));
-		Predicate path = createResourceLinkPathPredicate(theParamName, builder, subQfrom);
-		subQ.where(path);
-
-		Predicate joinPredicate = builder.not(builder.in(from.get("myId")).value(subQ));
-		Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
-
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myId").in(thePids));
-			cq.where(builder.and(inPids, typePredicate, joinPredicate));
-		} else {
-			cq.where(builder.and(typePredicate, joinPredicate));
-		}
+		Predicate path = createResourceLinkPathPredicate(theParamName, theBuilder, subQfrom);
+		Predicate correlation = theBuilder.equal(subQfrom.get("mySourceResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(path, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		List<Long> resultList = q.getResultList();
-		HashSet<Long> retVal = new HashSet<Long>(resultList);
-		return retVal;
+		return theBuilder.not(theBuilder.exists(subQ));
 	}
 
-	private Set<Long> addPredicateQuantity(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateQuantity(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		if (theList == null || theList.isEmpty()) {
-			return thePids;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsQuantity", theParamName, ResourceIndexedSearchParamQuantity.class);
+			return addPredicateParamMissing(theParamName, ResourceIndexedSearchParamQuantity.class, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamQuantity> from = cq.from(ResourceIndexedSearchParamQuantity.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamQuantity> from = subQ.from(ResourceIndexedSearchParamQuantity.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType params = nextOr;
 
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresent(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
@@ -536,12 +474,12 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 			Predicate system = null;
 			if (!isBlank(systemValue)) {
-				system = builder.equal(from.get("mySystem"), systemValue);
+				system = theBuilder.equal(from.get("mySystem"), systemValue);
 			}
 
 			Predicate code = null;
 			if (!isBlank(unitsValue)) {
-				code = builder.equal(from.get("myUnits"), unitsValue);
+				code = theBuilder.equal(from.get("myUnits"), unitsValue);
 			}
 
 			Predicate num;
@@ -549,26 +487,26 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 				BigDecimal mul = approx ? new BigDecimal(0.1) : new BigDecimal(0.01);
 				BigDecimal low = valueValue.subtract(valueValue.multiply(mul));
 				BigDecimal high = valueValue.add(valueValue.multiply(mul));
-				Predicate lowPred = builder.gt(from.get("myValue").as(BigDecimal.class), low);
-				Predicate highPred = builder.lt(from.get("myValue").as(BigDecimal.class), high);
-				num = builder.and(lowPred, highPred);
+				Predicate lowPred = theBuilder.gt(from.get("myValue").as(BigDecimal.class), low);
+				Predicate highPred = theBuilder.lt(from.get("myValue").as(BigDecimal.class), high);
+				num = theBuilder.and(lowPred, highPred);
 			} else {
 				switch (cmpValue) {
 				case GREATERTHAN:
 					Expression<Number> path = from.get("myValue");
-					num = builder.gt(path, valueValue);
+					num = theBuilder.gt(path, valueValue);
 					break;
 				case GREATERTHAN_OR_EQUALS:
 					path = from.get("myValue");
-					num = builder.ge(path, valueValue);
+					num = theBuilder.ge(path, valueValue);
 					break;
 				case LESSTHAN:
 					path = from.get("myValue");
-					num = builder.lt(path, valueValue);
+					num = theBuilder.lt(path, valueValue);
 					break;
 				case LESSTHAN_OR_EQUALS:
 					path = from.get("myValue");
-					num = builder.le(path, valueValue);
+					num = theBuilder.le(path, valueValue);
 					break;
 				default:
 					throw new IllegalStateException(cmpValue.getCode());
@@ -578,55 +516,50 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 			if (system == null && code == null) {
 				codePredicates.add(num);
 			} else if (system == null) {
-				Predicate singleCode = builder.and(code, num);
+				Predicate singleCode = theBuilder.and(code, num);
 				codePredicates.add(singleCode);
 			} else if (code == null) {
-				Predicate singleCode = builder.and(system, num);
+				Predicate singleCode = theBuilder.and(system, num);
 				codePredicates.add(singleCode);
 			} else {
-				Predicate singleCode = builder.and(system, code, num);
+				Predicate singleCode = theBuilder.and(system, code, num);
 				codePredicates.add(singleCode);
 			}
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+		Predicate correlation = theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, name, masterCodePredicate, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateReference(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateReference(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		assert theParamName.contains(".") == false;
 
-		Set<Long> pidsToRetain = thePids;
 		if (theList == null || theList.isEmpty()) {
-			return pidsToRetain;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissingResourceLink(thePids, "myResourceLinks", theParamName);
+			return addPredicateParamMissingResourceLink(theParamName, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceLink> from = cq.from(ResourceLink.class);
-		cq.select(from.get("mySourceResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceLink> from = subQ.from(ResourceLink.class);
+		subQ.select(from.get("mySourceResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 
+		prefetchForcedIdsForReferenceParams(theList);
+
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType params = nextOr;
 
-			if (addPredicateMissingFalseIfPresentForResourceLink(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresentForResourceLink(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
@@ -641,7 +574,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 					}
 					Long targetPid = translateForcedIdToPid(new IdDt(resourceId));
 					ourLog.debug("Searching for resource link with target PID: {}", targetPid);
-					Predicate eq = builder.equal(from.get("myTargetResourcePid"), targetPid);
+					Predicate eq = theBuilder.equal(from.get("myTargetResourcePid"), targetPid);
 
 					codePredicates.add(eq);
 
@@ -722,12 +655,12 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 						foundChainMatch = true;
 
-						Set<Long> pids = dao.searchForIds(chain, chainValue);
-						if (pids.isEmpty()) {
+						Subquery<Long> targetSubQ = dao.createChainedSubquery(chain, chainValue, theBuilder, subQ);
+						if (targetSubQ == null) {
 							continue;
 						}
 
-						Predicate eq = from.get("myTargetResourcePid").in(pids);
+						Predicate eq = from.get("myTargetResourcePid").in(targetSubQ);
 						codePredicates.add(eq);
 
 					}
@@ -743,66 +676,93 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = createResourceLinkPathPredicate(theParamName, builder, from);
-		if (pidsToRetain.size() > 0) {
-			Predicate inPids = (from.get("mySourceResourcePid").in(pidsToRetain));
-			cq.where(builder.and(type, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, masterCodePredicate));
+		Predicate type = createResourceLinkPathPredicate(theParamName, theBuilder, from);
+		Predicate correlation = theBuilder.equal(from.get("mySourceResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, masterCodePredicate, correlation));
+
+		return theBuilder.exists(subQ);
+	}
+
+	/**
+	 * Creates a subquery which selects the PIDs of the resources of this type which match the given parameter, for use
+	 * as the target of a chained reference parameter (e.g. <code>subject.name=smith</code>) on another resource type.
+	 * Any further levels of the chain become nested subqueries, so a chain of any depth is executed by the database as
+	 * part of the outer search query.
+	 * 
+	 * @return The subquery, or <code>null</code> if the parameter can not possibly match anything
+	 */
+	@Override
+	public Subquery<Long> createChainedSubquery(String theParamName, IQueryParameterType theValue, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery) {
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(theParamName, theValue);
+
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceTable> from = subQ.from(ResourceTable.class);
+		subQ.select(from.get("myId").as(Long.class));
+
+		List<Predicate> predicates = createSearchPredicates(params, null, theBuilder, subQ, from);
+		if (predicates == null) {
+			return null;
 		}
+		subQ.where(theBuilder.and(predicates.toArray(new Predicate[0])));
+		return subQ;
+	}
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+	/**
+	 * Looks up the PIDs for all of the client assigned IDs in a list of OR-ed reference parameters with a single query
+	 */
+	private void prefetchForcedIdsForReferenceParams(List<? extends IQueryParameterType> theList) {
+		Set<String> forcedIds = new HashSet<String>();
+		for (IQueryParameterType next : theList) {
+			if (next instanceof ReferenceParam && isBlank(((ReferenceParam) next).getChain())) {
+				IdDt id = new IdDt(((ReferenceParam) next).getValueAsQueryToken());
+				if (id.hasIdPart() && !isValidPid(id)) {
+					forcedIds.add(id.getIdPart());
+				}
+			}
+		}
+		if (forcedIds.size() > 1) {
+			translateForcedIdsToPids(forcedIds);
+		}
 	}
 
-	private Set<Long> addPredicateString(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateString(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		if (theList == null || theList.isEmpty()) {
-			return thePids;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsString", theParamName, ResourceIndexedSearchParamString.class);
+			return addPredicateParamMissing(theParamName, ResourceIndexedSearchParamString.class, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamString> from = cq.from(ResourceIndexedSearchParamString.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamString> from = subQ.from(ResourceIndexedSearchParamString.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType theParameter = nextOr;
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresent(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
-			Predicate singleCode = createPredicateString(theParameter, theParamName, builder, from);
+			Predicate singleCode = createPredicateString(theParameter, theParamName, theBuilder, from);
 			codePredicates.add(singleCode);
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+		Predicate correlation = theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, name, masterCodePredicate, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateTag(Set<Long> thePids, List<List<? extends IQueryParameterType>> theList, String theParamName) {
-		Set<Long> pids = thePids;
-		if (theList == null || theList.isEmpty()) {
-			return pids;
-		}
-
+	private Predicate addPredicateTag(List<? extends IQueryParameterType> theList, String theParamName, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		TagTypeEnum tagType;
 		if (Constants.PARAM_TAG.equals(theParamName)) {
 			tagType = TagTypeEnum.TAG;
@@ -814,151 +774,128 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 			throw new IllegalArgumentException("Param name: " + theParamName); // shouldn't happen
 		}
 
-		for (List<? extends IQueryParameterType> nextAndParams : theList) {
-			boolean haveTags = false;
-			for (IQueryParameterType nextParamUncasted : nextAndParams) {
-				if (nextParamUncasted instanceof TokenParam) {
-					TokenParam nextParam = (TokenParam) nextParamUncasted;
-					if (isNotBlank(nextParam.getValue())) {
-						haveTags = true;
-					} else if (isNotBlank(nextParam.getSystem())) {
-						throw new InvalidRequestException("Invalid " + theParamName + " parameter (must supply a value/code and not just a system): " + nextParam.getValueAsQueryToken());
-					}
-				} else {
-					UriParam nextParam = (UriParam) nextParamUncasted;
-					if (isNotBlank(nextParam.getValue())) {
-						haveTags = true;
-					}
-				}
-			}
-			if (!haveTags) {
-				continue;
-			}
-
-			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-			Root<ResourceTag> from = cq.from(ResourceTag.class);
-			cq.select(from.get("myResourceId").as(Long.class));
-
-			List<Predicate> andPredicates = new ArrayList<Predicate>();
-			andPredicates.add(builder.equal(from.get("myResourceType"), myResourceName));
-
-			List<Predicate> orPredicates = new ArrayList<Predicate>();
-			for (IQueryParameterType nextOrParams : nextAndParams) {
-				String code;
-				String system;
-				if (nextOrParams instanceof TokenParam) {
-					TokenParam nextParam = (TokenParam) nextOrParams;
-					code = nextParam.getValue();
-					system = nextParam.getSystem();
-				} else {
-					UriParam nextParam = (UriParam) nextOrParams;
-					code = nextParam.getValue();
-					system = null;
-				}
-				From<ResourceTag, TagDefinition> defJoin = from.join("myTag");
-				Predicate typePrediate = builder.equal(defJoin.get("myTagType"), tagType);
-				Predicate codePrediate = builder.equal(defJoin.get("myCode"), code);
-				if (isBlank(code)) {
-					continue;
+		boolean haveTags = false;
+		for (IQueryParameterType nextParamUncasted : theList) {
+			if (nextParamUncasted instanceof TokenParam) {
+				TokenParam nextParam = (TokenParam) nextParamUncasted;
+				if (isNotBlank(nextParam.getValue())) {
+					haveTags = true;
+				} else if (isNotBlank(nextParam.getSystem())) {
+					throw new InvalidRequestException("Invalid " + theParamName + " parameter (must supply a value/code and not just a system): " + nextParam.getValueAsQueryToken());
 				}
-				if (isNotBlank(system)) {
-					Predicate systemPrediate = builder.equal(defJoin.get("mySystem"), system);
-					orPredicates.add(builder.and(typePrediate, systemPrediate, codePrediate));
-				} else {
-					orPredicates.add(builder.and(typePrediate, codePrediate));
+			} else {
+				UriParam nextParam = (UriParam) nextParamUncasted;
+				if (isNotBlank(nextParam.getValue())) {
+					haveTags = true;
 				}
-
-			}
-			if (orPredicates.isEmpty() == false) {
-				andPredicates.add(builder.or(orPredicates.toArray(new Predicate[0])));
 			}
+		}
+		if (!haveTags) {
+			return null;
+		}
 
-			From<ResourceTag, ResourceTable> defJoin = from.join("myResource");
-			Predicate notDeletedPredicatePrediate = builder.isNull(defJoin.get("myDeleted"));
-			andPredicates.add(notDeletedPredicatePrediate);
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceTag> from = subQ.from(ResourceTag.class);
+		subQ.select(from.get("myResourceId").as(Long.class));
 
-			Predicate masterCodePredicate = builder.and(andPredicates.toArray(new Predicate[0]));
+		List<Predicate> andPredicates = new ArrayList<Predicate>();
+		andPredicates.add(theBuilder.equal(from.get("myResourceType"), myResourceName));
 
-			if (pids.size() > 0) {
-				Predicate inPids = (from.get("myResourceId").in(pids));
-				cq.where(builder.and(masterCodePredicate, inPids));
+		List<Predicate> orPredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOrParams : theList) {
+			String code;
+			String system;
+			if (nextOrParams instanceof TokenParam) {
+				TokenParam nextParam = (TokenParam) nextOrParams;
+				code = nextParam.getValue();
+				system = nextParam.getSystem();
+			} else {
+				UriParam nextParam = (UriParam) nextOrParams;
+				code = nextParam.getValue();
+				system = null;
+			}
+			From<ResourceTag, TagDefinition> defJoin = from.join("myTag");
+			Predicate typePrediate = theBuilder.equal(defJoin.get("myTagType"), tagType);
+			Predicate codePrediate = theBuilder.equal(defJoin.get("myCode"), code);
+			if (isBlank(code)) {
+				continue;
+			}
+			if (isNotBlank(system)) {
+				Predicate systemPrediate = theBuilder.equal(defJoin.get("mySystem"), system);
+				orPredicates.add(theBuilder.and(typePrediate, systemPrediate, codePrediate));
 			} else {
-				cq.where(masterCodePredicate);
+				orPredicates.add(theBuilder.and(typePrediate, codePrediate));
 			}
 
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			pids = new HashSet<Long>(q.getResultList());
+		}
+		if (orPredicates.isEmpty() == false) {
+			andPredicates.add(theBuilder.or(orPredicates.toArray(new Predicate[0])));
 		}
 
-		return pids;
+		andPredicates.add(theBuilder.equal(from.get("myResourceId"), theFrom.get("myId")));
+		subQ.where(theBuilder.and(andPredicates.toArray(new Predicate[0])));
+
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateToken(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateToken(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		if (theList == null || theList.isEmpty()) {
-			return thePids;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsToken", theParamName, ResourceIndexedSearchParamToken.class);
+			return addPredicateParamMissing(theParamName, ResourceIndexedSearchParamToken.class, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamToken> from = cq.from(ResourceIndexedSearchParamToken.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamToken> from = subQ.from(ResourceIndexedSearchParamToken.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresent(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
 			if (nextOr instanceof TokenParam) {
 				TokenParam id = (TokenParam) nextOr;
 				if (id.isText()) {
-					return addPredicateString(theParamName, thePids, theList);
+					return addPredicateString(theParamName, theList, theBuilder, theQuery, theFrom);
 				}
 			}
 
-			Predicate singleCode = createPredicateToken(nextOr, theParamName, builder, from);
+			Predicate singleCode = createPredicateToken(nextOr, theParamName, theBuilder, from);
 			codePredicates.add(singleCode);
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+		Predicate correlation = theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, name, masterCodePredicate, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.exists(subQ);
 	}
 
-	private Set<Long> addPredicateUri(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private Predicate addPredicateUri(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		if (theList == null || theList.isEmpty()) {
-			return thePids;
+			return null;
 		}
 
 		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsUri", theParamName, ResourceIndexedSearchParamUri.class);
+			return addPredicateParamMissing(theParamName, ResourceIndexedSearchParamUri.class, theBuilder, theQuery, theFrom);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamUri> from = cq.from(ResourceIndexedSearchParamUri.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		Root<ResourceIndexedSearchParamUri> from = subQ.from(ResourceIndexedSearchParamUri.class);
+		subQ.select(from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
 			IQueryParameterType params = nextOr;
 
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+			if (addPredicateMissingFalseIfPresent(theBuilder, theParamName, from, codePredicates, nextOr)) {
 				continue;
 			}
 
@@ -967,30 +904,25 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 				String value = param.getValue();
 				if (value == null) {
-					return thePids;
+					return null;
 				}
 
 				Path<Object> fromObj = from.get("myUri");
-				codePredicates.add(builder.equal(fromObj.as(String.class), value));
+				codePredicates.add(theBuilder.equal(fromObj.as(String.class), value));
 			} else {
 				throw new IllegalArgumentException("Invalid URI type: " + params.getClass());
 			}
 
 		}
 
-		Predicate masterCodePredicate = builder.or(codePredicates.toArray(new Predicate[0]));
+		Predicate masterCodePredicate = theBuilder.or(codePredicates.toArray(new Predicate[0]));
 
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
+		Predicate type = theBuilder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+		Predicate correlation = theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId"));
+		subQ.where(theBuilder.and(type, name, masterCodePredicate, correlation));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return theBuilder.exists(subQ);
 	}
 
 	@Override
@@ -1170,8 +1102,24 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 					+ ResourceIndexedSearchParamString.MAX_LENGTH + "): " + rawSearchTerm);
 		}
 
+		boolean contains = theParameter instanceof StringParam && ((StringParam) theParameter).isContains();
+		if (contains && getFulltextSearchSvc() != null) {
+			List<Long> pids = getFulltextSearchSvc().searchStringContains(myResourceName, theParamName, Collections.singletonList(theParameter));
+			if (pids != null) {
+				if (pids.isEmpty()) {
+					return theBuilder.disjunction();
+				}
+				return theFrom.get("myResourcePid").in(pids);
+			}
+			// Too many matches to pass as a list of IDs, so fall back to scanning the index table
+		}
+
 		String likeExpression = normalizeString(rawSearchTerm);
 		likeExpression = likeExpression.replace("%", "[%]") + "%";
+		if (contains) {
+			// Without a full-text index this can't use the index on SP_VALUE_NORMALIZED
+			likeExpression = "%" + likeExpression;
+		}
 
 		Predicate singleCode = theBuilder.like(theFrom.get("myValueNormalized").as(String.class), likeExpression);
 		if (theParameter instanceof StringParam && ((StringParam) theParameter).isExact()) {
@@ -1235,14 +1183,22 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		return type;
 	}
 
-	private void createSort(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, SortSpec theSort, List<Order> theOrders, List<Predicate> thePredicates) {
+	/**
+	 * Adds the orderings for the given sort specification (and any sorts chained to it) to the given list. Sorting on
+	 * a search parameter orders by a correlated subquery which selects the lowest (ascending) or highest (descending)
+	 * value indexed for each resource, so the sort never adds rows to the search query and can be combined with a
+	 * row limit. Resources which have no value for the parameter always come last, whichever the sort direction.
+	 */
+	private void createSort(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom, SortSpec theSort, List<Order> theOrders) {
 		if (theSort == null || isBlank(theSort.getParamName())) {
 			return;
 		}
 
+		boolean ascending = theSort.getOrder() == null || theSort.getOrder() == SortOrderEnum.ASC;
+
 		if (BaseResource.SP_RES_ID.equals(theSort.getParamName())) {
 			From<?, ?> forcedIdJoin = theFrom.join("myForcedId", JoinType.LEFT);
-			if (theSort.getOrder() == null || theSort.getOrder() == SortOrderEnum.ASC) {
+			if (ascending) {
 				theOrders.add(theBuilder.asc(forcedIdJoin.get("myForcedId")));
 				theOrders.add(theBuilder.asc(theFrom.get("myId")));
 			} else {
@@ -1250,18 +1206,18 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 				theOrders.add(theBuilder.desc(theFrom.get("myId")));
 			}
 
-			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
+			createSort(theBuilder, theQuery, theFrom, theSort.getChain(), theOrders);
 			return;
 		}
 
 		if (Constants.PARAM_LASTUPDATED.equals(theSort.getParamName())) {
-			if (theSort.getOrder() == null || theSort.getOrder() == SortOrderEnum.ASC) {
+			if (ascending) {
 				theOrders.add(theBuilder.asc(theFrom.get("myUpdated")));
 			} else {
 				theOrders.add(theBuilder.desc(theFrom.get("myUpdated")));
 			}
 
-			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
+			createSort(theBuilder, theQuery, theFrom, theSort.getChain(), theOrders);
 			return;
 		}
 
@@ -1271,63 +1227,100 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 			throw new InvalidRequestException("Unknown sort parameter '" + theSort.getParamName() + "'");
 		}
 
-		String joinAttrName;
+		if (NearSearch.SP_NEAR.equals(theSort.getParamName())) {
+			// Distances are calculated and sorted on by filterByDistance
+			createSort(theBuilder, theQuery, theFrom, theSort.getChain(), theOrders);
+			return;
+		}
+
+		Class<?> indexTable;
 		String[] sortAttrName;
 
 		switch (param.getParamType()) {
 		case STRING:
-			joinAttrName = "myParamsString";
+			indexTable = ResourceIndexedSearchParamString.class;
 			sortAttrName = new String[] { "myValueExact" };
 			break;
 		case DATE:
-			joinAttrName = "myParamsDate";
+			indexTable = ResourceIndexedSearchParamDate.class;
 			sortAttrName = new String[] { "myValueLow" };
 			break;
 		case REFERENCE:
-			joinAttrName = "myResourceLinks";
+			indexTable = ResourceLink.class;
 			sortAttrName = new String[] { "myTargetResourcePid" };
 			break;
 		case TOKEN:
-			joinAttrName = "myParamsToken";
+			indexTable = ResourceIndexedSearchParamToken.class;
 			sortAttrName = new String[] { "mySystem", "myValue" };
 			break;
 		case NUMBER:
-			joinAttrName = "myParamsNumber";
+			indexTable = ResourceIndexedSearchParamNumber.class;
 			sortAttrName = new String[] { "myValue" };
 			break;
 		case URI:
-			joinAttrName = "myParamsUri";
+			indexTable = ResourceIndexedSearchParamUri.class;
 			sortAttrName = new String[] { "myUri" };
 			break;
 		case QUANTITY:
-			joinAttrName = "myParamsQuantity";
+			indexTable = ResourceIndexedSearchParamQuantity.class;
 			sortAttrName = new String[] { "myValue" };
 			break;
 		default:
 			throw new InvalidRequestException("This server does not support _sort specifications of type " + param.getParamType() + " - Can't serve _sort=" + theSort.getParamName());
 		}
 
-		From<?, ?> stringJoin = theFrom.join(joinAttrName, JoinType.INNER);
+		for (int i = 0; i < sortAttrName.length; i++) {
+			/*
+			 * A resource can have several index rows for the parameter, so any later attributes (e.g. the token value)
+			 * are taken from the rows which supplied the first one (e.g. the token system), never from a different row
+			 */
+			String leadingAttrName = i > 0 ? sortAttrName[0] : null;
+			Expression<?> value = createSortValueSubquery(theBuilder, theQuery, theFrom, indexTable, theSort.getParamName(), sortAttrName[i], leadingAttrName, ascending);
 
-		if (param.getParamType() == RestSearchParameterTypeEnum.REFERENCE) {
-			thePredicates.add(stringJoin.get("mySourcePath").as(String.class).in(param.getPathsSplit()));
-		} else {
-			thePredicates.add(theBuilder.equal(stringJoin.get("myParamName"), theSort.getParamName()));
+			// NULLS LAST, which not every database supports directly
+			theOrders.add(theBuilder.asc(theBuilder.<Integer> selectCase().when(theBuilder.isNull(value), 1).otherwise(0)));
+			theOrders.add(ascending ? theBuilder.asc(value) : theBuilder.desc(value));
 		}
 
-		// Predicate p = theBuilder.equal(stringJoin.get("myParamName"), theSort.getParamName());
-		// Predicate pn = theBuilder.isNull(stringJoin.get("myParamName"));
-		// thePredicates.add(theBuilder.or(p, pn));
+		createSort(theBuilder, theQuery, theFrom, theSort.getChain(), theOrders);
+	}
 
-		for (String next : sortAttrName) {
-			if (theSort.getOrder() == null || theSort.getOrder() == SortOrderEnum.ASC) {
-				theOrders.add(theBuilder.asc(stringJoin.get(next)));
-			} else {
-				theOrders.add(theBuilder.desc(stringJoin.get(next)));
-			}
+	/**
+	 * Creates a subquery which selects the lowest (or highest, if descending) value of an attribute of the index rows
+	 * for the given parameter on the resource being sorted
+	 * 
+	 * @param theLeadingAttrName
+	 *           If not <code>null</code>, only index rows whose value for this attribute is the lowest (or highest) one
+	 *           are considered
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Expression<?> createSortValueSubquery(CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom, Class<?> theIndexTable, String theParamName, String theAttrName, String theLeadingAttrName,
+			boolean theAscending) {
+		Subquery<Comparable> subQ = theQuery.subquery(Comparable.class);
+		Root<?> from = subQ.from(theIndexTable);
+		Expression<Comparable> value = from.get(theAttrName);
+		subQ.select(theAscending ? theBuilder.least(value) : theBuilder.greatest(value));
+
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		if (theIndexTable == ResourceLink.class) {
+			predicates.add(createResourceLinkPathPredicate(theParamName, theBuilder, (Root<ResourceLink>) from));
+			predicates.add(theBuilder.equal(from.get("mySourceResourcePid"), theFrom.get("myId")));
+		} else {
+			predicates.add(theBuilder.equal(from.get("myResourceType"), myResourceName));
+			predicates.add(theBuilder.equal(from.get("myParamName"), theParamName));
+			predicates.add(theBuilder.equal(from.get("myResourcePid"), theFrom.get("myId")));
 		}
 
-		createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
+		if (theLeadingAttrName != null) {
+			Expression<Comparable> leadingValue = (Expression<Comparable>) createSortValueSubquery(theBuilder, subQ, theFrom, theIndexTable, theParamName, theLeadingAttrName, null, theAscending);
+			Expression<Comparable> rowLeadingValue = from.get(theLeadingAttrName);
+			Predicate sameValue = theBuilder.equal(rowLeadingValue, leadingValue);
+			Predicate bothNull = theBuilder.and(theBuilder.isNull(leadingValue), theBuilder.isNull(rowLeadingValue));
+			predicates.add(theBuilder.or(sameValue, bothNull));
+		}
+
+		subQ.where(theBuilder.and(predicates.toArray(new Predicate[0])));
+		return subQ;
 	}
 
 	@Override
@@ -1673,12 +1666,14 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 			validateGivenIdIsAppropriateToRetrieveResource(theId, entity);
 			SearchResult res = new SearchResult(search);
 			res.setResourcePid(pid);
+			res.setOrder(results.size());
 			results.add(res);
 		} else {
 			TypedQuery<Tuple> query = createSearchAllByTypeQuery();
 			for (Tuple next : query.getResultList()) {
 				SearchResult res = new SearchResult(search);
 				res.setResourcePid(next.get(0, Long.class));
+				res.setOrder(results.size());
 				results.add(res);
 			}
 		}
@@ -1706,6 +1701,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		for (Long next : query.getResultList()) {
 			SearchResult res = new SearchResult(search);
 			res.setResourcePid(next);
+			res.setOrder(totalCount + results.size());
 			results.add(res);
 		}
 
@@ -1742,120 +1738,25 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 	}
 
 	/**
-	 * THIS SHOULD RETURN HASHSET and not jsut Set because we add to it later (so it can't be Collections.emptySet())
-	 * @param theLastUpdated 
+	 * Resolves the given includes (or revincludes) from the given matches, and adds the PIDs of the included resources
+	 * to the matches
 	 */
-	private HashSet<Long> loadReverseIncludes(Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, EverythingModeEnum theEverythingModeEnum, DateRangeParam theLastUpdated) {
-		if (theMatches.size() == 0) {
-			return new HashSet<Long>();
-		}
-		if (theRevIncludes == null || theRevIncludes.isEmpty()) {
-			return new HashSet<Long>();
-		}
-		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
-
-		Collection<Long> nextRoundMatches = theMatches;
-		HashSet<Long> allAdded = new HashSet<Long>();
-		HashSet<Long> original = new HashSet<Long>(theMatches);
-		ArrayList<Include> includes = new ArrayList<Include>(theRevIncludes);
-
-		int roundCounts = 0;
-		StopWatch w = new StopWatch();
-
-		boolean addedSomeThisRound;
-		do {
-			roundCounts++;
-
-			HashSet<Long> pidsToInclude = new HashSet<Long>();
-			Set<Long> nextRoundOmit = new HashSet<Long>();
-
-			for (Iterator<Include> iter = includes.iterator(); iter.hasNext();) {
-				Include nextInclude = iter.next();
-				if (nextInclude.isRecurse() == false) {
-					iter.remove();
-				}
-
-				boolean matchAll = "*".equals(nextInclude.getValue());
-				if (matchAll) {
-					String sql;
-					sql = "SELECT r FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)";
-					TypedQuery<ResourceLink> q = myEntityManager.createQuery(sql, ResourceLink.class);
-					q.setParameter("target_pids", nextRoundMatches);
-					List<ResourceLink> results = q.getResultList();
-					for (ResourceLink resourceLink : results) {
-						if (theReverseMode) {
-//							if (theEverythingModeEnum.isEncounter()) {
-//								if (resourceLink.getSourcePath().equals("Encounter.subject") || resourceLink.getSourcePath().equals("Encounter.patient")) {
-//									nextRoundOmit.add(resourceLink.getSourceResourcePid());
-//								}
-//							}
-							pidsToInclude.add(resourceLink.getSourceResourcePid());
-						} else {
-							pidsToInclude.add(resourceLink.getTargetResourcePid());
-						}
-					}
-				} else {
-
-					List<String> paths;
-					if (getContext().getVersion().getVersion() == FhirVersionEnum.DSTU1) {
-						paths = Collections.singletonList(nextInclude.getValue());
-					} else {
-						int colonIdx = nextInclude.getValue().indexOf(':');
-						if (colonIdx < 2) {
-							continue;
-						}
-						String resType = nextInclude.getValue().substring(0, colonIdx);
-						RuntimeResourceDefinition def = getContext().getResourceDefinition(resType);
-						if (def == null) {
-							ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
-
-						String paramName = nextInclude.getValue().substring(colonIdx + 1);
-						RuntimeSearchParam param = def.getSearchParam(paramName);
-						if (param == null) {
-							ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
-
-						paths = param.getPathsSplit();
-					}
-
-					for (String nextPath : paths) {
-						String sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids)";
-						TypedQuery<ResourceLink> q = myEntityManager.createQuery(sql, ResourceLink.class);
-						q.setParameter("src_path", nextPath);
-						q.setParameter("target_pids", nextRoundMatches);
-						List<ResourceLink> results = q.getResultList();
-						for (ResourceLink resourceLink : results) {
-							if (theReverseMode) {
-								pidsToInclude.add(resourceLink.getSourceResourcePid());
-							} else {
-								pidsToInclude.add(resourceLink.getTargetResourcePid());
-							}
-						}
-					}
-				}
-			}
-
-			if (theLastUpdated != null && (theLastUpdated.getLowerBoundAsInstant() != null || theLastUpdated.getUpperBoundAsInstant() != null)) {
-				pidsToInclude = new HashSet<Long>(filterResourceIdsByLastUpdated(pidsToInclude, theLastUpdated));
-			}
-			for (Long next : pidsToInclude) {
-				if (original.contains(next) == false && allAdded.contains(next) == false) {
-					theMatches.add(next);
-				}
-			}
-
-			pidsToInclude.removeAll(nextRoundOmit);
-
-			addedSomeThisRound = allAdded.addAll(pidsToInclude);
-			nextRoundMatches = pidsToInclude;
-		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound);
-
-		ourLog.info("Loaded {} {} in {} rounds and {} ms", new Object[] { allAdded.size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, w.getMillisAndRestart() });
+	private IncludeResolver.IncludeOutcome loadReverseIncludes(Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated) {
+		IncludeResolver.IncludeOutcome retVal = myIncludeResolver.resolve(getContext(), theMatches, theRevIncludes, theReverseMode, theLastUpdated);
+		theMatches.addAll(retVal.getPids());
+		return retVal;
+	}
 
-		return allAdded;
+	/**
+	 * Creates the OperationOutcome which is added to a page of results when some included resources have been left out
+	 * of it because of {@link DaoConfig#getIncludeLimit()}
+	 */
+	private IBaseResource newIncludeLimitReachedOutcome() {
+		IBaseOperationOutcome retVal = OperationOutcomeUtil.newInstance(getContext());
+		String message = getContext().getLocalizer().getMessage(BaseHapiFhirResourceDao.class, "includeLimitReached", myDaoConfig.getIncludeLimit());
+		OperationOutcomeUtil.addIssue(getContext(), retVal, "warning", message, null, "too-costly");
+		ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put((IResource) retVal, BundleEntrySearchModeEnum.OUTCOME);
+		return retVal;
 	}
 
 	@Override
@@ -2097,6 +1998,12 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		return entity;
 	}
 
+	@Override
+	public void reindex(T theResource, ResourceTable theEntity) {
+		validateResourceTypeAndThrowIllegalArgumentException(theResource.getIdElement());
+		updateEntity(theResource, theEntity, false, null, true, false, theEntity.getUpdated().getValue());
+	}
+
 	@Override
 	public void removeTag(IIdType theId, TagTypeEnum theTagType, String theScheme, String theTerm) {
 		// Notify interceptors
@@ -2147,9 +2054,38 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		StopWatch w = new StopWatch();
 		final InstantDt now = InstantDt.withCurrentTime();
 
-		Set<Long> loadPids;
+		if (myDaoConfig.getReuseCachedSearchResultsForMillis() != null && isPersistable(theParams)) {
+			Search cachedSearch = findCachedSearch(theParams);
+			if (cachedSearch != null) {
+				ourLog.info(" {} on {} reusing stored search {} in {}ms", new Object[] { myResourceName, theParams, cachedSearch.getUuid(), w.getMillisAndRestart() });
+				return new PersistedSearchBundleProvider(cachedSearch);
+			}
+		}
+
+		if (isStreamable(theParams)) {
+			/*
+			 * Build the query once up front so that invalid parameters are reported to the caller immediately, and so
+			 * that searches which can't match anything don't need a provider at all
+			 */
+			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+			Root<ResourceTable> from = cq.from(ResourceTable.class);
+			List<Predicate> predicates = new ArrayList<Predicate>();
+			if (!createStreamingSearchPredicates(theParams, null, builder, cq, from, predicates)) {
+				return new SimpleBundleProvider();
+			}
+			createSort(builder, cq, from, theParams.getSort(), new ArrayList<Order>());
+
+			IBundleProvider retVal = new StreamingSearchBundleProvider(theParams, now);
+			ourLog.info(" {} on {} prepared for streaming in {}ms", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+			return retVal;
+		}
+
+		final DateRangeParam lu = theParams.getLastUpdated();
+		final List<Long> pids;
 		if (theParams.getEverythingMode() != null) {
 
+			Set<Long> loadPids;
 			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 			CriteriaQuery<Tuple> cq = builder.createTupleQuery();
 			Root<ResourceTable> from = cq.from(ResourceTable.class);
@@ -2175,72 +2111,80 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 				}
 			}
 
-		} else if (theParams.isEmpty()) {
+			// Handle _lastUpdated
+			if (lu != null && (lu.getLowerBoundAsInstant() != null || lu.getUpperBoundAsInstant() != null)) {
 
-			loadPids = new HashSet<Long>();
-			TypedQuery<Tuple> query = createSearchAllByTypeQuery();
-			for (Tuple next : query.getResultList()) {
-				loadPids.add(next.get(0, Long.class));
-			}
-			if (loadPids.isEmpty()) {
-				return new SimpleBundleProvider();
+				List<Long> resultList = filterResourceIdsByLastUpdated(loadPids, lu);
+				loadPids.clear();
+				for (Long next : resultList) {
+					loadPids.add(next);
+				}
+
+				if (loadPids.isEmpty()) {
+					return new SimpleBundleProvider();
+				}
 			}
+
+			// Handle sorting if any was provided
+			pids = processSort(theParams, loadPids);
+
 		} else {
 
-			loadPids = searchForIdsWithAndOr(theParams);
-			if (loadPids.isEmpty()) {
-				return new SimpleBundleProvider();
+			List<Long> fulltextPids = isFulltextSearch(theParams) ? searchFulltext(theParams) : null;
+			List<Long> candidates = searchForSortedIds(theParams, fulltextPids);
+			if (fulltextPids != null && (theParams.getSort() == null || isBlank(theParams.getSort().getParamName()))) {
+				candidates = sortByRelevance(candidates, fulltextPids);
 			}
-		}
-
-		// // Load _include and _revinclude before filter and sort in everything mode
-		// if (theParams.getEverythingMode() != null) {
-		// if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
-		// loadPids.addAll(loadReverseIncludes(loadPids, theParams.getRevIncludes(), true, theParams.getEverythingMode()));
-		// loadPids.addAll(loadReverseIncludes(loadPids, theParams.getIncludes(), false, theParams.getEverythingMode()));
-		// }
-		// }
-
-		// Handle _lastUpdated
-		final DateRangeParam lu = theParams.getLastUpdated();
-		if (lu != null && (lu.getLowerBoundAsInstant() != null || lu.getUpperBoundAsInstant() != null)) {
-
-			List<Long> resultList = filterResourceIdsByLastUpdated(loadPids, lu);
-			loadPids.clear();
-			for (Long next : resultList) {
-				loadPids.add(next);
+			NearSearch near = getNearSearch(theParams);
+			if (near != null) {
+				pids = filterByDistance(candidates, near, NearSearch.isSortByDistance(theParams.getSort()));
+			} else if (NearSearch.isSortByDistance(theParams.getSort())) {
+				throw new InvalidRequestException("Can not sort by " + NearSearch.SP_NEAR + " unless a " + NearSearch.SP_NEAR + " parameter is also given");
+			} else {
+				pids = candidates;
 			}
-
-			if (loadPids.isEmpty()) {
+			if (pids.isEmpty()) {
 				return new SimpleBundleProvider();
 			}
 		}
 
-		// Handle sorting if any was provided
-		final List<Long> pids = processSort(theParams, loadPids);
-
 		// Load _revinclude resources
 		final Set<Long> revIncludedPids;
-		if (theParams.getEverythingMode() == null) {
-			if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
-				revIncludedPids = loadReverseIncludes(pids, theParams.getRevIncludes(), true, null, lu);
-			} else {
-				revIncludedPids = new HashSet<Long>();
-			}
+		final boolean revIncludesTruncated;
+		if (theParams.getEverythingMode() == null && theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
+			IncludeResolver.IncludeOutcome revIncludes = loadReverseIncludes(pids, theParams.getRevIncludes(), true, lu);
+			revIncludedPids = revIncludes.getPids();
+			revIncludesTruncated = revIncludes.isTruncated();
 		} else {
 			revIncludedPids = new HashSet<Long>();
+			revIncludesTruncated = false;
 		}
 
 		ourLog.debug("Search returned PIDs: {}", pids);
 
 		final int totalCount = pids.size();
 
-		IBundleProvider retVal = new IBundleProvider() {
+		IBundleProvider retVal = new IPersistableBundleProvider() {
+			private String mySearchUuid;
+
 			@Override
 			public InstantDt getPublished() {
 				return now;
 			}
 
+			@Override
+			public synchronized String persist() {
+				if (mySearchUuid == null && isPersistable(theParams)) {
+					mySearchUuid = persistSearch(theParams, new IPidPager() {
+						@Override
+						public List<Long> getPids(int theFromIndex, int theToIndex) {
+							return pids.subList(Math.min(theFromIndex, pids.size()), Math.min(theToIndex, pids.size()));
+						}
+					});
+				}
+				return mySearchUuid;
+			}
+
 			@Override
 			public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
 				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
@@ -2251,12 +2195,16 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 
 						// Load includes
 						pidsSubList = new ArrayList<Long>(pidsSubList);
-						revIncludedPids.addAll(loadReverseIncludes(pidsSubList, theParams.getIncludes(), false, null, lu));
+						IncludeResolver.IncludeOutcome includes = loadReverseIncludes(pidsSubList, theParams.getIncludes(), false, lu);
+						revIncludedPids.addAll(includes.getPids());
 
 						// Execute the query and make sure we return distinct results
 						List<IBaseResource> resources = new ArrayList<IBaseResource>();
 						loadResourcesByPid(pidsSubList, resources, revIncludedPids, false);
 
+						if (includes.isTruncated() || (revIncludesTruncated && theFromIndex == 0)) {
+							resources.add(newIncludeLimitReachedOutcome());
+						}
 						return resources;
 					}
 
@@ -2279,6 +2227,281 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		return retVal;
 	}
 
+	/**
+	 * Can the results of the given search be stored in the database? Searches with _revinclude aren't stored,
+	 * since the reverse-included resources are part of their results but must not be marked as matches.
+	 */
+	private boolean isPersistable(SearchParameterMap theParams) {
+		if (theParams.getEverythingMode() != null) {
+			return false;
+		}
+		if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the most recent stored search which is identical to the given one and which is recent enough to be
+	 * reused (see {@link DaoConfig#setReuseCachedSearchResultsForMillis(Long)}), or <code>null</code>
+	 */
+	private Search findCachedSearch(SearchParameterMap theParams) {
+		String queryString = theParams.toNormalizedQueryString();
+		Date cutoff = new Date(System.currentTimeMillis() - myDaoConfig.getReuseCachedSearchResultsForMillis());
+
+		String sql = "SELECT s FROM Search s WHERE s.myResourceType = :type AND s.mySearchQueryHash = :hash AND s.myCreated > :cutoff ORDER BY s.myCreated DESC";
+		TypedQuery<Search> q = myEntityManager.createQuery(sql, Search.class);
+		q.setParameter("type", myResourceName);
+		q.setParameter("hash", queryString.hashCode());
+		q.setParameter("cutoff", cutoff, TemporalType.TIMESTAMP);
+		for (Search next : q.getResultList()) {
+			if (queryString.equals(next.getSearchQueryString())) {
+				return next;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the results of a search in HFJ_SEARCH / HFJ_SEARCH_RESULT. PIDs are requested from the given pager
+	 * and written {@link #SEARCH_RESULT_BATCH_SIZE} at a time, so the complete result list never has to be held in
+	 * memory. This happens in a new transaction so that the results are visible to other nodes as soon as this
+	 * method returns.
+	 * 
+	 * @return The UUID of the stored search
+	 */
+	private String persistSearch(final SearchParameterMap theParams, final IPidPager thePager) {
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return template.execute(new TransactionCallback<String>() {
+			@Override
+			public String doInTransaction(TransactionStatus theStatus) {
+				StopWatch w = new StopWatch();
+
+				Search search = new Search();
+				search.setUuid(UUID.randomUUID().toString());
+				search.setCreated(new Date());
+				search.setResourceType(myResourceName);
+				search.setSearchQueryString(theParams.toNormalizedQueryString());
+				search.setPreferredPageSize(theParams.getCount());
+				if (theParams.getLastUpdated() != null) {
+					search.setLastUpdatedLow(theParams.getLastUpdated().getLowerBoundAsInstant());
+					search.setLastUpdatedHigh(theParams.getLastUpdated().getUpperBoundAsInstant());
+				}
+				for (Include next : theParams.getIncludes()) {
+					search.getIncludes().add(new SearchInclude(search, next.getValue(), next.isRecurse()));
+				}
+				myEntityManager.persist(search);
+
+				int count = 0;
+				while (true) {
+					List<Long> pids = thePager.getPids(count, count + SEARCH_RESULT_BATCH_SIZE);
+					List<SearchResult> results = new ArrayList<SearchResult>(pids.size());
+					for (Long next : pids) {
+						SearchResult result = new SearchResult(search);
+						result.setResourcePid(next);
+						result.setOrder(count++);
+						myEntityManager.persist(result);
+						results.add(result);
+					}
+
+					// Don't keep the results we've already written in the persistence context
+					myEntityManager.flush();
+					for (SearchResult next : results) {
+						myEntityManager.detach(next);
+					}
+
+					if (pids.size() < SEARCH_RESULT_BATCH_SIZE) {
+						break;
+					}
+				}
+
+				search.setTotalCount(count);
+
+				ourLog.info("Stored {} results for {} search {} in {}ms", new Object[] { count, myResourceName, search.getUuid(), w.getMillisAndRestart() });
+				return search.getUuid();
+			}
+		});
+	}
+
+	@Override
+	public IBundleProvider loadSearch(Search theSearch) {
+		Validate.isTrue(myResourceName.equals(theSearch.getResourceType()), "Search " + theSearch.getUuid() + " is not a search for " + myResourceName);
+		return new PersistedSearchBundleProvider(theSearch);
+	}
+
+	/**
+	 * Can the given search be executed as a single ordered query against HFJ_RESOURCE, so that results can be fetched
+	 * one page at a time instead of loading every matching PID up front? This isn't possible for $everything, for
+	 * searches with _revinclude (since the reverse-included resources are counted in the total), or for near searches
+	 * (since the distance to each candidate is checked outside of the database), or for full-text searches (since
+	 * they are ordered by relevance).
+	 */
+	private boolean isStreamable(SearchParameterMap theParams) {
+		if (theParams.getEverythingMode() != null) {
+			return false;
+		}
+		if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
+			return false;
+		}
+		if (getNearSearch(theParams) != null || NearSearch.isSortByDistance(theParams.getSort())) {
+			return false;
+		}
+		if (isFulltextSearch(theParams)) {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isFulltextSearch(SearchParameterMap theParams) {
+		return theParams.containsKey(Constants.PARAM_CONTENT) || theParams.containsKey(Constants.PARAM_TEXT);
+	}
+
+	/**
+	 * Returns the PIDs of the resources matching the <code>_content</code> and <code>_text</code> parameters in the
+	 * given map, most relevant first
+	 */
+	private List<Long> searchFulltext(SearchParameterMap theParams) {
+		if (getFulltextSearchSvc() == null) {
+			throw new InvalidRequestException("Fulltext searching is not enabled on this server, can not search using " + Constants.PARAM_CONTENT + " or " + Constants.PARAM_TEXT);
+		}
+		return getFulltextSearchSvc().search(myResourceName, theParams);
+	}
+
+	/**
+	 * Orders the given PIDs in the same order as they appear in the given (ranked) full-text search results
+	 */
+	private List<Long> sortByRelevance(List<Long> thePids, List<Long> theRankedPids) {
+		final Map<Long, Integer> ranks = new HashMap<Long, Integer>();
+		for (int i = 0; i < theRankedPids.size(); i++) {
+			ranks.put(theRankedPids.get(i), i);
+		}
+
+		List<Long> retVal = new ArrayList<Long>(thePids);
+		Collections.sort(retVal, new Comparator<Long>() {
+			@Override
+			public int compare(Long theO1, Long theO2) {
+				Integer rank1 = ranks.containsKey(theO1) ? ranks.get(theO1) : Integer.MAX_VALUE;
+				Integer rank2 = ranks.containsKey(theO2) ? ranks.get(theO2) : Integer.MAX_VALUE;
+				return rank1.compareTo(rank2);
+			}
+		});
+		return retVal;
+	}
+
+	/**
+	 * Returns the near search in the given parameters, or <code>null</code> if there isn't one (or if this resource
+	 * type doesn't support them)
+	 */
+	private NearSearch getNearSearch(SearchParameterMap theParams) {
+		if (getContext().getResourceDefinition(myResourceType).getSearchParam(NearSearch.SP_NEAR) == null) {
+			return null;
+		}
+		return NearSearch.fromParams(theParams);
+	}
+
+	/**
+	 * Removes the resources which aren't within the distance of the given near search from a list of candidates
+	 * found using its bounding box, optionally sorting the remaining ones by their distance (nearest first). The sort
+	 * is stable, so resources at the same distance stay in the order in which they were found.
+	 */
+	private List<Long> filterByDistance(List<Long> thePids, final NearSearch theNear, boolean theSortByDistance) {
+		final Map<Long, Double> distances = new HashMap<Long, Double>();
+		for (List<Long> nextChunk : Lists.partition(thePids, IncludeResolver.MAX_PIDS_PER_QUERY)) {
+			String sql = "SELECT c.myResourcePid, c.myLatitude, c.myLongitude FROM ResourceIndexedSearchParamCoords c WHERE c.myResourcePid IN (:pids) AND c.myParamName = :name";
+			TypedQuery<Object[]> q = myEntityManager.createQuery(sql, Object[].class);
+			q.setParameter("pids", nextChunk);
+			q.setParameter("name", NearSearch.SP_NEAR);
+			for (Object[] next : q.getResultList()) {
+				Long pid = (Long) next[0];
+				double distance = theNear.distanceTo((Double) next[1], (Double) next[2]);
+				Double existing = distances.get(pid);
+				if (existing == null || distance < existing) {
+					distances.put(pid, distance);
+				}
+			}
+		}
+
+		List<Long> retVal = new ArrayList<Long>();
+		for (Long next : thePids) {
+			Double distance = distances.get(next);
+			if (distance != null && distance <= theNear.getDistanceKm()) {
+				retVal.add(next);
+			}
+		}
+
+		if (theSortByDistance) {
+			Collections.sort(retVal, new Comparator<Long>() {
+				@Override
+				public int compare(Long theO1, Long theO2) {
+					return distances.get(theO1).compareTo(distances.get(theO2));
+				}
+			});
+		}
+
+		ourLog.debug("{} of {} candidates are within {}", new Object[] { retVal.size(), thePids.size(), theNear });
+		return retVal;
+	}
+
+	/**
+	 * Loads the PIDs of every resource matching the given search, in the requested order, with a single query
+	 * 
+	 * @param theFulltextPids
+	 *           The results of the full-text part of the search if it has already been performed, or <code>null</code>
+	 */
+	private List<Long> searchForSortedIds(SearchParameterMap theParams, List<Long> theFulltextPids) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		if (!createStreamingSearchPredicates(theParams, theFulltextPids, builder, cq, from, predicates)) {
+			return new ArrayList<Long>();
+		}
+
+		List<Order> orders = new ArrayList<Order>();
+		createSort(builder, cq, from, theParams.getSort(), orders);
+		orders.add(builder.asc(from.get("myId")));
+
+		cq.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+		cq.orderBy(orders);
+
+		return new ArrayList<Long>(myEntityManager.createQuery(cq).getResultList());
+	}
+
+	/**
+	 * Adds the predicates for a streaming search (see {@link #isStreamable(SearchParameterMap)}) to the given list
+	 * 
+	 * @param theFulltextPids
+	 *           The results of the full-text part of the search if it has already been performed, or <code>null</code>
+	 * @return Returns <code>false</code> if the search can not possibly match anything
+	 */
+	private boolean createStreamingSearchPredicates(SearchParameterMap theParams, List<Long> theFulltextPids, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom,
+			List<Predicate> thePredicates) {
+		if (theParams.isEmpty()) {
+			thePredicates.add(theBuilder.equal(theFrom.get("myResourceType"), myResourceName));
+			thePredicates.add(theBuilder.isNull(theFrom.get("myDeleted")));
+		} else {
+			List<Predicate> predicates = createSearchPredicates(theParams, theFulltextPids, theBuilder, theQuery, theFrom);
+			if (predicates == null) {
+				return false;
+			}
+			thePredicates.addAll(predicates);
+		}
+
+		DateRangeParam lu = theParams.getLastUpdated();
+		if (lu != null) {
+			if (lu.getLowerBoundAsInstant() != null) {
+				thePredicates.add(theBuilder.greaterThanOrEqualTo(theFrom.<Date> get("myUpdated"), lu.getLowerBoundAsInstant()));
+			}
+			if (lu.getUpperBoundAsInstant() != null) {
+				thePredicates.add(theBuilder.lessThanOrEqualTo(theFrom.<Date> get("myUpdated"), lu.getUpperBoundAsInstant()));
+			}
+		}
+		return true;
+	}
+
 	private List<Long> filterResourceIdsByLastUpdated(Set<Long> loadPids, final DateRangeParam lu) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
@@ -2314,47 +2537,24 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 	}
 
 	private List<Long> processSort(final SearchParameterMap theParams, Set<Long> theLoadPids) {
-		final List<Long> pids;
-		Set<Long> loadPids = theLoadPids;
-		if (theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName())) {
-			List<Order> orders = new ArrayList<Order>();
-			List<Predicate> predicates = new ArrayList<Predicate>();
-			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-			Root<ResourceTable> from = cq.from(ResourceTable.class);
-			predicates.add(from.get("myId").in(loadPids));
-			createSort(builder, from, theParams.getSort(), orders, predicates);
-			if (orders.size() > 0) {
-				Set<Long> originalPids = loadPids;
-				loadPids = new LinkedHashSet<Long>();
-				cq.multiselect(from.get("myId").as(Long.class));
-				cq.where(predicates.toArray(new Predicate[0]));
-				cq.orderBy(orders);
-
-				TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
-
-				for (Tuple next : query.getResultList()) {
-					loadPids.add(next.get(0, Long.class));
-				}
-
-				ourLog.debug("Sort PID order is now: {}", loadPids);
+		if (theParams.getSort() == null || isBlank(theParams.getSort().getParamName())) {
+			return new ArrayList<Long>(theLoadPids);
+		}
 
-				pids = new ArrayList<Long>(loadPids);
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+		cq.where(from.get("myId").in(theLoadPids));
 
-				// Any ressources which weren't matched by the sort get added to the bottom
-				for (Long next : originalPids) {
-					if (loadPids.contains(next) == false) {
-						pids.add(next);
-					}
-				}
+		List<Order> orders = new ArrayList<Order>();
+		createSort(builder, cq, from, theParams.getSort(), orders);
+		orders.add(builder.asc(from.get("myId")));
+		cq.orderBy(orders);
 
-			} else {
-				pids = new ArrayList<Long>(loadPids);
-			}
-		} else {
-			pids = new ArrayList<Long>(loadPids);
-		}
-		return pids;
+		List<Long> retVal = new ArrayList<Long>(myEntityManager.createQuery(cq).getResultList());
+		ourLog.debug("Sort PID order is now: {}", retVal);
+		return retVal;
 	}
 
 	@Override
@@ -2383,137 +2583,156 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 			params = new SearchParameterMap();
 		}
 
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+
+		List<Predicate> predicates = createSearchPredicates(params, null, builder, cq, from);
+		if (predicates == null) {
+			return new HashSet<Long>();
+		}
+		cq.where(builder.and(predicates.toArray(new Predicate[0])));
+
+		TypedQuery<Long> q = myEntityManager.createQuery(cq);
+		List<Long> pids = q.getResultList();
+
+		NearSearch near = getNearSearch(params);
+		if (near != null) {
+			pids = filterByDistance(pids, near, false);
+		}
+		return new HashSet<Long>(pids);
+	}
+
+	/**
+	 * Translates the given parameters into a list of predicates against the given {@link ResourceTable} root, so
+	 * that the whole search can be executed as a single SQL statement. Each AND-ed parameter becomes a correlated
+	 * subquery against the appropriate HFJ_SPIDX_* table (or a predicate on HFJ_RESOURCE itself), and the predicates
+	 * are ordered by their estimated selectivity so that the most restrictive ones come first.
+	 *
+	 * @param theFulltextPids
+	 *           The results of the full-text part of the search if it has already been performed, or <code>null</code>
+	 * @return The predicates (including the resource type and "not deleted" predicates), or <code>null</code> if the
+	 *         search can not possibly match anything
+	 */
+	private List<Predicate> createSearchPredicates(SearchParameterMap theParams, List<Long> theFulltextPids, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, Root<ResourceTable> theFrom) {
 		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(myResourceType);
 
-		Set<Long> pids = new HashSet<Long>();
+		List<SearchPredicate> plan = new ArrayList<SearchPredicate>();
+		boolean fulltextSearched = false;
 
-		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : params.entrySet()) {
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : theParams.entrySet()) {
 			String nextParamName = nextParamEntry.getKey();
 			if (nextParamName.equals(BaseResource.SP_RES_ID)) {
 
-				if (nextParamEntry.getValue().isEmpty()) {
-					continue;
-				} else {
-					for (List<? extends IQueryParameterType> nextValue : nextParamEntry.getValue()) {
-						Set<Long> joinPids = new HashSet<Long>();
-						if (nextValue == null || nextValue.size() == 0) {
-							continue;
-						} else {
-							for (IQueryParameterType next : nextValue) {
-								String value = next.getValueAsQueryToken();
-								IIdType valueId = new IdDt(value);
-
-								try {
-									BaseHasResource entity = readEntity(valueId);
-									if (entity.getDeleted() != null) {
-										continue;
-									}
-									joinPids.add(entity.getId());
-								} catch (ResourceNotFoundException e) {
-									// This isn't an error, just means no result found
-								}
-							}
-							if (joinPids.isEmpty()) {
-								return new HashSet<Long>();
+				for (List<? extends IQueryParameterType> nextValue : nextParamEntry.getValue()) {
+					if (nextValue == null || nextValue.size() == 0) {
+						continue;
+					}
+					Set<Long> joinPids = new HashSet<Long>();
+					for (IQueryParameterType next : nextValue) {
+						String value = next.getValueAsQueryToken();
+						IIdType valueId = new IdDt(value);
+
+						try {
+							BaseHasResource entity = readEntity(valueId);
+							if (entity.getDeleted() != null) {
+								continue;
 							}
+							joinPids.add(entity.getId());
+						} catch (ResourceNotFoundException e) {
+							// This isn't an error, just means no result found
 						}
-
-						pids = addPredicateId(pids, joinPids);
-						if (pids.isEmpty()) {
-							return new HashSet<Long>();
-						}
-
-						if (pids.isEmpty()) {
-							pids.addAll(joinPids);
-						} else {
-							pids.retainAll(joinPids);
-						}
 					}
+					if (joinPids.isEmpty()) {
+						return null;
+					}
+					plan.add(new SearchPredicate(SearchPredicate.SELECTIVITY_ID, addPredicateId(joinPids, theFrom)));
 				}
 
 			} else if (nextParamName.equals(BaseResource.SP_RES_LANGUAGE)) {
 
-				pids = addPredicateLanguage(pids, nextParamEntry.getValue());
+				for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
+					plan.add(new SearchPredicate(SearchPredicate.SELECTIVITY_LANGUAGE, addPredicateLanguage(nextAnd, theFrom)));
+				}
+
+			} else if (nextParamName.equals(Constants.PARAM_CONTENT) || nextParamName.equals(Constants.PARAM_TEXT)) {
+
+				// Both parameters are handled by a single full-text query
+				if (!fulltextSearched) {
+					fulltextSearched = true;
+					List<Long> pids = theFulltextPids != null ? theFulltextPids : searchFulltext(theParams);
+					if (pids.isEmpty()) {
+						return null;
+					}
+					plan.add(new SearchPredicate(SearchPredicate.SELECTIVITY_ID, addPredicateId(new HashSet<Long>(pids), theFrom)));
+				}
 
 			} else if (nextParamName.equals(Constants.PARAM_TAG) || nextParamName.equals(Constants.PARAM_PROFILE) || nextParamName.equals(Constants.PARAM_SECURITY)) {
 
-				pids = addPredicateTag(pids, nextParamEntry.getValue(), nextParamName);
+				for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
+					plan.add(new SearchPredicate(SearchPredicate.SELECTIVITY_TAG, addPredicateTag(nextAnd, nextParamName, theBuilder, theQuery, theFrom)));
+				}
 
 			} else {
 
 				RuntimeSearchParam nextParamDef = resourceDef.getSearchParam(nextParamName);
-				if (nextParamDef != null) {
-					switch (nextParamDef.getParamType()) {
-					case DATE:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateDate(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case QUANTITY:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateQuantity(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case REFERENCE:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateReference(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case STRING:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateString(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
+				if (nextParamDef != null && nextParamName.equals(NearSearch.SP_NEAR)) {
+
+					NearSearch near = NearSearch.fromParams(theParams);
+					plan.add(new SearchPredicate(SearchPredicate.SELECTIVITY_NEAR, addPredicateNear(nextParamName, near, theBuilder, theQuery, theFrom)));
+
+				} else if (nextParamDef != null && nextParamName.equals(NearSearch.SP_NEAR_DISTANCE)) {
+
+					// Part of the near search
+
+				} else if (nextParamDef != null) {
+					for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
+						Predicate predicate = null;
+						switch (nextParamDef.getParamType()) {
+						case DATE:
+							predicate = addPredicateDate(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case QUANTITY:
+							predicate = addPredicateQuantity(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case REFERENCE:
+							predicate = addPredicateReference(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case STRING:
+							predicate = addPredicateString(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case TOKEN:
+							predicate = addPredicateToken(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case NUMBER:
+							predicate = addPredicateNumber(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case COMPOSITE:
+							predicate = addPredicateComposite(nextParamDef, nextAnd, theBuilder, theQuery, theFrom);
+							break;
+						case URI:
+							predicate = addPredicateUri(nextParamName, nextAnd, theBuilder, theQuery, theFrom);
+							break;
 						}
-						break;
-					case TOKEN:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateToken(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case NUMBER:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateNumber(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case COMPOSITE:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateComposite(nextParamDef, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
-					case URI:
-						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
-							pids = addPredicateUri(nextParamName, pids, nextAnd);
-							if (pids.isEmpty()) {
-								return new HashSet<Long>();
-							}
-						}
-						break;
+						plan.add(new SearchPredicate(SearchPredicate.estimateSelectivity(nextParamDef.getParamType(), nextAnd), predicate));
 					}
 				}
 			}
 		}
 
-		return pids;
+		List<Predicate> retVal = SearchPredicate.toPredicates(plan);
+		if (retVal.isEmpty()) {
+			/*
+			 * If none of the parameters actually constrain the search, we don't return anything (this is the behaviour
+			 * callers of searchForIds have always relied on)
+			 */
+			return null;
+		}
+
+		retVal.add(theBuilder.equal(theFrom.get("myResourceType"), myResourceName));
+		retVal.add(theBuilder.isNull(theFrom.get("myDeleted")));
+		return retVal;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -2721,4 +2940,241 @@ public abstract class BaseHapiFhirResourceDao<T extends IResource> extends BaseH
 		}
 	}
 
+	/**
+	 * Bundle provider for searches which can be expressed as a single ordered query. Rather than holding the complete
+	 * list of matching PIDs, this keeps only the search parameters and fetches each requested page from the database.
+	 * The total is counted the first time it is asked for.
+	 * <p>
+	 * When no sort is requested, results are ordered by PID and a page which starts where the previous one ended is
+	 * fetched using the last PID seen (keyset paging) instead of an offset, so walking through a large result set
+	 * with "next" links doesn't get slower with every page.
+	 * </p>
+	 */
+	private class StreamingSearchBundleProvider implements IPersistableBundleProvider {
+
+		private Integer myCount;
+		private int myLastPageEndIndex = -1;
+		private Long myLastPageEndPid;
+		private final SearchParameterMap myParams;
+		private final InstantDt myPublished;
+		private String mySearchUuid;
+
+		StreamingSearchBundleProvider(SearchParameterMap theParams, InstantDt thePublished) {
+			myParams = theParams;
+			myPublished = thePublished;
+		}
+
+		@Override
+		public InstantDt getPublished() {
+			return myPublished;
+		}
+
+		@Override
+		public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			return template.execute(new TransactionCallback<List<IBaseResource>>() {
+				@Override
+				public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+					List<Long> pids = loadPage(theFromIndex, theToIndex);
+					if (pids.isEmpty()) {
+						return new ArrayList<IBaseResource>();
+					}
+
+					// Load includes
+					IncludeResolver.IncludeOutcome includes = loadReverseIncludes(pids, myParams.getIncludes(), false, myParams.getLastUpdated());
+
+					List<IBaseResource> resources = new ArrayList<IBaseResource>();
+					loadResourcesByPid(pids, resources, includes.getPids(), false);
+					if (includes.isTruncated()) {
+						resources.add(newIncludeLimitReachedOutcome());
+					}
+					return resources;
+				}
+			});
+		}
+
+		private List<Long> loadPage(int theFromIndex, int theToIndex) {
+			StopWatch w = new StopWatch();
+
+			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+			Root<ResourceTable> from = cq.from(ResourceTable.class);
+			cq.select(from.get("myId").as(Long.class));
+
+			List<Predicate> predicates = new ArrayList<Predicate>();
+			if (!createStreamingSearchPredicates(myParams, null, builder, cq, from, predicates)) {
+				return new ArrayList<Long>();
+			}
+
+			List<Order> orders = new ArrayList<Order>();
+			createSort(builder, cq, from, myParams.getSort(), orders);
+
+			int firstResult = theFromIndex;
+			boolean keyset = orders.isEmpty();
+			if (keyset) {
+				synchronized (this) {
+					if (myLastPageEndPid != null && myLastPageEndIndex == theFromIndex) {
+						predicates.add(builder.greaterThan(from.<Long> get("myId"), myLastPageEndPid));
+						firstResult = 0;
+					}
+				}
+			}
+
+			// Always finish with the PID so that the order is stable from one page to the next
+			orders.add(builder.asc(from.get("myId")));
+
+			cq.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+			cq.orderBy(orders);
+
+			TypedQuery<Long> query = myEntityManager.createQuery(cq);
+			query.setFirstResult(firstResult);
+			query.setMaxResults(theToIndex - theFromIndex);
+			List<Long> retVal = new ArrayList<Long>(query.getResultList());
+
+			if (keyset && retVal.size() > 0) {
+				synchronized (this) {
+					myLastPageEndIndex = theFromIndex + retVal.size();
+					myLastPageEndPid = retVal.get(retVal.size() - 1);
+				}
+			}
+
+			ourLog.debug("Loaded {} PIDs for {} search page {}-{} (keyset: {}) in {}ms", new Object[] { retVal.size(), myResourceName, theFromIndex, theToIndex, firstResult != theFromIndex, w.getMillisAndRestart() });
+			return retVal;
+		}
+
+		@Override
+		public synchronized String persist() {
+			if (mySearchUuid == null) {
+				mySearchUuid = persistSearch(myParams, new IPidPager() {
+					@Override
+					public List<Long> getPids(int theFromIndex, int theToIndex) {
+						return loadPage(theFromIndex, theToIndex);
+					}
+				});
+			}
+			return mySearchUuid;
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return myParams.getCount();
+		}
+
+		@Override
+		public synchronized int size() {
+			if (myCount == null) {
+				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+				myCount = template.execute(new TransactionCallback<Integer>() {
+					@Override
+					public Integer doInTransaction(TransactionStatus theStatus) {
+						CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+						CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+						Root<ResourceTable> from = cq.from(ResourceTable.class);
+						cq.select(builder.count(from));
+
+						List<Predicate> predicates = new ArrayList<Predicate>();
+						if (!createStreamingSearchPredicates(myParams, null, builder, cq, from, predicates)) {
+							return 0;
+						}
+						cq.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+
+						return myEntityManager.createQuery(cq).getSingleResult().intValue();
+					}
+				});
+			}
+			return myCount;
+		}
+
+	}
+
+	/**
+	 * Bundle provider for search results which were previously stored in HFJ_SEARCH / HFJ_SEARCH_RESULT. Each page of
+	 * PIDs is read back from HFJ_SEARCH_RESULT, and any _include'd resources are resolved at that point.
+	 */
+	private class PersistedSearchBundleProvider implements IPersistableBundleProvider {
+
+		private final Set<Include> myIncludes;
+		private final DateRangeParam myLastUpdated;
+		private final Integer myPreferredPageSize;
+		private final InstantDt myPublished;
+		private final Long mySearchPid;
+		private final int myTotalCount;
+		private final String myUuid;
+
+		PersistedSearchBundleProvider(Search theSearch) {
+			mySearchPid = theSearch.getId();
+			myUuid = theSearch.getUuid();
+			myTotalCount = theSearch.getTotalCount();
+			myPreferredPageSize = theSearch.getPreferredPageSize();
+			myPublished = new InstantDt(theSearch.getCreated());
+
+			myIncludes = new HashSet<Include>();
+			for (SearchInclude next : theSearch.getIncludes()) {
+				myIncludes.add(new Include(next.getInclude(), next.isRecurse()));
+			}
+
+			if (theSearch.getLastUpdatedLow() != null || theSearch.getLastUpdatedHigh() != null) {
+				myLastUpdated = new DateRangeParam(theSearch.getLastUpdatedLow(), theSearch.getLastUpdatedHigh());
+			} else {
+				myLastUpdated = null;
+			}
+		}
+
+		@Override
+		public InstantDt getPublished() {
+			return myPublished;
+		}
+
+		@Override
+		public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			return template.execute(new TransactionCallback<List<IBaseResource>>() {
+				@Override
+				public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+					String sql = "SELECT r.myResourcePid FROM SearchResult r WHERE r.mySearch.myId = :search_pid AND r.myOrder >= :from_index AND r.myOrder < :to_index ORDER BY r.myOrder";
+					TypedQuery<Long> q = myEntityManager.createQuery(sql, Long.class);
+					q.setParameter("search_pid", mySearchPid);
+					q.setParameter("from_index", theFromIndex);
+					q.setParameter("to_index", theToIndex);
+					List<Long> pids = new ArrayList<Long>(q.getResultList());
+
+					// Load includes
+					IncludeResolver.IncludeOutcome includes = loadReverseIncludes(pids, myIncludes, false, myLastUpdated);
+
+					List<IBaseResource> resources = new ArrayList<IBaseResource>();
+					loadResourcesByPid(pids, resources, includes.getPids(), false);
+					if (includes.isTruncated()) {
+						resources.add(newIncludeLimitReachedOutcome());
+					}
+					return resources;
+				}
+			});
+		}
+
+		@Override
+		public String persist() {
+			return myUuid;
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return myPreferredPageSize;
+		}
+
+		@Override
+		public int size() {
+			return myTotalCount;
+		}
+
+	}
+
+	/**
+	 * Supplies the PIDs which are written by {@link BaseHapiFhirResourceDao#persistSearch(SearchParameterMap, IPidPager)}
+	 */
+	private interface IPidPager {
+
+		List<Long> getPids(int theFromIndex, int theToIndex);
+
+	}
+
 }
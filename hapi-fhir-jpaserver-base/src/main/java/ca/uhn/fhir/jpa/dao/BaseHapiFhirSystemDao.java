@@ -20,11 +20,27 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -46,23 +62,44 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
-import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 
 public abstract class BaseHapiFhirSystemDao<T> extends BaseHapiFhirDao<IBaseResource>implements IFhirSystemDao<T> {
 
+	/**
+	 * The number of NDJSON lines which are parsed, indexed and stored together during a bulk import
+	 */
+	static final int IMPORT_CHUNK_SIZE = 500;
+
+	/**
+	 * The number of resources reindexed by a pass if no count is given
+	 */
+	static final int DEFAULT_REINDEX_COUNT = 500;
+
+	/**
+	 * The number of resources which are reindexed together in a single transaction
+	 */
+	static final int REINDEX_CHUNK_SIZE = 100;
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirSystemDao.class);
 
 	@PersistenceContext()
 	protected EntityManager myEntityManager;
 
+	private final ReentrantLock myReindexLock = new ReentrantLock();
+
+	private volatile ReindexingProgress myReindexingProgress;
+
 	@Autowired
 	private PlatformTransactionManager myTxManager;
 
@@ -76,65 +113,6 @@ public abstract class BaseHapiFhirSystemDao<T> extends BaseHapiFhirDao<IBaseReso
 		myEntityManager.createQuery("DELETE from ResourceTag t").executeUpdate();
 	}
 
-	private int doPerformReindexingPass(final Integer theCount) {
-		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
-		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
-		return txTemplate.execute(new TransactionCallback<Integer>() {
-			@SuppressWarnings("unchecked")
-			@Override
-			public Integer doInTransaction(TransactionStatus theStatus) {
-				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null", ResourceTable.class);
-
-				int maxResult = 500;
-				if (theCount != null) {
-					maxResult = Math.min(theCount, 2000);
-				}
-
-				q.setMaxResults(maxResult);
-				List<ResourceTable> resources = q.getResultList();
-
-				ourLog.info("Indexing {} resources", resources.size());
-
-				int count = 0;
-				long start = System.currentTimeMillis();
-
-				for (ResourceTable resourceTable : resources) {
-					final IBaseResource resource;
-					try {
-						resource = toResource(resourceTable, false);
-					} catch (DataFormatException e) {
-						ourLog.warn("Failure parsing resource: {}", e.toString());
-						throw new UnprocessableEntityException(Long.toString(resourceTable.getId()));
-					}
-					@SuppressWarnings("rawtypes")
-					final IFhirResourceDao dao = getDao(resource.getClass());
-					if (dao == null) {
-						ourLog.warn("No DAO for type: {}", resource.getClass());
-						throw new UnprocessableEntityException(Long.toString(resourceTable.getId()));
-					}
-
-					if (resource.getIdElement().isIdPartValid() == false) {
-						ourLog.warn("Not going to try and index an invalid ID: {}", resource.getIdElement());
-						throw new UnprocessableEntityException(Long.toString(resourceTable.getId()));
-					}
-
-					try {
-						dao.update(resource, null, true);
-					} catch (Exception e) {
-						ourLog.error("Failed to index resource {}: {}", new Object[] { resource.getIdElement(), e.toString(), e });
-						throw new UnprocessableEntityException(Long.toString(resourceTable.getId()));
-					}
-					count++;
-				}
-
-				long delay = System.currentTimeMillis() - start;
-				ourLog.info("Indexed {} / {} resources in {}ms", new Object[] { count, resources.size(), delay });
-
-				return resources.size();
-			}
-		});
-	}
-
 	@Override
 	public TagList getAllTags() {
 		// Notify interceptors
@@ -182,6 +160,87 @@ public abstract class BaseHapiFhirSystemDao<T> extends BaseHapiFhirDao<IBaseReso
 		return retVal;
 	}
 
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public ImportOutcome importResources(Reader theReader, boolean theDeferIndexing) {
+		long start = System.currentTimeMillis();
+		ImportOutcome retVal = new ImportOutcome();
+		List<long[]> importedPids = theDeferIndexing ? new ArrayList<long[]>() : null;
+
+		int threadCount = getConfig().getImportThreadCount();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			LinkedList<Future<List<ImportEntry>>> pending = new LinkedList<Future<List<ImportEntry>>>();
+			BufferedReader reader = new BufferedReader(theReader);
+
+			List<ImportEntry> chunk = new ArrayList<ImportEntry>(IMPORT_CHUNK_SIZE);
+			int lineNumber = 0;
+			String nextLine;
+			while ((nextLine = reader.readLine()) != null) {
+				lineNumber++;
+				if (isBlank(nextLine)) {
+					continue;
+				}
+
+				chunk.add(new ImportEntry(lineNumber, nextLine));
+				if (chunk.size() == IMPORT_CHUNK_SIZE) {
+					pending.add(executor.submit(new ImportChunkPreparer(chunk, theDeferIndexing)));
+					chunk = new ArrayList<ImportEntry>(IMPORT_CHUNK_SIZE);
+				}
+
+				/*
+				 * Don't let the reader get too far ahead of the writer, so that we never hold more than a few chunks
+				 * in memory. Chunks are written in the order they were read.
+				 */
+				while (pending.size() > threadCount * 2) {
+					writeImportChunk(pending.removeFirst().get(), importedPids, retVal);
+					logImportProgress(retVal, start);
+				}
+			}
+
+			if (chunk.size() > 0) {
+				pending.add(executor.submit(new ImportChunkPreparer(chunk, theDeferIndexing)));
+			}
+			while (pending.size() > 0) {
+				writeImportChunk(pending.removeFirst().get(), importedPids, retVal);
+				logImportProgress(retVal, start);
+			}
+
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to read resources for import: " + e.toString(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while importing resources", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Failed to import resources: " + e.getCause().toString(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (theDeferIndexing) {
+			ourLog.info("Stored {} resources, now indexing them", retVal.getResourceCount());
+			ReindexingProgress progress = new ReindexingProgress();
+			myReindexLock.lock();
+			try {
+				myReindexingProgress = progress;
+				reindex(new ImportedPidChunkIterator(importedPids), progress);
+			} finally {
+				progress.setFinished();
+				myReindexLock.unlock();
+			}
+			retVal.addFailures(progress);
+		}
+
+		retVal.setMillis(System.currentTimeMillis() - start);
+		ourLog.info("Imported {} resources ({} failures) in {}ms - {} resources/sec", new Object[] { retVal.getResourceCount(), retVal.getFailureCount(), retVal.getMillis(), (int) retVal.getResourcesPerSecond() });
+		return retVal;
+	}
+
+	private void logImportProgress(ImportOutcome theOutcome, long theStart) {
+		long millis = Math.max(System.currentTimeMillis() - theStart, 1);
+		ourLog.info("Import progress: {} resources stored ({} failures) - {} resources/sec", new Object[] { theOutcome.getResourceCount(), theOutcome.getFailureCount(), (theOutcome.getResourceCount() * 1000L) / millis });
+	}
+
 	protected ResourceTable loadFirstEntityFromCandidateMatches(Set<Long> candidateMatches) {
 		return myEntityManager.find(ResourceTable.class, candidateMatches.iterator().next());
 	}
@@ -209,13 +268,158 @@ public abstract class BaseHapiFhirSystemDao<T> extends BaseHapiFhirDao<IBaseReso
 	}
 
 	@Override
-	@Transactional(propagation=Propagation.NOT_SUPPORTED)
-	public int performReindexingPass(final Integer theCount) {
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public int performReindexingPass(Integer theCount) {
+		int count = theCount != null ? theCount : DEFAULT_REINDEX_COUNT;
+
+		/*
+		 * Passes are run one at a time, since two passes running together would just reindex the same resources. The
+		 * indexing pass at the end of an import with deferred indexing holds the same lock.
+		 */
+		myReindexLock.lock();
+		try {
+			ReindexingProgress progress = new ReindexingProgress();
+			myReindexingProgress = progress;
+			try {
+				return reindex(new PendingPidChunkIterator(count), progress);
+			} finally {
+				progress.setFinished();
+				ourLog.info("Reindexed {} resources ({} failures) in {}ms - {} resources/sec", new Object[] { progress.getResourceCount(), progress.getFailureCount(), progress.getMillis(), (int) progress.getResourcesPerSecond() });
+			}
+		} finally {
+			myReindexLock.unlock();
+		}
+	}
+
+	/**
+	 * Reindexes the resources with the given IDs. The IDs are read a chunk at a time, and each chunk is handed to a
+	 * worker thread which reindexes it in a single transaction.
+	 * 
+	 * @return The number of resources which were processed
+	 */
+	private int reindex(Iterator<List<Long>> theChunks, ReindexingProgress theProgress) {
+		int threadCount = getConfig().getReindexThreadCount();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
 		try {
-			return doPerformReindexingPass(theCount);
-		} catch (UnprocessableEntityException e) {
-			markResourceAsIndexingFailed(Long.parseLong(e.getMessage()));
-			return -1;
+			LinkedList<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+			int retVal = 0;
+			while (theChunks.hasNext()) {
+				pending.add(executor.submit(new ReindexChunkTask(theChunks.next(), theProgress)));
+
+				/*
+				 * Don't read too far ahead of the worker threads
+				 */
+				while (pending.size() > threadCount * 2) {
+					retVal += pending.removeFirst().get();
+				}
+			}
+
+			while (pending.size() > 0) {
+				retVal += pending.removeFirst().get();
+			}
+			return retVal;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while reindexing resources", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Failed to reindex resources: " + e.getCause().toString(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<Long> findResourcesPendingReindexing(final long theAfterPid, final int theCount) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		return txTemplate.execute(new TransactionCallback<List<Long>>() {
+			@Override
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myId FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null AND t.myId > :pid ORDER BY t.myId", Long.class);
+				q.setParameter("pid", theAfterPid);
+				q.setMaxResults(theCount);
+				return q.getResultList();
+			}
+		});
+	}
+
+	@Override
+	public ReindexingProgress getReindexingProgress() {
+		return myReindexingProgress;
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public long getResourcesPendingReindexingCount() {
+		return myEntityManager.createQuery("SELECT count(t) FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null", Long.class).getSingleResult();
+	}
+
+	/**
+	 * Rewrites the search parameter indexes for a single resource, without creating a new version of it. This is
+	 * delegated to the DAO for the resource's type so that its storage hooks are invoked. Must be called within a
+	 * transaction.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void reindexResource(Long thePid) {
+		ResourceTable entity = myEntityManager.find(ResourceTable.class, thePid);
+		if (entity == null) {
+			return;
+		}
+		if (entity.getDeleted() != null) {
+			// Deleted resources have no indexes, so there is nothing to do
+			entity.setIndexStatus(INDEX_STATUS_INDEXED);
+			return;
+		}
+
+		IResource resource = (IResource) toResource(entity, false);
+		IFhirResourceDao dao = getDao(resource.getClass());
+		if (dao == null) {
+			throw new UnprocessableEntityException("Resource type " + entity.getResourceType() + " is not supported by this server");
+		}
+		dao.reindex(resource, entity);
+	}
+
+	/**
+	 * Stores a single resource read by a bulk import. The resource's search parameters (other than references, which
+	 * need to be resolved against the database) have already been extracted by an import worker thread, and are
+	 * written by {@link #storeIndexes(IResource, ResourceTable, boolean, ResourceIndexedSearchParams, ResourceIndexedSearchParams)}
+	 * along with the unique and full-text indexes, exactly as they are when a resource is created through its DAO.
+	 */
+	private void storeImportEntry(ImportEntry theEntry, boolean theDeferIndexing, Date theUpdateTime) {
+		IResource resource = theEntry.myResource;
+		ResourceTable entity = theEntry.myEntity;
+
+		if (getDao(resource.getClass()) == null) {
+			throw new UnprocessableEntityException("Resource type " + entity.getResourceType() + " is not supported by this server");
+		}
+		validateResourceForStorage(resource, entity);
+
+		if (isNotBlank(resource.getId().getIdPart())) {
+			if (isValidPid(resource.getId())) {
+				throw new UnprocessableEntityException("Resource has numeric ID " + resource.getId().getIdPart() + " - Imported resources must either have no ID, or an ID containing at least one letter");
+			}
+			createForcedIdIfNeeded(entity, resource.getId());
+		}
+
+		entity.setPublished(theUpdateTime);
+		entity.setUpdated(theUpdateTime);
+		entity.setVersion(1);
+		entity.setLanguage(resource.getLanguage().getValue());
+		populateResourceIntoEntity(resource, entity);
+
+		ResourceIndexedSearchParams params = theEntry.myParams;
+		if (!theDeferIndexing) {
+			params.setLinks(extractResourceLinks(entity, resource));
+			params.populateEntityFlags(entity);
+			entity.setIndexStatus(INDEX_STATUS_INDEXED);
+		}
+
+		myEntityManager.persist(entity);
+		if (entity.getForcedId() != null) {
+			myEntityManager.persist(entity.getForcedId());
+		}
+
+		if (!theDeferIndexing) {
+			storeIndexes(resource, entity, true, new ResourceIndexedSearchParams(), params);
 		}
 	}
 
@@ -230,4 +434,280 @@ public abstract class BaseHapiFhirSystemDao<T> extends BaseHapiFhirDao<IBaseReso
 		return entity;
 	}
 
+	/**
+	 * Writes a chunk of prepared import entries in a single transaction, so that Hibernate can send the inserts in
+	 * JDBC batches. If the chunk can't be stored as a whole, each entry is retried in its own transaction so that
+	 * only the entries which actually fail are reported.
+	 */
+	private void writeImportChunk(List<ImportEntry> theEntries, List<long[]> theImportedPids, ImportOutcome theOutcome) {
+		final boolean deferIndexing = theImportedPids != null;
+		final List<ImportEntry> toStore = new ArrayList<ImportEntry>(theEntries.size());
+		for (ImportEntry next : theEntries) {
+			if (next.myFailure != null) {
+				theOutcome.addFailure("Line " + next.myLineNumber + ": " + next.myFailure);
+			} else {
+				toStore.add(next);
+			}
+		}
+		if (toStore.isEmpty()) {
+			return;
+		}
+
+		final Date updateTime = new Date();
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		try {
+			txTemplate.execute(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus theStatus) {
+					for (ImportEntry next : toStore) {
+						storeImportEntry(next, deferIndexing, updateTime);
+					}
+					myEntityManager.flush();
+					myEntityManager.clear();
+					return null;
+				}
+			});
+			theOutcome.addResources(toStore.size());
+			if (deferIndexing) {
+				long[] pids = new long[toStore.size()];
+				for (int i = 0; i < pids.length; i++) {
+					pids[i] = toStore.get(i).myEntity.getId();
+				}
+				theImportedPids.add(pids);
+			}
+			return;
+		} catch (RuntimeException e) {
+			ourLog.warn("Failed to store {} imported resources together ({}), storing them individually", toStore.size(), e.toString());
+		}
+
+		for (final ImportEntry next : toStore) {
+			try {
+				next.prepare(deferIndexing);
+				txTemplate.execute(new TransactionCallback<Void>() {
+					@Override
+					public Void doInTransaction(TransactionStatus theStatus) {
+						storeImportEntry(next, deferIndexing, updateTime);
+						myEntityManager.flush();
+						myEntityManager.clear();
+						return null;
+					}
+				});
+				theOutcome.addResources(1);
+				if (deferIndexing) {
+					theImportedPids.add(new long[] { next.myEntity.getId() });
+				}
+			} catch (RuntimeException e) {
+				theOutcome.addFailure("Line " + next.myLineNumber + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reindexes a chunk of resources on a worker thread. The chunk is reindexed in a single transaction if possible,
+	 * and otherwise one resource at a time so that only the resources which actually fail are marked as failed.
+	 */
+	private class ReindexChunkTask implements Callable<Integer> {
+
+		private final List<Long> myPids;
+		private final ReindexingProgress myProgress;
+
+		public ReindexChunkTask(List<Long> thePids, ReindexingProgress theProgress) {
+			myPids = thePids;
+			myProgress = theProgress;
+		}
+
+		@Override
+		public Integer call() {
+			TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+			try {
+				txTemplate.execute(new TransactionCallback<Void>() {
+					@Override
+					public Void doInTransaction(TransactionStatus theStatus) {
+						for (Long next : myPids) {
+							reindexResource(next);
+						}
+						myEntityManager.flush();
+						myEntityManager.clear();
+						return null;
+					}
+				});
+				myProgress.addResources(myPids.size());
+				return myPids.size();
+			} catch (RuntimeException e) {
+				ourLog.warn("Failed to reindex {} resources together ({}), reindexing them individually", myPids.size(), e.toString());
+			}
+
+			for (final Long next : myPids) {
+				try {
+					txTemplate.execute(new TransactionCallback<Void>() {
+						@Override
+						public Void doInTransaction(TransactionStatus theStatus) {
+							reindexResource(next);
+							return null;
+						}
+					});
+					myProgress.addResources(1);
+				} catch (RuntimeException e) {
+					ourLog.warn("Failed to reindex resource with PID " + next, e);
+					myProgress.addFailure("Failed to reindex resource with PID " + next + ": " + e.getMessage());
+					markResourceAsIndexingFailed(next);
+				}
+			}
+			return myPids.size();
+		}
+
+	}
+
+	/**
+	 * Splits the IDs of the resources stored by a bulk import with deferred indexing into chunks for reindexing
+	 */
+	private static class ImportedPidChunkIterator implements Iterator<List<Long>> {
+
+		private long[] myCurrent;
+		private final Iterator<long[]> myPids;
+		private int myPos;
+
+		public ImportedPidChunkIterator(List<long[]> thePids) {
+			myPids = thePids.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while ((myCurrent == null || myPos == myCurrent.length) && myPids.hasNext()) {
+				myCurrent = myPids.next();
+				myPos = 0;
+			}
+			return myCurrent != null && myPos < myCurrent.length;
+		}
+
+		@Override
+		public List<Long> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int end = Math.min(myPos + REINDEX_CHUNK_SIZE, myCurrent.length);
+			List<Long> retVal = new ArrayList<Long>(end - myPos);
+			for (int i = myPos; i < end; i++) {
+				retVal.add(myCurrent[i]);
+			}
+			myPos = end;
+			return retVal;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * Reads the IDs of resources which are waiting to be reindexed in ascending order, a chunk at a time, up to a
+	 * maximum count
+	 */
+	private class PendingPidChunkIterator implements Iterator<List<Long>> {
+
+		private long myLastPid = -1L;
+		private List<Long> myNext;
+		private int myRemaining;
+
+		public PendingPidChunkIterator(int theCount) {
+			myRemaining = theCount;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (myNext == null && myRemaining > 0) {
+				myNext = findResourcesPendingReindexing(myLastPid, Math.min(myRemaining, REINDEX_CHUNK_SIZE));
+				if (myNext.isEmpty()) {
+					myRemaining = 0;
+				} else {
+					myLastPid = myNext.get(myNext.size() - 1);
+					myRemaining -= myNext.size();
+				}
+			}
+			return myNext != null && !myNext.isEmpty();
+		}
+
+		@Override
+		public List<Long> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			List<Long> retVal = myNext;
+			myNext = null;
+			return retVal;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * Prepares a chunk of import entries on a worker thread
+	 */
+	private class ImportChunkPreparer implements Callable<List<ImportEntry>> {
+
+		private final List<ImportEntry> myChunk;
+		private final boolean myDeferIndexing;
+
+		public ImportChunkPreparer(List<ImportEntry> theChunk, boolean theDeferIndexing) {
+			myChunk = theChunk;
+			myDeferIndexing = theDeferIndexing;
+		}
+
+		@Override
+		public List<ImportEntry> call() {
+			IParser parser = getContext().newJsonParser();
+			for (ImportEntry next : myChunk) {
+				try {
+					next.myResource = (IResource) parser.parseResource(next.myLine);
+					next.myLine = null;
+					next.prepare(myDeferIndexing);
+				} catch (Exception e) {
+					next.myFailure = e.getMessage() != null ? e.getMessage() : e.toString();
+				}
+			}
+			return myChunk;
+		}
+
+	}
+
+	/**
+	 * A single line of a bulk import, along with the resource parsed from it and the search parameters extracted from
+	 * that resource
+	 */
+	private class ImportEntry {
+
+		private ResourceTable myEntity;
+		private String myFailure;
+		private String myLine;
+		private final int myLineNumber;
+		private ResourceIndexedSearchParams myParams;
+		private IResource myResource;
+
+		public ImportEntry(int theLineNumber, String theLine) {
+			myLineNumber = theLineNumber;
+			myLine = theLine;
+		}
+
+		/**
+		 * Creates a new entity for the resource and, unless indexing is deferred, extracts its search parameters
+		 */
+		public void prepare(boolean theDeferIndexing) {
+			myEntity = new ResourceTable();
+			myEntity.setResourceType(toResourceName(myResource));
+
+			if (theDeferIndexing) {
+				return;
+			}
+
+			myParams = extractSearchParams(myEntity, myResource);
+		}
+
+	}
+
 }
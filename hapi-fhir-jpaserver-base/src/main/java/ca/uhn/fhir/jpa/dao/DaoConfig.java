@@ -2,7 +2,10 @@ package ca.uhn.fhir.jpa.dao;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.time.DateUtils;
@@ -34,14 +37,50 @@ import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 public class DaoConfig {
 
 	private boolean myAllowMultipleDelete;
+	private long myExpireSearchResultsAfterMillis = DateUtils.MILLIS_PER_HOUR;
+	private int myForcedIdCacheSize = 50000;
+	private int myFulltextSearchMaxHits = 1000;
 	private int myHardSearchLimit = 1000;
 	private int myHardTagListLimit = 1000;
+	private String myImportDirectory;
+	private int myImportThreadCount = Runtime.getRuntime().availableProcessors();
 	private int myIncludeLimit = 2000;
+	private int myIncludeThreadCount = 1;
 	private List<IServerInterceptor> myInterceptors;
+	private int myReindexThreadCount = Runtime.getRuntime().availableProcessors();
+	private long myResourceBodyCacheSizeBytes;
 	private ResourceEncodingEnum myResourceEncoding = ResourceEncodingEnum.JSONC;
+	private Long myReuseCachedSearchResultsForMillis;
 	private boolean mySubscriptionEnabled;
 	private long mySubscriptionPollDelay = 1000;
 	private Long mySubscriptionPurgeInactiveAfterMillis;
+	private int mySubscriptionWebsocketMaxBatchSize = 1;
+	private int mySubscriptionWebsocketQueueSize = 1000;
+	private int mySubscriptionWebsocketSendBufferSizeLimit = 512 * 1024;
+	private int mySubscriptionWebsocketSendTimeLimitMillis = 10000;
+	private long myTagDefinitionCreateTimeoutMillis = 10000;
+	private Set<String> myUniqueSearchParameters = Collections.emptySet();
+
+	/**
+	 * See {@link #setExpireSearchResultsAfterMillis(long)}
+	 */
+	public long getExpireSearchResultsAfterMillis() {
+		return myExpireSearchResultsAfterMillis;
+	}
+
+	/**
+	 * See {@link #setForcedIdCacheSize(int)}
+	 */
+	public int getForcedIdCacheSize() {
+		return myForcedIdCacheSize;
+	}
+
+	/**
+	 * See {@link #setFulltextSearchMaxHits(int)}
+	 */
+	public int getFulltextSearchMaxHits() {
+		return myFulltextSearchMaxHits;
+	}
 
 	/**
 	 * See {@link #setIncludeLimit(int)}
@@ -54,10 +93,34 @@ public class DaoConfig {
 		return myHardTagListLimit;
 	}
 
+	/**
+	 * See {@link #setImportDirectory(String)}
+	 */
+	public String getImportDirectory() {
+		return myImportDirectory;
+	}
+
+	/**
+	 * See {@link #setImportThreadCount(int)}
+	 */
+	public int getImportThreadCount() {
+		return myImportThreadCount;
+	}
+
+	/**
+	 * See {@link #setIncludeLimit(int)}
+	 */
 	public int getIncludeLimit() {
 		return myIncludeLimit;
 	}
 
+	/**
+	 * See {@link #setIncludeThreadCount(int)}
+	 */
+	public int getIncludeThreadCount() {
+		return myIncludeThreadCount;
+	}
+
 	/**
 	 * Returns the interceptors which will be notified of operations.
 	 * 
@@ -67,10 +130,34 @@ public class DaoConfig {
 		return myInterceptors;
 	}
 
+	/**
+	 * See {@link #setReindexThreadCount(int)}
+	 */
+	public int getReindexThreadCount() {
+		return myReindexThreadCount;
+	}
+
+	/**
+	 * See {@link #setResourceBodyCacheSizeBytes(long)}
+	 */
+	public long getResourceBodyCacheSizeBytes() {
+		return myResourceBodyCacheSizeBytes;
+	}
+
+	/**
+	 * See {@link #setResourceEncoding(ResourceEncodingEnum)}
+	 */
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
 
+	/**
+	 * See {@link #setReuseCachedSearchResultsForMillis(Long)}
+	 */
+	public Long getReuseCachedSearchResultsForMillis() {
+		return myReuseCachedSearchResultsForMillis;
+	}
+
 	public long getSubscriptionPollDelay() {
 		return mySubscriptionPollDelay;
 	}
@@ -79,6 +166,48 @@ public class DaoConfig {
 		return mySubscriptionPurgeInactiveAfterMillis;
 	}
 
+	/**
+	 * See {@link #setSubscriptionWebsocketMaxBatchSize(int)}
+	 */
+	public int getSubscriptionWebsocketMaxBatchSize() {
+		return mySubscriptionWebsocketMaxBatchSize;
+	}
+
+	/**
+	 * See {@link #setSubscriptionWebsocketQueueSize(int)}
+	 */
+	public int getSubscriptionWebsocketQueueSize() {
+		return mySubscriptionWebsocketQueueSize;
+	}
+
+	/**
+	 * See {@link #setSubscriptionWebsocketSendBufferSizeLimit(int)}
+	 */
+	public int getSubscriptionWebsocketSendBufferSizeLimit() {
+		return mySubscriptionWebsocketSendBufferSizeLimit;
+	}
+
+	/**
+	 * See {@link #setSubscriptionWebsocketSendTimeLimitMillis(int)}
+	 */
+	public int getSubscriptionWebsocketSendTimeLimitMillis() {
+		return mySubscriptionWebsocketSendTimeLimitMillis;
+	}
+
+	/**
+	 * See {@link #setUniqueSearchParameters(Set)}
+	 */
+	/**
+	 * See {@link #setTagDefinitionCreateTimeoutMillis(long)}
+	 */
+	public long getTagDefinitionCreateTimeoutMillis() {
+		return myTagDefinitionCreateTimeoutMillis;
+	}
+
+	public Set<String> getUniqueSearchParameters() {
+		return myUniqueSearchParameters;
+	}
+
 	public boolean isAllowMultipleDelete() {
 		return myAllowMultipleDelete;
 	}
@@ -90,10 +219,46 @@ public class DaoConfig {
 		return mySubscriptionEnabled;
 	}
 
+	/**
+	 * Has the given search parameter been configured as unique? See {@link #setUniqueSearchParameters(Set)}
+	 */
+	public boolean isUniqueSearchParameter(String theResourceType, String theParamName) {
+		return myUniqueSearchParameters.contains(theResourceType + ':' + theParamName);
+	}
+
 	public void setAllowMultipleDelete(boolean theAllowMultipleDelete) {
 		myAllowMultipleDelete = theAllowMultipleDelete;
 	}
 
+	/**
+	 * Search results which have been stored in the database (see
+	 * {@link ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider}) are deleted once they are older than
+	 * this value. Defaults to one hour.
+	 */
+	public void setExpireSearchResultsAfterMillis(long theExpireSearchResultsAfterMillis) {
+		myExpireSearchResultsAfterMillis = theExpireSearchResultsAfterMillis;
+	}
+
+	/**
+	 * The maximum number of client assigned resource IDs whose resource PIDs are cached (see {@link ForcedIdCache}).
+	 * Defaults to 50000. This value is read when the server starts.
+	 */
+	public void setForcedIdCacheSize(int theForcedIdCacheSize) {
+		Validate.isTrue(theForcedIdCacheSize > 0, "theForcedIdCacheSize must be greater than 0");
+		myForcedIdCacheSize = theForcedIdCacheSize;
+	}
+
+	/**
+	 * The maximum number of resources a single full-text query may match, since the matches are passed to the
+	 * database as a list of IDs. A <code>_content</code> or <code>_text</code> search which matches more resources
+	 * than this only returns the most relevant ones. A <code>:contains</code> search which matches more resources than
+	 * this is performed with a (slower) database scan instead, so that its results are complete. Defaults to 1000.
+	 */
+	public void setFulltextSearchMaxHits(int theFulltextSearchMaxHits) {
+		Validate.isTrue(theFulltextSearchMaxHits > 0, "theFulltextSearchMaxHits must be greater than 0");
+		myFulltextSearchMaxHits = theFulltextSearchMaxHits;
+	}
+
 	public void setHardSearchLimit(int theHardSearchLimit) {
 		myHardSearchLimit = theHardSearchLimit;
 	}
@@ -102,6 +267,24 @@ public class DaoConfig {
 		myHardTagListLimit = theHardTagListLimit;
 	}
 
+	/**
+	 * The directory on the server from which the <code>$import</code> operation is allowed to read NDJSON files.
+	 * Files outside of this directory are rejected. Defaults to <code>null</code>, meaning that the operation may not
+	 * read files at all (resources may still be supplied in the request itself).
+	 */
+	public void setImportDirectory(String theImportDirectory) {
+		myImportDirectory = theImportDirectory;
+	}
+
+	/**
+	 * The number of worker threads used to parse and index resources during a bulk import (see
+	 * {@link IFhirSystemDao#importResources(java.io.Reader, boolean)}). Defaults to the number of available processors.
+	 */
+	public void setImportThreadCount(int theImportThreadCount) {
+		Validate.isTrue(theImportThreadCount > 0, "theImportThreadCount must be greater than 0");
+		myImportThreadCount = theImportThreadCount;
+	}
+
 	/**
 	 * This is the maximum number of resources that will be added to a single page of returned resources. Because of
 	 * includes with wildcards and other possibilities it is possible for a client to make requests that include very
@@ -111,6 +294,19 @@ public class DaoConfig {
 		myIncludeLimit = theIncludeLimit;
 	}
 
+	/**
+	 * The number of worker threads used to resolve <code>_include</code> and <code>_revinclude</code> parameters.
+	 * When this is greater than 1, the links from a large set of resources are looked up in several chunks
+	 * concurrently, each in its own read-only transaction (and therefore using its own database connection). Note that
+	 * these transactions can't see changes which haven't been committed yet. Defaults to 1, meaning that includes are
+	 * always resolved by the requesting thread within its own transaction. This setting is read once when the
+	 * application context starts.
+	 */
+	public void setIncludeThreadCount(int theIncludeThreadCount) {
+		Validate.isTrue(theIncludeThreadCount > 0, "theIncludeThreadCount must be greater than 0");
+		myIncludeThreadCount = theIncludeThreadCount;
+	}
+
 	/**
 	 * This may be used to optionally register server interceptors directly against the DAOs.
 	 * <p>
@@ -140,10 +336,49 @@ public class DaoConfig {
 		myInterceptors = theInterceptors;
 	}
 
+	/**
+	 * The number of worker threads used to reindex resources during a reindexing pass (see
+	 * {@link IFhirSystemDao#performReindexingPass(Integer)}). Each thread reindexes a chunk of resources in its own
+	 * transaction. Defaults to the number of available processors.
+	 */
+	public void setReindexThreadCount(int theReindexThreadCount) {
+		Validate.isTrue(theReindexThreadCount > 0, "theReindexThreadCount must be greater than 0");
+		myReindexThreadCount = theReindexThreadCount;
+	}
+
+	/**
+	 * The approximate maximum amount of memory, in bytes, used to cache the decoded text of resources which have been
+	 * read (see {@link ResourceBodyCache}). Defaults to 0, which disables the cache. This value is read when the
+	 * server starts.
+	 */
+	public void setResourceBodyCacheSizeBytes(long theResourceBodyCacheSizeBytes) {
+		Validate.isTrue(theResourceBodyCacheSizeBytes >= 0, "theResourceBodyCacheSizeBytes must not be negative");
+		myResourceBodyCacheSizeBytes = theResourceBodyCacheSizeBytes;
+	}
+
+	/**
+	 * The encoding used to store the bodies of newly written resources. Changing this value only affects resources
+	 * written from then on, as resources are always read using the encoding they were stored with. Defaults to
+	 * {@link ResourceEncodingEnum#JSONC}. Setting this to {@link ResourceEncodingEnum#JSDD1} makes resources
+	 * considerably cheaper to write and read, but note that rows written that way can't be read by older versions of
+	 * HAPI FHIR.
+	 */
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
+		Validate.notNull(theResourceEncoding, "theResourceEncoding must not be null");
 		myResourceEncoding = theResourceEncoding;
 	}
 
+	/**
+	 * If this is set to a non-null value, a search which is identical to a search whose results have
+	 * been stored in the database (see {@link ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider}) within
+	 * this many milliseconds will return the stored results instead of being executed again. This means that
+	 * resources created or changed in the meantime might not be reflected in the results. Defaults to
+	 * <code>null</code> (disabled).
+	 */
+	public void setReuseCachedSearchResultsForMillis(Long theReuseCachedSearchResultsForMillis) {
+		myReuseCachedSearchResultsForMillis = theReuseCachedSearchResultsForMillis;
+	}
+
 	/**
 	 * Does this server support subscription? If set to true, the server will enable the subscription monitoring mode,
 	 * which adds a bit of overhead. Note that if this is enabled, you must also include Spring task scanning to your XML
@@ -168,4 +403,85 @@ public class DaoConfig {
 		setSubscriptionPurgeInactiveAfterMillis(theSeconds * DateUtils.MILLIS_PER_SECOND);
 	}
 
+	/**
+	 * The maximum number of resources sent to a WebSocket client bound to a dynamic subscription in a single message.
+	 * If set to 1 (the default), each resource is sent in its own <code>add [id]</code> message. If set higher, the
+	 * resources waiting for a client are coalesced, and when more than one is waiting they are sent in one
+	 * <code>add [id]</code> message containing a Bundle of type <code>collection</code>.
+	 */
+	public void setSubscriptionWebsocketMaxBatchSize(int theSubscriptionWebsocketMaxBatchSize) {
+		Validate.isTrue(theSubscriptionWebsocketMaxBatchSize > 0, "theSubscriptionWebsocketMaxBatchSize must be greater than 0");
+		mySubscriptionWebsocketMaxBatchSize = theSubscriptionWebsocketMaxBatchSize;
+	}
+
+	/**
+	 * The maximum number of flagged resources which are fetched from the database and held in memory for a WebSocket
+	 * client at a time. Resources beyond this stay flagged in the database until the client has received the ones
+	 * before them. Defaults to 1000.
+	 */
+	public void setSubscriptionWebsocketQueueSize(int theSubscriptionWebsocketQueueSize) {
+		Validate.isTrue(theSubscriptionWebsocketQueueSize > 0, "theSubscriptionWebsocketQueueSize must be greater than 0");
+		mySubscriptionWebsocketQueueSize = theSubscriptionWebsocketQueueSize;
+	}
+
+	/**
+	 * The maximum number of bytes which may be buffered for a WebSocket client while a previous message is still being
+	 * sent to it. A client which goes over this limit is disconnected. Defaults to 512 KB.
+	 */
+	public void setSubscriptionWebsocketSendBufferSizeLimit(int theSubscriptionWebsocketSendBufferSizeLimit) {
+		Validate.isTrue(theSubscriptionWebsocketSendBufferSizeLimit > 0, "theSubscriptionWebsocketSendBufferSizeLimit must be greater than 0");
+		mySubscriptionWebsocketSendBufferSizeLimit = theSubscriptionWebsocketSendBufferSizeLimit;
+	}
+
+	/**
+	 * The maximum time in milliseconds that sending to a WebSocket client may take. While a send is in progress no
+	 * further resources are fetched for the client, and a client which is still receiving after this limit is
+	 * disconnected. Defaults to 10000 (10 seconds).
+	 */
+	public void setSubscriptionWebsocketSendTimeLimitMillis(int theSubscriptionWebsocketSendTimeLimitMillis) {
+		Validate.isTrue(theSubscriptionWebsocketSendTimeLimitMillis > 0, "theSubscriptionWebsocketSendTimeLimitMillis must be greater than 0");
+		mySubscriptionWebsocketSendTimeLimitMillis = theSubscriptionWebsocketSendTimeLimitMillis;
+	}
+
+	/**
+	 * The maximum time in milliseconds that storing a resource waits for a tag, profile or security label which has
+	 * never been seen before to be created (see {@link TagDefinitionCache}). Creating one needs a second database
+	 * connection while the writer already holds one, so if the connection pool is exhausted by writers in the same
+	 * situation the write fails with an error after this time instead of waiting forever. Defaults to 10000 (10
+	 * seconds).
+	 */
+	public void setTagDefinitionCreateTimeoutMillis(long theTagDefinitionCreateTimeoutMillis) {
+		Validate.isTrue(theTagDefinitionCreateTimeoutMillis > 0, "theTagDefinitionCreateTimeoutMillis must be greater than 0");
+		myTagDefinitionCreateTimeoutMillis = theTagDefinitionCreateTimeoutMillis;
+	}
+
+	/**
+	 * Token search parameters whose values must be unique across all resources of their type, in the format
+	 * <code>[resourceType]:[paramName]</code>, e.g. <code>Patient:identifier</code>. Only values which have both a
+	 * system and a code are indexed.
+	 * <p>
+	 * The values of these parameters are stored in their own table with a unique constraint, so a create or update which
+	 * would give two resources the same value fails with a {@link ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException}
+	 * (even if the writes are concurrent), and a conditional create, update or delete whose match URL is a single
+	 * <code>system|code</code> value of one of these parameters which is already in use is resolved using a single
+	 * indexed lookup instead of a search. If the value isn't in that table, a regular search is still used, so that
+	 * resources which were stored before a parameter was added to this set (and haven't been reindexed since) are
+	 * still matched.
+	 * </p>
+	 * <p>
+	 * Note that resources which were stored before a parameter was added to this set don't take part in the unique
+	 * constraint until they are reindexed. Defaults to an empty set.
+	 * </p>
+	 */
+	public void setUniqueSearchParameters(Set<String> theUniqueSearchParameters) {
+		Set<String> uniqueSearchParameters = new HashSet<String>();
+		if (theUniqueSearchParameters != null) {
+			for (String next : theUniqueSearchParameters) {
+				Validate.isTrue(next != null && next.indexOf(':') > 0 && next.indexOf(':') < next.length() - 1, "Unique search parameters must be in the format [resourceType]:[paramName]: " + next);
+				uniqueSearchParameters.add(next);
+			}
+		}
+		myUniqueSearchParameters = Collections.unmodifiableSet(uniqueSearchParameters);
+	}
+
 }
@@ -30,11 +30,11 @@ import java.util.List;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
+import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.time.DateUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -43,6 +43,8 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
@@ -52,28 +54,30 @@ import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
 import ca.uhn.fhir.jpa.entity.SubscriptionTable;
 import ca.uhn.fhir.model.api.IResource;
-import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
-import ca.uhn.fhir.model.dstu.valueset.QuantityCompararatorEnum;
 import ca.uhn.fhir.model.dstu2.resource.Subscription;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionStatusEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
-import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.parser.DataFormatException;
-import ca.uhn.fhir.rest.api.SortOrderEnum;
-import ca.uhn.fhir.rest.api.SortSpec;
-import ca.uhn.fhir.rest.param.DateParam;
-import ca.uhn.fhir.rest.param.DateRangeParam;
-import ca.uhn.fhir.rest.server.Constants;
-import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
 public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subscription>implements IFhirResourceDaoSubscription<Subscription> {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoSubscriptionDstu2.class);
+	private static final int MAX_UNDELIVERED_PER_POLL = 100;
+	private static final Object[] ourPollLocks = new Object[64];
+
+	static {
+		for (int i = 0; i < ourPollLocks.length; i++) {
+			ourPollLocks[i] = new Object();
+		}
+	}
 
 	@Autowired
 	private ISubscriptionFlaggedResourceDataDao mySubscriptionFlaggedResourceDataDao;
 
+	@Autowired
+	private SubscriptionMatcher mySubscriptionMatcher;
+
 	@Autowired
 	private ISubscriptionTableDao mySubscriptionTableDao;
 
@@ -81,6 +85,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		SubscriptionTable subscriptionEntity = new SubscriptionTable();
 		subscriptionEntity.setCreated(new Date());
 		subscriptionEntity.setSubscriptionResource(theEntity);
+		// No longer used since resources are matched as they are written, but the columns are not nullable
 		subscriptionEntity.setNextCheck(theEntity.getPublished().getValue());
 		subscriptionEntity.setMostRecentMatch(theEntity.getPublished().getValue());
 		subscriptionEntity.setStatus(theSubscription.getStatusElement().getValueAsEnum());
@@ -90,6 +95,11 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 	@Autowired
 	private PlatformTransactionManager myTxManager;
 
+	/**
+	 * Resources are matched against the active subscriptions as they are written (see {@link SubscriptionMatcher}), so
+	 * this only reloads the active subscriptions from the database into the matcher. This picks up subscriptions which
+	 * were written by other servers sharing the database, and costs one query when nothing has changed.
+	 */
 	@Scheduled(fixedDelay = 10 * DateUtils.MILLIS_PER_SECOND)
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	@Override
@@ -99,76 +109,68 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		}
 		ourLog.trace("Beginning pollForNewUndeliveredResources()");
 
-		// SubscriptionCandidateResource
-
-		Collection<Long> subscriptions = mySubscriptionTableDao.finsSubscriptionsWhichNeedToBeChecked(SubscriptionStatusEnum.ACTIVE, new Date());
-
 		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
 		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
-		for (final Long nextSubscriptionTablePid : subscriptions) {
-			txTemplate.execute(new TransactionCallback<Void>() {
-				@Override
-				public Void doInTransaction(TransactionStatus theStatus) {
-					SubscriptionTable nextSubscriptionTable = mySubscriptionTableDao.findOne(nextSubscriptionTablePid);
-					pollForNewUndeliveredResources(nextSubscriptionTable);
-					return null;
+		txTemplate.setReadOnly(true);
+		txTemplate.execute(new TransactionCallback<Void>() {
+			@Override
+			public Void doInTransaction(TransactionStatus theStatus) {
+				// Read before the database, so that anything registered locally from here on is left alone
+				long generation = mySubscriptionMatcher.getGeneration();
+				Collection<SubscriptionTable> active = mySubscriptionTableDao.findAllByStatusWithResource(SubscriptionStatusEnum.ACTIVE);
+				List<Long> activePids = new ArrayList<Long>();
+				for (SubscriptionTable next : active) {
+					activePids.add(next.getId());
+					if (!mySubscriptionMatcher.isRegistered(next.getId(), next.getSubscriptionResource().getVersion())) {
+						Subscription subscription = toResource(Subscription.class, next.getSubscriptionResource(), false);
+						registerSubscription(next.getId(), next.getSubscriptionResource().getVersion(), subscription, generation);
+					}
 				}
-			});
-		}
+				mySubscriptionMatcher.retainOnly(activePids, generation);
+				return null;
+			}
+		});
 	}
 
-	private void pollForNewUndeliveredResources(SubscriptionTable theSubscriptionTable) {
-		Subscription subscription = toResource(Subscription.class, theSubscriptionTable.getSubscriptionResource(), false);
-		RuntimeResourceDefinition resourceDef = validateCriteriaAndReturnResourceDefinition(subscription);
-		SearchParameterMap criteriaUrl = translateMatchUrl(subscription.getCriteria(), resourceDef);
-
-		criteriaUrl = new SearchParameterMap();
-		long start = theSubscriptionTable.getMostRecentMatch().getTime();
-		long end = System.currentTimeMillis() - getConfig().getSubscriptionPollDelay();
-		if (end <= start) {
-			ourLog.trace("Skipping search for subscription");
-			return;
+	/**
+	 * @param theReloadGeneration
+	 *           If the subscription was read by a reload, the matcher generation when the reload started (see
+	 *           {@link SubscriptionMatcher#getGeneration()}), or <code>null</code> if it was just written
+	 */
+	private void registerSubscription(Long theSubscriptionTablePid, long theVersion, Subscription theSubscription, Long theReloadGeneration) {
+		RuntimeResourceDefinition resourceDef = validateCriteriaAndReturnResourceDefinition(theSubscription);
+		SearchParameterMap criteria = translateMatchUrl(theSubscription.getCriteria(), resourceDef);
+		if (theReloadGeneration != null) {
+			mySubscriptionMatcher.reload(theSubscriptionTablePid, theVersion, resourceDef, criteria, theReloadGeneration);
+		} else {
+			mySubscriptionMatcher.register(theSubscriptionTablePid, theVersion, resourceDef, criteria);
 		}
+	}
 
-		ourLog.debug("Subscription {} search from {} to {}", new Object[] { subscription.getId().getIdPart(), new InstantDt(new Date(start)), new InstantDt(new Date(end)) });
-
-		DateRangeParam range = new DateRangeParam();
-		range.setLowerBound(new DateParam(QuantityCompararatorEnum.GREATERTHAN, start));
-		range.setUpperBound(new DateParam(QuantityCompararatorEnum.LESSTHAN, end));
-		criteriaUrl.setLastUpdated(range);
-		criteriaUrl.setSort(new SortSpec(Constants.PARAM_LASTUPDATED, SortOrderEnum.ASC));
-		IFhirResourceDao<? extends IBaseResource> dao = getDao(resourceDef.getImplementingClass());
-		IBundleProvider results = dao.search(criteriaUrl);
-		if (results.size() == 0) {
+	/**
+	 * Registers or unregisters a subscription with the matcher once the transaction which wrote it has committed, so
+	 * that resources written by other transactions in the meantime aren't flagged for a subscription which might still
+	 * be rolled back
+	 */
+	private void updateSubscriptionRegistration(final Long theSubscriptionTablePid, final long theVersion, final Subscription theSubscriptionOrNull) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			doUpdateSubscriptionRegistration(theSubscriptionTablePid, theVersion, theSubscriptionOrNull);
 			return;
 		}
-
-		ourLog.info("Found {} new results for Subscription {}", results.size(), subscription.getId().getIdPart());
-
-		List<SubscriptionFlaggedResource> flags = new ArrayList<SubscriptionFlaggedResource>();
-		Date mostRecentMatch = null;
-		for (IBaseResource next : results.getResources(0, results.size())) {
-
-			Date updated = ResourceMetadataKeyEnum.PUBLISHED.get((IResource) next).getValue();
-			if (mostRecentMatch == null || mostRecentMatch.getTime() < updated.getTime()) {
-				mostRecentMatch = updated;
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				doUpdateSubscriptionRegistration(theSubscriptionTablePid, theVersion, theSubscriptionOrNull);
 			}
+		});
+	}
 
-			SubscriptionFlaggedResource nextFlag = new SubscriptionFlaggedResource();
-			Long pid = IDao.RESOURCE_PID.get((IResource) next);
-
-			nextFlag.setResource(myEntityManager.find(ResourceTable.class, pid));
-			nextFlag.setSubscription(theSubscriptionTable);
-			nextFlag.setVersion(next.getIdElement().getVersionIdPartAsLong());
-			flags.add(nextFlag);
+	private void doUpdateSubscriptionRegistration(Long theSubscriptionTablePid, long theVersion, Subscription theSubscriptionOrNull) {
+		if (theSubscriptionOrNull != null && theSubscriptionOrNull.getStatusElement().getValueAsEnum() == SubscriptionStatusEnum.ACTIVE) {
+			registerSubscription(theSubscriptionTablePid, theVersion, theSubscriptionOrNull, null);
+		} else {
+			mySubscriptionMatcher.unregister(theSubscriptionTablePid);
 		}
-
-		mySubscriptionFlaggedResourceDataDao.save(flags);
-
-		ourLog.debug("Updating most recent match for subcription {} to {}", subscription.getId().getIdPart(), new InstantDt(mostRecentMatch));
-		
-		theSubscriptionTable.setMostRecentMatch(mostRecentMatch);
-		myEntityManager.merge(theSubscriptionTable);
 	}
 
 	@Override
@@ -190,6 +192,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 			if (subscriptionId != null) {
 				mySubscriptionFlaggedResourceDataDao.deleteAllForSubscription(subscriptionId);
 				mySubscriptionTableDao.deleteAllForSubscription(subscriptionId);
+				updateSubscriptionRegistration(subscriptionId, retVal.getVersion(), null);
 			}
 		} else {
 			Query q = myEntityManager.createNamedQuery("Q_HFJ_SUBSCRIPTION_SET_STATUS");
@@ -200,6 +203,8 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 			} else {
 				createSubscriptionTable(retVal, resource);
 			}
+			SubscriptionTable table = mySubscriptionTableDao.findOneByResourcePid(resourceId);
+			updateSubscriptionRegistration(table.getId(), retVal.getVersion(), resource);
 		}
 		return retVal;
 	}
@@ -252,19 +257,48 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 	}
 
 	@Override
-	public synchronized List<IBaseResource> getUndeliveredResourcesAndPurge(Long theSubscriptionPid) {
-		List<IBaseResource> retVal = new ArrayList<IBaseResource>();
-		Page<SubscriptionFlaggedResource> flaggedResources = mySubscriptionFlaggedResourceDataDao.findAllBySubscriptionId(theSubscriptionPid, new PageRequest(0, 100));
+	public List<IBaseResource> getUndeliveredResourcesAndPurge(Long theSubscriptionPid) {
+		return getUndeliveredResourcesAndPurge(theSubscriptionPid, MAX_UNDELIVERED_PER_POLL);
+	}
+
+	/**
+	 * Two clients polling the same subscription must not both deliver the same flagged resources, so polls are
+	 * serialized per subscription (on one of {@link #ourPollLocks}) rather than across all subscriptions
+	 */
+	@Override
+	public List<IBaseResource> getUndeliveredResourcesAndPurge(Long theSubscriptionPid, int theMaxResults) {
+		Validate.notNull(theSubscriptionPid, "theSubscriptionPid must not be null");
+		synchronized (ourPollLocks[(int) (Math.abs(theSubscriptionPid % ourPollLocks.length))]) {
+			UndeliveredResources retVal = getUndeliveredResources(theSubscriptionPid, theMaxResults);
+			purgeDeliveredResources(theSubscriptionPid, retVal);
+			return retVal.getResources();
+		}
+	}
+
+	@Override
+	public UndeliveredResources getUndeliveredResources(Long theSubscriptionPid, int theMaxResults) {
+		Validate.notNull(theSubscriptionPid, "theSubscriptionPid must not be null");
+		Validate.isTrue(theMaxResults > 0, "theMaxResults must be greater than 0");
+
+		List<IBaseResource> resources = new ArrayList<IBaseResource>();
+		List<Long> flagPids = new ArrayList<Long>();
+		List<SubscriptionFlaggedResource> flaggedResources = mySubscriptionFlaggedResourceDataDao.findAllBySubscriptionId(theSubscriptionPid, new PageRequest(0, theMaxResults));
 		for (SubscriptionFlaggedResource nextFlaggedResource : flaggedResources) {
-			retVal.add(toResource(nextFlaggedResource.getResource(), false));
+			resources.add(toResource(nextFlaggedResource.getResource(), false));
+			flagPids.add(nextFlaggedResource.getId());
 		}
 
-		mySubscriptionFlaggedResourceDataDao.delete(flaggedResources);
-		mySubscriptionFlaggedResourceDataDao.flush();
+		mySubscriptionTableDao.updateLastClientPoll(new Date(), theSubscriptionPid);
 
-		mySubscriptionTableDao.updateLastClientPoll(new Date());
+		return new UndeliveredResources(resources, flagPids);
+	}
 
-		return retVal;
+	@Override
+	public void purgeDeliveredResources(Long theSubscriptionPid, UndeliveredResources theDelivered) {
+		Validate.notNull(theSubscriptionPid, "theSubscriptionPid must not be null");
+		if (!theDelivered.getFlagPids().isEmpty()) {
+			mySubscriptionFlaggedResourceDataDao.deleteForSubscription(theSubscriptionPid, theDelivered.getFlagPids());
+		}
 	}
 
 	@Override
@@ -23,6 +23,7 @@ import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -208,6 +209,12 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle> {
 
 		Bundle response = new Bundle();
 
+		List<IResource> resources = new ArrayList<IResource>(theRequest.getEntry().size());
+		for (Entry nextEntry : theRequest.getEntry()) {
+			resources.add(nextEntry.getResource());
+		}
+		prefetchForcedIds(resources);
+
 		// TODO: process verbs in the correct order
 
 		for (int i = 0; i < theRequest.getEntry().size(); i++) {
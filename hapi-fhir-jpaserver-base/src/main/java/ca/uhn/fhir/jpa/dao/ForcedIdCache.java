@@ -0,0 +1,233 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.entity.ForcedId;
+
+/**
+ * Bounded, thread-safe cache of the mapping from client assigned ("forced") resource IDs to the PIDs of the
+ * resources they belong to. Since a forced ID is never reassigned to a different resource (deleting
+ * a resource leaves its forced ID in place, so that it can be recreated with the same ID), a mapping which has been
+ * committed to the database stays valid.
+ * <p>
+ * Mappings which are looked up within a transaction may not have been committed yet (e.g. because the forced ID was
+ * created earlier in the same transaction), so they are only added to the cache once that transaction has committed,
+ * and are discarded if it is rolled back.
+ * </p>
+ * <p>
+ * A single instance of this class is shared by all of the DAOs in an application context. The number of mappings held
+ * is limited by {@link DaoConfig#setForcedIdCacheSize(int)}.
+ * </p>
+ */
+public class ForcedIdCache {
+
+	/**
+	 * The maximum number of forced IDs looked up by a single query
+	 */
+	static final int MAX_IDS_PER_QUERY = 500;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ForcedIdCache.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private Cache<String, Long> myForcedIdToPid;
+
+	/**
+	 * Discards all cached mappings. This is only needed if forced IDs are removed from the database by something other
+	 * than the DAOs (e.g. a database purge).
+	 */
+	public void clear() {
+		myForcedIdToPid.invalidateAll();
+	}
+
+	/**
+	 * Returns the number of lookups which were answered from the cache
+	 */
+	public long getHitCount() {
+		return myForcedIdToPid.stats().hitCount();
+	}
+
+	/**
+	 * Returns the proportion of lookups which were answered from the cache, from 0.0 to 1.0
+	 */
+	public double getHitRate() {
+		return myForcedIdToPid.stats().hitRate();
+	}
+
+	/**
+	 * Returns the number of lookups which had to go to the database
+	 */
+	public long getMissCount() {
+		return myForcedIdToPid.stats().missCount();
+	}
+
+	/**
+	 * Returns the PID of the resource with the given forced ID, or <code>null</code> if no resource has that ID
+	 */
+	public Long getPid(String theForcedId) {
+		Long retVal = myForcedIdToPid.getIfPresent(theForcedId);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		TypedQuery<ForcedId> q = myEntityManager.createNamedQuery("Q_GET_FORCED_ID", ForcedId.class);
+		q.setParameter("ID", theForcedId);
+		List<ForcedId> results = q.getResultList();
+		if (results.isEmpty()) {
+			return null;
+		}
+
+		retVal = results.get(0).getResourcePid();
+		put(theForcedId, retVal);
+		return retVal;
+	}
+
+	/**
+	 * Returns the PIDs of the resources with the given forced IDs. IDs which are not in the cache are looked up with as
+	 * few queries as possible. IDs which don't belong to any resource are not included in the returned map.
+	 */
+	public Map<String, Long> getPids(Collection<String> theForcedIds) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		Set<String> toLoad = new LinkedHashSet<String>();
+		for (String next : theForcedIds) {
+			Long pid = myForcedIdToPid.getIfPresent(next);
+			if (pid != null) {
+				retVal.put(next, pid);
+			} else {
+				toLoad.add(next);
+			}
+		}
+
+		List<String> batch = new ArrayList<String>(Math.min(toLoad.size(), MAX_IDS_PER_QUERY));
+		for (String next : toLoad) {
+			batch.add(next);
+			if (batch.size() == MAX_IDS_PER_QUERY) {
+				loadPids(batch, retVal);
+				batch.clear();
+			}
+		}
+		if (batch.size() > 0) {
+			loadPids(batch, retVal);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the number of mappings currently held
+	 */
+	public long getSize() {
+		return myForcedIdToPid.size();
+	}
+
+	private void loadPids(List<String> theForcedIds, Map<String, Long> theResults) {
+		TypedQuery<ForcedId> q = myEntityManager.createQuery("SELECT f FROM ForcedId f WHERE f.myForcedId IN (:IDS)", ForcedId.class);
+		q.setParameter("IDS", theForcedIds);
+		for (ForcedId next : q.getResultList()) {
+			theResults.put(next.getForcedId(), next.getResourcePid());
+			put(next.getForcedId(), next.getResourcePid());
+		}
+		ourLog.debug("Loaded {} of {} forced IDs", theResults.size(), theForcedIds.size());
+	}
+
+	private void put(String theForcedId, Long thePid) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			putCommitted(theForcedId, thePid);
+			return;
+		}
+
+		PendingMappings pending = (PendingMappings) TransactionSynchronizationManager.getResource(this);
+		if (pending == null) {
+			pending = new PendingMappings();
+			TransactionSynchronizationManager.bindResource(this, pending);
+			TransactionSynchronizationManager.registerSynchronization(pending);
+		}
+		pending.myMappings.put(theForcedId, thePid);
+	}
+
+	private void putCommitted(String theForcedId, Long thePid) {
+		myForcedIdToPid.put(theForcedId, thePid);
+	}
+
+	@PostConstruct
+	public void start() {
+		int size = myDaoConfig.getForcedIdCacheSize();
+		myForcedIdToPid = CacheBuilder.newBuilder().maximumSize(size).recordStats().build();
+	}
+
+	/**
+	 * The mappings looked up by a transaction, which are added to the cache once it commits
+	 */
+	private class PendingMappings extends TransactionSynchronizationAdapter {
+
+		private final Map<String, Long> myMappings = new LinkedHashMap<String, Long>();
+
+		@Override
+		public void afterCommit() {
+			for (Map.Entry<String, Long> next : myMappings.entrySet()) {
+				putCommitted(next.getKey(), next.getValue());
+			}
+		}
+
+		@Override
+		public void afterCompletion(int theStatus) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(ForcedIdCache.this);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(ForcedIdCache.this, this);
+		}
+
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResource(ForcedIdCache.this);
+		}
+
+	}
+
+}
@@ -0,0 +1,216 @@
+package ca.uhn.fhir.jpa.dao;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.FullTextQuery;
+import org.hibernate.search.query.dsl.BooleanJunction;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Full-text search using Hibernate Search, which keeps a Lucene index of {@link ResourceTable} entities. The
+ * persistence unit should set <code>hibernate.search.indexing_strategy</code> to <code>manual</code>, since the index
+ * is updated explicitly by {@link #updateIndex(ResourceTable)} once the full-text fields of a resource have been
+ * populated, and <code>hibernate.search.default.directory_provider</code> (and <code>indexBase</code>) to say where the
+ * index is stored.
+ * <p>
+ * Search values are split into words using the same analyzer as the indexed text, and a resource matches a value if
+ * it contains every one of its words. For <code>:contains</code>, each word may also be the start of a longer word.
+ * </p>
+ */
+public class FulltextSearchSvcImpl implements IFulltextSearchSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FulltextSearchSvcImpl.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	/**
+	 * Adds a clause to the given junction which requires one of the given values to match the given field
+	 * 
+	 * @return Returns <code>false</code> if none of the values contain any words to search for
+	 */
+	private boolean addOrClause(QueryBuilder theQueryBuilder, Analyzer theAnalyzer, BooleanJunction<?> theJunction, String theFieldName, List<? extends IQueryParameterType> theOrValues,
+			boolean thePrefixMatch) {
+		BooleanJunction<?> orJunction = theQueryBuilder.bool();
+		boolean haveClause = false;
+		for (IQueryParameterType nextOr : theOrValues) {
+			List<String> terms = analyze(theAnalyzer, theFieldName, toText(nextOr));
+			if (terms.isEmpty()) {
+				continue;
+			}
+
+			BooleanJunction<?> termJunction = theQueryBuilder.bool();
+			for (String nextTerm : terms) {
+				Term term = new Term(theFieldName, nextTerm);
+				Query query = thePrefixMatch ? new PrefixQuery(term) : new TermQuery(term);
+				termJunction.must(query);
+			}
+			orJunction.should(termJunction.createQuery());
+			haveClause = true;
+		}
+
+		if (haveClause) {
+			theJunction.must(orJunction.createQuery());
+		}
+		return haveClause;
+	}
+
+	private List<String> analyze(Analyzer theAnalyzer, String theFieldName, String theText) {
+		List<String> retVal = new ArrayList<String>();
+		TokenStream stream = null;
+		try {
+			stream = theAnalyzer.tokenStream(theFieldName, theText);
+			CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				retVal.add(termAttribute.toString());
+			}
+			stream.end();
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+		return retVal;
+	}
+
+	private List<Long> doSearch(FullTextEntityManager theEm, QueryBuilder theQueryBuilder, String theResourceName, BooleanJunction<?> theJunction, int theMaxHits) {
+		StopWatch w = new StopWatch();
+
+		theJunction.must(new TermQuery(new Term(ResourceTable.FIELD_RESOURCE_TYPE, theResourceName)));
+
+		FullTextQuery query = theEm.createFullTextQuery(theJunction.createQuery(), ResourceTable.class);
+		query.setProjection(FullTextQuery.ID);
+		query.setMaxResults(theMaxHits);
+
+		List<Long> retVal = new ArrayList<Long>();
+		for (Object next : query.getResultList()) {
+			Object[] nextRow = (Object[]) next;
+			retVal.add((Long) nextRow[0]);
+		}
+
+		ourLog.debug("Full-text search for {} matched {} resources in {}ms", new Object[] { theResourceName, retVal.size(), w.getMillisAndRestart() });
+		return retVal;
+	}
+
+	@Override
+	public List<Long> search(String theResourceName, SearchParameterMap theParams) {
+		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
+		QueryBuilder qb = em.getSearchFactory().buildQueryBuilder().forEntity(ResourceTable.class).get();
+		Analyzer analyzer = em.getSearchFactory().getAnalyzer(ResourceTable.class);
+
+		BooleanJunction<?> bool = qb.bool();
+		boolean haveClause = false;
+
+		List<List<? extends IQueryParameterType>> contentAndTerms = theParams.get(Constants.PARAM_CONTENT);
+		if (contentAndTerms != null) {
+			for (List<? extends IQueryParameterType> nextAnd : contentAndTerms) {
+				haveClause |= addOrClause(qb, analyzer, bool, ResourceTable.FIELD_CONTENT, nextAnd, false);
+			}
+		}
+
+		List<List<? extends IQueryParameterType>> textAndTerms = theParams.get(Constants.PARAM_TEXT);
+		if (textAndTerms != null) {
+			for (List<? extends IQueryParameterType> nextAnd : textAndTerms) {
+				haveClause |= addOrClause(qb, analyzer, bool, ResourceTable.FIELD_NARRATIVE, nextAnd, false);
+			}
+		}
+
+		if (!haveClause) {
+			return new ArrayList<Long>();
+		}
+
+		return doSearch(em, qb, theResourceName, bool, myDaoConfig.getFulltextSearchMaxHits());
+	}
+
+	@Override
+	public List<Long> searchStringContains(String theResourceName, String theParamName, List<? extends IQueryParameterType> theOrValues) {
+		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
+		QueryBuilder qb = em.getSearchFactory().buildQueryBuilder().forEntity(ResourceTable.class).get();
+		Analyzer analyzer = em.getSearchFactory().getAnalyzer(ResourceTable.class);
+
+		BooleanJunction<?> bool = qb.bool();
+		if (!addOrClause(qb, analyzer, bool, ResourceTable.getStringParamFieldName(theParamName), theOrValues, true)) {
+			return new ArrayList<Long>();
+		}
+
+		// Fetch one more than the limit so we can tell whether the limit was exceeded
+		int maxHits = myDaoConfig.getFulltextSearchMaxHits();
+		List<Long> retVal = doSearch(em, qb, theResourceName, bool, maxHits + 1);
+		if (retVal.size() > maxHits) {
+			ourLog.debug("Full-text search for {} matched more than {} resources", theResourceName, maxHits);
+			return null;
+		}
+		return retVal;
+	}
+
+	@Override
+	public void updateIndex(ResourceTable theEntity) {
+		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
+		if (theEntity.getDeleted() != null) {
+			em.purge(ResourceTable.class, theEntity.getId());
+		} else {
+			em.index(theEntity);
+		}
+	}
+
+	private static String toText(IQueryParameterType theParameter) {
+		String retVal;
+		if (theParameter instanceof StringParam) {
+			retVal = ((StringParam) theParameter).getValue();
+		} else {
+			retVal = theParameter.getValueAsQueryToken();
+		}
+		return defaultString(retVal);
+	}
+
+}
@@ -25,6 +25,11 @@ import java.util.Date;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
+/**
+ * The key of one entry in a history: either the current version of a resource (a row in HFJ_RESOURCE) or a previous
+ * version (a row in HFJ_RES_VER). Tuples are ordered by their timestamp, then with previous versions before current
+ * ones, and then by their PID, so a history in descending order lists the most recent changes first.
+ */
 class HistoryTuple implements Comparable<HistoryTuple> {
 
 	private Long myId;
@@ -40,7 +45,14 @@ class HistoryTuple implements Comparable<HistoryTuple> {
 
 	@Override
 	public int compareTo(HistoryTuple theO) {
-		return myUpdated.compareTo(theO.myUpdated);
+		int retVal = myUpdated.compareTo(theO.myUpdated);
+		if (retVal == 0 && myIsHistory != theO.myIsHistory) {
+			retVal = myIsHistory ? -1 : 1;
+		}
+		if (retVal == 0) {
+			retVal = myId.compareTo(theO.myId);
+		}
+		return retVal;
 	}
 
 	public Long getId() {
@@ -24,10 +24,16 @@ import java.util.Date;
 import java.util.Map;
 import java.util.Set;
 
+import javax.persistence.criteria.AbstractQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Subquery;
+
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.Search;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.TagList;
@@ -53,12 +59,27 @@ public interface IFhirResourceDao<T extends IBaseResource> extends IDao {
 	 */
 	DaoMethodOutcome create(T theResource, String theIfNoneExist, boolean thePerformIndexing);
 
+	/**
+	 * <b>Not supported for public use</b> - Creates a subquery which selects the PIDs of the resources of this type
+	 * which match the given parameter, for use as the target of a chained reference parameter (e.g.
+	 * <code>subject.name=smith</code>) on another resource type. This is called by the DAO of the resource type being
+	 * searched, which only has access to the other DAOs through this interface.
+	 * 
+	 * @return The subquery, or <code>null</code> if the parameter can not possibly match anything
+	 */
+	Subquery<Long> createChainedSubquery(String theParamName, IQueryParameterType theValue, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery);
+
 	DaoMethodOutcome delete(IIdType theResource);
 
 	DaoMethodOutcome deleteByUrl(String theString);
 
 	TagList getAllResourceTags();
 
+	/**
+	 * Returns the name of the resource type handled by this DAO, e.g. "Patient"
+	 */
+	String getResourceName();
+
 	Class<T> getResourceType();
 
 	TagList getTags(IIdType theResourceId);
@@ -69,6 +90,12 @@ public interface IFhirResourceDao<T extends IBaseResource> extends IDao {
 
 	IBundleProvider history(Long theId, Date theSince);
 
+	/**
+	 * Returns a bundle provider for search results which were previously stored in the database
+	 * (see {@link IPersistableBundleProvider#persist()})
+	 */
+	IBundleProvider loadSearch(Search theSearch);
+
 	/**
 	 * Not supported in DSTU1!
 	 */
@@ -109,6 +136,18 @@ public interface IFhirResourceDao<T extends IBaseResource> extends IDao {
 	 */
 	BaseHasResource readEntity(IIdType theId, boolean theCheckForForcedId);
 
+	/**
+	 * Rewrites the search parameter indexes of a resource from its current contents, without creating a new version.
+	 * This goes through the same storage hooks as an update, but interceptors are not notified since the resource
+	 * itself does not change. Must be called within a transaction.
+	 * 
+	 * @param theResource
+	 *           The current contents of the resource
+	 * @param theEntity
+	 *           The entity the resource was loaded from
+	 */
+	void reindex(T theResource, ResourceTable theEntity);
+
 	void removeTag(IIdType theId, TagTypeEnum theTagType, String theScheme, String theTerm);
 
 	IBundleProvider search(Map<String, IQueryParameterType> theParams);
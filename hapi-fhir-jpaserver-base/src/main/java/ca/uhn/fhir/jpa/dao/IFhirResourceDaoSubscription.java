@@ -31,6 +31,26 @@ public interface IFhirResourceDaoSubscription<T extends IBaseResource> extends I
 
 	List<IBaseResource> getUndeliveredResourcesAndPurge(Long theSubscriptionPid);
 
+	/**
+	 * Returns (and removes) at most <code>theMaxResults</code> of the resources which have been flagged for the given
+	 * subscription, oldest first. Any further resources stay flagged for a later call.
+	 */
+	List<IBaseResource> getUndeliveredResourcesAndPurge(Long theSubscriptionPid, int theMaxResults);
+
+	/**
+	 * Returns at most <code>theMaxResults</code> of the resources which have been flagged for the given subscription,
+	 * oldest first, without removing them. Once the resources have been delivered, they must be removed using
+	 * {@link #purgeDeliveredResources(Long, UndeliveredResources)}, so that a delivery which fails leaves them flagged
+	 * for a later attempt.
+	 */
+	UndeliveredResources getUndeliveredResources(Long theSubscriptionPid, int theMaxResults);
+
+	/**
+	 * Removes the flags for resources returned by {@link #getUndeliveredResources(Long, int)} which have been
+	 * delivered. Flags which have already been removed are ignored.
+	 */
+	void purgeDeliveredResources(Long theSubscriptionPid, UndeliveredResources theDelivered);
+
 	Long getSubscriptionTablePidForSubscriptionResource(IIdType theId);
 
 	void purgeInactiveSubscriptions();
@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import java.io.Reader;
 import java.util.Date;
 import java.util.Map;
 
@@ -44,8 +45,57 @@ public interface IFhirSystemDao<T> extends IDao {
 
 	IBundleProvider history(Date theDate);
 
+	/**
+	 * Imports a large number of resources as quickly as possible. The resources are read as NDJSON (one JSON encoded
+	 * resource per line), parsed and indexed by a pool of worker threads, and written in batches, each in its own
+	 * transaction. Resources with an ID are stored using that ID (which must not already exist and must contain at
+	 * least one non-numeric character), and resources without one are assigned a new ID.
+	 * <p>
+	 * Imported resources are indexed exactly as created resources are, including the unique and full-text indexes
+	 * if these are enabled. Unlike normal creates, this does not notify interceptors for each resource, and
+	 * imported resources are not matched against subscriptions. Lines which
+	 * can't be imported are reported in the outcome, and do not stop the import.
+	 * </p>
+	 * 
+	 * @param theReader
+	 *           The NDJSON to read. This is read until it is exhausted, but is not closed.
+	 * @param theDeferIndexing
+	 *           If <code>true</code>, resources are stored without being indexed or having their references
+	 *           validated, and the resources stored by this import (and only those) are indexed once all of them
+	 *           have been stored. This allows resources to refer to resources which appear later in the input. If
+	 *           <code>false</code>, references must point to resources which already exist or appear earlier in the
+	 *           input.
+	 */
+	ImportOutcome importResources(Reader theReader, boolean theDeferIndexing);
+
+	/**
+	 * Reindexes resources which are marked as needing it (see {@link #markAllResourcesForReindexing()}). The pending
+	 * resources are split into chunks of consecutive resource IDs, and each chunk is reindexed and committed in its own
+	 * transaction by a pool of worker threads (see {@link DaoConfig#setReindexThreadCount(int)}). Only the search
+	 * parameter indexes are rewritten, no new resource version is created.
+	 * <p>
+	 * Resources which can't be reindexed are marked as having failed indexing instead of aborting the pass. Because
+	 * each chunk is committed as it completes, a pass which is interrupted can simply be started again and will
+	 * pick up where it left off.
+	 * </p>
+	 * 
+	 * @param theCount
+	 *           The maximum number of resources to reindex, or <code>null</code> for the default of 500
+	 * @return Returns the number of resources which were processed (including any which failed)
+	 */
 	int performReindexingPass(Integer theCount);
 
+	/**
+	 * Returns the progress of the reindexing pass which is currently running, or of the most recent one if none is
+	 * running, or <code>null</code> if no pass has been performed since the server started
+	 */
+	ReindexingProgress getReindexingProgress();
+
+	/**
+	 * Returns the number of resources which are waiting to be reindexed
+	 */
+	long getResourcesPendingReindexingCount();
+
 	/**
 	 * Marks all indexes as needing fresh indexing
 	 * 
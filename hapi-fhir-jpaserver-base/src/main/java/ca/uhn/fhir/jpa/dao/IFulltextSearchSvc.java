@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.dao;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+
+/**
+ * Maintains and searches the optional full-text index of resources, which is used for the <code>_content</code> and
+ * <code>_text</code> search parameters and for the <code>:contains</code> modifier on string parameters. Full-text
+ * searching is enabled by defining a bean implementing this interface (normally {@link FulltextSearchSvcImpl}) in the
+ * application context, and configuring Hibernate Search in the persistence unit.
+ */
+public interface IFulltextSearchSvc {
+
+	/**
+	 * Returns the PIDs of the resources of the given type which match the <code>_content</code> and
+	 * <code>_text</code> parameters in the given map, most relevant first. No more than
+	 * {@link DaoConfig#getFulltextSearchMaxHits()} PIDs are returned.
+	 */
+	List<Long> search(String theResourceName, SearchParameterMap theParams);
+
+	/**
+	 * Returns the PIDs of the resources of the given type with a value for the given string search parameter which
+	 * contains any of the given values
+	 * 
+	 * @return The PIDs, or <code>null</code> if more than {@link DaoConfig#getFulltextSearchMaxHits()} resources match
+	 */
+	List<Long> searchStringContains(String theResourceName, String theParamName, List<? extends IQueryParameterType> theOrValues);
+
+	/**
+	 * Adds the given resource to the index (or replaces it), or removes it from the index if it has been deleted. The
+	 * full-text fields of the entity must already be populated. The index is updated when the current transaction
+	 * commits.
+	 */
+	void updateIndex(ResourceTable theEntity);
+
+}
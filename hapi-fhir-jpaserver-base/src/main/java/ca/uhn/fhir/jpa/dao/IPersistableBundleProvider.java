@@ -0,0 +1,42 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * A bundle provider for search results which can be written to the HFJ_SEARCH / HFJ_SEARCH_RESULT tables, so that
+ * they can be paged through later, potentially on a different server node.
+ * 
+ * @see ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider
+ */
+public interface IPersistableBundleProvider extends IBundleProvider {
+
+	/**
+	 * Stores the PIDs of the resources matched by this search in the database. Calling this method
+	 * more than once stores the results only once.
+	 * 
+	 * @return The UUID of the stored search, or <code>null</code> if these results can not be stored
+	 *         (in which case the caller should keep this provider in memory instead)
+	 */
+	String persist();
+
+}
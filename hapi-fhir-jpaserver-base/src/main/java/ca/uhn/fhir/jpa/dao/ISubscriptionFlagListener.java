@@ -0,0 +1,41 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Set;
+
+/**
+ * Notified by the {@link SubscriptionMatcher} when resources have been flagged for subscriptions, so that they can be
+ * delivered without polling for them
+ */
+public interface ISubscriptionFlagListener {
+
+	/**
+	 * Called once the transaction which flagged the resources has committed (so the flags can be read), on the thread
+	 * which ran that transaction. Implementations must therefore return quickly, e.g. by handing the delivery to
+	 * another thread.
+	 * 
+	 * @param theSubscriptionPids
+	 *           The PIDs of the subscription table entries which resources were flagged for
+	 */
+	void resourcesFlagged(Set<Long> theSubscriptionPids);
+
+}
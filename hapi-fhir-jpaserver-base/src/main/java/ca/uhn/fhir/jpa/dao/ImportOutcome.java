@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a bulk import (see {@link IFhirSystemDao#importResources(java.io.Reader, boolean)})
+ */
+public class ImportOutcome {
+
+	/**
+	 * The maximum number of failure messages which are kept
+	 */
+	static final int MAX_MESSAGES = 100;
+
+	private int myFailureCount;
+	private final List<String> myMessages = new ArrayList<String>();
+	private long myMillis;
+	private int myResourceCount;
+
+	void addFailure(String theMessage) {
+		myFailureCount++;
+		if (myMessages.size() < MAX_MESSAGES) {
+			myMessages.add(theMessage);
+		}
+	}
+
+	void addFailures(ReindexingProgress theProgress) {
+		for (String next : theProgress.getMessages()) {
+			if (myMessages.size() < MAX_MESSAGES) {
+				myMessages.add(next);
+			}
+		}
+		myFailureCount += theProgress.getFailureCount();
+	}
+
+	void addResources(int theCount) {
+		myResourceCount += theCount;
+	}
+
+	/**
+	 * Returns the number of lines which could not be imported
+	 */
+	public int getFailureCount() {
+		return myFailureCount;
+	}
+
+	/**
+	 * Returns a description of each line which could not be imported (only the first {@value #MAX_MESSAGES} failures
+	 * are described)
+	 */
+	public List<String> getMessages() {
+		return myMessages;
+	}
+
+	/**
+	 * Returns the total time taken by the import, including any deferred indexing
+	 */
+	public long getMillis() {
+		return myMillis;
+	}
+
+	/**
+	 * Returns the number of resources which were stored
+	 */
+	public int getResourceCount() {
+		return myResourceCount;
+	}
+
+	/**
+	 * Returns the average number of resources stored per second
+	 */
+	public double getResourcesPerSecond() {
+		return myMillis > 0 ? (myResourceCount * 1000.0) / myMillis : myResourceCount;
+	}
+
+	void setMillis(long theMillis) {
+		myMillis = theMillis;
+	}
+
+}
@@ -0,0 +1,352 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Resolves <code>_include</code> and <code>_revinclude</code> parameters into the PIDs of the resources they add to
+ * a page of search results, using the HFJ_RES_LINK table.
+ * <p>
+ * Includes are resolved in rounds (one round for non-recursive includes, and as many as needed for recursive ones).
+ * Each round is a single query which selects only the PIDs of the linked resources, for all of the include paths at
+ * once, and which is split into chunks of at most {@link #MAX_PIDS_PER_QUERY} PIDs when the set of resources to
+ * resolve from is large. Chunks are resolved concurrently if {@link DaoConfig#setIncludeThreadCount(int)} is greater
+ * than 1. No more than {@link DaoConfig#getIncludeLimit()} resources are ever included, and the
+ * {@link IncludeOutcome} says if any had to be left out because of that.
+ * </p>
+ * <p>
+ * A single instance of this class is shared by all of the DAOs in an application context.
+ * </p>
+ */
+public class IncludeResolver {
+
+	/**
+	 * The maximum number of PIDs passed to a single query
+	 */
+	static final int MAX_PIDS_PER_QUERY = 500;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(IncludeResolver.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private ExecutorService myExecutor;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	private List<Long> findLinkedPids(Collection<Long> thePids, Set<String> thePaths, boolean theReverseMode, DateRangeParam theLastUpdated) {
+		List<List<Long>> chunks = Lists.partition(new ArrayList<Long>(thePids), MAX_PIDS_PER_QUERY);
+		List<Long> retVal = new ArrayList<Long>();
+
+		if (myExecutor == null || chunks.size() == 1) {
+			for (List<Long> nextChunk : chunks) {
+				retVal.addAll(findLinkedPidsForChunk(nextChunk, thePaths, theReverseMode, theLastUpdated));
+			}
+			return retVal;
+		}
+
+		List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+		for (List<Long> nextChunk : chunks) {
+			futures.add(myExecutor.submit(new ChunkResolver(nextChunk, thePaths, theReverseMode, theLastUpdated)));
+		}
+		try {
+			for (Future<List<Long>> next : futures) {
+				retVal.addAll(next.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException(e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException(e.getCause());
+		} finally {
+			for (Future<List<Long>> next : futures) {
+				next.cancel(true);
+			}
+		}
+		return retVal;
+	}
+
+	private List<Long> findLinkedPidsForChunk(List<Long> thePids, Set<String> thePaths, boolean theReverseMode, DateRangeParam theLastUpdated) {
+		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
+		String foundFieldName = theReverseMode ? "mySourceResource" : "myTargetResource";
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("SELECT DISTINCT r.").append(foundFieldName).append("Pid FROM ResourceLink r WHERE r.").append(searchFieldName).append(" IN (:pids)");
+		if (thePaths != null) {
+			sql.append(" AND r.mySourcePath IN (:src_paths)");
+		}
+		Date lowerBound = theLastUpdated != null ? theLastUpdated.getLowerBoundAsInstant() : null;
+		Date upperBound = theLastUpdated != null ? theLastUpdated.getUpperBoundAsInstant() : null;
+		if (lowerBound != null) {
+			sql.append(" AND r.").append(foundFieldName).append(".myUpdated >= :lower_bound");
+		}
+		if (upperBound != null) {
+			sql.append(" AND r.").append(foundFieldName).append(".myUpdated <= :upper_bound");
+		}
+
+		TypedQuery<Long> q = myEntityManager.createQuery(sql.toString(), Long.class);
+		q.setParameter("pids", thePids);
+		if (thePaths != null) {
+			q.setParameter("src_paths", thePaths);
+		}
+		if (lowerBound != null) {
+			q.setParameter("lower_bound", lowerBound);
+		}
+		if (upperBound != null) {
+			q.setParameter("upper_bound", upperBound);
+		}
+		return q.getResultList();
+	}
+
+	private List<String> getPaths(FhirContext theContext, Include theInclude) {
+		if (theContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+			return Collections.singletonList(theInclude.getValue());
+		}
+
+		int colonIdx = theInclude.getValue().indexOf(':');
+		if (colonIdx < 2) {
+			return Collections.emptyList();
+		}
+		String resType = theInclude.getValue().substring(0, colonIdx);
+		RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
+		if (def == null) {
+			ourLog.warn("Unknown resource type in include/revinclude=" + theInclude.getValue());
+			return Collections.emptyList();
+		}
+
+		String paramName = theInclude.getValue().substring(colonIdx + 1);
+		RuntimeSearchParam param = def.getSearchParam(paramName);
+		if (param == null) {
+			ourLog.warn("Unknown param name in include/revinclude=" + theInclude.getValue());
+			return Collections.emptyList();
+		}
+
+		return param.getPathsSplit();
+	}
+
+	/**
+	 * Resolves the given includes
+	 * 
+	 * @param theContext
+	 *           The context to resolve include paths against
+	 * @param theMatches
+	 *           The PIDs of the resources to include from. These are never part of the outcome.
+	 * @param theIncludes
+	 *           The includes to resolve
+	 * @param theReverseMode
+	 *           <code>true</code> for <code>_revinclude</code>, <code>false</code> for <code>_include</code>
+	 * @param theLastUpdated
+	 *           If not <code>null</code>, only resources updated within this range are included
+	 */
+	public IncludeOutcome resolve(FhirContext theContext, Collection<Long> theMatches, Set<Include> theIncludes, boolean theReverseMode, DateRangeParam theLastUpdated) {
+		IncludeOutcome retVal = new IncludeOutcome();
+		if (theMatches.isEmpty() || theIncludes == null || theIncludes.isEmpty()) {
+			return retVal;
+		}
+
+		int limit = myDaoConfig.getIncludeLimit();
+		Set<Long> original = new HashSet<Long>(theMatches);
+		Collection<Long> nextRoundMatches = theMatches;
+		List<Include> includes = new ArrayList<Include>(theIncludes);
+
+		int roundCounts = 0;
+		StopWatch w = new StopWatch();
+
+		do {
+			roundCounts++;
+
+			/*
+			 * All of the includes for this round are combined into one query. A wildcard
+			 * include means that links with any path are followed.
+			 */
+			Set<String> paths = new HashSet<String>();
+			for (Iterator<Include> iter = includes.iterator(); iter.hasNext();) {
+				Include nextInclude = iter.next();
+				if (nextInclude.isRecurse() == false) {
+					iter.remove();
+				}
+				if (paths != null) {
+					if ("*".equals(nextInclude.getValue())) {
+						paths = null;
+					} else {
+						paths.addAll(getPaths(theContext, nextInclude));
+					}
+				}
+			}
+			if (paths != null && paths.isEmpty()) {
+				break;
+			}
+
+			List<Long> addedThisRound = new ArrayList<Long>();
+			for (Long next : findLinkedPids(nextRoundMatches, paths, theReverseMode, theLastUpdated)) {
+				if (original.contains(next) || retVal.getPids().contains(next)) {
+					continue;
+				}
+				if (retVal.getPids().size() >= limit) {
+					retVal.setTruncated(true);
+					break;
+				}
+				retVal.getPids().add(next);
+				addedThisRound.add(next);
+			}
+
+			nextRoundMatches = addedThisRound;
+		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && !retVal.isTruncated());
+
+		ourLog.info("Loaded {} {} in {} rounds and {} ms", new Object[] { retVal.getPids().size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, w.getMillisAndRestart() });
+		if (retVal.isTruncated()) {
+			ourLog.warn("Include limit of {} was reached, some {} have been left out", limit, theReverseMode ? "_revincludes" : "_includes");
+		}
+
+		return retVal;
+	}
+
+	@PostConstruct
+	public void start() {
+		int threadCount = myDaoConfig.getIncludeThreadCount();
+		if (threadCount > 1) {
+			myExecutor = Executors.newFixedThreadPool(threadCount, new IncludeThreadFactory());
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (myExecutor != null) {
+			myExecutor.shutdownNow();
+			myExecutor = null;
+		}
+	}
+
+	private class ChunkResolver implements Callable<List<Long>> {
+
+		private final DateRangeParam myLastUpdated;
+		private final Set<String> myPaths;
+		private final List<Long> myPids;
+		private final boolean myReverseMode;
+
+		public ChunkResolver(List<Long> thePids, Set<String> thePaths, boolean theReverseMode, DateRangeParam theLastUpdated) {
+			myPids = thePids;
+			myPaths = thePaths;
+			myReverseMode = theReverseMode;
+			myLastUpdated = theLastUpdated;
+		}
+
+		@Override
+		public List<Long> call() {
+			TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+			txTemplate.setReadOnly(true);
+			return txTemplate.execute(new TransactionCallback<List<Long>>() {
+				@Override
+				public List<Long> doInTransaction(TransactionStatus theStatus) {
+					return findLinkedPidsForChunk(myPids, myPaths, myReverseMode, myLastUpdated);
+				}
+			});
+		}
+
+	}
+
+	private static class IncludeThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger myCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable theRunnable) {
+			Thread retVal = new Thread(theRunnable, "include-resolver-" + myCount.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+
+	}
+
+	/**
+	 * The outcome of resolving a set of includes
+	 */
+	public static class IncludeOutcome {
+
+		private final Set<Long> myPids = new LinkedHashSet<Long>();
+		private boolean myTruncated;
+
+		/**
+		 * Returns the PIDs of the included resources, in the order in which they were found
+		 */
+		public Set<Long> getPids() {
+			return myPids;
+		}
+
+		/**
+		 * Returns <code>true</code> if there were more resources to include than {@link DaoConfig#getIncludeLimit()}
+		 * allows, meaning that some have been left out
+		 */
+		public boolean isTruncated() {
+			return myTruncated;
+		}
+
+		void setTruncated(boolean theTruncated) {
+			myTruncated = theTruncated;
+		}
+
+	}
+
+}
@@ -0,0 +1,269 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamCoords;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * A parsed <code>near</code> search, e.g. <code>Location?near=42.256|-83.694|10</code>, meaning "within 10 km of
+ * latitude 42.256 and longitude -83.694". The distance may also be given by a separate <code>near-distance</code>
+ * parameter, and may have units of <code>km</code> (the default), <code>m</code> or <code>mi</code>.
+ * <p>
+ * The search is executed in two steps: the query selects the coordinates within a bounding box around the point,
+ * using the grid cells indexed in HFJ_SPIDX_COORDS (see {@link ResourceIndexedSearchParamCoords#getGridCell()}), and
+ * the candidates are then checked against the great-circle distance using {@link #isWithinDistance(double, double)}.
+ * </p>
+ */
+class NearSearch {
+
+	static final String SP_NEAR = "near";
+	static final String SP_NEAR_DISTANCE = "near-distance";
+
+	private static final double EARTH_RADIUS_KM = 6371.0088;
+
+	/**
+	 * Above this number of grid rows the bounding box is selected as whole rows, instead of as one range of cells for
+	 * each row
+	 */
+	private static final int MAX_ROWS_FOR_CELL_RANGES = 50;
+
+	private final double myDistanceKm;
+	private final double myLatitude;
+	private final double myLongitude;
+	private final double myMaxLatitude;
+	private final double myMaxLongitude;
+	private final double myMinLatitude;
+	private final double myMinLongitude;
+
+	NearSearch(double theLatitude, double theLongitude, double theDistanceKm) {
+		if (theLatitude < -90.0 || theLatitude > 90.0 || theLongitude < -180.0 || theLongitude > 180.0) {
+			throw new InvalidRequestException("Invalid " + SP_NEAR + " coordinates: " + theLatitude + "|" + theLongitude);
+		}
+		if (theDistanceKm < 0) {
+			throw new InvalidRequestException("Invalid " + SP_NEAR_DISTANCE + ": " + theDistanceKm);
+		}
+
+		myLatitude = theLatitude;
+		myLongitude = theLongitude;
+		myDistanceKm = theDistanceKm;
+
+		double deltaLatitude = Math.toDegrees(theDistanceKm / EARTH_RADIUS_KM);
+		myMinLatitude = theLatitude - deltaLatitude;
+		myMaxLatitude = theLatitude + deltaLatitude;
+
+		double cosLatitude = Math.min(Math.cos(Math.toRadians(myMinLatitude)), Math.cos(Math.toRadians(myMaxLatitude)));
+		if (myMinLatitude <= -90.0 || myMaxLatitude >= 90.0 || cosLatitude <= 0) {
+			// The box contains a pole, so every longitude is in range
+			myMinLongitude = -180.0;
+			myMaxLongitude = 180.0;
+		} else {
+			double deltaLongitude = Math.min(180.0, deltaLatitude / cosLatitude);
+			myMinLongitude = theLongitude - deltaLongitude;
+			myMaxLongitude = theLongitude + deltaLongitude;
+		}
+	}
+
+	/**
+	 * Returns the great-circle distance in km between the point searched near and the given coordinates
+	 */
+	double distanceTo(double theLatitude, double theLongitude) {
+		double lat1 = Math.toRadians(myLatitude);
+		double lat2 = Math.toRadians(theLatitude);
+		double deltaLat = lat2 - lat1;
+		double deltaLon = Math.toRadians(theLongitude - myLongitude);
+
+		double a = Math.sin(deltaLat / 2) * Math.sin(deltaLat / 2) + Math.cos(lat1) * Math.cos(lat2) * Math.sin(deltaLon / 2) * Math.sin(deltaLon / 2);
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+	}
+
+	double getDistanceKm() {
+		return myDistanceKm;
+	}
+
+	/**
+	 * Returns the ranges (inclusive) of grid cells which cover the bounding box of this search. There is one range for
+	 * each row of the grid (two if the box crosses longitude 180), unless the box covers more than
+	 * {@link #MAX_ROWS_FOR_CELL_RANGES} rows or every longitude, in which case whole rows are selected.
+	 */
+	List<long[]> getGridCellRanges() {
+		int minRow = ResourceIndexedSearchParamCoords.toGridRow(myMinLatitude);
+		int maxRow = ResourceIndexedSearchParamCoords.toGridRow(myMaxLatitude);
+		int columns = ResourceIndexedSearchParamCoords.GRID_COLUMNS;
+
+		List<long[]> retVal = new ArrayList<long[]>();
+		if (isAllLongitudes() || (maxRow - minRow) >= MAX_ROWS_FOR_CELL_RANGES) {
+			retVal.add(new long[] { ((long) minRow) * columns, ((long) maxRow) * columns + columns - 1 });
+			return retVal;
+		}
+
+		int minColumn = ResourceIndexedSearchParamCoords.toGridColumn(myMinLongitude);
+		int maxColumn = ResourceIndexedSearchParamCoords.toGridColumn(myMaxLongitude);
+		for (long row = minRow; row <= maxRow; row++) {
+			if (minColumn <= maxColumn) {
+				retVal.add(new long[] { row * columns + minColumn, row * columns + maxColumn });
+			} else {
+				retVal.add(new long[] { row * columns + minColumn, row * columns + columns - 1 });
+				retVal.add(new long[] { row * columns, row * columns + maxColumn });
+			}
+		}
+		return retVal;
+	}
+
+	double getMaxLatitude() {
+		return myMaxLatitude;
+	}
+
+	double getMaxLongitude() {
+		return myMaxLongitude;
+	}
+
+	double getMinLatitude() {
+		return myMinLatitude;
+	}
+
+	double getMinLongitude() {
+		return myMinLongitude;
+	}
+
+	/**
+	 * Does the bounding box cover every longitude? If not, it crosses longitude 180 when
+	 * {@link #getMinLongitude()} is less than -180 or {@link #getMaxLongitude()} is greater than 180.
+	 */
+	boolean isAllLongitudes() {
+		return myMaxLongitude - myMinLongitude >= 360.0;
+	}
+
+	boolean isWithinDistance(double theLatitude, double theLongitude) {
+		return distanceTo(theLatitude, theLongitude) <= myDistanceKm;
+	}
+
+	@Override
+	public String toString() {
+		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		b.append("lat", myLatitude);
+		b.append("lon", myLongitude);
+		b.append("distanceKm", myDistanceKm);
+		return b.build();
+	}
+
+	/**
+	 * Parses the <code>near</code> (and <code>near-distance</code>) parameters in the given map
+	 *
+	 * @return The search, or <code>null</code> if the map doesn't have a <code>near</code> parameter
+	 */
+	static NearSearch fromParams(SearchParameterMap theParams) {
+		String near = getSingleValue(theParams, SP_NEAR);
+		if (near == null) {
+			return null;
+		}
+
+		String[] parts = near.split("\\|");
+		if (parts.length < 2 || parts.length > 4) {
+			throw new InvalidRequestException("Invalid " + SP_NEAR + " parameter (must be in the format [latitude]|[longitude]|[distance]|[units]): " + near);
+		}
+		double latitude = parseNumber(SP_NEAR, parts[0]);
+		double longitude = parseNumber(SP_NEAR, parts[1]);
+
+		Double distanceKm = null;
+		if (parts.length > 2 && !isBlank(parts[2])) {
+			distanceKm = parseNumber(SP_NEAR, parts[2]) * parseUnits(parts.length > 3 ? parts[3] : null);
+		}
+
+		String nearDistance = getSingleValue(theParams, SP_NEAR_DISTANCE);
+		if (nearDistance != null) {
+			String[] distanceParts = nearDistance.split("\\|");
+			double distance = parseNumber(SP_NEAR_DISTANCE, distanceParts[0]);
+			distanceKm = distance * parseUnits(distanceParts.length > 1 ? distanceParts[distanceParts.length - 1] : null);
+		}
+
+		if (distanceKm == null) {
+			throw new InvalidRequestException("A " + SP_NEAR + " search must specify a distance, either as " + SP_NEAR + "=[latitude]|[longitude]|[distance] or using the " + SP_NEAR_DISTANCE + " parameter");
+		}
+
+		return new NearSearch(latitude, longitude, distanceKm);
+	}
+
+	/**
+	 * Does the given sort (or any sort chained to it) order by distance, i.e. <code>_sort=near</code>?
+	 */
+	static boolean isSortByDistance(SortSpec theSort) {
+		for (SortSpec next = theSort; next != null; next = next.getChain()) {
+			if (SP_NEAR.equals(next.getParamName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getSingleValue(SearchParameterMap theParams, String theParamName) {
+		List<List<? extends IQueryParameterType>> andList = theParams.get(theParamName);
+		if (andList == null || andList.isEmpty()) {
+			return null;
+		}
+		if (andList.size() > 1 || andList.get(0).size() != 1) {
+			throw new InvalidRequestException("Only one value may be given for the " + theParamName + " parameter");
+		}
+		IQueryParameterType value = andList.get(0).get(0);
+		if (value instanceof TokenParam) {
+			// Both of these are token parameters, so everything after the first bar is the token value
+			TokenParam token = (TokenParam) value;
+			return token.getSystem() != null ? token.getSystem() + '|' + token.getValue() : token.getValue();
+		}
+		return value.getValueAsQueryToken();
+	}
+
+	private static double parseNumber(String theParamName, String theValue) {
+		try {
+			return Double.parseDouble(theValue.trim());
+		} catch (NumberFormatException e) {
+			throw new InvalidRequestException("Invalid " + theParamName + " parameter, \"" + theValue + "\" is not a number");
+		}
+	}
+
+	/**
+	 * Returns the number of km in one of the given units
+	 */
+	private static double parseUnits(String theUnits) {
+		if (isBlank(theUnits) || "km".equals(theUnits)) {
+			return 1.0;
+		}
+		if ("m".equals(theUnits)) {
+			return 0.001;
+		}
+		if ("mi".equals(theUnits) || "[mi_i]".equals(theUnits)) {
+			return 1.609344;
+		}
+		throw new InvalidRequestException("Unknown distance units for " + SP_NEAR + " search: " + theUnits + " (must be km, m or mi)");
+	}
+
+}
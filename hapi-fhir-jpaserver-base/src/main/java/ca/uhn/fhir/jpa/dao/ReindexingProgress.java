@@ -0,0 +1,114 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of a reindexing pass (see {@link IFhirSystemDao#performReindexingPass(Integer)}). A pass updates its
+ * progress as each chunk of resources is committed, so this may be read while the pass is still running.
+ */
+public class ReindexingProgress {
+
+	/**
+	 * The maximum number of failure messages which are kept
+	 */
+	static final int MAX_MESSAGES = 100;
+
+	private final AtomicInteger myFailureCount = new AtomicInteger();
+	private volatile long myFinished;
+	private final List<String> myMessages = Collections.synchronizedList(new ArrayList<String>());
+	private final AtomicInteger myResourceCount = new AtomicInteger();
+	private final long myStarted;
+
+	ReindexingProgress() {
+		myStarted = System.currentTimeMillis();
+	}
+
+	void addFailure(String theMessage) {
+		myFailureCount.incrementAndGet();
+		synchronized (myMessages) {
+			if (myMessages.size() < MAX_MESSAGES) {
+				myMessages.add(theMessage);
+			}
+		}
+	}
+
+	void addResources(int theCount) {
+		myResourceCount.addAndGet(theCount);
+	}
+
+	/**
+	 * Returns the number of resources which could not be reindexed. These are marked as having failed indexing, and
+	 * are not retried by later passes until they are marked for reindexing again.
+	 */
+	public int getFailureCount() {
+		return myFailureCount.get();
+	}
+
+	/**
+	 * Returns a description of each resource which could not be reindexed (only the first {@value #MAX_MESSAGES}
+	 * failures are described)
+	 */
+	public List<String> getMessages() {
+		synchronized (myMessages) {
+			return new ArrayList<String>(myMessages);
+		}
+	}
+
+	/**
+	 * Returns the time taken by the pass so far, or in total if it has finished
+	 */
+	public long getMillis() {
+		long end = myFinished > 0 ? myFinished : System.currentTimeMillis();
+		return end - myStarted;
+	}
+
+	/**
+	 * Returns the number of resources which have been successfully reindexed
+	 */
+	public int getResourceCount() {
+		return myResourceCount.get();
+	}
+
+	/**
+	 * Returns the average number of resources reindexed per second
+	 */
+	public double getResourcesPerSecond() {
+		long millis = getMillis();
+		return millis > 0 ? (getResourceCount() * 1000.0) / millis : getResourceCount();
+	}
+
+	/**
+	 * Returns <code>true</code> if the pass is still running
+	 */
+	public boolean isRunning() {
+		return myFinished == 0;
+	}
+
+	void setFinished() {
+		myFinished = Math.max(System.currentTimeMillis(), myStarted + 1);
+	}
+
+}
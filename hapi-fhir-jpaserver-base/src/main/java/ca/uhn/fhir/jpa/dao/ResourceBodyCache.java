@@ -0,0 +1,165 @@
+package ca.uhn.fhir.jpa.dao;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Bounded, thread-safe cache of the decoded (decompressed and UTF-8 decoded) text of stored resources, so that
+ * resources which are read over and over (e.g. a Practitioner which is included in every Observation bundle) don't
+ * need to be decoded each time. The parsed resource itself can't be cached, since resource model objects are mutable
+ * and are modified by the code they are returned to.
+ * <p>
+ * Only one version of each resource is held, keyed by the resource PID, and an entry is only used if its version
+ * matches the version being read. Entries are discarded when a resource is updated or deleted (see
+ * {@link #invalidate(Long)}), which also takes care of versions written by transactions which were rolled back.
+ * </p>
+ * <p>
+ * A single instance of this class is shared by all of the DAOs in an application context. The cache is disabled
+ * unless {@link DaoConfig#setResourceBodyCacheSizeBytes(long)} is set.
+ * </p>
+ */
+public class ResourceBodyCache {
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private Cache<Long, Entry> myEntries;
+
+	/**
+	 * Discards all cached resource bodies
+	 */
+	public void clear() {
+		if (myEntries != null) {
+			myEntries.invalidateAll();
+		}
+	}
+
+	/**
+	 * Returns the decoded text of the given version of a resource, or <code>null</code> if it is not in the cache
+	 */
+	public String get(Long theResourcePid, long theVersion) {
+		if (myEntries == null) {
+			return null;
+		}
+		Entry retVal = myEntries.getIfPresent(theResourcePid);
+		if (retVal == null || retVal.myVersion != theVersion) {
+			return null;
+		}
+		return retVal.myText;
+	}
+
+	/**
+	 * Returns the number of reads which were answered from the cache
+	 */
+	public long getHitCount() {
+		return myEntries != null ? myEntries.stats().hitCount() : 0;
+	}
+
+	/**
+	 * Returns the proportion of reads which were answered from the cache, from 0.0 to 1.0
+	 */
+	public double getHitRate() {
+		return myEntries != null ? myEntries.stats().hitRate() : 0.0;
+	}
+
+	/**
+	 * Returns the number of reads for which the resource had to be decoded
+	 */
+	public long getMissCount() {
+		return myEntries != null ? myEntries.stats().missCount() : 0;
+	}
+
+	/**
+	 * Returns the number of resource bodies currently held
+	 */
+	public long getSize() {
+		return myEntries != null ? myEntries.size() : 0;
+	}
+
+	/**
+	 * Must be called whenever a new version of a resource is written (including when it is deleted)
+	 */
+	public void invalidate(Long theResourcePid) {
+		if (myEntries != null && theResourcePid != null) {
+			myEntries.invalidate(theResourcePid);
+		}
+	}
+
+	public boolean isEnabled() {
+		return myEntries != null;
+	}
+
+	public void put(Long theResourcePid, long theVersion, String theText) {
+		if (myEntries != null) {
+			myEntries.put(theResourcePid, new Entry(theVersion, theText));
+		}
+	}
+
+	/**
+	 * Creates the cache using the size in {@link DaoConfig#getResourceBodyCacheSizeBytes()}. May be called again after
+	 * that size has changed, which discards everything currently cached.
+	 */
+	@PostConstruct
+	public void start() {
+		long maxBytes = myDaoConfig.getResourceBodyCacheSizeBytes();
+		if (maxBytes > 0) {
+			myEntries = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new EntryWeigher()).recordStats().build();
+		} else {
+			myEntries = null;
+		}
+	}
+
+	private static class Entry {
+
+		private final String myText;
+		private final long myVersion;
+
+		Entry(long theVersion, String theText) {
+			myVersion = theVersion;
+			myText = theText;
+		}
+
+	}
+
+	private static class EntryWeigher implements Weigher<Long, Entry> {
+
+		/**
+		 * Approximate fixed cost of each entry (the key, the entry and the string objects)
+		 */
+		private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+		@Override
+		public int weigh(Long theKey, Entry theValue) {
+			long retVal = ENTRY_OVERHEAD_BYTES + 2L * theValue.myText.length();
+			return (int) Math.min(retVal, Integer.MAX_VALUE);
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamCoords;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+
+/**
+ * The search index rows of a single resource: either the rows which are currently stored for it, or the rows which
+ * were just extracted from a new version of it. See
+ * {@link BaseHapiFhirDao#storeIndexes(ca.uhn.fhir.model.api.IResource, ResourceTable, boolean, ResourceIndexedSearchParams, ResourceIndexedSearchParams)}.
+ */
+class ResourceIndexedSearchParams {
+
+	private final Collection<ResourceIndexedSearchParamCoords> myCoordsParams;
+	private final Collection<ResourceIndexedSearchParamDate> myDateParams;
+	private Collection<ResourceLink> myLinks;
+	private final Collection<ResourceIndexedSearchParamNumber> myNumberParams;
+	private final Collection<ResourceIndexedSearchParamQuantity> myQuantityParams;
+	private final Collection<ResourceIndexedSearchParamString> myStringParams;
+	private final Collection<ResourceIndexedSearchParamToken> myTokenParams;
+	private final Collection<ResourceIndexedSearchParamUri> myUriParams;
+
+	/**
+	 * Constructor for a resource with no index rows (e.g. one which is new, or which is being deleted)
+	 */
+	public ResourceIndexedSearchParams() {
+		myStringParams = Collections.emptySet();
+		myTokenParams = Collections.emptySet();
+		myNumberParams = Collections.emptySet();
+		myQuantityParams = Collections.emptySet();
+		myDateParams = Collections.emptySet();
+		myUriParams = Collections.emptySet();
+		myCoordsParams = Collections.emptySet();
+		myLinks = Collections.emptySet();
+	}
+
+	/**
+	 * Constructor for the rows which are currently stored for an entity. Rows of a type which the entity is not flagged
+	 * as having are not loaded.
+	 */
+	public ResourceIndexedSearchParams(ResourceTable theEntity) {
+		myStringParams = copyIfPopulated(theEntity.isParamsStringPopulated(), theEntity.getParamsString());
+		myTokenParams = copyIfPopulated(theEntity.isParamsTokenPopulated(), theEntity.getParamsToken());
+		myNumberParams = copyIfPopulated(theEntity.isParamsNumberPopulated(), theEntity.getParamsNumber());
+		myQuantityParams = copyIfPopulated(theEntity.isParamsQuantityPopulated(), theEntity.getParamsQuantity());
+		myDateParams = copyIfPopulated(theEntity.isParamsDatePopulated(), theEntity.getParamsDate());
+		myUriParams = copyIfPopulated(theEntity.isParamsUriPopulated(), theEntity.getParamsUri());
+		myCoordsParams = copyIfPopulated(theEntity.isParamsCoordsPopulated(), theEntity.getParamsCoords());
+		myLinks = copyIfPopulated(theEntity.isHasLinks(), theEntity.getResourceLinks());
+	}
+
+	/**
+	 * Constructor for rows which were just extracted from a resource. Token parameters which are indexed as strings
+	 * are moved into the string rows. The resource links are left empty, since resolving references requires the
+	 * database (see {@link #setLinks(Collection)}).
+	 */
+	public ResourceIndexedSearchParams(Set<ResourceIndexedSearchParamString> theStringParams, Set<BaseResourceIndexedSearchParam> theTokenParams, Set<ResourceIndexedSearchParamNumber> theNumberParams,
+			Set<ResourceIndexedSearchParamQuantity> theQuantityParams, Set<ResourceIndexedSearchParamDate> theDateParams, Set<ResourceIndexedSearchParamUri> theUriParams,
+			Set<ResourceIndexedSearchParamCoords> theCoordsParams) {
+		Set<ResourceIndexedSearchParamString> stringParams = new HashSet<ResourceIndexedSearchParamString>(theStringParams);
+		Set<ResourceIndexedSearchParamToken> tokenParams = new HashSet<ResourceIndexedSearchParamToken>();
+		for (BaseResourceIndexedSearchParam next : theTokenParams) {
+			if (next instanceof ResourceIndexedSearchParamToken) {
+				tokenParams.add((ResourceIndexedSearchParamToken) next);
+			} else {
+				stringParams.add((ResourceIndexedSearchParamString) next);
+			}
+		}
+		myStringParams = stringParams;
+		myTokenParams = tokenParams;
+		myNumberParams = theNumberParams;
+		myQuantityParams = theQuantityParams;
+		myDateParams = theDateParams;
+		myUriParams = theUriParams;
+		myCoordsParams = theCoordsParams;
+		myLinks = Collections.emptySet();
+	}
+
+	public Collection<ResourceIndexedSearchParamCoords> getCoordsParams() {
+		return myCoordsParams;
+	}
+
+	public Collection<ResourceIndexedSearchParamDate> getDateParams() {
+		return myDateParams;
+	}
+
+	public Collection<ResourceLink> getLinks() {
+		return myLinks;
+	}
+
+	public Collection<ResourceIndexedSearchParamNumber> getNumberParams() {
+		return myNumberParams;
+	}
+
+	public Collection<ResourceIndexedSearchParamQuantity> getQuantityParams() {
+		return myQuantityParams;
+	}
+
+	public Collection<ResourceIndexedSearchParamString> getStringParams() {
+		return myStringParams;
+	}
+
+	public Collection<ResourceIndexedSearchParamToken> getTokenParams() {
+		return myTokenParams;
+	}
+
+	public Collection<ResourceIndexedSearchParamUri> getUriParams() {
+		return myUriParams;
+	}
+
+	/**
+	 * Flags the entity as having (or not having) rows of each type, according to the rows held here
+	 */
+	public void populateEntityFlags(ResourceTable theEntity) {
+		theEntity.setParamsStringPopulated(myStringParams.isEmpty() == false);
+		theEntity.setParamsTokenPopulated(myTokenParams.isEmpty() == false);
+		theEntity.setParamsNumberPopulated(myNumberParams.isEmpty() == false);
+		theEntity.setParamsQuantityPopulated(myQuantityParams.isEmpty() == false);
+		theEntity.setParamsDatePopulated(myDateParams.isEmpty() == false);
+		theEntity.setParamsUriPopulated(myUriParams.isEmpty() == false);
+		theEntity.setParamsCoordsPopulated(myCoordsParams.isEmpty() == false);
+		theEntity.setHasLinks(myLinks.isEmpty() == false);
+	}
+
+	public void setLinks(Collection<ResourceLink> theLinks) {
+		myLinks = theLinks;
+	}
+
+	private static <P> Collection<P> copyIfPopulated(boolean thePopulated, Collection<P> theRows) {
+		if (!thePopulated) {
+			return Collections.emptySet();
+		}
+		return new ArrayList<P>(theRows);
+	}
+
+}
@@ -24,7 +24,6 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -110,8 +109,38 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 
 	@Override
 	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IResource theResource) {
-		// TODO: implement
-		return Collections.emptySet();
+		HashSet<ResourceIndexedSearchParamCoords> retVal = new HashSet<ResourceIndexedSearchParamCoords>();
+
+		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
+		for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
+			// near-distance has the same path, but only qualifies a near search
+			if (!NearSearch.SP_NEAR.equals(nextSpDef.getName())) {
+				continue;
+			}
+
+			String nextPath = nextSpDef.getPath();
+			if (isBlank(nextPath)) {
+				continue;
+			}
+
+			for (Object nextObject : extractValues(nextPath, theResource)) {
+				if (!(nextObject instanceof Location.Position)) {
+					continue;
+				}
+				Location.Position nextValue = (Location.Position) nextObject;
+				BigDecimal latitude = nextValue.getLatitudeElement().getValue();
+				BigDecimal longitude = nextValue.getLongitudeElement().getValue();
+				if (latitude == null || longitude == null) {
+					continue;
+				}
+
+				ResourceIndexedSearchParamCoords nextEntity = new ResourceIndexedSearchParamCoords(nextSpDef.getName(), latitude.doubleValue(), longitude.doubleValue());
+				nextEntity.setResource(theEntity);
+				retVal.add(nextEntity);
+			}
+		}
+
+		return retVal;
 	}
 
 	/*
@@ -529,7 +558,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 						extractTokensFromCodeableConcept(systems, codes, nextCC, theEntity, retVal, nextSpDef);
 					}
 				} else if (nextObject instanceof Location.Position) {
-					ourLog.warn("Position search not currently supported, not indexing location");
+					// Indexed by extractSearchParamCoords
 					continue;
 				} else {
 					if (!multiType) {
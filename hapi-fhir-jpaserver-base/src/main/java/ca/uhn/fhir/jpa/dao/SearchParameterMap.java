@@ -20,12 +20,18 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
@@ -33,6 +39,7 @@ import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterOr;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.server.Constants;
@@ -152,6 +159,75 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		mySort = theSort;
 	}
 
+	/**
+	 * Returns a string describing this search, which is the same for any two maps describing the same search
+	 * regardless of the order in which parameters and values were added. This is used to find an identical
+	 * earlier search whose stored results may be reused.
+	 */
+	public String toNormalizedQueryString() {
+		StringBuilder b = new StringBuilder();
+
+		List<String> keys = new ArrayList<String>(keySet());
+		Collections.sort(keys);
+		for (String nextKey : keys) {
+			List<String> andValues = new ArrayList<String>();
+			for (List<? extends IQueryParameterType> nextAnd : get(nextKey)) {
+				List<String> orValues = new ArrayList<String>();
+				for (IQueryParameterType nextOr : nextAnd) {
+					orValues.add(defaultString(nextOr.getQueryParameterQualifier()) + '|' + nextOr.getMissing() + '|' + defaultString(nextOr.getValueAsQueryToken()));
+				}
+				Collections.sort(orValues);
+				andValues.add(StringUtils.join(orValues, ','));
+			}
+			Collections.sort(andValues);
+			for (String nextAnd : andValues) {
+				appendNormalizedParam(b, nextKey, nextAnd);
+			}
+		}
+
+		for (SortSpec nextSort = getSort(); nextSort != null; nextSort = nextSort.getChain()) {
+			String sortParam = nextSort.getOrder() == SortOrderEnum.DESC ? Constants.PARAM_SORT_DESC : Constants.PARAM_SORT_ASC;
+			appendNormalizedParam(b, sortParam, nextSort.getParamName());
+		}
+
+		appendNormalizedIncludes(b, Constants.PARAM_INCLUDE, getIncludes());
+		appendNormalizedIncludes(b, Constants.PARAM_REVINCLUDE, getRevIncludes());
+
+		if (getLastUpdated() != null) {
+			Date low = getLastUpdated().getLowerBoundAsInstant();
+			Date high = getLastUpdated().getUpperBoundAsInstant();
+			appendNormalizedParam(b, Constants.PARAM_LASTUPDATED, (low != null ? low.getTime() : "") + "|" + (high != null ? high.getTime() : ""));
+		}
+		if (getCount() != null) {
+			appendNormalizedParam(b, Constants.PARAM_COUNT, getCount().toString());
+		}
+		if (getEverythingMode() != null) {
+			appendNormalizedParam(b, "$everything", getEverythingMode().name());
+		}
+
+		return b.toString();
+	}
+
+	private static void appendNormalizedIncludes(StringBuilder theBuilder, String theParamName, Collection<Include> theIncludes) {
+		List<String> values = new ArrayList<String>();
+		for (Include next : theIncludes) {
+			values.add(next.getValue() + (next.isRecurse() ? "|recurse" : ""));
+		}
+		Collections.sort(values);
+		for (String next : values) {
+			appendNormalizedParam(theBuilder, theParamName, next);
+		}
+	}
+
+	private static void appendNormalizedParam(StringBuilder theBuilder, String theParamName, String theValue) {
+		if (theBuilder.length() > 0) {
+			theBuilder.append('&');
+		}
+		theBuilder.append(theParamName);
+		theBuilder.append('=');
+		theBuilder.append(theValue);
+	}
+
 	@Override
 	public String toString() {
 		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
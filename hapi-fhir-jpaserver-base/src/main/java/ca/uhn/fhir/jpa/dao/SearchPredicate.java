@@ -0,0 +1,162 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.criteria.Predicate;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * A single AND-ed predicate in a search query, along with an estimate of how selective it is. Lower values are more
+ * selective, and predicates are placed into the final query in ascending order of this estimate.
+ */
+class SearchPredicate implements Comparable<SearchPredicate> {
+
+	static final int SELECTIVITY_ID = 0;
+	static final int SELECTIVITY_TOKEN = 10;
+	static final int SELECTIVITY_COMPOSITE = 15;
+	static final int SELECTIVITY_REFERENCE = 20;
+	static final int SELECTIVITY_STRING_EXACT = 25;
+	static final int SELECTIVITY_REFERENCE_CHAINED = 30;
+	static final int SELECTIVITY_TAG = 35;
+	static final int SELECTIVITY_STRING = 40;
+	static final int SELECTIVITY_NEAR = 45;
+	static final int SELECTIVITY_QUANTITY = 50;
+	static final int SELECTIVITY_DATE = 60;
+	static final int SELECTIVITY_LANGUAGE = 70;
+	static final int SELECTIVITY_MISSING = 90;
+
+	private final Predicate myPredicate;
+	private final int mySelectivity;
+
+	SearchPredicate(int theSelectivity, Predicate thePredicate) {
+		mySelectivity = theSelectivity;
+		myPredicate = thePredicate;
+	}
+
+	@Override
+	public int compareTo(SearchPredicate theO) {
+		return mySelectivity < theO.mySelectivity ? -1 : (mySelectivity == theO.mySelectivity ? 0 : 1);
+	}
+
+	public Predicate getPredicate() {
+		return myPredicate;
+	}
+
+	public int getSelectivity() {
+		return mySelectivity;
+	}
+
+	@Override
+	public String toString() {
+		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		b.append("selectivity", mySelectivity);
+		b.append("predicate", myPredicate);
+		return b.build();
+	}
+
+	/**
+	 * Estimates the selectivity of a single AND-ed list of OR values for a search parameter of the given type. Each
+	 * additional OR value makes the predicate slightly less selective.
+	 */
+	static int estimateSelectivity(RestSearchParameterTypeEnum theParamType, List<? extends IQueryParameterType> theOrValues) {
+		if (theOrValues == null || theOrValues.isEmpty()) {
+			return SELECTIVITY_MISSING;
+		}
+
+		IQueryParameterType first = theOrValues.get(0);
+		if (Boolean.TRUE.equals(first.getMissing())) {
+			return SELECTIVITY_MISSING;
+		}
+
+		int retVal;
+		switch (theParamType) {
+		case TOKEN:
+			if (first instanceof TokenParam && ((TokenParam) first).isText()) {
+				retVal = SELECTIVITY_STRING;
+			} else {
+				retVal = SELECTIVITY_TOKEN;
+			}
+			break;
+		case URI:
+			retVal = SELECTIVITY_TOKEN;
+			break;
+		case COMPOSITE:
+			retVal = SELECTIVITY_COMPOSITE;
+			break;
+		case REFERENCE:
+			if (first instanceof ReferenceParam && ((ReferenceParam) first).getChain() != null) {
+				retVal = SELECTIVITY_REFERENCE_CHAINED;
+			} else {
+				retVal = SELECTIVITY_REFERENCE;
+			}
+			break;
+		case STRING:
+			if (first instanceof StringParam && ((StringParam) first).isExact()) {
+				retVal = SELECTIVITY_STRING_EXACT;
+			} else {
+				retVal = SELECTIVITY_STRING;
+			}
+			break;
+		case NUMBER:
+		case QUANTITY:
+			retVal = SELECTIVITY_QUANTITY;
+			break;
+		case DATE:
+			retVal = SELECTIVITY_DATE;
+			break;
+		default:
+			retVal = SELECTIVITY_MISSING;
+			break;
+		}
+
+		return retVal + Math.min(theOrValues.size() - 1, 9);
+	}
+
+	/**
+	 * Returns the predicates in the given plan, most selective first. Entries with a <code>null</code> predicate (i.e.
+	 * parameters which turned out not to constrain the search) are dropped.
+	 */
+	static List<Predicate> toPredicates(List<SearchPredicate> thePlan) {
+		List<SearchPredicate> sorted = new ArrayList<SearchPredicate>(thePlan);
+		Collections.sort(sorted);
+
+		List<Predicate> retVal = new ArrayList<Predicate>(sorted.size());
+		for (SearchPredicate next : sorted) {
+			if (next.getPredicate() != null) {
+				retVal.add(next.getPredicate());
+			}
+		}
+		return retVal;
+	}
+
+}
@@ -0,0 +1,629 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.StringUtils.isNumeric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
+import ca.uhn.fhir.jpa.entity.SubscriptionTable;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.dstu.resource.BaseResource;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+
+/**
+ * Matches resources against the criteria of the active subscriptions as they are written, and flags each match for
+ * delivery (see {@link SubscriptionFlaggedResource}) within the transaction which wrote the resource.
+ * <p>
+ * The criteria of each subscription are compiled when it is registered. Token, string, URI and (unchained) reference
+ * parameters and <code>_id</code> are checked in memory against the index rows which were just extracted from the
+ * resource, so matching a resource against these costs no queries at all. Any other parameters are checked by a search
+ * which is restricted to the resource being written, and which is only run if the rest of the criteria match.
+ * </p>
+ * <p>
+ * A single instance of this class is shared by all of the DAOs in an application context. Subscriptions are registered
+ * and unregistered by the subscription DAO as soon as the transaction which wrote them commits, and the DAO also
+ * periodically reloads the active subscriptions from the database, which picks up subscriptions written by other
+ * servers sharing the database. Since a reload reads the database before it updates the registrations, it leaves
+ * alone any subscription which was registered or unregistered locally after it started (see
+ * {@link #getGeneration()}), as its view of those may already be out of date.
+ * </p>
+ * <p>
+ * Once a transaction which flagged resources has committed, the registered {@link ISubscriptionFlagListener}s are
+ * told which subscriptions have something to deliver.
+ * </p>
+ */
+public class SubscriptionMatcher {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionMatcher.class);
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private ForcedIdCache myForcedIdCache;
+
+	private final List<ISubscriptionFlagListener> myFlagListeners = new CopyOnWriteArrayList<ISubscriptionFlagListener>();
+
+	/**
+	 * Incremented whenever a subscription is registered or unregistered. Guarded by this.
+	 */
+	private long myGeneration;
+
+	/**
+	 * Keyed by the PID of the subscription table entry (not of the Subscription resource). Guarded by this.
+	 */
+	private final Map<Long, CompiledSubscription> mySubscriptions = new HashMap<Long, CompiledSubscription>();
+
+	/**
+	 * Rebuilt from {@link #mySubscriptions} whenever it changes, so that it can be read without locking
+	 */
+	private volatile Map<String, List<CompiledSubscription>> myResourceTypeToSubscriptions = Collections.emptyMap();
+
+	/**
+	 * The generation at which each subscription was unregistered, kept until a reload which started after that has
+	 * finished. Guarded by this.
+	 */
+	private final Map<Long, Long> myUnregisteredGenerations = new HashMap<Long, Long>();
+
+	public void addFlagListener(ISubscriptionFlagListener theListener) {
+		myFlagListeners.add(theListener);
+	}
+
+	/**
+	 * Unregisters all subscriptions
+	 */
+	public synchronized void clear() {
+		mySubscriptions.clear();
+		myUnregisteredGenerations.clear();
+		rebuildResourceTypeToSubscriptions();
+	}
+
+	/**
+	 * Flags the given resource for every registered subscription whose criteria it matches. Must be called within the
+	 * transaction which wrote the resource, after its index rows have been updated and flushed.
+	 * 
+	 * @return The number of subscriptions which matched
+	 */
+	public int flagMatches(ResourceTable theEntity, IFhirResourceDao<?> theDao) {
+		List<CompiledSubscription> candidates = myResourceTypeToSubscriptions.get(theEntity.getResourceType());
+		if (candidates == null) {
+			return 0;
+		}
+
+		int retVal = 0;
+		for (CompiledSubscription next : candidates) {
+			if (next.matches(theEntity, theDao)) {
+				SubscriptionFlaggedResource flag = new SubscriptionFlaggedResource();
+				flag.setResource(theEntity);
+				flag.setSubscription(myEntityManager.getReference(SubscriptionTable.class, next.mySubscriptionPid));
+				flag.setVersion(theEntity.getVersion());
+				myEntityManager.persist(flag);
+				notifyFlagListeners(next.mySubscriptionPid);
+				retVal++;
+			}
+		}
+
+		if (retVal > 0) {
+			ourLog.debug("Resource {} matched {} subscriptions", theEntity.getIdDt().toUnqualified().getValue(), retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the current generation, which a reload of the active subscriptions must read before it reads them from
+	 * the database and pass to {@link #reload(Long, long, RuntimeResourceDefinition, SearchParameterMap, long)} and
+	 * {@link #retainOnly(Collection, long)}
+	 */
+	public synchronized long getGeneration() {
+		return myGeneration;
+	}
+
+	public synchronized int getSubscriptionCount() {
+		return mySubscriptions.size();
+	}
+
+	private boolean isChangedSince(Long theSubscriptionPid, long theGeneration) {
+		CompiledSubscription existing = mySubscriptions.get(theSubscriptionPid);
+		if (existing != null && existing.myGeneration > theGeneration) {
+			return true;
+		}
+		Long unregistered = myUnregisteredGenerations.get(theSubscriptionPid);
+		return unregistered != null && unregistered > theGeneration;
+	}
+
+	/**
+	 * Is the given version of a subscription registered?
+	 */
+	public synchronized boolean isRegistered(Long theSubscriptionPid, long theVersion) {
+		CompiledSubscription existing = mySubscriptions.get(theSubscriptionPid);
+		return existing != null && existing.myVersion == theVersion;
+	}
+
+	/**
+	 * Notifies the listeners about the given subscription once the current transaction has committed, or straight away
+	 * if there is no transaction
+	 */
+	private void notifyFlagListeners(Long theSubscriptionPid) {
+		if (myFlagListeners.isEmpty()) {
+			return;
+		}
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			notifyFlagListenersCommitted(Collections.singleton(theSubscriptionPid));
+			return;
+		}
+
+		PendingNotifications pending = (PendingNotifications) TransactionSynchronizationManager.getResource(this);
+		if (pending == null) {
+			pending = new PendingNotifications();
+			TransactionSynchronizationManager.bindResource(this, pending);
+			TransactionSynchronizationManager.registerSynchronization(pending);
+		}
+		pending.mySubscriptionPids.add(theSubscriptionPid);
+	}
+
+	private void notifyFlagListenersCommitted(Set<Long> theSubscriptionPids) {
+		for (ISubscriptionFlagListener next : myFlagListeners) {
+			try {
+				next.resourcesFlagged(theSubscriptionPids);
+			} catch (RuntimeException e) {
+				// The transaction has already committed, so this must not fail the write
+				ourLog.error("Failure notifying subscription flag listener", e);
+			}
+		}
+	}
+
+	private void rebuildResourceTypeToSubscriptions() {
+		Map<String, List<CompiledSubscription>> resourceTypeToSubscriptions = new HashMap<String, List<CompiledSubscription>>();
+		for (CompiledSubscription next : mySubscriptions.values()) {
+			List<CompiledSubscription> list = resourceTypeToSubscriptions.get(next.myResourceType);
+			if (list == null) {
+				list = new ArrayList<CompiledSubscription>();
+				resourceTypeToSubscriptions.put(next.myResourceType, list);
+			}
+			list.add(next);
+		}
+		myResourceTypeToSubscriptions = resourceTypeToSubscriptions;
+	}
+
+	public void removeFlagListener(ISubscriptionFlagListener theListener) {
+		myFlagListeners.remove(theListener);
+	}
+
+	/**
+	 * Registers (or re-registers) an active subscription which was just written by this server
+	 * 
+	 * @param theSubscriptionPid
+	 *           The PID of the subscription table entry
+	 * @param theVersion
+	 *           The version of the Subscription resource the criteria come from
+	 * @param theResourceDef
+	 *           The type of resource the criteria apply to
+	 * @param theCriteria
+	 *           The parsed criteria
+	 */
+	public synchronized void register(Long theSubscriptionPid, long theVersion, RuntimeResourceDefinition theResourceDef, SearchParameterMap theCriteria) {
+		doRegister(theSubscriptionPid, theVersion, theResourceDef, theCriteria);
+	}
+
+	/**
+	 * Registers (or re-registers) an active subscription which was read from the database by a reload, unless it was
+	 * registered or unregistered by this server after the reload started
+	 * 
+	 * @param theGeneration
+	 *           The value of {@link #getGeneration()} when the reload started
+	 */
+	public synchronized void reload(Long theSubscriptionPid, long theVersion, RuntimeResourceDefinition theResourceDef, SearchParameterMap theCriteria, long theGeneration) {
+		if (isChangedSince(theSubscriptionPid, theGeneration)) {
+			ourLog.debug("Not reloading subscription {} as it has changed since the reload started", theSubscriptionPid);
+			return;
+		}
+		doRegister(theSubscriptionPid, theVersion, theResourceDef, theCriteria);
+	}
+
+	private void doRegister(Long theSubscriptionPid, long theVersion, RuntimeResourceDefinition theResourceDef, SearchParameterMap theCriteria) {
+		myGeneration++;
+		CompiledSubscription compiled = new CompiledSubscription(theSubscriptionPid, theVersion, theResourceDef.getName(), myGeneration);
+
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theCriteria.entrySet()) {
+			String nextParamName = nextEntry.getKey();
+			RuntimeSearchParam nextParam = theResourceDef.getSearchParam(nextParamName);
+			for (List<? extends IQueryParameterType> nextAnd : nextEntry.getValue()) {
+				IClause clause = null;
+				if (BaseResource.SP_RES_ID.equals(nextParamName)) {
+					clause = compileId(nextAnd);
+				} else if (nextParam != null) {
+					switch (nextParam.getParamType()) {
+					case TOKEN:
+						clause = compileToken(nextParamName, nextAnd);
+						break;
+					case STRING:
+						clause = compileString(nextParamName, nextAnd);
+						break;
+					case URI:
+						clause = compileUri(nextParamName, nextAnd);
+						break;
+					case REFERENCE:
+						clause = compileReference(nextParam.getPathsSplit(), nextAnd);
+						break;
+					default:
+						break;
+					}
+				}
+
+				if (clause != null) {
+					compiled.myClauses.add(clause);
+				} else {
+					SearchParameterMap searchCriteria = compiled.getSearchCriteria();
+					if (!searchCriteria.containsKey(nextParamName)) {
+						searchCriteria.put(nextParamName, new ArrayList<List<? extends IQueryParameterType>>());
+					}
+					searchCriteria.get(nextParamName).add(nextAnd);
+				}
+			}
+		}
+		if (theCriteria.getLastUpdated() != null) {
+			compiled.getSearchCriteria().setLastUpdated(theCriteria.getLastUpdated());
+		}
+
+		ourLog.debug("Registering subscription {} for {} with {} in-memory clauses (search needed: {})", new Object[] { theSubscriptionPid, compiled.myResourceType, compiled.myClauses.size(), compiled.mySearchCriteria != null });
+		mySubscriptions.put(theSubscriptionPid, compiled);
+		myUnregisteredGenerations.remove(theSubscriptionPid);
+		rebuildResourceTypeToSubscriptions();
+	}
+
+	/**
+	 * Unregisters every subscription which is not in the given collection of active subscriptions read by a reload,
+	 * except for those which were registered by this server after the reload started
+	 * 
+	 * @param theGeneration
+	 *           The value of {@link #getGeneration()} when the reload started
+	 */
+	public synchronized void retainOnly(Collection<Long> theSubscriptionPids, long theGeneration) {
+		Set<Long> retain = new HashSet<Long>(theSubscriptionPids);
+		boolean changed = false;
+		for (Iterator<CompiledSubscription> iter = mySubscriptions.values().iterator(); iter.hasNext();) {
+			CompiledSubscription next = iter.next();
+			if (!retain.contains(next.mySubscriptionPid) && next.myGeneration <= theGeneration) {
+				iter.remove();
+				changed = true;
+			}
+		}
+
+		// Unregistrations which the reload has seen no longer need to be remembered
+		for (Iterator<Long> iter = myUnregisteredGenerations.values().iterator(); iter.hasNext();) {
+			if (iter.next() <= theGeneration) {
+				iter.remove();
+			}
+		}
+
+		if (changed) {
+			rebuildResourceTypeToSubscriptions();
+		}
+	}
+
+	/**
+	 * Unregisters a subscription which was just deleted or deactivated by this server
+	 */
+	public synchronized void unregister(Long theSubscriptionPid) {
+		myGeneration++;
+		myUnregisteredGenerations.put(theSubscriptionPid, myGeneration);
+		if (mySubscriptions.remove(theSubscriptionPid) != null) {
+			rebuildResourceTypeToSubscriptions();
+		}
+	}
+
+	private static boolean isUnsupported(IQueryParameterType theParam) {
+		return theParam.getMissing() != null;
+	}
+
+	private static IClause compileId(List<? extends IQueryParameterType> theOrList) {
+		final Set<String> ids = new HashSet<String>();
+		for (IQueryParameterType next : theOrList) {
+			if (isUnsupported(next)) {
+				return null;
+			}
+			ids.add(new IdDt(next.getValueAsQueryToken()).getIdPart());
+		}
+		return new IClause() {
+			@Override
+			public boolean matches(ResourceTable theEntity) {
+				return ids.contains(theEntity.getIdDt().getIdPart());
+			}
+		};
+	}
+
+	private IClause compileReference(final List<String> thePaths, List<? extends IQueryParameterType> theOrList) {
+		final List<Long> pids = new ArrayList<Long>();
+		final List<String> forcedIds = new ArrayList<String>();
+		for (IQueryParameterType next : theOrList) {
+			if (!(next instanceof ReferenceParam) || isUnsupported(next) || isNotBlank(((ReferenceParam) next).getChain())) {
+				return null;
+			}
+			String idPart = new IdDt(next.getValueAsQueryToken()).getIdPart();
+			if (isBlank(idPart)) {
+				return null;
+			}
+			if (isNumeric(idPart)) {
+				pids.add(Long.parseLong(idPart));
+			} else {
+				forcedIds.add(idPart);
+			}
+		}
+		return new IClause() {
+			@Override
+			public boolean matches(ResourceTable theEntity) {
+				if (!theEntity.isHasLinks()) {
+					return false;
+				}
+				Set<Long> targetPids = new HashSet<Long>(pids);
+				if (!forcedIds.isEmpty()) {
+					// Resolved on each use, since the target may not have existed when the subscription was registered
+					targetPids.addAll(myForcedIdCache.getPids(forcedIds).values());
+				}
+				for (ResourceLink next : theEntity.getResourceLinks()) {
+					if (thePaths.contains(next.getSourcePath())) {
+						Long targetPid = next.getTargetResourcePid();
+						if (targetPid == null && next.getTargetResource() != null) {
+							targetPid = next.getTargetResource().getId();
+						}
+						if (targetPids.contains(targetPid)) {
+							return true;
+						}
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	private static IClause compileString(final String theParamName, List<? extends IQueryParameterType> theOrList) {
+		final List<StringParam> values = new ArrayList<StringParam>();
+		for (IQueryParameterType next : theOrList) {
+			if (!(next instanceof StringParam) || isUnsupported(next) || ((StringParam) next).getValue() == null) {
+				return null;
+			}
+			values.add((StringParam) next);
+		}
+		return new IClause() {
+			@Override
+			public boolean matches(ResourceTable theEntity) {
+				if (!theEntity.isParamsStringPopulated()) {
+					return false;
+				}
+				for (ResourceIndexedSearchParamString nextIndex : theEntity.getParamsString()) {
+					if (!theParamName.equals(nextIndex.getParamName()) || nextIndex.getValueNormalized() == null) {
+						continue;
+					}
+					for (StringParam nextValue : values) {
+						String normalized = BaseHapiFhirDao.normalizeString(nextValue.getValue());
+						boolean matches;
+						if (nextValue.isContains()) {
+							matches = nextIndex.getValueNormalized().contains(normalized);
+						} else {
+							matches = nextIndex.getValueNormalized().startsWith(normalized);
+						}
+						if (matches && nextValue.isExact()) {
+							matches = nextValue.getValue().equals(nextIndex.getValueExact());
+						}
+						if (matches) {
+							return true;
+						}
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	private static IClause compileToken(final String theParamName, List<? extends IQueryParameterType> theOrList) {
+		final List<TokenParam> values = new ArrayList<TokenParam>();
+		for (IQueryParameterType next : theOrList) {
+			if (!(next instanceof TokenParam) || isUnsupported(next) || ((TokenParam) next).isText()) {
+				return null;
+			}
+			values.add((TokenParam) next);
+		}
+		return new IClause() {
+			@Override
+			public boolean matches(ResourceTable theEntity) {
+				if (!theEntity.isParamsTokenPopulated()) {
+					return false;
+				}
+				for (ResourceIndexedSearchParamToken nextIndex : theEntity.getParamsToken()) {
+					if (!theParamName.equals(nextIndex.getParamName())) {
+						continue;
+					}
+					for (TokenParam nextValue : values) {
+						if (matchesToken(nextValue, nextIndex)) {
+							return true;
+						}
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	private static IClause compileUri(final String theParamName, List<? extends IQueryParameterType> theOrList) {
+		final Set<String> values = new HashSet<String>();
+		for (IQueryParameterType next : theOrList) {
+			if (!(next instanceof UriParam) || isUnsupported(next) || ((UriParam) next).getValue() == null) {
+				return null;
+			}
+			values.add(((UriParam) next).getValue());
+		}
+		return new IClause() {
+			@Override
+			public boolean matches(ResourceTable theEntity) {
+				if (!theEntity.isParamsUriPopulated()) {
+					return false;
+				}
+				for (ResourceIndexedSearchParamUri nextIndex : theEntity.getParamsUri()) {
+					if (theParamName.equals(nextIndex.getParamName()) && values.contains(nextIndex.getUri())) {
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Same rules as the token search: a blank system matches only values without a system, and a missing system
+	 * matches any system
+	 */
+	private static boolean matchesToken(TokenParam theValue, ResourceIndexedSearchParamToken theIndex) {
+		String system = theValue.getSystem();
+		if (isNotBlank(system)) {
+			if (!system.equals(theIndex.getSystem())) {
+				return false;
+			}
+		} else if (system != null && theIndex.getSystem() != null) {
+			return false;
+		}
+		String code = theValue.getValue();
+		if (isNotBlank(code)) {
+			return code.equals(theIndex.getValue());
+		}
+		return theIndex.getValue() == null;
+	}
+
+	private static class CompiledSubscription {
+
+		private final List<IClause> myClauses = new ArrayList<IClause>();
+		/**
+		 * The value of {@link SubscriptionMatcher#myGeneration} when this was registered
+		 */
+		private final long myGeneration;
+		private final String myResourceType;
+		/**
+		 * The criteria which can't be checked in memory, or <code>null</code> if there are none
+		 */
+		private SearchParameterMap mySearchCriteria;
+		private final Long mySubscriptionPid;
+		private final long myVersion;
+
+		CompiledSubscription(Long theSubscriptionPid, long theVersion, String theResourceType, long theGeneration) {
+			mySubscriptionPid = theSubscriptionPid;
+			myVersion = theVersion;
+			myResourceType = theResourceType;
+			myGeneration = theGeneration;
+		}
+
+		SearchParameterMap getSearchCriteria() {
+			if (mySearchCriteria == null) {
+				mySearchCriteria = new SearchParameterMap();
+			}
+			return mySearchCriteria;
+		}
+
+		boolean matches(ResourceTable theEntity, IFhirResourceDao<?> theDao) {
+			for (IClause next : myClauses) {
+				if (!next.matches(theEntity)) {
+					return false;
+				}
+			}
+			if (mySearchCriteria == null) {
+				return true;
+			}
+
+			SearchParameterMap params = new SearchParameterMap();
+			params.putAll(mySearchCriteria);
+			params.setLastUpdated(mySearchCriteria.getLastUpdated());
+			params.add(BaseResource.SP_RES_ID, new StringParam(theEntity.getIdDt().getIdPart()));
+			return theDao.searchForIdsWithAndOr(params).contains(theEntity.getId());
+		}
+
+	}
+
+	/**
+	 * One of the ANDed parameters of a subscription's criteria, which matches if any of its ORed values match
+	 */
+	private interface IClause {
+
+		boolean matches(ResourceTable theEntity);
+
+	}
+
+	/**
+	 * The subscriptions which a transaction has flagged resources for, which the listeners are told about once it
+	 * commits
+	 */
+	private class PendingNotifications extends TransactionSynchronizationAdapter {
+
+		private final Set<Long> mySubscriptionPids = new HashSet<Long>();
+
+		@Override
+		public void afterCommit() {
+			notifyFlagListenersCommitted(mySubscriptionPids);
+		}
+
+		@Override
+		public void afterCompletion(int theStatus) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(SubscriptionMatcher.this);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(SubscriptionMatcher.this, this);
+		}
+
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResource(SubscriptionMatcher.this);
+		}
+
+	}
+
+}
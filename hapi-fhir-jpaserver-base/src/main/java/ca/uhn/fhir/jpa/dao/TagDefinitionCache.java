@@ -0,0 +1,288 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Thread-safe cache of {@link TagDefinition tag definitions}, keyed by type, system and code as well as by ID. Most
+ * resources on a server carry one of a small number of tags, profiles and security labels, so this avoids looking the
+ * same definitions up over and over again when resources are stored and loaded.
+ * <p>
+ * Tag definitions are never modified or deleted once created. New definitions are created in their own transaction
+ * so that if two writers try to create the same definition at once, the loser can simply look up the winner's
+ * definition without its own transaction being affected.
+ * </p>
+ * <p>
+ * This means that a writer which stores a resource with a tag that has never been seen before needs a second
+ * database connection while it already holds one. If every connection in the pool is held by a writer in the same
+ * situation, none of them can get one, so the definition is created on a separate thread and the writer waits for it
+ * for at most {@link DaoConfig#getTagDefinitionCreateTimeoutMillis()}. If that time passes, the write fails with an
+ * error (releasing its connection) instead of hanging.
+ * </p>
+ */
+public class TagDefinitionCache {
+
+	/**
+	 * The maximum number of tag definitions held
+	 */
+	static final int MAXIMUM_SIZE = 10000;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TagDefinitionCache.class);
+
+	private Cache<Long, TagDefinition> myById;
+	private Cache<TagKey, TagDefinition> myByKey;
+	private ExecutorService myCreateExecutor;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	/**
+	 * Discards all cached definitions. This is only needed if tag definitions are removed from the database by
+	 * something other than the DAOs (e.g. a database purge).
+	 */
+	public void clear() {
+		myById.invalidateAll();
+		myByKey.invalidateAll();
+	}
+
+	private TagDefinition find(TagTypeEnum theTagType, String theScheme, String theTerm) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
+		Root<TagDefinition> from = cq.from(TagDefinition.class);
+
+		//@formatter:off
+		if (isNotBlank(theScheme)) {
+			cq.where(
+				builder.and(
+					builder.equal(from.get("myTagType"), theTagType), 
+					builder.equal(from.get("mySystem"), theScheme), 
+					builder.equal(from.get("myCode"), theTerm))
+				);
+		} else {
+			cq.where(
+				builder.and(
+					builder.equal(from.get("myTagType"), theTagType), 
+					builder.isNull(from.get("mySystem")), 
+					builder.equal(from.get("myCode"), theTerm))
+				);
+		}
+		//@formatter:on
+
+		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
+		q.setMaxResults(1);
+		List<TagDefinition> results = q.getResultList();
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	/**
+	 * Creates a tag definition (or finds one which was created concurrently) in a new transaction on a separate
+	 * thread, and waits for it for a limited time
+	 */
+	private TagDefinition create(final TagTypeEnum theTagType, final String theScheme, final String theTerm, final String theLabel) {
+		final TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		final TransactionCallback<TagDefinition> findOrCreate = new TransactionCallback<TagDefinition>() {
+			@Override
+			public TagDefinition doInTransaction(TransactionStatus theStatus) {
+				TagDefinition existing = find(theTagType, theScheme, theTerm);
+				if (existing != null) {
+					return existing;
+				}
+				TagDefinition created = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
+				myEntityManager.persist(created);
+				return created;
+			}
+		};
+
+		Future<TagDefinition> future = myCreateExecutor.submit(new Callable<TagDefinition>() {
+			@Override
+			public TagDefinition call() {
+				try {
+					return txTemplate.execute(findOrCreate);
+				} catch (CannotCreateTransactionException e) {
+					// No connection (e.g. because the caller gave up waiting), so there's no point trying again
+					throw e;
+				} catch (RuntimeException e) {
+					// Most likely someone else created the same definition at the same time, so we'll use theirs
+					ourLog.info("Failed to create tag definition {}|{}|{}, trying again: {}", new Object[] { theTagType, theScheme, theTerm, e.toString() });
+					return txTemplate.execute(findOrCreate);
+				}
+			}
+		});
+
+		long timeout = myDaoConfig.getTagDefinitionCreateTimeoutMillis();
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new InternalErrorException("Timed out after " + timeout + "ms creating tag definition " + theTagType + "|" + theScheme + "|" + theTerm
+					+ " - Creating a tag definition needs a second database connection, so the connection pool may be exhausted by concurrent writers. The pool must allow more connections than the number of threads which store resources at the same time.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new InternalErrorException(e.getCause());
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while creating tag definition " + theTagType + "|" + theScheme + "|" + theTerm, e);
+		}
+	}
+
+	/**
+	 * Returns the tag definition with the given type, system and code, creating it if it doesn't already exist
+	 */
+	public TagDefinition getTag(final TagTypeEnum theTagType, final String theScheme, final String theTerm, final String theLabel) {
+		TagKey key = new TagKey(theTagType, theScheme, theTerm);
+		TagDefinition retVal = myByKey.getIfPresent(key);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		retVal = find(theTagType, theScheme, theTerm);
+		if (retVal == null) {
+			retVal = create(theTagType, theScheme, theTerm, theLabel);
+		}
+
+		put(key, retVal);
+		return retVal;
+	}
+
+	/**
+	 * Returns the tag definition with the given ID
+	 */
+	public TagDefinition getTagById(Long theId) {
+		TagDefinition retVal = myById.getIfPresent(theId);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		retVal = myEntityManager.find(TagDefinition.class, theId);
+		if (retVal != null) {
+			put(new TagKey(retVal.getTagType(), retVal.getSystem(), retVal.getCode()), retVal);
+		}
+		return retVal;
+	}
+
+	private void put(TagKey theKey, TagDefinition theTag) {
+		myByKey.put(theKey, theTag);
+		myById.put(theTag.getId(), theTag);
+	}
+
+	@PostConstruct
+	public void start() {
+		myById = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).build();
+		myByKey = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).build();
+		myCreateExecutor = Executors.newCachedThreadPool(new CreateThreadFactory());
+	}
+
+	@PreDestroy
+	public void stop() {
+		myCreateExecutor.shutdownNow();
+	}
+
+	private static class CreateThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger myCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable theRunnable) {
+			Thread retVal = new Thread(theRunnable, "tag-definition-create-" + myCount.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+
+	}
+
+	private static class TagKey {
+
+		private final String myCode;
+		private final int myHashCode;
+		private final String mySystem;
+		private final TagTypeEnum myTagType;
+
+		public TagKey(TagTypeEnum theTagType, String theSystem, String theCode) {
+			myTagType = theTagType;
+			mySystem = isNotBlank(theSystem) ? theSystem : null;
+			myCode = theCode;
+			myHashCode = new HashCodeBuilder().append(myTagType).append(mySystem).append(myCode).toHashCode();
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof TagKey)) {
+				return false;
+			}
+			TagKey other = (TagKey) theObj;
+			return new EqualsBuilder().append(myTagType, other.myTagType).append(mySystem, other.mySystem).append(myCode, other.myCode).isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+			return myHashCode;
+		}
+
+	}
+
+}
@@ -0,0 +1,65 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Resources which have been flagged for a subscription, as returned by
+ * {@link IFhirResourceDaoSubscription#getUndeliveredResources(Long, int)}. The flags stay in place until they are
+ * purged using {@link IFhirResourceDaoSubscription#purgeDeliveredResources(Long, UndeliveredResources)}.
+ */
+public class UndeliveredResources {
+
+	private final List<Long> myFlagPids;
+	private final List<IBaseResource> myResources;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theResources
+	 *           The flagged resources, oldest flag first
+	 * @param theFlagPids
+	 *           The PIDs of the flags the resources were read from
+	 */
+	public UndeliveredResources(List<IBaseResource> theResources, List<Long> theFlagPids) {
+		myResources = theResources;
+		myFlagPids = theFlagPids;
+	}
+
+	List<Long> getFlagPids() {
+		return myFlagPids;
+	}
+
+	/**
+	 * Returns the flagged resources, oldest flag first
+	 */
+	public List<IBaseResource> getResources() {
+		return myResources;
+	}
+
+	public boolean isEmpty() {
+		return myResources.isEmpty();
+	}
+
+}
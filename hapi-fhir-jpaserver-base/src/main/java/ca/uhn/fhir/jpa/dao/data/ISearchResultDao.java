@@ -21,9 +21,16 @@ package ca.uhn.fhir.jpa.dao.data;
  */
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import ca.uhn.fhir.jpa.entity.SearchResult;
 
 public interface ISearchResultDao  extends JpaRepository<SearchResult, Long> {
-	// nothing
+
+	@Modifying
+	@Query("DELETE FROM SearchResult r WHERE r.mySearch.myId = :search_pid")
+	public int deleteForSearch(@Param("search_pid") Long theSearchPid);
+
 }
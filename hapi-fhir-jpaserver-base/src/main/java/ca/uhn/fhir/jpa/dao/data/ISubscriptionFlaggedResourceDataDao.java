@@ -20,7 +20,8 @@ package ca.uhn.fhir.jpa.dao.data;
  * #L%
  */
 
-import org.springframework.data.domain.Page;
+import java.util.List;
+
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
@@ -32,10 +33,14 @@ import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
 public interface ISubscriptionFlaggedResourceDataDao extends JpaRepository<SubscriptionFlaggedResource, Long> {
 
 	@Query("SELECT r FROM SubscriptionFlaggedResource r WHERE r.mySubscription.myId = :id ORDER BY r.myId ASC")
-   public Page<SubscriptionFlaggedResource> findAllBySubscriptionId(@Param("id") Long theId, Pageable thePage);
+   public List<SubscriptionFlaggedResource> findAllBySubscriptionId(@Param("id") Long theId, Pageable thePage);
 
 	@Modifying
 	@Query("DELETE FROM SubscriptionFlaggedResource r WHERE r.mySubscription.myId = :id")
 	public void deleteAllForSubscription(@Param("id") Long theSubscriptionId);
 
+	@Modifying
+	@Query("DELETE FROM SubscriptionFlaggedResource r WHERE r.mySubscription.myId = :id AND r.myId IN (:pids)")
+	public int deleteForSubscription(@Param("id") Long theSubscriptionId, @Param("pids") List<Long> theFlagPids);
+
 }
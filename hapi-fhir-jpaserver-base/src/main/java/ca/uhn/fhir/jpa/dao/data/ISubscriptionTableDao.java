@@ -41,12 +41,12 @@ public interface ISubscriptionTableDao extends JpaRepository<SubscriptionTable,
 	public void deleteAllForSubscription(@Param("id") Long theSubscriptionId);
 
 	@Modifying
-	@Query("UPDATE SubscriptionTable t SET t.myLastClientPoll = :last_client_poll")
-	public int updateLastClientPoll(@Param("last_client_poll") Date theLastClientPoll);
+	@Query("UPDATE SubscriptionTable t SET t.myLastClientPoll = :last_client_poll WHERE t.myId = :id")
+	public int updateLastClientPoll(@Param("last_client_poll") Date theLastClientPoll, @Param("id") Long theSubscriptionId);
 
 	@Query("SELECT t FROM SubscriptionTable t WHERE t.myLastClientPoll < :cutoff OR (t.myLastClientPoll IS NULL AND t.myCreated < :cutoff)")
 	public Collection<SubscriptionTable> findInactiveBeforeCutoff(@Param("cutoff") Date theCutoff);
 
-	@Query("SELECT t.myId FROM SubscriptionTable t WHERE t.myStatus = :status AND t.myNextCheck <= :next_check")
-	public Collection<Long> finsSubscriptionsWhichNeedToBeChecked(@Param("status") SubscriptionStatusEnum theStatus, @Param("next_check") Date theNextCheck);
+	@Query("SELECT t FROM SubscriptionTable t JOIN FETCH t.mySubscriptionResource WHERE t.myStatus = :status")
+	public Collection<SubscriptionTable> findAllByStatusWithResource(@Param("status") SubscriptionStatusEnum theStatus);
 }
@@ -29,6 +29,7 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.SequenceGenerator;
 
 @MappedSuperclass
 public abstract class BaseResourceIndexedSearchParam implements Serializable {
@@ -38,7 +39,8 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX")
+	@SequenceGenerator(name = "SEQ_SPIDX", sequenceName = "SEQ_SPIDX")
 	@Column(name = "SP_ID")
 	private Long myId;
 
@@ -23,6 +23,7 @@ package ca.uhn.fhir.jpa.entity;
 import java.io.Serializable;
 
 import javax.persistence.Column;
+import javax.persistence.FetchType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.MappedSuperclass;
@@ -32,7 +33,7 @@ public class BaseTag implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-	@ManyToOne(cascade= {})
+	@ManyToOne(cascade= {}, fetch=FetchType.LAZY)
 	@JoinColumn(name="TAG_ID", nullable=false)
 	private TagDefinition myTag;
 
@@ -43,6 +44,14 @@ public class BaseTag implements Serializable {
 		return myTag;
 	}
 
+	/**
+	 * Returns the ID of the tag definition, without loading it. This is only populated for tags which have been
+	 * loaded from the database.
+	 */
+	public Long getTagId() {
+		return myTagId;
+	}
+
 	public void setTag(TagDefinition theTag) {
 		myTag = theTag;
 	}
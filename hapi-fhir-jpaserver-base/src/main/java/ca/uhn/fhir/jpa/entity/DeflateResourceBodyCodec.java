@@ -0,0 +1,151 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ca.uhn.fhir.rest.server.Constants;
+
+/**
+ * Codec which stores resource bodies as a raw Deflate stream (no GZip header or trailer), compressed at
+ * {@link Deflater#BEST_SPEED}, optionally primed with a preset dictionary. A new {@link Deflater} or {@link Inflater}
+ * is created for each call and {@link Deflater#end() ended} before the call returns, so that no native zlib memory is
+ * held on to between calls (or left behind in threads which outlive the application).
+ * <p>
+ * Note that the dictionary is part of the stored format: rows written with a given dictionary can only be read using
+ * exactly the same one, so a dictionary must never change once rows have been written using it. A new dictionary
+ * needs a new {@link ResourceEncodingEnum} value.
+ * </p>
+ */
+public class DeflateResourceBodyCodec implements IResourceBodyCodec {
+
+	/**
+	 * A preset dictionary made up of the element names and fragments which appear most often in stored FHIR JSON
+	 * resources. Deflate favours the end of the dictionary (matches there have the shortest distances), so the most
+	 * common fragments are placed last.
+	 * <p>
+	 * <b>Do not modify</b> - rows stored using {@link ResourceEncodingEnum#JSDD1} depend on this exact value
+	 * </p>
+	 */
+	static final String FHIR_JSON_DICTIONARY_V1 = "" + 
+			"\"contained\":[{\"modifierExtension\":[{\"period\":{\"start\":\"\",\"end\":\"\"},\"interpretation\":\"referenceRange\":[{\"low\":{\"high\":{" + 
+			"\"effectiveDateTime\":\"\",\"issued\":\"\",\"performer\":[{\"encounter\":{\"birthDate\":\"\",\"gender\":\"male\",\"gender\":\"female\"," + 
+			"\"deceasedBoolean\":false,\"maritalStatus\":{\"managingOrganization\":{\"careProvider\":[{\"telecom\":[{\"system\":\"phone\",\"system\":\"email\"," + 
+			"\"address\":[{\"line\":[\"\"],\"city\":\"\",\"state\":\"\",\"postalCode\":\"\",\"country\":\"\"},\"use\":\"home\",\"use\":\"work\",\"use\":\"official\"," + 
+			"\"name\":[{\"family\":[\"\"],\"given\":[\"\"],\"prefix\":[\"\"],\"suffix\":[\"\"],\"active\":true,\"status\":\"final\",\"status\":\"active\"," + 
+			"\"category\":{\"subject\":{\"reference\":\"Patient/\"},\"patient\":{\"reference\":\"Patient/\"},\"reference\":\"Organization/\"," + 
+			"\"reference\":\"Practitioner/\",\"display\":\"\"},\"valueQuantity\":{\"value\":,\"unit\":\"\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"\"}," + 
+			"\"valueString\":\"\",\"valueCodeableConcept\":{\"valueDateTime\":\"\",\"extension\":[{\"url\":\"http://hl7.org/fhir/StructureDefinition/\"," + 
+			"\"text\":{\"status\":\"generated\",\"div\":\"<div>\"},\"text\":\"\"},\"meta\":{\"versionId\":\"\",\"lastUpdated\":\"\",\"profile\":[\"\"],\"security\":[{\"tag\":[{" + 
+			"\"identifier\":[{\"use\":\"usual\",\"type\":{\"system\":\"urn:oid:\",\"system\":\"http://loinc.org\",\"system\":\"http://snomed.info/sct\"," + 
+			"\"value\":\"\"}],\"code\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/\",\"code\":\"\",\"display\":\"\"}]}," + 
+			"{\"resourceType\":\"Observation\",{\"resourceType\":\"Patient\",\"id\":\"\",";
+
+	private static final byte[] DUMMY_BYTE = new byte[1];
+
+	private final byte[] myDictionary;
+
+	/**
+	 * Constructor for a codec which doesn't use a preset dictionary
+	 */
+	public DeflateResourceBodyCodec() {
+		this(null);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theDictionary
+	 *           The preset dictionary to use, or <code>null</code> for none. See the class documentation for important
+	 *           notes about changing this value.
+	 */
+	public DeflateResourceBodyCodec(String theDictionary) {
+		myDictionary = theDictionary != null ? theDictionary.getBytes(Constants.CHARSET_UTF8) : null;
+	}
+
+	@Override
+	public InputStream decode(byte[] theStored) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			if (myDictionary != null) {
+				inflater.setDictionary(myDictionary);
+			}
+			inflater.setInput(theStored);
+			byte[] buffer = new byte[Math.max(1024, theStored.length * 4)];
+			int length = 0;
+			boolean fedDummyByte = false;
+			while (!inflater.finished()) {
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				int inflated = inflater.inflate(buffer, length, buffer.length - length);
+				length += inflated;
+				if (inflated == 0 && inflater.needsInput()) {
+					if (fedDummyByte) {
+						throw new IOException("Stored resource body is truncated");
+					}
+					/*
+					 * Raw inflate may need an extra "dummy" byte after the end of the compressed data
+					 * (see Inflater(boolean)), so we feed it one
+					 */
+					inflater.setInput(DUMMY_BYTE);
+					fedDummyByte = true;
+				}
+			}
+			return new ByteArrayInputStream(buffer, 0, length);
+		} catch (DataFormatException e) {
+			throw new IOException("Stored resource body is not valid Deflate data: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public byte[] encode(byte[] theBytes, int theLength) throws IOException {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			if (myDictionary != null) {
+				deflater.setDictionary(myDictionary);
+			}
+			deflater.setInput(theBytes, 0, theLength);
+			deflater.finish();
+
+			byte[] buffer = new byte[Math.max(1024, theLength / 2)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			return Arrays.copyOf(buffer, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Converts between the serialized (UTF-8) form of a resource and the bytes which are stored in the
+ * <code>RES_TEXT</code> column of {@link ResourceTable} and {@link ResourceHistoryTable}. Each
+ * {@link ResourceEncodingEnum} value has exactly one codec, and since the name of that value is stored alongside
+ * every row, a codec must always be able to decode anything it has ever encoded.
+ */
+public interface IResourceBodyCodec {
+
+	/**
+	 * Encodes the given serialized resource
+	 * 
+	 * @param theBytes
+	 *           The buffer containing the serialized resource. Implementations must not hold on to this array, as
+	 *           callers may reuse it.
+	 * @param theLength
+	 *           The number of bytes in the buffer which are actually used
+	 * @return The bytes to store in the database
+	 */
+	byte[] encode(byte[] theBytes, int theLength) throws IOException;
+
+	/**
+	 * Returns a stream which reads the serialized resource from bytes previously returned by
+	 * {@link #encode(byte[], int)}. Callers must close the returned stream.
+	 */
+	InputStream decode(byte[] theStored) throws IOException;
+
+}
@@ -20,19 +20,84 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 
+/**
+ * The encoding used to store a resource body. The name of the value is stored in the <code>RES_ENCODING</code> column
+ * alongside each row, and each value delegates to an {@link IResourceBodyCodec} which compresses/decompresses the
+ * body, so rows written using any of these encodings can be read back regardless of the encoding currently
+ * configured in {@link ca.uhn.fhir.jpa.dao.DaoConfig#setResourceEncoding(ResourceEncodingEnum)}.
+ */
 public enum ResourceEncodingEnum {
 
 	/** Json */
-	JSON,
+	JSON(new PlainCodec()),
 	
-	/** Json Compressed */
-	JSONC;
+	/** Json Compressed (GZip) */
+	JSONC(new GZipCodec()),
+
+	/** Json compressed using raw Deflate */
+	JSOND(new DeflateResourceBodyCodec()),
+
+	/**
+	 * Json compressed using raw Deflate, with a preset dictionary of common FHIR JSON fragments (version 1). This
+	 * gives the best compression ratio on small resources, which are the most common kind.
+	 */
+	JSDD1(new DeflateResourceBodyCodec(DeflateResourceBodyCodec.FHIR_JSON_DICTIONARY_V1));
+
+	private final IResourceBodyCodec myCodec;
+
+	private ResourceEncodingEnum(IResourceBodyCodec theCodec) {
+		myCodec = theCodec;
+	}
+
+	public IResourceBodyCodec getCodec() {
+		return myCodec;
+	}
 
 	public IParser newParser(FhirContext theContext) {
 		return theContext.newJsonParser();
 	}
-	
+
+	private static class GZipCodec implements IResourceBodyCodec {
+
+		@Override
+		public InputStream decode(byte[] theStored) throws IOException {
+			return new GZIPInputStream(new ByteArrayInputStream(theStored));
+		}
+
+		@Override
+		public byte[] encode(byte[] theBytes, int theLength) throws IOException {
+			ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(32, theLength / 4));
+			GZIPOutputStream gos = new GZIPOutputStream(os);
+			gos.write(theBytes, 0, theLength);
+			gos.close();
+			return os.toByteArray();
+		}
+
+	}
+
+	private static class PlainCodec implements IResourceBodyCodec {
+
+		@Override
+		public InputStream decode(byte[] theStored) {
+			return new ByteArrayInputStream(theStored);
+		}
+
+		@Override
+		public byte[] encode(byte[] theBytes, int theLength) {
+			return Arrays.copyOf(theBytes, theLength);
+		}
+
+	}
+
 }
@@ -33,15 +33,34 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 @Entity
 @Table(name = "HFJ_SPIDX_COORDS" /* , indexes = { @Index(name = "IDX_SP_TOKEN", columnList = "SP_SYSTEM,SP_VALUE") } */)
 @org.hibernate.annotations.Table(appliesTo = "HFJ_SPIDX_COORDS", indexes = { 
-	@org.hibernate.annotations.Index(name = "IDX_SP_COORDS", columnNames = { "RES_TYPE", "SP_NAME", "SP_LATITUDE" }) 
+	@org.hibernate.annotations.Index(name = "IDX_SP_COORDS", columnNames = { "RES_TYPE", "SP_NAME", "SP_LATITUDE" }), 
+	@org.hibernate.annotations.Index(name = "IDX_SP_COORDS_CELL", columnNames = { "RES_TYPE", "SP_NAME", "SP_GRID_CELL" }) 
 })
 //@formatter:on
 public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchParam {
 
+	/**
+	 * The number of columns in the grid, i.e. the number of cells between longitude -180 and 180
+	 */
+	public static final int GRID_COLUMNS = 3600;
+
+	/**
+	 * The width and height of a single cell in the grid, in degrees
+	 */
+	public static final double GRID_DEGREES = 0.1;
+
+	/**
+	 * The number of rows in the grid, i.e. the number of cells between latitude -90 and 90
+	 */
+	public static final int GRID_ROWS = 1800;
+
 	public static final int MAX_LENGTH = 100;
 
 	private static final long serialVersionUID = 1L;
 
+	@Column(name = "SP_GRID_CELL")
+	private long myGridCell;
+
 	@Column(name = "SP_LATITUDE")
 	public double myLatitude;
 
@@ -77,6 +96,15 @@ public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchP
 		return b.isEquals();
 	}
 
+	/**
+	 * Returns the cell of a fixed {@link #GRID_DEGREES} degree grid which contains these coordinates (see
+	 * {@link #toGridCell(double, double)}). This is indexed so that searches for nearby coordinates can select the
+	 * cells overlapping the area they cover, instead of scanning every row within a range of latitude.
+	 */
+	public long getGridCell() {
+		return myGridCell;
+	}
+
 	public double getLatitude() {
 		return myLatitude;
 	}
@@ -97,10 +125,12 @@ public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchP
 
 	public void setLatitude(double theLatitude) {
 		myLatitude = theLatitude;
+		myGridCell = toGridCell(myLatitude, myLongitude);
 	}
 
 	public void setLongitude(double theLongitude) {
 		myLongitude = theLongitude;
+		myGridCell = toGridCell(myLatitude, myLongitude);
 	}
 	
 	@Override
@@ -112,4 +142,27 @@ public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchP
 		b.append("lon", getLongitude());
 		return b.build();
 	}
+
+	/**
+	 * Returns the cell containing the given coordinates, numbered row by row from the south-west corner
+	 */
+	public static long toGridCell(double theLatitude, double theLongitude) {
+		return ((long) toGridRow(theLatitude)) * GRID_COLUMNS + toGridColumn(theLongitude);
+	}
+
+	/**
+	 * Returns the grid column containing the given longitude, which is normalized to the range [-180, 180) first
+	 */
+	public static int toGridColumn(double theLongitude) {
+		double longitude = ((theLongitude + 180.0) % 360.0 + 360.0) % 360.0;
+		return Math.min((int) Math.floor(longitude / GRID_DEGREES), GRID_COLUMNS - 1);
+	}
+
+	/**
+	 * Returns the grid row containing the given latitude
+	 */
+	public static int toGridRow(double theLatitude) {
+		int row = (int) Math.floor((theLatitude + 90.0) / GRID_DEGREES);
+		return Math.max(0, Math.min(row, GRID_ROWS - 1));
+	}
 }
@@ -76,8 +76,8 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		EqualsBuilder b = new EqualsBuilder();
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
-		b.append(getValueHigh(), obj.getValueHigh());
-		b.append(getValueLow(), obj.getValueLow());
+		b.append(toMillis(getValueHigh()), toMillis(obj.getValueHigh()));
+		b.append(toMillis(getValueLow()), toMillis(obj.getValueLow()));
 		return b.isEquals();
 	}
 
@@ -94,8 +94,8 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		HashCodeBuilder b = new HashCodeBuilder();
 		b.append(getParamName());
 		b.append(getResource());
-		b.append(getValueHigh());
-		b.append(getValueLow());
+		b.append(toMillis(getValueHigh()));
+		b.append(toMillis(getValueLow()));
 		return b.toHashCode();
 	}
 
@@ -116,4 +116,13 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		b.append("valueHigh", getValueHigh());
 		return b.build();
 	}
+
+	/**
+	 * Dates loaded from the database are {@link java.sql.Timestamp} instances, which are never equal to plain
+	 * {@link Date} instances, so equality is based on the millisecond value instead
+	 */
+	private static Long toMillis(Date theDate) {
+		return theDate != null ? theDate.getTime() : null;
+	}
+
 }
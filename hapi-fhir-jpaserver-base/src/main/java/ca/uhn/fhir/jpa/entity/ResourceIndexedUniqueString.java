@@ -0,0 +1,104 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * One value of a search parameter which has been configured as unique (see
+ * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setUniqueSearchParameters(java.util.Set)}). The value is stored as a single
+ * normalized string, e.g. <code>Patient?identifier=http%3A%2F%2Fexample.com%7C123</code>, which the database
+ * guarantees to be unique, so that a match URL for the parameter can be resolved with a single indexed lookup.
+ */
+//@formatter:off
+@Entity()
+@Table(name = "HFJ_IDX_UNIQUE", uniqueConstraints = {
+		@UniqueConstraint(name = "IDX_UNIQUE_STRING", columnNames = {"IDX_STRING"})
+}, indexes = {
+		@Index(name = "IDX_UNIQUE_RESID", columnList = "RES_ID")
+})
+//@formatter:on
+public class ResourceIndexedUniqueString {
+
+	public static final int MAX_STRING_LENGTH = 500;
+
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_IDXUNIQUE")
+	@SequenceGenerator(name = "SEQ_IDXUNIQUE", sequenceName = "SEQ_IDXUNIQUE")
+	@Id
+	@Column(name = "PID")
+	private Long myId;
+
+	@Column(name = "IDX_STRING", nullable = false, length = MAX_STRING_LENGTH, updatable = false)
+	private String myIndexString;
+
+	@ManyToOne(optional = false)
+	@JoinColumn(name = "RES_ID", referencedColumnName = "RES_ID", nullable = false, updatable = false)
+	private ResourceTable myResource;
+
+	@Column(name = "RES_ID", insertable = false, updatable = false)
+	private Long myResourceId;
+
+	public ResourceIndexedUniqueString() {
+	}
+
+	public ResourceIndexedUniqueString(ResourceTable theResource, String theIndexString) {
+		myResource = theResource;
+		myIndexString = theIndexString;
+	}
+
+	public String getIndexString() {
+		return myIndexString;
+	}
+
+	public ResourceTable getResource() {
+		return myResource;
+	}
+
+	public Long getResourceId() {
+		if (myResourceId == null && myResource != null) {
+			return myResource.getId();
+		}
+		return myResourceId;
+	}
+
+	@Override
+	public String toString() {
+		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		b.append("resourceId", getResourceId());
+		b.append("indexString", myIndexString);
+		return b.build();
+	}
+
+}
@@ -25,6 +25,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.CascadeType;
@@ -38,8 +40,20 @@ import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
+import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilterFactory;
+import org.apache.lucene.analysis.standard.StandardTokenizerFactory;
 import org.hibernate.annotations.Index;
+import org.hibernate.search.annotations.Analyze;
+import org.hibernate.search.annotations.Analyzer;
+import org.hibernate.search.annotations.AnalyzerDef;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.FieldBridge;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.TokenFilterDef;
+import org.hibernate.search.annotations.TokenizerDef;
 
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.server.Constants;
@@ -56,8 +70,36 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 		@Index(name = "IDX_RES_PROFILE", columnNames = { "RES_PROFILE" }),
 		@Index(name = "IDX_INDEXSTATUS", columnNames = { "SP_INDEX_STATUS" }) 
 	})
+@Indexed
+@AnalyzerDef(name = ResourceTable.ANALYZER_STANDARD, 
+	tokenizer = @TokenizerDef(factory = StandardTokenizerFactory.class), 
+	filters = { 
+		@TokenFilterDef(factory = LowerCaseFilterFactory.class), 
+		@TokenFilterDef(factory = ASCIIFoldingFilterFactory.class) 
+	})
+@Analyzer(definition = ResourceTable.ANALYZER_STANDARD)
 //@formatter:on
 public class ResourceTable extends BaseHasResource implements Serializable {
+	/**
+	 * The analyzer used for every full-text field (see {@link #getStringParamFieldName(String)})
+	 */
+	public static final String ANALYZER_STANDARD = "standardAnalyzer";
+
+	/**
+	 * Full-text field containing the text of every primitive value in the resource
+	 */
+	public static final String FIELD_CONTENT = "myContentText";
+
+	/**
+	 * Full-text field containing the text of the resource's narrative, without any markup
+	 */
+	public static final String FIELD_NARRATIVE = "myNarrativeText";
+
+	/**
+	 * Full-text field containing the resource type (not analyzed)
+	 */
+	public static final String FIELD_RESOURCE_TYPE = "myResourceType";
+
 	private static final int MAX_LANGUAGE_LENGTH = 20;
 	private static final int MAX_PROFILE_LENGTH = 200;
 
@@ -65,6 +107,13 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Not persisted, only populated when the resource is being added to the full-text index
+	 */
+	@Transient
+	@Field(name = FIELD_CONTENT)
+	private String myContentText;
+
 	@Column(name = "SP_HAS_LINKS")
 	private boolean myHasLinks;
 
@@ -82,6 +131,13 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	@Column(name = "RES_LANGUAGE", length = MAX_LANGUAGE_LENGTH, nullable = true)
 	private String myLanguage;
 
+	/**
+	 * Not persisted, only populated when the resource is being added to the full-text index
+	 */
+	@Transient
+	@Field(name = FIELD_NARRATIVE)
+	private String myNarrativeText;
+
 	@OneToMany(mappedBy = "myResource", cascade = {}, fetch = FetchType.LAZY, orphanRemoval = false)
 	private Collection<ResourceIndexedSearchParamCoords> myParamsCoords;
 
@@ -131,8 +187,17 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	private Collection<ResourceLink> myResourceLinks;
 
 	@Column(name = "RES_TYPE", length = RESTYPE_LEN)
+	@Field(name = FIELD_RESOURCE_TYPE, analyze = Analyze.NO)
 	private String myResourceType;
 
+	/**
+	 * Not persisted, only populated when the resource is being added to the full-text index. Each parameter is
+	 * indexed as its own field (see {@link #getStringParamFieldName(String)}).
+	 */
+	@Transient
+	@Field(bridge = @FieldBridge(impl = StringParamsFieldBridge.class))
+	private Map<String, List<String>> myStringParamValues;
+
 	@OneToMany(mappedBy = "myResource", cascade = CascadeType.ALL, fetch = FetchType.LAZY, orphanRemoval = true)
 	private Set<ResourceTag> myTags;
 
@@ -157,6 +222,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		return new IdDt(myResourceType + '/' + id + '/' + Constants.PARAM_HISTORY + '/' + myVersion);
 	}
 
+	public String getContentText() {
+		return myContentText;
+	}
+
 	public Long getIndexStatus() {
 		return myIndexStatus;
 	}
@@ -165,6 +234,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		return myLanguage;
 	}
 
+	public String getNarrativeText() {
+		return myNarrativeText;
+	}
+
 	public Collection<ResourceIndexedSearchParamCoords> getParamsCoords() {
 		if (myParamsCoords == null) {
 			myParamsCoords = new ArrayList<ResourceIndexedSearchParamCoords>();
@@ -230,6 +303,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		return myResourceType;
 	}
 
+	public Map<String, List<String>> getStringParamValues() {
+		return myStringParamValues;
+	}
+
 	@Override
 	public Collection<ResourceTag> getTags() {
 		if (myTags == null) {
@@ -284,6 +361,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		return myParamsUriPopulated;
 	}
 
+	public void setContentText(String theContentText) {
+		myContentText = theContentText;
+	}
+
 	public void setHasLinks(boolean theHasLinks) {
 		myHasLinks = theHasLinks;
 	}
@@ -303,6 +384,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		myLanguage = theLanguage;
 	}
 
+	public void setNarrativeText(String theNarrativeText) {
+		myNarrativeText = theNarrativeText;
+	}
+
 	public void setParamsCoords(Collection<ResourceIndexedSearchParamCoords> theParamsCoords) {
 		if (!isParamsTokenPopulated() && theParamsCoords.isEmpty()) {
 			return;
@@ -406,6 +491,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		myResourceType = theResourceType;
 	}
 
+	public void setStringParamValues(Map<String, List<String>> theStringParamValues) {
+		myStringParamValues = theStringParamValues;
+	}
+
 	public void setVersion(long theVersion) {
 		myVersion = theVersion;
 	}
@@ -433,4 +522,11 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		return retVal;
 	}
 
+	/**
+	 * Returns the name of the full-text field which holds the values of the given string search parameter
+	 */
+	public static String getStringParamFieldName(String theParamName) {
+		return "sp:" + theParamName;
+	}
+
 }
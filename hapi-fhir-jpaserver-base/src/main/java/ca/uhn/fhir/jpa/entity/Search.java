@@ -21,14 +21,19 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 
+import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.OneToMany;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
@@ -40,7 +45,8 @@ import javax.persistence.UniqueConstraint;
 @Table(name = "HFJ_SEARCH", uniqueConstraints= {
 	@UniqueConstraint(name="IDX_SEARCH_UUID", columnNames="SEARCH_UUID")
 }, indexes= {
-	@Index(name="JDX_SEARCH_CREATED", columnList="CREATED")
+	@Index(name="JDX_SEARCH_CREATED", columnList="CREATED"), 
+	@Index(name="IDX_SEARCH_RESTYPE_HASH", columnList="RESOURCE_TYPE,SEARCH_QUERY_HASH,CREATED")
 })
 //@formatter:on
 public class Search implements Serializable {
@@ -57,6 +63,30 @@ public class Search implements Serializable {
 	@Column(name = "PID")
 	private Long myId;
 
+	@OneToMany(mappedBy="mySearch", cascade=CascadeType.ALL)
+	private Collection<SearchInclude> myIncludes;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="LAST_UPDATED_HIGH", nullable=true)
+	private Date myLastUpdatedHigh;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="LAST_UPDATED_LOW", nullable=true)
+	private Date myLastUpdatedLow;
+
+	@Column(name="PREFERRED_PAGE_SIZE", nullable=true)
+	private Integer myPreferredPageSize;
+
+	@Column(name="RESOURCE_TYPE", length=ResourceTable.RESTYPE_LEN, nullable=true)
+	private String myResourceType;
+
+	@Column(name="SEARCH_QUERY_HASH", nullable=true)
+	private Integer mySearchQueryHash;
+
+	@Lob()
+	@Column(name="SEARCH_QUERY_STRING", nullable=true)
+	private String mySearchQueryString;
+
 	@Column(name="TOTAL_COUNT")
 	private int myTotalCount;
 	
@@ -67,6 +97,41 @@ public class Search implements Serializable {
 		return myCreated;
 	}
 
+	public Long getId() {
+		return myId;
+	}
+
+	public Collection<SearchInclude> getIncludes() {
+		if (myIncludes == null) {
+			myIncludes = new ArrayList<SearchInclude>();
+		}
+		return myIncludes;
+	}
+
+	public Date getLastUpdatedHigh() {
+		return myLastUpdatedHigh;
+	}
+
+	public Date getLastUpdatedLow() {
+		return myLastUpdatedLow;
+	}
+
+	public Integer getPreferredPageSize() {
+		return myPreferredPageSize;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	public Integer getSearchQueryHash() {
+		return mySearchQueryHash;
+	}
+
+	public String getSearchQueryString() {
+		return mySearchQueryString;
+	}
+
 	public int getTotalCount() {
 		return myTotalCount;
 	}
@@ -79,6 +144,31 @@ public class Search implements Serializable {
 		myCreated = theCreated;
 	}
 
+	public void setLastUpdatedHigh(Date theLastUpdatedHigh) {
+		myLastUpdatedHigh = theLastUpdatedHigh;
+	}
+
+	public void setLastUpdatedLow(Date theLastUpdatedLow) {
+		myLastUpdatedLow = theLastUpdatedLow;
+	}
+
+	public void setPreferredPageSize(Integer thePreferredPageSize) {
+		myPreferredPageSize = thePreferredPageSize;
+	}
+
+	public void setResourceType(String theResourceType) {
+		myResourceType = theResourceType;
+	}
+
+	/**
+	 * Sets the normalized query string for this search, which is used to find an identical search
+	 * whose results may be reused. The hash of the string (which is what is indexed) is set too.
+	 */
+	public void setSearchQueryString(String theSearchQueryString) {
+		mySearchQueryString = theSearchQueryString;
+		mySearchQueryHash = theSearchQueryString != null ? theSearchQueryString.hashCode() : null;
+	}
+
 	public void setTotalCount(int theTotalCount) {
 		myTotalCount = theTotalCount;
 	}
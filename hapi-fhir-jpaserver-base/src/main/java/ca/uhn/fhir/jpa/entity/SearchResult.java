@@ -32,10 +32,12 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 //@formatter:off
 @Entity
 @Table(name = "HFJ_SEARCH_RESULT", uniqueConstraints= {
+	@UniqueConstraint(name="IDX_SEARCHRES_ORDER", columnNames= {"SEARCH_PID", "SEARCH_ORDER"})
 })
 //@formatter:on
 public class SearchResult implements Serializable {
@@ -48,6 +50,9 @@ public class SearchResult implements Serializable {
 	@Column(name = "PID")
 	private Long myId;
 
+	@Column(name="SEARCH_ORDER", nullable=true)
+	private Integer myOrder;
+
 	@ManyToOne
 	@JoinColumn(name="RESOURCE_PID", referencedColumnName="RES_ID", foreignKey=@ForeignKey(name="FK_SEARCHRES_RES"), insertable=false, updatable=false, nullable=false)
 	private ResourceTable myResource;
@@ -73,6 +78,21 @@ public class SearchResult implements Serializable {
 		mySearch = theSearch;
 	}
 
+	/**
+	 * Returns the position of this result within the search results (starting at 0)
+	 */
+	public Integer getOrder() {
+		return myOrder;
+	}
+
+	public Long getResourcePid() {
+		return myResourcePid;
+	}
+
+	public void setOrder(Integer theOrder) {
+		myOrder = theOrder;
+	}
+
 	public void setResourcePid(Long theResourcePid) {
 		myResourcePid = theResourcePid;
 	}
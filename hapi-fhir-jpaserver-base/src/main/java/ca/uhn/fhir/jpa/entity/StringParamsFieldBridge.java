@@ -0,0 +1,53 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.lucene.document.Document;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.LuceneOptions;
+
+/**
+ * Adds the values of each string search parameter of a {@link ResourceTable} to the full-text index as a separate
+ * field, named using {@link ResourceTable#getStringParamFieldName(String)}
+ */
+public class StringParamsFieldBridge implements FieldBridge {
+
+	@Override
+	public void set(String theName, Object theValue, Document theDocument, LuceneOptions theLuceneOptions) {
+		if (theValue == null) {
+			return;
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, List<String>> values = (Map<String, List<String>>) theValue;
+		for (Entry<String, List<String>> nextEntry : values.entrySet()) {
+			String fieldName = ResourceTable.getStringParamFieldName(nextEntry.getKey());
+			for (String nextValue : nextEntry.getValue()) {
+				theLuceneOptions.addFieldToDocument(fieldName, nextValue, theDocument);
+			}
+		}
+	}
+
+}
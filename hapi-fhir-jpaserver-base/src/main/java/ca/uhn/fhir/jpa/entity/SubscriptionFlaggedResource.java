@@ -56,6 +56,10 @@ public class SubscriptionFlaggedResource {
 	@Column(name="RES_VERSION", nullable=false)
 	private Long myVersion;
 
+	public Long getId() {
+		return myId;
+	}
+
 	public ResourceTable getResource() {
 		return myResource;
 	}
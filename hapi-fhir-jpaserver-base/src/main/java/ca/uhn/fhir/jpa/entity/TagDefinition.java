@@ -135,7 +135,7 @@ public class TagDefinition implements Serializable {
 		}
 		TagDefinition other = (TagDefinition) obj;
 		EqualsBuilder b = new EqualsBuilder();
-		b.append(myId, other.myId);
+		b.append(myId, other.getId());
 		return b.isEquals();
 	}
 	
@@ -20,20 +20,33 @@ package ca.uhn.fhir.jpa.provider;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.dao.ImportOutcome;
+import ca.uhn.fhir.jpa.dao.ReindexingProgress;
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Parameters;
+import ca.uhn.fhir.model.primitive.BooleanDt;
+import ca.uhn.fhir.model.primitive.DecimalDt;
 import ca.uhn.fhir.model.primitive.IntegerDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.rest.annotation.Operation;
@@ -41,9 +54,15 @@ import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.Transaction;
 import ca.uhn.fhir.rest.annotation.TransactionParam;
 import ca.uhn.fhir.rest.param.NumberParam;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle> {
 
+	@Autowired
+	private DaoConfig myDaoConfig;
+
 	@Autowired()
 	@Qualifier("mySystemDaoDstu2")
 	private IFhirSystemDao<Bundle> mySystemDao;
@@ -158,6 +177,104 @@ public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle> {
 		return retVal;
 	}
 
+	//@formatter:off
+	@Operation(name="$get-reindexing-progress", idempotent=true, returnParameters= {
+		@OperationParam(name="pending", type=DecimalDt.class, min=1, max=1),
+		@OperationParam(name="running", type=BooleanDt.class, min=0, max=1),
+		@OperationParam(name="count", type=IntegerDt.class, min=0, max=1),
+		@OperationParam(name="failures", type=IntegerDt.class, min=0, max=1),
+		@OperationParam(name="millis", type=IntegerDt.class, min=0, max=1),
+		@OperationParam(name="resourcesPerSecond", type=DecimalDt.class, min=0, max=1),
+		@OperationParam(name="message", type=StringDt.class, min=0, max=OperationParam.MAX_UNLIMITED)
+	})
+	@Description(shortDefinition="Returns the number of resources waiting to be reindexed, and the progress of the current (or most recent) reindexing pass")
+	//@formatter:on
+	public Parameters getReindexingProgress() {
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("pending").setValue(new DecimalDt(mySystemDao.getResourcesPendingReindexingCount()));
+
+		ReindexingProgress progress = mySystemDao.getReindexingProgress();
+		if (progress != null) {
+			retVal.addParameter().setName("running").setValue(new BooleanDt(progress.isRunning()));
+			retVal.addParameter().setName("count").setValue(new IntegerDt(progress.getResourceCount()));
+			retVal.addParameter().setName("failures").setValue(new IntegerDt(progress.getFailureCount()));
+			retVal.addParameter().setName("millis").setValue(new IntegerDt((int) progress.getMillis()));
+			retVal.addParameter().setName("resourcesPerSecond").setValue(new DecimalDt(progress.getResourcesPerSecond()));
+			for (String next : progress.getMessages()) {
+				retVal.addParameter().setName("message").setValue(new StringDt(next));
+			}
+		}
+		return retVal;
+	}
+
+	//@formatter:off
+	@Operation(name="$import", idempotent=false, returnParameters= {
+		@OperationParam(name="count", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="failures", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="millis", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="message", type=StringDt.class, min=0, max=OperationParam.MAX_UNLIMITED)
+	})
+	@Description(shortDefinition="Imports a large number of resources from an NDJSON file (one JSON resource per line) within the server's import directory. NDJSON may also be POSTed directly to this URL if the server has registered an NdjsonImportInterceptor.")
+	//@formatter:on
+	public Parameters importResources(
+			HttpServletRequest theRequest,
+			@OperationParam(name="file", min=1, max=1) StringDt theFile,
+			@OperationParam(name="deferIndexing", min=0, max=1) BooleanDt theDeferIndexing) {
+		if (theFile == null || isBlank(theFile.getValue())) {
+			throw new InvalidRequestException("The 'file' parameter must be supplied");
+		}
+		boolean deferIndexing = theDeferIndexing != null && Boolean.TRUE.equals(theDeferIndexing.getValue());
+
+		Reader reader = null;
+		try {
+			reader = new InputStreamReader(new FileInputStream(resolveImportFile(theFile.getValue())), Constants.CHARSET_UTF8);
+			return importNdjson(theRequest, reader, deferIndexing);
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to read import file: " + e.toString(), e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Imports the NDJSON read from the given reader, which is not closed. This is shared by the <code>$import</code>
+	 * operation and by {@link NdjsonImportInterceptor}, which streams NDJSON request bodies.
+	 */
+	Parameters importNdjson(HttpServletRequest theRequest, Reader theReader, boolean theDeferIndexing) {
+		startRequest(theRequest);
+		try {
+			ImportOutcome outcome = mySystemDao.importResources(theReader, theDeferIndexing);
+
+			Parameters retVal = new Parameters();
+			retVal.addParameter().setName("count").setValue(new IntegerDt(outcome.getResourceCount()));
+			retVal.addParameter().setName("failures").setValue(new IntegerDt(outcome.getFailureCount()));
+			retVal.addParameter().setName("millis").setValue(new IntegerDt((int) outcome.getMillis()));
+			for (String next : outcome.getMessages()) {
+				retVal.addParameter().setName("message").setValue(new StringDt(next));
+			}
+			return retVal;
+		} finally {
+			endRequest(theRequest);
+		}
+	}
+
+	private File resolveImportFile(String theFile) throws IOException {
+		String importDirectory = myDaoConfig.getImportDirectory();
+		if (isBlank(importDirectory)) {
+			throw new InvalidRequestException("This server does not allow importing resources from files");
+		}
+
+		File directory = new File(importDirectory).getCanonicalFile();
+		File retVal = new File(directory, theFile).getCanonicalFile();
+		if (!retVal.getPath().startsWith(directory.getPath() + File.separator)) {
+			throw new InvalidRequestException("File is not within the server's import directory: " + theFile);
+		}
+		if (!retVal.isFile()) {
+			throw new InvalidRequestException("File does not exist: " + theFile);
+		}
+		return retVal;
+	}
+
 	//@formatter:off
 	@Operation(name="$mark-all-resources-for-reindexing", idempotent=true, returnParameters= {
 		@OperationParam(name="count", type=IntegerDt.class)
@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.provider;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+/**
+ * Interceptor which allows clients to POST NDJSON (one JSON resource per line) directly to
+ * <code>[base]/$import</code>, with a content type of <code>application/x-ndjson</code>. The request body is read
+ * and stored a line at a time as it arrives, so it never needs to be held in memory. This is not possible through the
+ * <code>$import</code> operation itself, since the server reads the whole body of an operation request in order to
+ * parse its Parameters.
+ * <p>
+ * Indexing may be deferred by adding <code>?deferIndexing=true</code> to the URL. The outcome is returned as a JSON
+ * Parameters resource, in the same form as the <code>$import</code> operation returns it.
+ * </p>
+ */
+public class NdjsonImportInterceptor extends InterceptorAdapter {
+
+	public static final String CT_NDJSON = "application/x-ndjson";
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(NdjsonImportInterceptor.class);
+
+	private final FhirContext myContext;
+	private final JpaSystemProviderDstu2 mySystemProvider;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theContext
+	 *           The context used to encode responses
+	 * @param theSystemProvider
+	 *           The system provider which performs the import
+	 */
+	public NdjsonImportInterceptor(FhirContext theContext, JpaSystemProviderDstu2 theSystemProvider) {
+		Validate.notNull(theContext, "theContext must not be null");
+		Validate.notNull(theSystemProvider, "theSystemProvider must not be null");
+		myContext = theContext;
+		mySystemProvider = theSystemProvider;
+	}
+
+	@Override
+	public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+		if (!"POST".equals(theRequest.getMethod()) || !"/$import".equals(theRequest.getPathInfo())) {
+			return true;
+		}
+		String contentType = theRequest.getContentType();
+		if (contentType == null || !contentType.toLowerCase().startsWith(CT_NDJSON)) {
+			return true;
+		}
+
+		/*
+		 * Exceptions thrown from here are not handled by the server, so failures are turned into an OperationOutcome
+		 */
+		IBaseResource response;
+		int status;
+		try {
+			if (theRequest.getCharacterEncoding() == null) {
+				theRequest.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+			}
+			boolean deferIndexing = Boolean.parseBoolean(theRequest.getParameter("deferIndexing"));
+			response = mySystemProvider.importNdjson(theRequest, theRequest.getReader(), deferIndexing);
+			status = Constants.STATUS_HTTP_200_OK;
+		} catch (IOException e) {
+			ourLog.error("Failed to read NDJSON request body", e);
+			response = createOperationOutcome("Failed to read request body: " + e.toString());
+			status = Constants.STATUS_HTTP_500_INTERNAL_ERROR;
+		} catch (BaseServerResponseException e) {
+			response = createOperationOutcome(e.getMessage());
+			status = e.getStatusCode();
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to import NDJSON request body", e);
+			response = createOperationOutcome(e.toString());
+			status = Constants.STATUS_HTTP_500_INTERNAL_ERROR;
+		}
+
+		theResponse.setStatus(status);
+		theResponse.setContentType(Constants.CT_FHIR_JSON);
+		theResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+		try {
+			Writer writer = theResponse.getWriter();
+			myContext.newJsonParser().encodeResourceToWriter(response, writer);
+			writer.close();
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		}
+		return false;
+	}
+
+	private static OperationOutcome createOperationOutcome(String theMessage) {
+		OperationOutcome retVal = new OperationOutcome();
+		retVal.addIssue().setSeverity(IssueSeverityEnum.ERROR).setDiagnostics(theMessage);
+		return retVal;
+	}
+
+}
@@ -0,0 +1,184 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.IPersistableBundleProvider;
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.rest.server.BoundedMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Paging provider which stores the results of JPA searches in the HFJ_SEARCH and HFJ_SEARCH_RESULT tables instead of
+ * in memory. This means that paging links returned by one server node can be followed on any other node which shares
+ * the same database, and that they remain valid if the server is restarted.
+ * <p>
+ * Result lists which can't be stored in the database (e.g. history results, or searches with _revinclude) are kept
+ * in memory as they are by {@link BoundedMemoryPagingProvider}.
+ * </p>
+ * <p>
+ * This class must be created as a bean in the Spring context which contains the JPA DAOs. The generated
+ * <code>hapi-fhir-server-resourceproviders-dstu2.xml</code> defines one named <code>myPagingProvider</code>, along
+ * with the Spring task scheduling which deletes stored searches once they are older than
+ * {@link DaoConfig#getExpireSearchResultsAfterMillis()}.
+ * </p>
+ */
+public class DatabaseBackedPagingProvider extends BoundedMemoryPagingProvider {
+
+	static final int DELETE_BATCH_SIZE = 100;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(DatabaseBackedPagingProvider.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@Autowired
+	private List<IFhirResourceDao<?>> myResourceDaos;
+
+	private Map<String, IFhirResourceDao<?>> myResourceNameToDao;
+
+	@Autowired
+	private ISearchDao mySearchDao;
+
+	@Autowired
+	private ISearchResultDao mySearchResultDao;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	/**
+	 * Constructor which uses the default maximum weight for result lists held in memory
+	 */
+	public DatabaseBackedPagingProvider() {
+		super();
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theMaximumWeight
+	 *           The maximum estimated weight (in bytes) of result lists which can't be stored in the database to hold
+	 *           in memory
+	 */
+	public DatabaseBackedPagingProvider(long theMaximumWeight) {
+		super(theMaximumWeight);
+	}
+
+	private synchronized IFhirResourceDao<?> getDao(String theResourceName) {
+		if (myResourceNameToDao == null) {
+			myResourceNameToDao = new HashMap<String, IFhirResourceDao<?>>();
+			for (IFhirResourceDao<?> next : myResourceDaos) {
+				myResourceNameToDao.put(next.getResourceName(), next);
+			}
+		}
+		return myResourceNameToDao.get(theResourceName);
+	}
+
+	/**
+	 * Deletes any stored searches which are older than {@link DaoConfig#getExpireSearchResultsAfterMillis()}. This
+	 * is invoked automatically once a minute.
+	 */
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_MINUTE)
+	public void purgeExpiredSearches() {
+		final Date cutoff = new Date(System.currentTimeMillis() - myDaoConfig.getExpireSearchResultsAfterMillis());
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		int total = 0;
+		while (true) {
+			int deleted = txTemplate.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					Slice<Long> toDelete = mySearchDao.findWhereCreatedBefore(cutoff, new PageRequest(0, DELETE_BATCH_SIZE));
+					for (Long next : toDelete) {
+						mySearchResultDao.deleteForSearch(next);
+						mySearchDao.delete(next);
+					}
+					return toDelete.getNumberOfElements();
+				}
+			});
+
+			total += deleted;
+			if (deleted < DELETE_BATCH_SIZE) {
+				break;
+			}
+		}
+
+		if (total > 0) {
+			ourLog.info("Deleted {} stored searches created before {}", total, cutoff);
+		}
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(final String theId) {
+		IBundleProvider retVal = super.retrieveResultList(theId);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		return txTemplate.execute(new TransactionCallback<IBundleProvider>() {
+			@Override
+			public IBundleProvider doInTransaction(TransactionStatus theStatus) {
+				Search search = mySearchDao.findByUuid(theId);
+				if (search == null) {
+					return null;
+				}
+
+				IFhirResourceDao<?> dao = getDao(search.getResourceType());
+				if (dao == null) {
+					ourLog.warn("No DAO found for resource type {} of stored search {}", search.getResourceType(), theId);
+					return null;
+				}
+
+				return dao.loadSearch(search);
+			}
+		});
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		if (theList instanceof IPersistableBundleProvider) {
+			String retVal = ((IPersistableBundleProvider) theList).persist();
+			if (retVal != null) {
+				return retVal;
+			}
+		}
+		return super.storeResultList(theList);
+	}
+
+}
@@ -24,4 +24,26 @@ import org.springframework.web.socket.WebSocketHandler;
 
 public interface ISubscriptionWebsocketHandler extends WebSocketHandler {
 
+	/**
+	 * Returns the number of resources sent to the client so far
+	 */
+	long getDeliveredCount();
+
+	/**
+	 * Returns the time in milliseconds between the oldest resource in the most recently sent batch being written, and
+	 * the batch being sent to the client
+	 */
+	long getLagMillis();
+
+	/**
+	 * Returns the number of times that fetching resources for this client has been skipped because the client was still
+	 * receiving earlier ones
+	 */
+	long getParkedCount();
+
+	/**
+	 * Returns the number of resources waiting in memory to be sent to the client
+	 */
+	int getQueueDepth();
+
 }
@@ -21,8 +21,11 @@ package ca.uhn.fhir.jpa.subscription;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -33,31 +36,75 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.scheduling.TaskScheduler;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
+import ca.uhn.fhir.jpa.dao.UndeliveredResources;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Subscription;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionChannelTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionStatusEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.EncodingEnum;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
-public class SubscriptionWebsocketHandler extends TextWebSocketHandler implements ISubscriptionWebsocketHandler, Runnable {
+/**
+ * Handles one WebSocket connection. Once the client has bound to a subscription, the resources flagged for it are
+ * fetched and sent to the client by a task on the <code>mySubscriptionDeliveryExecutor</code>. A delivery is started
+ * when the client binds, when the {@link SubscriptionWebsocketHandlerRegistry} reports that resources have been flagged
+ * for the subscription, and as a catch-up (for resources flagged by other servers sharing the database) when nothing
+ * has been fetched for a while. A flag is only removed once its resource has been sent, so resources which could not be
+ * sent (e.g. because the connection was closed) are still flagged for the next client which binds to the subscription.
+ * <p>
+ * Only one delivery runs at a time for each client. A delivery requested while one is still being sent is parked until
+ * that one finishes (nothing more is fetched for the client in the meantime, so further resources wait in the
+ * database), and a client which takes longer than {@link DaoConfig#getSubscriptionWebsocketSendTimeLimitMillis()} to
+ * receive a delivery is disconnected. Each handler adds itself to the {@link SubscriptionWebsocketHandlerRegistry} for
+ * as long as its connection is open, which is where its delivery metrics can be read.
+ * </p>
+ */
+public class SubscriptionWebsocketHandler extends TextWebSocketHandler implements ISubscriptionWebsocketHandler {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionWebsocketHandler.class);
 
 	@Autowired
 	@Qualifier("myFhirContextDstu2")
 	private FhirContext myCtx;
 
-	private ScheduledFuture<?> myScheduleFuture;
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private final AtomicLong myDeliveredCount = new AtomicLong();
+
+	@Autowired
+	@Qualifier("mySubscriptionDeliveryExecutor")
+	private TaskExecutor myDeliveryExecutor;
+
+	private final AtomicBoolean myDelivering = new AtomicBoolean();
+	private final AtomicBoolean myDeliveryRequested = new AtomicBoolean();
+	private volatile long myDeliveryStarted;
+	private volatile long myLagMillis;
+	private volatile long myLastFetch;
+	private final AtomicLong myParkedCount = new AtomicLong();
+	private volatile int myQueueDepth;
+
+	private volatile WebSocketSession mySession;
+
+	@Autowired
+	private SubscriptionWebsocketHandlerRegistry myRegistry;
 
 	private IState myState = new InitialState();
 
@@ -65,10 +112,7 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 	private IFhirResourceDaoSubscription<Subscription> mySubscriptionDao;
 
 	private IIdType mySubscriptionId;
-	private Long mySubscriptionPid;
-
-	@Autowired
-	private TaskScheduler myTaskScheduler;
+	private volatile Long mySubscriptionPid;
 
 	@Override
 	public void afterConnectionClosed(WebSocketSession theSession, CloseStatus theStatus) throws Exception {
@@ -80,6 +124,130 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 	public void afterConnectionEstablished(WebSocketSession theSession) throws Exception {
 		super.afterConnectionEstablished(theSession);
 		ourLog.info("Incoming WebSocket connection from {}", theSession.getRemoteAddress());
+		mySession = new ConcurrentWebSocketSessionDecorator(theSession, myDaoConfig.getSubscriptionWebsocketSendTimeLimitMillis(), myDaoConfig.getSubscriptionWebsocketSendBufferSizeLimit());
+	}
+
+	/**
+	 * Called by the registry every second or so. Disconnects a client which has not received its last delivery within
+	 * the send time limit, and requests a catch-up delivery if nothing has been fetched for the given time.
+	 */
+	void checkDelivery(long theCatchUpMillis) {
+		Long subscriptionPid = mySubscriptionPid;
+		WebSocketSession session = mySession;
+		if (subscriptionPid == null || session == null || !session.isOpen()) {
+			return;
+		}
+
+		if (myDelivering.get()) {
+			long sendingMillis = System.currentTimeMillis() - myDeliveryStarted;
+			if (sendingMillis > myDaoConfig.getSubscriptionWebsocketSendTimeLimitMillis()) {
+				ourLog.warn("Subscription {} client at {} has not received its last message after {}ms, closing connection", new Object[] { subscriptionPid, session.getRemoteAddress(), sendingMillis });
+				try {
+					session.close(CloseStatus.SESSION_NOT_RELIABLE);
+				} catch (IOException e) {
+					handleFailure(e);
+				}
+			}
+			return;
+		}
+
+		if (System.currentTimeMillis() - myLastFetch >= theCatchUpMillis) {
+			requestDelivery();
+		}
+	}
+
+	/**
+	 * Fetches and sends the flagged resources until there are none left, the client goes away or a send fails. Called
+	 * on the delivery executor.
+	 */
+	private void deliverFlagged() {
+		while (myDeliveryRequested.getAndSet(false)) {
+			Long subscriptionPid = mySubscriptionPid;
+			WebSocketSession session = mySession;
+			if (subscriptionPid == null || session == null || !session.isOpen()) {
+				return;
+			}
+
+			myDeliveryStarted = System.currentTimeMillis();
+			myLastFetch = myDeliveryStarted;
+			int queueSize = myDaoConfig.getSubscriptionWebsocketQueueSize();
+			UndeliveredResources undelivered = mySubscriptionDao.getUndeliveredResources(subscriptionPid, queueSize);
+			if (undelivered.isEmpty()) {
+				return;
+			}
+
+			/*
+			 * Keyed by versionless ID so that a resource which was flagged again before it was sent is only sent once (in
+			 * its latest version)
+			 */
+			LinkedHashMap<String, IBaseResource> coalesced = new LinkedHashMap<String, IBaseResource>();
+			for (IBaseResource next : undelivered.getResources()) {
+				coalesced.put(next.getIdElement().toUnqualifiedVersionless().getValue(), next);
+			}
+			List<IBaseResource> resources = new ArrayList<IBaseResource>(coalesced.values());
+			myQueueDepth = resources.size();
+
+			long oldestUpdated = Long.MAX_VALUE;
+			for (IBaseResource next : resources) {
+				if (next instanceof IResource) {
+					InstantDt updated = ResourceMetadataKeyEnum.UPDATED.get((IResource) next);
+					if (updated != null && updated.getValue() != null) {
+						oldestUpdated = Math.min(oldestUpdated, updated.getValue().getTime());
+					}
+				}
+			}
+			if (oldestUpdated != Long.MAX_VALUE) {
+				myLagMillis = Math.max(0, System.currentTimeMillis() - oldestUpdated);
+			}
+
+			boolean sent;
+			try {
+				sent = myState.deliver(resources);
+			} finally {
+				myQueueDepth = 0;
+			}
+			if (!sent) {
+				// Left flagged for a later delivery
+				return;
+			}
+
+			mySubscriptionDao.purgeDeliveredResources(subscriptionPid, undelivered);
+			myDeliveredCount.addAndGet(resources.size());
+			ourLog.debug("Subscription {} delivered {} resources, lag {}ms, {} delivered in total, parked {} times", new Object[] { subscriptionPid, resources.size(), myLagMillis, myDeliveredCount.get(), myParkedCount.get() });
+
+			if (undelivered.getResources().size() >= queueSize) {
+				// There may be more waiting
+				myDeliveryRequested.set(true);
+			}
+		}
+	}
+
+	@Override
+	public long getDeliveredCount() {
+		return myDeliveredCount.get();
+	}
+
+	@Override
+	public long getLagMillis() {
+		return myLagMillis;
+	}
+
+	@Override
+	public long getParkedCount() {
+		return myParkedCount.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return myQueueDepth;
+	}
+
+	/**
+	 * Returns the PID of the subscription table entry the client is bound to, or <code>null</code> if it has not bound
+	 * yet
+	 */
+	Long getSubscriptionPid() {
+		return mySubscriptionPid;
 	}
 
 	protected void handleFailure(Exception theE) {
@@ -90,7 +258,8 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 	protected void handleTextMessage(WebSocketSession theSession, TextMessage theMessage) throws Exception {
 		ourLog.info("Textmessage: " + theMessage.getPayload());
 
-		myState.handleTextMessage(theSession, theMessage);
+		WebSocketSession session = mySession;
+		myState.handleTextMessage(session != null ? session : theSession, theMessage);
 	}
 
 	@Override
@@ -101,32 +270,55 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 
 	@PostConstruct
 	public void postConstruct() {
-		ourLog.info("Creating scheduled task for subscription websocket connection");
-		myScheduleFuture = myTaskScheduler.scheduleWithFixedDelay(this, 1000);
+		myRegistry.register(this);
 	}
 
 	@PreDestroy
 	public void preDescroy() {
-		ourLog.info("Cancelling scheduled task for subscription websocket connection");
-		myScheduleFuture.cancel(true);
+		myRegistry.unregister(this);
 		IState state = myState;
 		if (state != null) {
 			state.closing();
 		}
 	}
 
-	@Override
-	public void run() {
-		Long subscriptionPid = mySubscriptionPid;
-		if (subscriptionPid == null) {
+	/**
+	 * Starts a delivery on the delivery executor, unless one is already running for this client, in which case that one
+	 * picks up the request once it has finished sending
+	 */
+	void requestDelivery() {
+		if (mySubscriptionPid == null) {
 			return;
 		}
-
-		ourLog.debug("Subscription {} websocket handler polling", subscriptionPid);
-
-		List<IBaseResource> results = mySubscriptionDao.getUndeliveredResourcesAndPurge(subscriptionPid);
-		if (results.isEmpty() == false) {
-			myState.deliver(results);
+		myDeliveryRequested.set(true);
+		if (!myDelivering.compareAndSet(false, true)) {
+			ourLog.debug("Subscription {} client is still receiving, parking", mySubscriptionPid);
+			myParkedCount.incrementAndGet();
+			return;
+		}
+		myDeliveryStarted = System.currentTimeMillis();
+
+		try {
+			myDeliveryExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						deliverFlagged();
+					} catch (RuntimeException e) {
+						handleFailure(e);
+					} finally {
+						myDelivering.set(false);
+					}
+					// A request which arrived just as the delivery finished
+					if (myDeliveryRequested.get()) {
+						requestDelivery();
+					}
+				}
+			});
+		} catch (TaskRejectedException e) {
+			ourLog.debug("Subscription {} delivery rejected by executor, parking", mySubscriptionPid);
+			myDelivering.set(false);
+			myParkedCount.incrementAndGet();
 		}
 	}
 
@@ -151,16 +343,32 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 		}
 
 		@Override
-		public void deliver(List<IBaseResource> theResults) {
+		public boolean deliver(List<IBaseResource> theResults) {
+			int batchSize = myDaoConfig.getSubscriptionWebsocketMaxBatchSize();
 			try {
-			for (IBaseResource nextResource : theResults) {
-				ourLog.info("Sending WebSocket message for resource: {}", nextResource.getIdElement());
-				String encoded = myEncoding.newParser(myCtx).encodeResourceToString(nextResource);
-				String payload = "add " + mySubscriptionId.getIdPart() + '\n' + encoded;
-				mySession.sendMessage(new TextMessage(payload));
-			}
-			} catch (IOException e) {
+				for (int from = 0; from < theResults.size(); from += batchSize) {
+					List<IBaseResource> batch = theResults.subList(from, Math.min(from + batchSize, theResults.size()));
+					IBaseResource toSend;
+					if (batch.size() == 1) {
+						toSend = batch.get(0);
+						ourLog.info("Sending WebSocket message for resource: {}", toSend.getIdElement());
+					} else {
+						Bundle bundle = new Bundle();
+						bundle.setType(BundleTypeEnum.COLLECTION);
+						for (IBaseResource next : batch) {
+							bundle.addEntry().setResource((IResource) next);
+						}
+						toSend = bundle;
+						ourLog.info("Sending WebSocket message for {} resources", batch.size());
+					}
+					String encoded = myEncoding.newParser(myCtx).encodeResourceToString(toSend);
+					String payload = "add " + mySubscriptionId.getIdPart() + '\n' + encoded;
+					mySession.sendMessage(new TextMessage(payload));
+				}
+				return true;
+			} catch (Exception e) {
 				handleFailure(e);
+				return false;
 			}
 		}
 
@@ -189,13 +397,15 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 		}
 
 		@Override
-		public void deliver(List<IBaseResource> theResults) {
+		public boolean deliver(List<IBaseResource> theResults) {
 			try {
 				String payload = "ping " + mySubscriptionId.getIdPart();
 				ourLog.info("Sending WebSocket message: {}", payload);
 				mySession.sendMessage(new TextMessage(payload));
-			} catch (IOException e) {
+				return true;
+			} catch (Exception e) {
 				handleFailure(e);
+				return false;
 			}
 		}
 
@@ -295,7 +505,7 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 		}
 
 		@Override
-		public void deliver(List<IBaseResource> theResults) {
+		public boolean deliver(List<IBaseResource> theResults) {
 			throw new IllegalStateException();
 		}
 
@@ -321,6 +531,9 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 					handleFailure(e);
 				}
 
+				// Deliver anything which was flagged before the client bound
+				requestDelivery();
+
 			}
 		}
 
@@ -330,7 +543,10 @@ public class SubscriptionWebsocketHandler extends TextWebSocketHandler implement
 
 		void closing();
 
-		void deliver(List<IBaseResource> theResults);
+		/**
+		 * @return Were the resources sent to the client?
+		 */
+		boolean deliver(List<IBaseResource> theResults);
 
 		void handleTextMessage(WebSocketSession theSession, TextMessage theMessage);
 
@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2015 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.TaskScheduler;
+
+import ca.uhn.fhir.jpa.dao.ISubscriptionFlagListener;
+import ca.uhn.fhir.jpa.dao.SubscriptionMatcher;
+
+/**
+ * Keeps track of the open WebSocket subscription connections, so that their delivery metrics (see
+ * {@link ISubscriptionWebsocketHandler}) can be read. A handler is created for each connection by the
+ * {@link org.springframework.web.socket.handler.PerConnectionWebSocketHandler}, and adds itself here when it is
+ * created and removes itself when the connection is closed.
+ * <p>
+ * The registry listens to the {@link SubscriptionMatcher}, and starts a delivery on every handler bound to a
+ * subscription as soon as resources have been flagged for it. A single scheduled task checks every handler once a
+ * second, disconnecting clients which are taking too long to receive a delivery, and starting a catch-up delivery for
+ * handlers which haven't fetched anything for {@link #CATCH_UP_MILLIS}, which picks up resources flagged by other
+ * servers sharing the database. Apart from these catch-ups, nothing is read from the database for a client unless
+ * there is something to deliver.
+ * </p>
+ */
+public class SubscriptionWebsocketHandlerRegistry implements ISubscriptionFlagListener {
+
+	/**
+	 * The same as the interval at which the active subscriptions are reloaded from the database
+	 */
+	static final long CATCH_UP_MILLIS = 10 * DateUtils.MILLIS_PER_SECOND;
+
+	private final Set<SubscriptionWebsocketHandler> myHandlers = Collections.newSetFromMap(new ConcurrentHashMap<SubscriptionWebsocketHandler, Boolean>());
+
+	private ScheduledFuture<?> myScheduleFuture;
+
+	@Autowired
+	private SubscriptionMatcher mySubscriptionMatcher;
+
+	@Autowired
+	private TaskScheduler myTaskScheduler;
+
+	/**
+	 * Checks the delivery of every open connection. Called once a second.
+	 */
+	void checkDeliveries() {
+		for (SubscriptionWebsocketHandler next : myHandlers) {
+			next.checkDelivery(CATCH_UP_MILLIS);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the handlers for the currently open connections
+	 */
+	public List<ISubscriptionWebsocketHandler> getHandlers() {
+		return new ArrayList<ISubscriptionWebsocketHandler>(myHandlers);
+	}
+
+	void register(SubscriptionWebsocketHandler theHandler) {
+		myHandlers.add(theHandler);
+	}
+
+	@Override
+	public void resourcesFlagged(Set<Long> theSubscriptionPids) {
+		for (SubscriptionWebsocketHandler next : myHandlers) {
+			Long subscriptionPid = next.getSubscriptionPid();
+			if (subscriptionPid != null && theSubscriptionPids.contains(subscriptionPid)) {
+				next.requestDelivery();
+			}
+		}
+	}
+
+	@PostConstruct
+	public void start() {
+		mySubscriptionMatcher.addFlagListener(this);
+		myScheduleFuture = myTaskScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkDeliveries();
+			}
+		}, DateUtils.MILLIS_PER_SECOND);
+	}
+
+	@PreDestroy
+	public void stop() {
+		mySubscriptionMatcher.removeFlagListener(this);
+		if (myScheduleFuture != null) {
+			myScheduleFuture.cancel(true);
+		}
+	}
+
+	void unregister(SubscriptionWebsocketHandler theHandler) {
+		myHandlers.remove(theHandler);
+	}
+
+}
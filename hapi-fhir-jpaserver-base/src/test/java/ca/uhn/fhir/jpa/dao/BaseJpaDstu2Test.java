@@ -35,9 +35,13 @@ import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedUniqueString;
 import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchInclude;
+import ca.uhn.fhir.jpa.entity.SearchResult;
 import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
 import ca.uhn.fhir.jpa.entity.SubscriptionTable;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
@@ -103,6 +107,14 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	@PersistenceContext()
 	protected EntityManager myEntityManager;
 	@Autowired
+	protected ForcedIdCache myForcedIdCache;
+	@Autowired
+	protected ResourceBodyCache myResourceBodyCache;
+	@Autowired
+	protected SubscriptionMatcher mySubscriptionMatcher;
+	@Autowired
+	protected TagDefinitionCache myTagDefinitionCache;
+	@Autowired
 	@Qualifier("myFhirContextDstu2")
 	protected FhirContext myFhirCtx;
 	@Autowired
@@ -165,6 +177,10 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myForcedIdCache.clear();
+		myResourceBodyCache.clear();
+		mySubscriptionMatcher.clear();
+		myTagDefinitionCache.clear();
 	}
 
 	protected <T extends IBaseResource> T loadResourceFromClasspath(Class<T> type, String resourceName) throws IOException {
@@ -198,6 +214,9 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 		txTemplate.execute(new TransactionCallback<Void>() {
 			@Override
 			public Void doInTransaction(TransactionStatus theStatus) {
+				entityManager.createQuery("DELETE from " + SearchResult.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + SearchInclude.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + Search.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + SubscriptionFlaggedResource.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ForcedId.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ResourceIndexedSearchParamDate.class.getSimpleName() + " d").executeUpdate();
@@ -207,6 +226,7 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 				entityManager.createQuery("DELETE from " + ResourceIndexedSearchParamToken.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ResourceIndexedSearchParamUri.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ResourceIndexedSearchParamCoords.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + ResourceIndexedUniqueString.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ResourceLink.class.getSimpleName() + " d").executeUpdate();
 				return null;
 			}
@@ -3,6 +3,7 @@ package ca.uhn.fhir.jpa.dao;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsInRelativeOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.hasItems;
@@ -27,6 +28,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.Test;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
@@ -59,6 +63,7 @@ import ca.uhn.fhir.model.dstu2.resource.Location;
 import ca.uhn.fhir.model.dstu2.resource.Medication;
 import ca.uhn.fhir.model.dstu2.resource.MedicationOrder;
 import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
 import ca.uhn.fhir.model.dstu2.resource.Organization;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.model.dstu2.resource.Practitioner;
@@ -74,6 +79,7 @@ import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
 import ca.uhn.fhir.rest.api.SortOrderEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.CompositeParam;
@@ -91,6 +97,7 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 @SuppressWarnings("unchecked")
@@ -1074,6 +1081,39 @@ public class FhirResourceDaoDstu2SearchTest extends BaseJpaDstu2Test {
 		assertEquals(locGrandchildId, found.getResources(0, 1).get(0).getIdElement().toUnqualifiedVersionless());
 	}
 
+	/**
+	 * The DAOs in the application context are transactional proxies, so the DAO being searched has to reach the DAOs
+	 * of the chained types through their interface
+	 */
+	@Test
+	public void testSearchResourceLinkWithChainThroughOtherTypes() {
+		String methodName = "testSearchResourceLinkWithChainThroughOtherTypes";
+		assertTrue(AopUtils.isAopProxy(myObservationDao));
+		assertTrue(AopUtils.isAopProxy(myPatientDao));
+
+		Organization org = new Organization();
+		org.setName(methodName);
+		IIdType orgId = myOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+
+		Patient patient = new Patient();
+		patient.getManagingOrganization().setReference(orgId);
+		IIdType patientId = myPatientDao.create(patient).getId().toUnqualifiedVersionless();
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference(patientId);
+		IIdType obsId = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		Observation otherObs = new Observation();
+		otherObs.getSubject().setReference(myPatientDao.create(new Patient()).getId().toUnqualifiedVersionless());
+		myObservationDao.create(otherObs);
+
+		List<IIdType> found = toUnqualifiedVersionlessIds(myObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam("Patient", Patient.SP_ORGANIZATION + "." + Organization.SP_NAME, methodName)));
+		assertThat(found, contains(obsId));
+
+		found = toUnqualifiedVersionlessIds(myObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam("Patient", Patient.SP_ORGANIZATION + "." + Organization.SP_NAME, methodName + "XX")));
+		assertThat(found, empty());
+	}
+
 	@Test
 	public void testSearchResourceLinkWithChainWithMultipleTypes() {
 		Patient patient = new Patient();
@@ -1657,6 +1697,203 @@ public class FhirResourceDaoDstu2SearchTest extends BaseJpaDstu2Test {
 		}
 	}
 
+	@Test
+	public void testSearchWithIncludesStopsAtIncludeLimit() {
+		String methodName = "testSearchWithIncludesStopsAtIncludeLimit";
+		IIdType parentOrgId;
+		{
+			Organization org = new Organization();
+			org.getNameElement().setValue(methodName + "_O1Parent");
+			parentOrgId = myOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+		}
+		IIdType orgId;
+		{
+			Organization org = new Organization();
+			org.getNameElement().setValue(methodName + "_O1");
+			org.setPartOf(new ResourceReferenceDt(parentOrgId));
+			orgId = myOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+		}
+		IIdType patientId;
+		{
+			Patient patient = new Patient();
+			patient.addName().addFamily("Tester_" + methodName + "_P1").addGiven("Joe");
+			patient.getManagingOrganization().setReference(orgId);
+			patientId = myPatientDao.create(patient).getId().toUnqualifiedVersionless();
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringDt("Tester_" + methodName + "_P1"));
+		params.addInclude(new Include("*").asRecursive());
+
+		// Everything fits
+		List<IBaseResource> resources = myPatientDao.search(params).getResources(0, 1);
+		assertEquals(3, resources.size());
+
+		int defaultLimit = new DaoConfig().getIncludeLimit();
+		myDaoConfig.setIncludeLimit(1);
+		try {
+			resources = myPatientDao.search(params).getResources(0, 1);
+			assertEquals(3, resources.size());
+			assertEquals(patientId, resources.get(0).getIdElement().toUnqualifiedVersionless());
+			assertEquals(orgId, resources.get(1).getIdElement().toUnqualifiedVersionless());
+			assertEquals(BundleEntrySearchModeEnum.INCLUDE, ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get((IResource) resources.get(1)));
+
+			OperationOutcome oo = (OperationOutcome) resources.get(2);
+			assertEquals(BundleEntrySearchModeEnum.OUTCOME, ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get(oo));
+			assertEquals("warning", oo.getIssueFirstRep().getSeverity());
+			assertThat(oo.getIssueFirstRep().getDiagnostics(), containsString("include limit"));
+		} finally {
+			myDaoConfig.setIncludeLimit(defaultLimit);
+		}
+	}
+
+	@Test
+	public void testSearchFulltext() {
+		String methodName = "testSearchFulltext";
+
+		Patient pat1 = new Patient();
+		pat1.addName().addFamily("Van " + methodName + "wood").addGiven("Agatha");
+		pat1.getText().setDiv("<div>Agatha is an <b>avid</b> gardener " + methodName + "</div>");
+		IIdType id1 = myPatientDao.create(pat1).getId().toUnqualifiedVersionless();
+
+		Patient pat2 = new Patient();
+		pat2.addName().addFamily("Van " + methodName + "worth").addGiven("Hugo");
+		pat2.getText().setDiv("<div>Hugo is a " + methodName + " gardener and avid cyclist</div>");
+		IIdType id2 = myPatientDao.create(pat2).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Constants.PARAM_CONTENT, new StringParam(methodName + " agatha"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id1));
+
+		params = new SearchParameterMap();
+		params.add(Constants.PARAM_TEXT, new StringParam(methodName + " avid GARDENER"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), containsInAnyOrder(id1, id2));
+
+		params = new SearchParameterMap();
+		params.add(Constants.PARAM_TEXT, new StringParam(methodName + " cyclist"));
+		params.add(Constants.PARAM_CONTENT, new StringParam("hugo"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id2));
+
+		// The given name isn't in the narrative of the first patient
+		params = new SearchParameterMap();
+		params.add(Constants.PARAM_TEXT, new StringParam(methodName + " agatha hugo"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), empty());
+
+		// :contains matches words within the value, not only at its start
+		StringParam contains = new StringParam(methodName + "wo");
+		contains.setContains(true);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(Patient.SP_FAMILY, contains)), containsInAnyOrder(id1, id2));
+
+		contains = new StringParam(methodName + "woo");
+		contains.setContains(true);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(Patient.SP_FAMILY, contains)), contains(id1));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(Patient.SP_FAMILY, new StringParam(methodName + "woo"))), empty());
+
+		// The index is kept up to date when resources are updated or deleted
+		pat2.setId(id2);
+		pat2.getText().setDiv("<div>Hugo is a " + methodName + " runner</div>");
+		myPatientDao.update(pat2);
+		myPatientDao.delete(id1);
+
+		params = new SearchParameterMap();
+		params.add(Constants.PARAM_TEXT, new StringParam(methodName + " gardener"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), empty());
+
+		params = new SearchParameterMap();
+		params.add(Constants.PARAM_TEXT, new StringParam(methodName + " runner"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id2));
+	}
+
+	/**
+	 * Without a full-text index (or with too many full-text matches), :contains is performed with a LIKE on the string
+	 * index table
+	 */
+	@Test
+	public void testSearchStringContainsWithoutFulltextIndex() {
+		String methodName = "testSearchStringContainsWithoutFulltextIndex";
+
+		Patient pat1 = new Patient();
+		pat1.addName().addFamily(methodName + "wood");
+		IIdType id1 = myPatientDao.create(pat1).getId().toUnqualifiedVersionless();
+
+		Patient pat2 = new Patient();
+		pat2.addName().addFamily("Van " + methodName + "worth");
+		IIdType id2 = myPatientDao.create(pat2).getId().toUnqualifiedVersionless();
+
+		Patient pat3 = new Patient();
+		pat3.addName().addFamily(methodName + "ton");
+		myPatientDao.create(pat3);
+
+		// More full-text matches than the limit
+		myDaoConfig.setFulltextSearchMaxHits(1);
+		try {
+			StringParam contains = new StringParam(methodName + "wo");
+			contains.setContains(true);
+			assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(Patient.SP_FAMILY, contains)), containsInAnyOrder(id1, id2));
+		} finally {
+			myDaoConfig.setFulltextSearchMaxHits(new DaoConfig().getFulltextSearchMaxHits());
+		}
+
+		// No full-text index at all
+		Object target = AopTestUtils.getUltimateTargetObject(myPatientDao);
+		Object fulltextSvc = ReflectionTestUtils.getField(target, "myFulltextSearchSvc");
+		ReflectionTestUtils.setField(target, "myFulltextSearchSvc", null);
+		try {
+			// Matches anywhere within the value, not only at the start of a word
+			StringParam contains = new StringParam("StringContainsWithoutFulltextIndexWO");
+			contains.setContains(true);
+			assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(Patient.SP_FAMILY, contains)), containsInAnyOrder(id1, id2));
+
+			contains = new StringParam("FulltextIndexwoo");
+			contains.setContains(true);
+			assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(Patient.SP_FAMILY, contains)), contains(id1));
+		} finally {
+			ReflectionTestUtils.setField(target, "myFulltextSearchSvc", fulltextSvc);
+		}
+	}
+
+	@Test
+	public void testSearchNear() {
+		String methodName = "testSearchNear";
+		IIdType annArborId = createLocation(methodName + "_AnnArbor", "42.2808", "-83.7430");
+		IIdType detroitId = createLocation(methodName + "_Detroit", "42.3314", "-83.0458");
+		IIdType torontoId = createLocation(methodName + "_Toronto", "43.6532", "-79.3832");
+		createLocation(methodName + "_Sydney", "-33.8688", "151.2093");
+
+		// Ypsilanti, which is about 10 km from Ann Arbor and 45 km from Detroit
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Location.SP_NEAR, new TokenParam("42.2411", "-83.6130|20"));
+		assertThat(toUnqualifiedVersionlessIds(myLocationDao.search(params)), containsInAnyOrder(annArborId));
+
+		params = new SearchParameterMap();
+		params.add(Location.SP_NEAR, new TokenParam("42.2411", "-83.6130"));
+		params.add(Location.SP_NEAR_DISTANCE, new TokenParam(null, "60"));
+		params.setSort(new SortSpec(Location.SP_NEAR));
+		assertThat(toUnqualifiedVersionlessIds(myLocationDao.search(params)), contains(annArborId, detroitId));
+
+		params = new SearchParameterMap();
+		params.add(Location.SP_NEAR, new TokenParam("42.2411", "-83.6130|400|mi"));
+		params.setSort(new SortSpec(Location.SP_NEAR));
+		assertThat(toUnqualifiedVersionlessIds(myLocationDao.search(params)), contains(annArborId, detroitId, torontoId));
+
+		params = new SearchParameterMap();
+		params.add(Location.SP_NEAR, new TokenParam("42.2411", "-83.6130"));
+		try {
+			myLocationDao.search(params);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("must specify a distance"));
+		}
+	}
+
+	private IIdType createLocation(String theName, String theLatitude, String theLongitude) {
+		Location loc = new Location();
+		loc.getNameElement().setValue(theName);
+		loc.getPosition().getLatitudeElement().setValue(new BigDecimal(theLatitude));
+		loc.getPosition().getLongitudeElement().setValue(new BigDecimal(theLongitude));
+		return myLocationDao.create(loc).getId().toUnqualifiedVersionless();
+	}
+
 	/**
 	 * Test for #62
 	 */
@@ -2035,4 +2272,93 @@ public class FhirResourceDaoDstu2SearchTest extends BaseJpaDstu2Test {
 	}
 
 	
+	/**
+	 * All of the AND-ed parameters are combined into a single query, so each one must constrain
+	 * the others regardless of the order they are applied in
+	 */
+	@Test
+	public void testSearchWithMultipleParamTypesAnd() {
+		String methodName = "testSearchWithMultipleParamTypesAnd";
+		IIdType orgId = myOrganizationDao.create(new Organization()).getId().toUnqualifiedVersionless();
+
+		IIdType id1;
+		{
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			patient.addName().addFamily(methodName).addGiven("John");
+			patient.setBirthDate(new DateDt("2011-01-01"));
+			patient.getManagingOrganization().setReference(orgId);
+			id1 = myPatientDao.create(patient).getId().toUnqualifiedVersionless();
+		}
+		IIdType id2;
+		{
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			patient.addName().addFamily(methodName).addGiven("Jane");
+			patient.setBirthDate(new DateDt("2011-01-01"));
+			id2 = myPatientDao.create(patient).getId().toUnqualifiedVersionless();
+		}
+		{
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			patient.addName().addFamily(methodName).addGiven("John");
+			patient.setBirthDate(new DateDt("2001-01-01"));
+			patient.getManagingOrganization().setReference(orgId);
+			myPatientDao.create(patient);
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.add(Patient.SP_BIRTHDATE, (IQueryParameterType) new DateParam(QuantityCompararatorEnum.GREATERTHAN_OR_EQUALS, "2010-01-01"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), containsInAnyOrder(id1, id2));
+
+		params.add(Patient.SP_ORGANIZATION, new ReferenceParam(orgId.getIdPart()));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id1));
+
+		params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		params.add(Patient.SP_BIRTHDATE, (IQueryParameterType) new DateParam(QuantityCompararatorEnum.GREATERTHAN_OR_EQUALS, "2010-01-01"));
+		ReferenceParam missing = new ReferenceParam();
+		missing.setMissing(true);
+		params.add(Patient.SP_ORGANIZATION, missing);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id2));
+
+		myPatientDao.delete(id2);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), empty());
+	}
+
+	@Test
+	public void testSearchPagesLoadedFromDatabase() {
+		String methodName = "testSearchPagesLoadedFromDatabase";
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < 25; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			patient.addName().addFamily(methodName + i);
+			ids.add(myPatientDao.create(patient).getId().toUnqualifiedVersionless());
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		IBundleProvider results = myPatientDao.search(params);
+		assertEquals(25, results.size());
+
+		// Walk forward page by page, then jump back to a page in the middle
+		List<IIdType> actual = new ArrayList<IIdType>();
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(0, 10)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(10, 20)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(20, 25)));
+		assertEquals(ids, actual);
+		assertEquals(ids.subList(5, 15), toUnqualifiedVersionlessIds(results.getResources(5, 15)));
+
+		params.setSort(new SortSpec(Constants.PARAM_LASTUPDATED, SortOrderEnum.ASC));
+		results = myPatientDao.search(params);
+		assertEquals(25, results.size());
+		actual = new ArrayList<IIdType>();
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(0, 13)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(13, 25)));
+		assertEquals(ids, actual);
+	}
+
 }
@@ -7,6 +7,7 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -14,6 +15,9 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -25,6 +29,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionFlaggedResourceDataDao;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
 import ca.uhn.fhir.jpa.entity.SubscriptionTable;
@@ -34,6 +39,9 @@ import ca.uhn.fhir.model.dstu2.resource.Subscription;
 import ca.uhn.fhir.model.dstu2.valueset.ObservationStatusEnum;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionChannelTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionStatusEnum;
+import ca.uhn.fhir.model.primitive.DateDt;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
@@ -285,6 +293,209 @@ public class FhirResourceDaoDstu2SubscriptionTest extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testSubscriptionMatchesResourcesAsTheyAreWritten() throws Exception {
+		String methodName = "testSubscriptionMatchesResourcesAsTheyAreWritten";
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?code=urn:system|" + methodName + "&status=final");
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long tokenSubsId = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Patient?family=" + methodName + "&birthdate=2001-01-01");
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long dateSubsId = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+		assertEquals(2, mySubscriptionMatcher.getSubscriptionCount());
+
+		Observation obs = new Observation();
+		obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType obsId = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+		obs.setStatus(ObservationStatusEnum.PRELIMINARY);
+		myObservationDao.create(obs);
+
+		Patient p = new Patient();
+		p.addName().addFamily(methodName);
+		p.setBirthDate(new DateDt("2001-01-01"));
+		IIdType patientId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addName().addFamily(methodName);
+		p.setBirthDate(new DateDt("2002-01-01"));
+		myPatientDao.create(p);
+
+		// Matches are flagged when they are written, without waiting for a poll
+		assertEquals(2, mySubscriptionFlaggedResourceDataDao.count());
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(tokenSubsId)), contains(obsId));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(dateSubsId)), contains(patientId));
+
+		// Subscriptions which are no longer active are not matched
+		mySubscriptionMatcher.clear();
+		mySubscriptionDao.pollForNewUndeliveredResources();
+		assertEquals(2, mySubscriptionMatcher.getSubscriptionCount());
+		subs.setStatus(SubscriptionStatusEnum.OFF);
+		mySubscriptionDao.update(subs);
+		assertEquals(1, mySubscriptionMatcher.getSubscriptionCount());
+
+		p = new Patient();
+		p.addName().addFamily(methodName);
+		p.setBirthDate(new DateDt("2001-01-01"));
+		myPatientDao.create(p);
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+	}
+
+	@Test
+	public void testSubscriptionDoesNotFlagReindexedResources() throws Exception {
+		String methodName = "testSubscriptionDoesNotFlagReindexedResources";
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?code=urn:system|" + methodName);
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		Observation obs = new Observation();
+		obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+		IIdType obsId = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+		assertEquals(1, mySubscriptionFlaggedResourceDataDao.count());
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId)), contains(obsId));
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+
+		// Reindexing doesn't create a new version, so nothing is flagged again
+		mySystemDao.markAllResourcesForReindexing();
+		while (mySystemDao.performReindexingPass(null) > 0) {
+			// nothing
+		}
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+
+		// Neither does indexing resources which were imported with deferred indexing
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("urn:system").setCode(methodName);
+		mySystemDao.importResources(new StringReader(myFhirCtx.newJsonParser().encodeResourceToString(obs)), true);
+		assertEquals(2, myObservationDao.search(Observation.SP_CODE, new TokenParam("urn:system", methodName)).size());
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+
+		// A new version is flagged as usual
+		obs = myObservationDao.read(obsId);
+		obs.setComments(methodName);
+		myObservationDao.update(obs);
+		assertEquals(1, mySubscriptionFlaggedResourceDataDao.count());
+	}
+
+	/**
+	 * A catch-up poll reads the active subscriptions before it updates the matcher, so it must not undo anything this
+	 * server registered or unregistered in the meantime
+	 */
+	@Test
+	public void testSubscriptionMatcherReloadKeepsLocalChanges() {
+		RuntimeResourceDefinition patientDef = myFhirCtx.getResourceDefinition("Patient");
+		SearchParameterMap criteria = new SearchParameterMap();
+		criteria.add(Patient.SP_FAMILY, new StringParam("testSubscriptionMatcherReloadKeepsLocalChanges"));
+		mySubscriptionMatcher.clear();
+		mySubscriptionMatcher.register(1L, 1L, patientDef, criteria);
+
+		long generation = mySubscriptionMatcher.getGeneration();
+		mySubscriptionMatcher.register(2L, 1L, patientDef, criteria);
+		mySubscriptionMatcher.unregister(1L);
+
+		// The poll read subscription 1 but not subscription 2
+		mySubscriptionMatcher.reload(1L, 1L, patientDef, criteria, generation);
+		mySubscriptionMatcher.retainOnly(Arrays.asList(1L), generation);
+		assertFalse(mySubscriptionMatcher.isRegistered(1L, 1L));
+		assertTrue(mySubscriptionMatcher.isRegistered(2L, 1L));
+
+		// A later poll sees the current state
+		generation = mySubscriptionMatcher.getGeneration();
+		mySubscriptionMatcher.retainOnly(Collections.<Long> emptyList(), generation);
+		assertEquals(0, mySubscriptionMatcher.getSubscriptionCount());
+		mySubscriptionMatcher.reload(1L, 2L, patientDef, criteria, generation);
+		assertTrue(mySubscriptionMatcher.isRegistered(1L, 2L));
+		mySubscriptionMatcher.clear();
+	}
+
+	@Test
+	public void testSubscriptionResourcesAppearInBoundedPages() throws Exception {
+		myDaoConfig.setSubscriptionPollDelay(0);
+
+		String methodName = "testSubscriptionResourcesAppearInBoundedPages";
+		Patient p = new Patient();
+		p.addName().addFamily(methodName);
+		IIdType pId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId1 = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId2 = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference(pId);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType afterId1 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getSubject().setReference(pId);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType afterId2 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId1, 1)), contains(afterId1));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId1, 1)), contains(afterId2));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId1, 1)), empty());
+
+		// Polling one subscription doesn't count as a poll of the others
+		assertNotNull(mySubscriptionTableDao.findOne(subsId1).getLastClientPoll());
+		assertNull(mySubscriptionTableDao.findOne(subsId2).getLastClientPoll());
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId2, 10)), contains(afterId1, afterId2));
+	}
+
+	@Test
+	public void testSubscriptionResourcesStayFlaggedUntilPurged() throws Exception {
+		myDaoConfig.setSubscriptionPollDelay(0);
+
+		String methodName = "testSubscriptionResourcesStayFlaggedUntilPurged";
+		Patient p = new Patient();
+		p.addName().addFamily(methodName);
+		IIdType pId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference(pId);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType afterId1 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		// Fetching doesn't purge, so a batch which is never sent is fetched again
+		UndeliveredResources undelivered = mySubscriptionDao.getUndeliveredResources(subsId, 10);
+		assertThat(toUnqualifiedVersionlessIds(undelivered.getResources()), contains(afterId1));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResources(subsId, 10).getResources()), contains(afterId1));
+
+		// A resource flagged after the fetch isn't purged along with it
+		obs = new Observation();
+		obs.getSubject().setReference(pId);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType afterId2 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		mySubscriptionDao.purgeDeliveredResources(subsId, undelivered);
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResources(subsId, 10).getResources()), contains(afterId2));
+	}
+
 	@Test
 	public void testSubscriptionResourcesAppear() throws Exception {
 		myDaoConfig.setSubscriptionPollDelay(0);
@@ -22,7 +22,10 @@ import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -30,16 +33,30 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.hamcrest.Matchers;
 import org.hamcrest.core.StringContains;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.IResource;
@@ -93,6 +110,7 @@ import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
@@ -106,6 +124,9 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu2Test.class);
 
+	@Autowired
+	private BasicDataSource myDataSource;
+
 	private List<String> extractNames(IBundleProvider theSearch) {
 		ArrayList<String> retVal = new ArrayList<String>();
 		for (IBaseResource next : theSearch.getResources(0, theSearch.size())) {
@@ -404,6 +425,79 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testCreateWithIfNoneExistUsingUniqueSearchParam() {
+		String methodName = "testCreateWithIfNoneExistUsingUniqueSearchParam";
+		myDaoConfig.setUniqueSearchParameters(Collections.singleton("Patient:identifier"));
+		try {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName);
+			IIdType id = myPatientDao.create(p).getId();
+
+			// The match URL is resolved using the unique index
+			p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName);
+			p.addName().addFamily("Hello");
+			MethodOutcome results = myPatientDao.create(p, "Patient?identifier=urn%3Asystem%7C" + methodName);
+			assertEquals(id.getIdPart(), results.getId().getIdPart());
+			assertFalse(results.getCreated().booleanValue());
+
+			// A second resource with the same value is rejected
+			p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName);
+			try {
+				myPatientDao.create(p);
+				fail();
+			} catch (ResourceVersionConflictException e) {
+				assertThat(e.getMessage(), containsString(id.toUnqualifiedVersionless().getValue()));
+			}
+
+			// Values which are removed or deleted can be used again
+			p = new Patient();
+			p.setId(id.toUnqualifiedVersionless());
+			p.addIdentifier().setSystem("urn:system").setValue(methodName + "2");
+			myPatientDao.update(p);
+			assertEquals(Collections.singleton(id.getIdPartAsLong()), myPatientDao.processMatchUrl("Patient?identifier=urn%3Asystem%7C" + methodName + "2"));
+			assertEquals(0, myPatientDao.processMatchUrl("Patient?identifier=urn%3Asystem%7C" + methodName).size());
+
+			p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName);
+			IIdType id2 = myPatientDao.create(p).getId();
+			myPatientDao.delete(id2.toUnqualifiedVersionless());
+			assertEquals(0, myPatientDao.processMatchUrl("Patient?identifier=urn%3Asystem%7C" + methodName).size());
+			p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName);
+			results = myPatientDao.create(p, "Patient?identifier=urn%3Asystem%7C" + methodName);
+			assertTrue(results.getCreated().booleanValue());
+		} finally {
+			myDaoConfig.setUniqueSearchParameters(null);
+		}
+	}
+
+	/**
+	 * Token values are truncated in the index, so long values which only differ after the truncation point must not
+	 * be treated as the same unique value
+	 */
+	@Test
+	public void testCreateWithLongValuesForUniqueSearchParam() {
+		String prefix = StringUtils.leftPad("testCreateWithLongValuesForUniqueSearchParam", ResourceIndexedSearchParamToken.MAX_LENGTH, 'A');
+		myDaoConfig.setUniqueSearchParameters(Collections.singleton("Patient:identifier"));
+		try {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(prefix + "1");
+			IIdType id1 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+			p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(prefix + "2");
+			IIdType id2 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+			assertNotEquals(id1, id2);
+			assertNotNull(myPatientDao.read(id2));
+		} finally {
+			myDaoConfig.setUniqueSearchParameters(null);
+		}
+	}
+
 	@Test
 	public void testCreateWithIllegalReference() {
 		Observation o1 = new Observation();
@@ -1067,6 +1161,110 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testForcedIdCache() {
+		Patient p = new Patient();
+		p.setId("Patient/testForcedIdCache01");
+		IIdType id1 = myPatientDao.update(p).getId().toUnqualifiedVersionless();
+		p = new Patient();
+		p.setId("Patient/testForcedIdCache02");
+		IIdType id2 = myPatientDao.update(p).getId().toUnqualifiedVersionless();
+		myForcedIdCache.clear();
+
+		// Several IDs are resolved with one lookup
+		long misses = myForcedIdCache.getMissCount();
+		Map<String, Long> pids = myForcedIdCache.getPids(Arrays.asList("testForcedIdCache01", "testForcedIdCache02", "testForcedIdCache03"));
+		assertEquals(2, pids.size());
+		assertEquals(misses + 3, myForcedIdCache.getMissCount());
+		assertEquals(2, myForcedIdCache.getSize());
+
+		// Subsequent reads don't need to look the ID up again
+		long hits = myForcedIdCache.getHitCount();
+		misses = myForcedIdCache.getMissCount();
+		myPatientDao.read(id1);
+		myPatientDao.read(id2);
+		assertThat(myForcedIdCache.getHitCount(), greaterThan(hits));
+		assertEquals(misses, myForcedIdCache.getMissCount());
+	}
+
+	@Test
+	public void testForcedIdCacheDiscardsIdsFromRolledBackTransaction() {
+		final Patient p = new Patient();
+		p.setId("Patient/testForcedIdCacheRollback");
+		try {
+			new TransactionTemplate(myTxManager).execute(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus theStatus) {
+					IIdType id = myPatientDao.update(p).getId();
+					assertNotNull(myPatientDao.read(id.toUnqualifiedVersionless()));
+					assertNotNull(myForcedIdCache.getPid("testForcedIdCacheRollback"));
+					// Nothing is cached until the transaction commits
+					assertEquals(0, myForcedIdCache.getSize());
+					throw new IllegalStateException("Roll back");
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// good
+		}
+
+		assertNull(myForcedIdCache.getPid("testForcedIdCacheRollback"));
+		try {
+			myPatientDao.read(new IdDt("Patient/testForcedIdCacheRollback"));
+			fail();
+		} catch (ResourceNotFoundException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testResourceBodyCache() {
+		// The cache is disabled by default
+		assertFalse(myResourceBodyCache.isEnabled());
+		myDaoConfig.setResourceBodyCacheSizeBytes(10000000);
+		myResourceBodyCache.start();
+		try {
+			Patient p = new Patient();
+			p.addName().addFamily("testResourceBodyCache01");
+			IIdType id = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+			myResourceBodyCache.clear();
+
+			// The second read is answered from the cache
+			long hits = myResourceBodyCache.getHitCount();
+			myPatientDao.read(id);
+			assertEquals(hits, myResourceBodyCache.getHitCount());
+			assertEquals(1, myResourceBodyCache.getSize());
+			Patient read = myPatientDao.read(id);
+			assertEquals(hits + 1, myResourceBodyCache.getHitCount());
+			assertEquals("testResourceBodyCache01", read.getNameFirstRep().getFamilyAsSingleString());
+
+			// Changing the returned resource doesn't affect the next read
+			read.getNameFirstRep().getFamilyFirstRep().setValue("changed");
+			assertEquals("testResourceBodyCache01", myPatientDao.read(id).getNameFirstRep().getFamilyAsSingleString());
+
+			// An update discards the cached body, and the old version can still be read
+			p = new Patient();
+			p.setId(id);
+			p.addName().addFamily("testResourceBodyCache02");
+			myPatientDao.update(p);
+			assertEquals("testResourceBodyCache02", myPatientDao.read(id).getNameFirstRep().getFamilyAsSingleString());
+			assertEquals("testResourceBodyCache01", myPatientDao.read(id.withVersion("1")).getNameFirstRep().getFamilyAsSingleString());
+			assertEquals("testResourceBodyCache02", myPatientDao.read(id).getNameFirstRep().getFamilyAsSingleString());
+
+			// A deleted resource isn't returned from the cache
+			myPatientDao.delete(id);
+			try {
+				myPatientDao.read(id);
+				fail();
+			} catch (ResourceGoneException e) {
+				// good
+			}
+		} finally {
+			myDaoConfig.setResourceBodyCacheSizeBytes(new DaoConfig().getResourceBodyCacheSizeBytes());
+			myResourceBodyCache.start();
+		}
+	}
+
 	@Test
 	public void testHistoryByForcedId() {
 		IIdType idv1;
@@ -1240,6 +1438,39 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testHistoryPagesRequestedOutOfOrder() throws Exception {
+		String methodName = "testHistoryPagesRequestedOutOfOrder";
+
+		Patient patient = new Patient();
+		patient.addName().addFamily(methodName);
+		IIdType id = myPatientDao.create(patient).getId().toUnqualifiedVersionless();
+
+		int fullSize = 30;
+		for (int i = 1; i < fullSize; i++) {
+			patient.setId(id);
+			patient.getName().get(0).getFamily().get(0).setValue(methodName + "_" + i);
+			myPatientDao.update(patient);
+		}
+
+		IBundleProvider history = myPatientDao.history(id, null);
+		assertEquals(fullSize, history.size());
+
+		List<IBaseResource> resources = new ArrayList<IBaseResource>();
+		List<IBaseResource> page3 = history.getResources(20, 25);
+		resources.addAll(history.getResources(0, 10));
+		resources.addAll(history.getResources(10, 20));
+		resources.addAll(page3);
+		resources.addAll(history.getResources(25, 35));
+		assertEquals(fullSize, resources.size());
+		assertEquals(page3.get(0).getIdElement().getValue(), history.getResources(20, 25).get(0).getIdElement().getValue());
+
+		for (int i = 0; i < fullSize; i++) {
+			assertEquals(id.withVersion(Integer.toString(fullSize - i)).getValue(), resources.get(i).getIdElement().getValue());
+		}
+		assertEquals(0, history.getResources(40, 50).size());
+	}
+
 	@Test
 	public void testHistoryWithDeletedResource() throws Exception {
 		String methodName = "testHistoryWithDeletedResource";
@@ -1879,6 +2110,36 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 		assertEquals(1, (p).getName().size());
 	}
 
+	@Test
+	public void testResourceEncodingsCanBeMixed() {
+		ResourceEncodingEnum defaultEncoding = new DaoConfig().getResourceEncoding();
+		try {
+			List<IIdType> versions = new ArrayList<IIdType>();
+			Patient p = new Patient();
+			p.addName().addFamily("testResourceEncodingsCanBeMixed");
+			for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+				myDaoConfig.setResourceEncoding(next);
+				p.getNameFirstRep().getGivenFirstRep().setValue(next.name());
+				if (versions.isEmpty()) {
+					versions.add(myPatientDao.create(p).getId());
+				} else {
+					p.setId(versions.get(0).toUnqualifiedVersionless());
+					versions.add(myPatientDao.update(p).getId());
+				}
+			}
+
+			// Every version is read back using the encoding it was stored with
+			myDaoConfig.setResourceEncoding(defaultEncoding);
+			for (int i = 0; i < versions.size(); i++) {
+				Patient read = myPatientDao.read(versions.get(i));
+				assertEquals(ResourceEncodingEnum.values()[i].name(), read.getNameFirstRep().getGivenAsSingleString());
+				assertEquals("testResourceEncodingsCanBeMixed", read.getNameFirstRep().getFamilyAsSingleString());
+			}
+		} finally {
+			myDaoConfig.setResourceEncoding(defaultEncoding);
+		}
+	}
+
 	@Test
 	public void testResourceInstanceMetaOperation() {
 
@@ -2206,6 +2467,14 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 		assertEquals(4, actual.size());
 		assertThat(actual, contains(id3, id2, id1, id4));
 
+		// Only the first page is loaded
+		IBundleProvider found = myPatientDao.search(pm);
+		List<IBaseResource> firstPage = found.getResources(0, 2);
+		assertEquals(2, firstPage.size());
+		assertEquals(id3, firstPage.get(0).getIdElement().toUnqualifiedVersionless());
+		assertEquals(id2, firstPage.get(1).getIdElement().toUnqualifiedVersionless());
+		assertEquals(4, found.size());
+
 	}
 
 	@Test
@@ -2577,6 +2846,36 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 		assertThat(names.subList(2, 4), contains("Giv2 Fam1", "Giv1 Fam1"));
 	}
 
+	/**
+	 * The system and value used to sort a resource with several identifiers must come from the same identifier
+	 */
+	@Test
+	public void testSortByTokenWithMultipleValues() {
+		String methodName = "testSortByTokenWithMultipleValues";
+
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system1").setValue(methodName + "Z");
+		p.addIdentifier().setSystem("urn:system2").setValue(methodName + "A");
+		IIdType id2 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system1").setValue(methodName + "B");
+		IIdType id1 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap pm = new SearchParameterMap();
+		TokenOrListParam sp = new TokenOrListParam();
+		sp.addOr(new TokenParam("urn:system1", methodName + "Z"));
+		sp.addOr(new TokenParam("urn:system1", methodName + "B"));
+		pm.add(Patient.SP_IDENTIFIER, sp);
+		pm.setSort(new SortSpec(Patient.SP_IDENTIFIER));
+		List<IIdType> actual = toUnqualifiedVersionlessIds(myPatientDao.search(pm));
+		assertThat(actual, contains(id1, id2));
+
+		pm.setSort(new SortSpec(Patient.SP_IDENTIFIER, SortOrderEnum.DESC));
+		actual = toUnqualifiedVersionlessIds(myPatientDao.search(pm));
+		assertThat(actual, contains(id2, id1));
+	}
+
 	@Test
 	public void testSortByToken() {
 		String methodName = "testSortByToken";
@@ -2840,6 +3139,95 @@ public class FhirResourceDaoDstu2Test extends BaseJpaDstu2Test {
 
 	}
 
+	/**
+	 * Creating a tag definition needs a second database connection, so a writer holding the last connection in the
+	 * pool must fail rather than wait forever
+	 */
+	@Test
+	public void testTagDefinitionCreateTimesOutWhenConnectionPoolIsExhausted() {
+		int maxTotal = myDataSource.getMaxTotal();
+		long timeout = myDaoConfig.getTagDefinitionCreateTimeoutMillis();
+		List<Connection> held = new ArrayList<Connection>();
+		try {
+			// Leave exactly one connection for the writer's own transaction
+			while (myDataSource.getNumIdle() > 0) {
+				held.add(myDataSource.getConnection());
+			}
+			myDataSource.setMaxTotal(myDataSource.getNumActive() + 1);
+			myDaoConfig.setTagDefinitionCreateTimeoutMillis(500);
+
+			try {
+				myPatientDao.create(newPatientWithTag("testTagDefinitionCreateTimesOut"));
+				fail();
+			} catch (InternalErrorException e) {
+				assertThat(e.getMessage(), containsString("connection pool"));
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (Connection next : held) {
+				try {
+					next.close();
+				} catch (SQLException e) {
+					ourLog.warn("Failed to close connection", e);
+				}
+			}
+			myDataSource.setMaxTotal(maxTotal);
+			myDaoConfig.setTagDefinitionCreateTimeoutMillis(timeout);
+		}
+
+		// Once connections are available again the same write succeeds
+		IIdType id = myPatientDao.create(newPatientWithTag("testTagDefinitionCreateTimesOut")).getId();
+		TagList tl = ResourceMetadataKeyEnum.TAG_LIST.get(myPatientDao.read(id));
+		assertEquals("testTagDefinitionCreateTimesOut", tl.get(0).getTerm());
+	}
+
+	private static Patient newPatientWithTag(String theTerm) {
+		Patient retVal = new Patient();
+		TagList tl = new TagList();
+		tl.addTag("urn:system", theTerm);
+		ResourceMetadataKeyEnum.TAG_LIST.put(retVal, tl);
+		return retVal;
+	}
+
+	@Test
+	public void testTagDefinitionCreatedOnceByConcurrentWriters() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<IIdType>> futures = new ArrayList<Future<IIdType>>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(new Callable<IIdType>() {
+					@Override
+					public IIdType call() {
+						Patient p = new Patient();
+						TagList tl = new TagList();
+						tl.addTag("urn:system", "testTagDefinitionCreatedOnceByConcurrentWriters");
+						ResourceMetadataKeyEnum.TAG_LIST.put(p, tl);
+						return myPatientDao.create(p).getId().toUnqualifiedVersionless();
+					}
+				}));
+			}
+			for (Future<IIdType> next : futures) {
+				Patient p = myPatientDao.read(next.get());
+				TagList tl = ResourceMetadataKeyEnum.TAG_LIST.get(p);
+				assertEquals(1, tl.size());
+				assertEquals("testTagDefinitionCreatedOnceByConcurrentWriters", tl.get(0).getTerm());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Long count = new TransactionTemplate(myTxManager).execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT count(t) FROM TagDefinition t WHERE t.myCode = :code", Long.class);
+				q.setParameter("code", "testTagDefinitionCreatedOnceByConcurrentWriters");
+				return q.getSingleResult();
+			}
+		});
+		assertEquals(1L, count.longValue());
+	}
+
 	@Test
 	public void testTokenParamWhichIsTooLong() {
 
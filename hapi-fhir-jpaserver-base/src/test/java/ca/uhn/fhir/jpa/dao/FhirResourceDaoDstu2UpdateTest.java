@@ -22,11 +22,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.persistence.TypedQuery;
+
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.model.api.Tag;
@@ -35,11 +40,13 @@ import ca.uhn.fhir.model.base.composite.BaseCodingDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 import ca.uhn.fhir.model.dstu2.resource.Organization;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.DateDt;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
@@ -260,6 +267,46 @@ public class FhirResourceDaoDstu2UpdateTest extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testUpdateOnlyRewritesChangedIndexRows() {
+		Patient p1 = new Patient();
+		p1.addIdentifier().setSystem("urn:system").setValue("testUpdateOnlyRewritesChangedIndexRowsAAA");
+		p1.addName().addFamily("Tester").addGiven("testUpdateOnlyRewritesChangedIndexRows");
+		p1.setBirthDate(new DateDt("2011-01-01"));
+		IIdType id = myPatientDao.create(p1).getId().toUnqualifiedVersionless();
+
+		List<Long> familyIds = findIndexRowIds(ResourceIndexedSearchParamString.class, id, Patient.SP_FAMILY);
+		List<Long> birthdateIds = findIndexRowIds(ResourceIndexedSearchParamDate.class, id, Patient.SP_BIRTHDATE);
+		List<Long> identifierIds = findIndexRowIds(ResourceIndexedSearchParamToken.class, id, Patient.SP_IDENTIFIER);
+		assertEquals(1, familyIds.size());
+		assertEquals(1, birthdateIds.size());
+		assertEquals(1, identifierIds.size());
+
+		p1.setId(id);
+		p1.getIdentifierFirstRep().setValue("testUpdateOnlyRewritesChangedIndexRowsBBB");
+		myPatientDao.update(p1);
+
+		// Unchanged rows are left alone
+		assertEquals(familyIds, findIndexRowIds(ResourceIndexedSearchParamString.class, id, Patient.SP_FAMILY));
+		assertEquals(birthdateIds, findIndexRowIds(ResourceIndexedSearchParamDate.class, id, Patient.SP_BIRTHDATE));
+
+		// Changed rows are replaced
+		List<Long> newIdentifierIds = findIndexRowIds(ResourceIndexedSearchParamToken.class, id, Patient.SP_IDENTIFIER);
+		assertEquals(1, newIdentifierIds.size());
+		assertNotEquals(identifierIds, newIdentifierIds);
+
+		assertEquals(0, myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testUpdateOnlyRewritesChangedIndexRowsAAA")).size());
+		assertEquals(1, myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testUpdateOnlyRewritesChangedIndexRowsBBB")).size());
+	}
+
+	private List<Long> findIndexRowIds(Class<?> theType, IIdType theId, String theParamName) {
+		String sql = "SELECT t.myId FROM " + theType.getSimpleName() + " t WHERE t.myResourcePid = :pid AND t.myParamName = :name ORDER BY t.myId";
+		TypedQuery<Long> q = myEntityManager.createQuery(sql, Long.class);
+		q.setParameter("pid", theId.getIdPartAsLong());
+		q.setParameter("name", theParamName);
+		return q.getResultList();
+	}
+
 	@Test
 	public void testUpdateRejectsInvalidTypes() throws InterruptedException {
 		Patient p1 = new Patient();
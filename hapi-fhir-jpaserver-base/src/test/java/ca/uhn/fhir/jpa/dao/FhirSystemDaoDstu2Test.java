@@ -4,9 +4,11 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.emptyString;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -18,9 +20,12 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.InputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -52,6 +57,7 @@ import ca.uhn.fhir.model.dstu2.resource.Medication;
 import ca.uhn.fhir.model.dstu2.resource.MedicationOrder;
 import ca.uhn.fhir.model.dstu2.resource.Observation;
 import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.model.dstu2.resource.ValueSet;
 import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
@@ -60,13 +66,18 @@ import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.model.primitive.UriDt;
+import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 
 public class FhirSystemDaoDstu2Test extends BaseJpaDstu2Test {
@@ -81,6 +92,131 @@ public class FhirSystemDaoDstu2Test extends BaseJpaDstu2Test {
 		ourLog.info(myFhirCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(output));
 	}
 	
+	@Test
+	public void testImportResources() {
+		String methodName = "testImportResources";
+
+		Organization org = new Organization();
+		org.setId("testImportResourcesOrg");
+		org.setName(methodName);
+
+		StringBuilder ndjson = new StringBuilder();
+		ndjson.append(myFhirCtx.newJsonParser().encodeResourceToString(org)).append("\n");
+		ndjson.append("\n");
+		for (int i = 0; i < 10; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			patient.addName().addFamily(methodName + i);
+			patient.getManagingOrganization().setReference("Organization/testImportResourcesOrg");
+			ndjson.append(myFhirCtx.newJsonParser().encodeResourceToString(patient)).append("\n");
+		}
+		ndjson.append("{\"resourceType\":\"Patient\",\"foo\":\n");
+
+		ImportOutcome outcome = mySystemDao.importResources(new StringReader(ndjson.toString()), false);
+		assertEquals(11, outcome.getResourceCount());
+		assertEquals(1, outcome.getFailureCount());
+		assertThat(outcome.getMessages().get(0), startsWith("Line 13: "));
+
+		assertEquals(methodName, myOrganizationDao.read(new IdDt("Organization/testImportResourcesOrg")).getName());
+		assertEquals(10, myPatientDao.search(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName)).size());
+		assertEquals(10, myPatientDao.search(Patient.SP_ORGANIZATION, new ReferenceParam("Organization/testImportResourcesOrg")).size());
+		assertEquals(1, myPatientDao.search(Patient.SP_FAMILY, new StringParam(methodName + "3")).size());
+
+		// Imported resources are in the full-text index too
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Constants.PARAM_CONTENT, new StringParam(methodName + "3"));
+		assertEquals(1, myPatientDao.search(params).size());
+	}
+
+	@Test
+	public void testImportResourcesWithDeferredIndexing() {
+		String methodName = "testImportResourcesWithDeferredIndexing";
+
+		// The patient refers to an organization which appears later in the input
+		Patient patient = new Patient();
+		patient.setId("testImportResourcesWithDeferredIndexingPat");
+		patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+		patient.getManagingOrganization().setReference("Organization/testImportResourcesWithDeferredIndexingOrg");
+
+		Organization org = new Organization();
+		org.setId("testImportResourcesWithDeferredIndexingOrg");
+		org.setName(methodName);
+
+		String ndjson = myFhirCtx.newJsonParser().encodeResourceToString(patient) + "\n" + myFhirCtx.newJsonParser().encodeResourceToString(org);
+
+		ImportOutcome outcome = mySystemDao.importResources(new StringReader(ndjson), false);
+		assertEquals(1, outcome.getResourceCount());
+		assertEquals(1, outcome.getFailureCount());
+		assertEquals(0, myPatientDao.search(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName)).size());
+
+		outcome = mySystemDao.importResources(new StringReader(ndjson.replace("DeferredIndexingPat", "DeferredIndexingPat2").replace("DeferredIndexingOrg", "DeferredIndexingOrg2")), true);
+		assertEquals(2, outcome.getResourceCount());
+		assertEquals(0, outcome.getFailureCount());
+
+		assertEquals(1, myPatientDao.search(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName)).size());
+		assertEquals(1, myPatientDao.search(Patient.SP_ORGANIZATION, new ReferenceParam("Organization/testImportResourcesWithDeferredIndexingOrg2")).size());
+
+		// Resources which were already waiting to be reindexed are left for a reindexing pass
+		mySystemDao.markAllResourcesForReindexing();
+		long pending = mySystemDao.getResourcesPendingReindexingCount();
+		outcome = mySystemDao.importResources(new StringReader(ndjson.replace("DeferredIndexingPat", "DeferredIndexingPat3").replace("DeferredIndexingOrg", "DeferredIndexingOrg3")), true);
+		assertEquals(2, outcome.getResourceCount());
+		assertEquals(pending, mySystemDao.getResourcesPendingReindexingCount());
+		assertEquals(1, myPatientDao.search(Patient.SP_ORGANIZATION, new ReferenceParam("Organization/testImportResourcesWithDeferredIndexingOrg3")).size());
+
+		while (mySystemDao.performReindexingPass(null) > 0) {
+			// nothing
+		}
+	}
+
+	@Test
+	public void testImportResourcesWithUniqueSearchParam() {
+		String methodName = "testImportResourcesWithUniqueSearchParam";
+
+		// Stored before the parameter was configured as unique, so it has no unique index row
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue(methodName + "Old");
+		IIdType oldId = myPatientDao.create(patient).getId();
+
+		myDaoConfig.setUniqueSearchParameters(Collections.singleton("Patient:identifier"));
+		try {
+			patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			ImportOutcome outcome = mySystemDao.importResources(new StringReader(myFhirCtx.newJsonParser().encodeResourceToString(patient)), false);
+			assertEquals(1, outcome.getResourceCount());
+			assertEquals(0, outcome.getFailureCount());
+
+			// A conditional create matches the imported resource instead of creating a duplicate
+			Set<Long> imported = myPatientDao.processMatchUrl("Patient?identifier=urn%3Asystem%7C" + methodName);
+			assertEquals(1, imported.size());
+			patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			MethodOutcome results = myPatientDao.create(patient, "Patient?identifier=urn%3Asystem%7C" + methodName);
+			assertFalse(results.getCreated().booleanValue());
+			assertEquals(imported.iterator().next(), results.getId().getIdPartAsLong());
+			assertEquals(1, myPatientDao.search(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName)).size());
+
+			// The import stored a unique index row, so a plain create with the same value is rejected
+			patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+			try {
+				myPatientDao.create(patient);
+				fail();
+			} catch (ResourceVersionConflictException e) {
+				// good
+			}
+
+			// A resource without a unique index row is found using a regular search
+			patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(methodName + "Old");
+			results = myPatientDao.create(patient, "Patient?identifier=urn%3Asystem%7C" + methodName + "Old");
+			assertFalse(results.getCreated().booleanValue());
+			assertEquals(oldId.getIdPart(), results.getId().getIdPart());
+		} finally {
+			myDaoConfig.setUniqueSearchParameters(null);
+		}
+	}
+
 	@Test
 	public void testRendexing() {
 		Patient p = new Patient();
@@ -151,6 +287,66 @@ public class FhirSystemDaoDstu2Test extends BaseJpaDstu2Test {
 	}
 	
 	
+	@Test
+	public void testReindexingInParallelChunks() {
+		myDaoConfig.setReindexThreadCount(3);
+		try {
+			final List<Long> ids = new ArrayList<Long>();
+			for (int i = 0; i < BaseHapiFhirSystemDao.REINDEX_CHUNK_SIZE * 2 + 10; i++) {
+				Patient p = new Patient();
+				p.addIdentifier().setSystem("urn:system").setValue("testReindexingInParallelChunks");
+				ids.add(myPatientDao.create(p).getId().getIdPartAsLong());
+			}
+			final Long badId = ids.get(BaseHapiFhirSystemDao.REINDEX_CHUNK_SIZE + 5);
+
+			mySystemDao.markAllResourcesForReindexing();
+			new TransactionTemplate(myTxManager).execute(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus theStatus) {
+					ResourceTable table = myEntityManager.find(ResourceTable.class, badId);
+					table.setEncoding(ResourceEncodingEnum.JSON);
+					try {
+						table.setResource("{\"resourceType\":\"FOO\"}".getBytes("UTF-8"));
+					} catch (UnsupportedEncodingException e) {
+						throw new Error(e);
+					}
+					return null;
+				}
+			});
+			assertThat(mySystemDao.getResourcesPendingReindexingCount(), greaterThanOrEqualTo((long) ids.size()));
+
+			mySystemDao.performReindexingPass(100000);
+			assertEquals(0, mySystemDao.getResourcesPendingReindexingCount());
+
+			ReindexingProgress progress = mySystemDao.getReindexingProgress();
+			assertFalse(progress.isRunning());
+			assertEquals(1, progress.getFailureCount());
+			assertThat(progress.getMessages().get(0), containsString("PID " + badId));
+			assertThat(progress.getResourceCount(), greaterThanOrEqualTo(ids.size() - 1));
+
+			new TransactionTemplate(myTxManager).execute(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus theStatus) {
+					for (Long next : ids) {
+						ResourceTable table = myEntityManager.find(ResourceTable.class, next);
+						assertEquals(1L, table.getVersion());
+						if (next.equals(badId)) {
+							assertEquals(Long.valueOf(2), table.getIndexStatus());
+						} else {
+							assertEquals(Long.valueOf(1), table.getIndexStatus());
+						}
+					}
+					return null;
+				}
+			});
+
+			// The resource which failed keeps the indexes it had before
+			assertEquals(ids.size(), myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testReindexingInParallelChunks")).size());
+		} finally {
+			myDaoConfig.setReindexThreadCount(Runtime.getRuntime().availableProcessors());
+		}
+	}
+
 	@Test
 	public void testSystemMetaOperation() {
 
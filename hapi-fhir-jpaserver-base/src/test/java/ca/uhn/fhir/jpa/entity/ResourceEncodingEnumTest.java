@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.entity;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.GZipUtil;
+
+public class ResourceEncodingEnumTest {
+
+	private static final String SMALL = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"versionId\":\"1\",\"lastUpdated\":\"2015-01-01T00:00:00Z\"},\"name\":[{\"family\":[\"Smith\"],\"given\":[\"John\"]}],\"gender\":\"male\"}";
+
+	private static String decode(ResourceEncodingEnum theEncoding, byte[] theStored) throws Exception {
+		InputStream is = theEncoding.getCodec().decode(theStored);
+		try {
+			return IOUtils.toString(is, "UTF-8");
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] encode(ResourceEncodingEnum theEncoding, String theText) throws Exception {
+		byte[] bytes = theText.getBytes("UTF-8");
+		return theEncoding.getCodec().encode(bytes, bytes.length);
+	}
+
+	@Test
+	public void testDictionaryImprovesCompressionOfSmallResources() throws Exception {
+		assertThat(encode(ResourceEncodingEnum.JSDD1, SMALL).length, lessThan(encode(ResourceEncodingEnum.JSOND, SMALL).length));
+		assertThat(encode(ResourceEncodingEnum.JSOND, SMALL).length, lessThan(encode(ResourceEncodingEnum.JSONC, SMALL).length));
+	}
+
+	@Test
+	public void testExistingCompressedRowsCanBeDecoded() throws Exception {
+		assertEquals(SMALL, decode(ResourceEncodingEnum.JSONC, GZipUtil.compress(SMALL)));
+	}
+
+	@Test
+	public void testNamesFitInColumn() {
+		// Names are stored in the RES_ENCODING column, which has a length of 5
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			assertThat(next.name(), next.name().length(), lessThan(6));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; b.length() < 200000; i++) {
+			b.append(SMALL.replace("Smith", "Smith" + i).replace("John", "Jöhn"));
+		}
+		String large = b.toString();
+
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			// Do everything twice to make sure that codecs keep no state between calls
+			for (int i = 0; i < 2; i++) {
+				assertEquals(next.name(), SMALL, decode(next, encode(next, SMALL)));
+				assertEquals(next.name(), large, decode(next, encode(next, large)));
+				assertEquals(next.name(), "", decode(next, encode(next, "")));
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTripWithOverlappingDecodes() throws Exception {
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			byte[] stored = encode(next, SMALL);
+			InputStream is1 = next.getCodec().decode(stored);
+			InputStream is2 = next.getCodec().decode(stored);
+			assertEquals(SMALL, IOUtils.toString(is2, "UTF-8"));
+			assertEquals(SMALL, IOUtils.toString(is1, "UTF-8"));
+			is2.close();
+			is1.close();
+			is1.close();
+			assertEquals(SMALL, decode(next, stored));
+		}
+	}
+
+}
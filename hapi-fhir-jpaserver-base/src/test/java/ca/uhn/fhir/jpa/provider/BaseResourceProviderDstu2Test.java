@@ -25,6 +25,7 @@ import org.springframework.web.context.support.WebApplicationContextUtils;
 import org.springframework.web.servlet.DispatcherServlet;
 
 import ca.uhn.fhir.jpa.dao.BaseJpaDstu2Test;
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.jpa.testutil.RandomServerPortProvider;
 import ca.uhn.fhir.model.api.Bundle;
 import ca.uhn.fhir.model.api.BundleEntry;
@@ -34,7 +35,6 @@ import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.client.IGenericClient;
 import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 
 public abstract class BaseResourceProviderDstu2Test extends BaseJpaDstu2Test {
@@ -105,7 +105,7 @@ public abstract class BaseResourceProviderDstu2Test extends BaseJpaDstu2Test {
 			confProvider.setImplementationDescription("THIS IS THE DESC");
 			restServer.setServerConformanceProvider(confProvider);
 	
-			restServer.setPagingProvider(new FifoMemoryPagingProvider(10));
+			restServer.setPagingProvider(myAppCtx.getBean("myPagingProvider", DatabaseBackedPagingProvider.class));
 	
 			Server server = new Server(ourPort);
 	
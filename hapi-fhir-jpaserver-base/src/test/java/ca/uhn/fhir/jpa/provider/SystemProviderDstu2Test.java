@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.provider;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.*;
 
 import java.io.InputStream;
@@ -8,6 +9,9 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
@@ -34,7 +38,10 @@ import ca.uhn.fhir.model.dstu2.resource.Questionnaire;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.OperationDefinition;
 import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Parameters;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.IntegerDt;
+import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.rest.client.IGenericClient;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -60,6 +67,46 @@ public class SystemProviderDstu2Test extends BaseJpaTest {
 		}
 	}
 
+	@Test
+	public void testImportResources() throws Exception {
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 3; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue("testImportResources");
+			ndjson.append(ourCtx.newJsonParser().encodeResourceToString(patient)).append("\n");
+		}
+
+		HttpPost post = new HttpPost(ourServerBase + "/$import?deferIndexing=true");
+		post.setEntity(new StringEntity(ndjson.toString(), ContentType.create(NdjsonImportInterceptor.CT_NDJSON, "UTF-8")));
+		CloseableHttpResponse http = ourHttpClient.execute(post);
+		Parameters output;
+		try {
+			String response = IOUtils.toString(http.getEntity().getContent());
+			ourLog.info(response);
+			assertEquals(200, http.getStatusLine().getStatusCode());
+			output = ourCtx.newJsonParser().parseResource(Parameters.class, response);
+		} finally {
+			http.close();
+		}
+
+		assertEquals("count", output.getParameter().get(0).getName());
+		assertEquals(3, ((IntegerDt) output.getParameter().get(0).getValue()).getValue().intValue());
+		assertEquals("failures", output.getParameter().get(1).getName());
+		assertEquals(0, ((IntegerDt) output.getParameter().get(1).getValue()).getValue().intValue());
+	}
+
+	@Test
+	public void testImportResourcesFromFileNotAllowed() throws Exception {
+		Parameters input = new Parameters();
+		input.addParameter().setName("file").setValue(new StringDt("../foo.ndjson"));
+		try {
+			ourClient.operation().onServer().named("$import").withParameters(input).execute();
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("does not allow importing resources from files"));
+		}
+	}
+
 	@Test
 	public void testTransactionFromBundle4() throws Exception {
 		InputStream bundleRes = SystemProviderDstu2Test.class.getResourceAsStream("/simone_bundle.xml");
@@ -213,6 +260,7 @@ public class SystemProviderDstu2Test extends BaseJpaTest {
 
 		ourCtx = FhirContext.forDstu2();
 		restServer.setFhirContext(ourCtx);
+		restServer.registerInterceptor(new NdjsonImportInterceptor(ourCtx, systemProv));
 
 		ourServer.setHandler(proxyHandler);
 		ourServer.start();
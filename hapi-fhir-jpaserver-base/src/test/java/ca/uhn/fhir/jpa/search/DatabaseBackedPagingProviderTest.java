@@ -0,0 +1,158 @@
+package ca.uhn.fhir.jpa.search;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.BaseJpaDstu2Test;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class DatabaseBackedPagingProviderTest extends BaseJpaDstu2Test {
+
+	private DatabaseBackedPagingProvider mySvc;
+
+	@After
+	public void after() {
+		myDaoConfig.setReuseCachedSearchResultsForMillis(null);
+		myDaoConfig.setExpireSearchResultsAfterMillis(new DaoConfig().getExpireSearchResultsAfterMillis());
+	}
+
+	@Before
+	public void before() {
+		mySvc = createNewProvider();
+	}
+
+	private List<IIdType> createPatients(String theMethodName, int theCount, IIdType theOrgId) {
+		List<IIdType> retVal = new ArrayList<IIdType>();
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.addIdentifier().setSystem("urn:system").setValue(theMethodName);
+			patient.getManagingOrganization().setReference(theOrgId);
+			retVal.add(myPatientDao.create(patient).getId().toUnqualifiedVersionless());
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testNonPersistableListIsKeptInMemory() {
+		Patient patient = new Patient();
+		SimpleBundleProvider list = new SimpleBundleProvider(patient);
+		String id = mySvc.storeResultList(list);
+		assertEquals(1, mySvc.getResultListCount());
+
+		IBundleProvider retrieved = mySvc.retrieveResultList(id);
+		assertEquals(1, retrieved.size());
+		assertSame(patient, retrieved.getResources(0, 1).get(0));
+		assertEquals(1, mySvc.getHitCount());
+	}
+
+	@Test
+	public void testPurgeExpiredSearches() {
+		String methodName = "testPurgeExpiredSearches";
+		IIdType orgId = myOrganizationDao.create(new Organization()).getId().toUnqualifiedVersionless();
+		createPatients(methodName, 5, orgId);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		String uuid = mySvc.storeResultList(myPatientDao.search(params));
+
+		mySvc.purgeExpiredSearches();
+		assertNotNull(createNewProvider().retrieveResultList(uuid));
+
+		myDaoConfig.setExpireSearchResultsAfterMillis(-1000);
+		mySvc.purgeExpiredSearches();
+		assertNull(createNewProvider().retrieveResultList(uuid));
+	}
+
+	@Test
+	public void testReuseStoredSearch() {
+		String methodName = "testReuseStoredSearch";
+		IIdType orgId = myOrganizationDao.create(new Organization()).getId().toUnqualifiedVersionless();
+		List<IIdType> ids = createPatients(methodName, 5, orgId);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		String uuid = mySvc.storeResultList(myPatientDao.search(params));
+
+		createPatients(methodName, 1, orgId);
+
+		// Not reused by default
+		assertEquals(6, myPatientDao.search(params).size());
+
+		myDaoConfig.setReuseCachedSearchResultsForMillis(60 * 1000L);
+		IBundleProvider results = myPatientDao.search(params);
+		assertEquals(5, results.size());
+		assertEquals(ids, toUnqualifiedVersionlessIds(results.getResources(0, 5)));
+		assertEquals(uuid, mySvc.storeResultList(results));
+	}
+
+	@Test
+	public void testStoreAndRetrieveFromAnotherNode() {
+		String methodName = "testStoreAndRetrieveFromAnotherNode";
+		IIdType orgId = myOrganizationDao.create(new Organization()).getId().toUnqualifiedVersionless();
+		List<IIdType> ids = createPatients(methodName, 25, orgId);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		params.addInclude(Patient.INCLUDE_ORGANIZATION);
+		params.setCount(7);
+		IBundleProvider results = myPatientDao.search(params);
+		String uuid = mySvc.storeResultList(results);
+		assertNotNull(uuid);
+
+		// A second provider with nothing in memory simulates another server node
+		IBundleProvider retrieved = createNewProvider().retrieveResultList(uuid);
+		assertThat(retrieved, not(instanceOf(results.getClass())));
+		assertEquals(25, retrieved.size());
+		assertEquals(Integer.valueOf(7), retrieved.preferredPageSize());
+
+		List<IIdType> actual = new ArrayList<IIdType>();
+		for (int i = 0; i < 25; i += 10) {
+			List<IResource> page = toResources(retrieved, i, Math.min(i + 10, 25));
+			for (IResource next : page) {
+				if (ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get(next) == BundleEntrySearchModeEnum.INCLUDE) {
+					assertEquals(orgId, next.getId().toUnqualifiedVersionless());
+				} else {
+					actual.add(next.getId().toUnqualifiedVersionless());
+				}
+			}
+		}
+		assertEquals(ids, actual);
+	}
+
+	private DatabaseBackedPagingProvider createNewProvider() {
+		DatabaseBackedPagingProvider retVal = new DatabaseBackedPagingProvider();
+		myAppCtx.getAutowireCapableBeanFactory().autowireBean(retVal);
+		return retVal;
+	}
+
+	private List<IResource> toResources(IBundleProvider theProvider, int theFrom, int theTo) {
+		List<IResource> retVal = new ArrayList<IResource>();
+		for (Object next : theProvider.getResources(theFrom, theTo)) {
+			retVal.add((IResource) next);
+		}
+		return retVal;
+	}
+
+}
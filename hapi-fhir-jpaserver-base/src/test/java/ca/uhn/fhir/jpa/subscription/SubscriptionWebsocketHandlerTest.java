@@ -0,0 +1,317 @@
+package ca.uhn.fhir.jpa.subscription;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
+import ca.uhn.fhir.jpa.dao.SubscriptionMatcher;
+import ca.uhn.fhir.jpa.dao.UndeliveredResources;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.resource.Subscription;
+import ca.uhn.fhir.model.primitive.IdDt;
+
+public class SubscriptionWebsocketHandlerTest {
+
+	private static FhirContext ourCtx = FhirContext.forDstu2();
+
+	private DaoConfig myDaoConfig;
+	private List<Runnable> myDeliveryTasks;
+	private SubscriptionWebsocketHandler myHandler;
+	private WebSocketSession mySession;
+	private IFhirResourceDaoSubscription<Subscription> mySubscriptionDao;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void before() throws Exception {
+		myDaoConfig = new DaoConfig();
+		myDeliveryTasks = new ArrayList<Runnable>();
+		mySubscriptionDao = mock(IFhirResourceDaoSubscription.class);
+		mySession = mock(WebSocketSession.class);
+		when(mySession.isOpen()).thenReturn(true);
+
+		when(mySubscriptionDao.create(any(Subscription.class))).thenAnswer(new Answer<DaoMethodOutcome>() {
+			@Override
+			public DaoMethodOutcome answer(InvocationOnMock theInvocation) throws Throwable {
+				Subscription subscription = (Subscription) theInvocation.getArguments()[0];
+				subscription.setId(new IdDt("Subscription/123/_history/1"));
+				DaoMethodOutcome retVal = new DaoMethodOutcome();
+				retVal.setId(subscription.getId());
+				return retVal;
+			}
+		});
+		when(mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(any(IIdType.class))).thenReturn(1L);
+		when(mySubscriptionDao.getUndeliveredResources(eq(1L), anyInt())).thenReturn(newUndelivered());
+
+		myHandler = new SubscriptionWebsocketHandler();
+		ReflectionTestUtils.setField(myHandler, "myCtx", ourCtx);
+		ReflectionTestUtils.setField(myHandler, "myDaoConfig", myDaoConfig);
+		ReflectionTestUtils.setField(myHandler, "mySubscriptionDao", mySubscriptionDao);
+		ReflectionTestUtils.setField(myHandler, "myRegistry", new SubscriptionWebsocketHandlerRegistry());
+		setDeliveryExecutor(false);
+	}
+
+	/**
+	 * Connects and binds a dynamic subscription with the ID 123
+	 */
+	private void bind() throws Exception {
+		myHandler.afterConnectionEstablished(mySession);
+		myHandler.handleMessage(mySession, new TextMessage("bind Patient?name=smith"));
+	}
+
+	private Patient newPatient(String theId) {
+		return newPatient(theId, "smith");
+	}
+
+	private Patient newPatient(String theId, String theFamily) {
+		Patient retVal = new Patient();
+		retVal.setId(theId);
+		retVal.addName().addFamily(theFamily);
+		return retVal;
+	}
+
+	private List<String> sentPayloads(int theCount) throws Exception {
+		ArgumentCaptor<TextMessage> captor = ArgumentCaptor.forClass(TextMessage.class);
+		verify(mySession, times(theCount)).sendMessage(captor.capture());
+		List<String> retVal = new ArrayList<String>();
+		for (TextMessage next : captor.getAllValues()) {
+			retVal.add(next.getPayload());
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param theRunImmediately
+	 *           If true, deliveries are run as soon as they are submitted, otherwise they are held in
+	 *           {@link #myDeliveryTasks} as if the client were still receiving
+	 */
+	private void setDeliveryExecutor(final boolean theRunImmediately) {
+		ReflectionTestUtils.setField(myHandler, "myDeliveryExecutor", new TaskExecutor() {
+			@Override
+			public void execute(Runnable theTask) {
+				if (theRunImmediately) {
+					theTask.run();
+				} else {
+					myDeliveryTasks.add(theTask);
+				}
+			}
+		});
+	}
+
+	private static UndeliveredResources newUndelivered(IBaseResource... theResources) {
+		List<Long> flagPids = new ArrayList<Long>();
+		for (int i = 0; i < theResources.length; i++) {
+			flagPids.add(Long.valueOf(i + 1));
+		}
+		return new UndeliveredResources(Arrays.asList(theResources), flagPids);
+	}
+
+	/**
+	 * The given resources are returned by the first fetch, and nothing by any later ones
+	 */
+	private UndeliveredResources setFlaggedResources(IBaseResource... theResources) {
+		UndeliveredResources retVal = newUndelivered(theResources);
+		when(mySubscriptionDao.getUndeliveredResources(eq(1L), anyInt())).thenReturn(retVal, newUndelivered());
+		return retVal;
+	}
+
+	@Test
+	public void testBatchesAreSentAsBundles() throws Exception {
+		myDaoConfig.setSubscriptionWebsocketMaxBatchSize(2);
+		setDeliveryExecutor(true);
+		UndeliveredResources flagged = setFlaggedResources(newPatient("Patient/1"), newPatient("Patient/2"), newPatient("Patient/3"));
+
+		// Anything which was flagged before the client bound is delivered straight away
+		bind();
+
+		List<String> payloads = sentPayloads(3);
+		assertEquals("bound 123", payloads.get(0));
+		assertThat(payloads.get(1), startsWith("add 123\n"));
+		assertThat(payloads.get(1), containsString("\"resourceType\":\"Bundle\""));
+		assertThat(payloads.get(1), containsString("\"id\":\"2\""));
+		assertThat(payloads.get(2), startsWith("add 123\n{\"resourceType\":\"Patient\",\"id\":\"3\""));
+		assertEquals(3, myHandler.getDeliveredCount());
+		assertEquals(0, myHandler.getQueueDepth());
+		verify(mySubscriptionDao).purgeDeliveredResources(1L, flagged);
+	}
+
+	@Test
+	public void testCatchUpDeliveryWhenNothingFetchedForAWhile() throws Exception {
+		setDeliveryExecutor(true);
+		bind();
+		verify(mySubscriptionDao, times(1)).getUndeliveredResources(eq(1L), anyInt());
+
+		// Something was fetched just now
+		myHandler.checkDelivery(SubscriptionWebsocketHandlerRegistry.CATCH_UP_MILLIS);
+		verify(mySubscriptionDao, times(1)).getUndeliveredResources(eq(1L), anyInt());
+
+		myHandler.checkDelivery(0);
+		verify(mySubscriptionDao, times(2)).getUndeliveredResources(eq(1L), anyInt());
+	}
+
+	@Test
+	public void testClientIsDisconnectedAfterSendTimeLimit() throws Exception {
+		myDaoConfig.setSubscriptionWebsocketSendTimeLimitMillis(50);
+		bind();
+		assertEquals(1, myDeliveryTasks.size());
+		myHandler.checkDelivery(0);
+		verify(mySession, never()).close(any(CloseStatus.class));
+
+		Thread.sleep(100);
+		myHandler.checkDelivery(0);
+		verify(mySession).close(CloseStatus.SESSION_NOT_RELIABLE);
+	}
+
+	@Test
+	public void testClientIsParkedWhileReceiving() throws Exception {
+		setFlaggedResources(newPatient("Patient/1"));
+		bind();
+		assertEquals(1, myDeliveryTasks.size());
+		assertEquals(0, myHandler.getParkedCount());
+
+		// The client hasn't received the first delivery yet, so nothing more is started for it
+		myHandler.requestDelivery();
+		myHandler.requestDelivery();
+		assertEquals(1, myDeliveryTasks.size());
+		assertEquals(2, myHandler.getParkedCount());
+
+		myDeliveryTasks.get(0).run();
+		assertEquals(1, myHandler.getDeliveredCount());
+		verify(mySubscriptionDao, times(1)).getUndeliveredResources(eq(1L), anyInt());
+
+		myHandler.requestDelivery();
+		assertEquals(2, myDeliveryTasks.size());
+		myDeliveryTasks.get(1).run();
+		verify(mySubscriptionDao, times(2)).getUndeliveredResources(eq(1L), anyInt());
+	}
+
+	@Test
+	public void testFlaggedResourcesAreDeliveredWhenTheRegistryIsNotified() throws Exception {
+		setDeliveryExecutor(true);
+		SubscriptionWebsocketHandlerRegistry registry = (SubscriptionWebsocketHandlerRegistry) ReflectionTestUtils.getField(myHandler, "myRegistry");
+		myHandler.postConstruct();
+		bind();
+		UndeliveredResources flagged = setFlaggedResources(newPatient("Patient/1"));
+
+		// Resources flagged for another subscription
+		registry.resourcesFlagged(Collections.singleton(2L));
+		verify(mySubscriptionDao, never()).purgeDeliveredResources(1L, flagged);
+
+		registry.resourcesFlagged(Collections.singleton(1L));
+		assertThat(sentPayloads(2).get(1), startsWith("add 123\n{\"resourceType\":\"Patient\",\"id\":\"1\""));
+		verify(mySubscriptionDao).purgeDeliveredResources(1L, flagged);
+	}
+
+	@Test
+	public void testFlagsAreKeptIfTheSendFails() throws Exception {
+		setDeliveryExecutor(true);
+		bind();
+		setFlaggedResources(newPatient("Patient/1"));
+		doThrow(new IOException("Connection reset")).when(mySession).sendMessage(any(TextMessage.class));
+
+		myHandler.requestDelivery();
+		verify(mySubscriptionDao, never()).purgeDeliveredResources(anyLong(), any(UndeliveredResources.class));
+		assertEquals(0, myHandler.getDeliveredCount());
+	}
+
+	@Test
+	public void testQueueIsBoundedAndCoalesced() throws Exception {
+		myDaoConfig.setSubscriptionWebsocketQueueSize(3);
+		UndeliveredResources flagged = setFlaggedResources(newPatient("Patient/1/_history/1"), newPatient("Patient/2/_history/1"), newPatient("Patient/1/_history/2", "jones"));
+
+		// Rejected by the executor, so the resources stay flagged
+		ReflectionTestUtils.setField(myHandler, "myDeliveryExecutor", new TaskExecutor() {
+			@Override
+			public void execute(Runnable theTask) {
+				throw new TaskRejectedException("Full");
+			}
+		});
+		bind();
+		assertEquals(1, myHandler.getParkedCount());
+		verify(mySubscriptionDao, never()).getUndeliveredResources(eq(1L), anyInt());
+
+		// The latest version of a resource which was flagged twice is sent once, and since a full batch was fetched
+		// there may be more, so another fetch follows
+		setDeliveryExecutor(true);
+		myHandler.requestDelivery();
+		verify(mySubscriptionDao, times(2)).getUndeliveredResources(1L, 3);
+		List<String> payloads = sentPayloads(3);
+		assertThat(payloads.get(1), containsString("\"id\":\"1\""));
+		assertThat(payloads.get(1), containsString("jones"));
+		assertThat(payloads.get(2), containsString("\"id\":\"2\""));
+		assertEquals(2, myHandler.getDeliveredCount());
+		assertEquals(0, myHandler.getQueueDepth());
+		verify(mySubscriptionDao).purgeDeliveredResources(1L, flagged);
+	}
+
+	@Test
+	public void testRegistryHoldsOpenConnections() throws Exception {
+		SubscriptionWebsocketHandlerRegistry registry = (SubscriptionWebsocketHandlerRegistry) ReflectionTestUtils.getField(myHandler, "myRegistry");
+		assertThat(registry.getHandlers(), empty());
+
+		myHandler.postConstruct();
+		assertThat(registry.getHandlers(), contains((ISubscriptionWebsocketHandler) myHandler));
+
+		myHandler.preDescroy();
+		assertThat(registry.getHandlers(), empty());
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void testRegistryListensForFlagsAndChecksDeliveries() throws Exception {
+		SubscriptionWebsocketHandlerRegistry registry = new SubscriptionWebsocketHandlerRegistry();
+		SubscriptionMatcher matcher = mock(SubscriptionMatcher.class);
+		TaskScheduler scheduler = mock(TaskScheduler.class);
+		ScheduledFuture future = mock(ScheduledFuture.class);
+		when(scheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong())).thenReturn(future);
+		ReflectionTestUtils.setField(registry, "mySubscriptionMatcher", matcher);
+		ReflectionTestUtils.setField(registry, "myTaskScheduler", scheduler);
+
+		registry.start();
+		verify(matcher).addFlagListener(registry);
+		verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(1000L));
+
+		registry.stop();
+		verify(matcher).removeFlagListener(registry);
+		verify(future).cancel(true);
+	}
+
+}
@@ -15,12 +15,13 @@ import ca.uhn.fhir.jpa.provider.JpaConformanceProviderDstu1;
 import ca.uhn.fhir.jpa.provider.JpaConformanceProviderDstu2;
 import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu1;
 import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu2;
+import ca.uhn.fhir.jpa.provider.NdjsonImportInterceptor;
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import ca.uhn.fhir.rest.server.EncodingEnum;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
@@ -118,9 +119,20 @@ public class JpaServerDemo extends RestfulServer {
 		setDefaultResponseEncoding(EncodingEnum.JSON);
 
 		/*
-		 * This is a simple paging strategy that keeps the last 10 searches in memory
+		 * This paging strategy stores search results in the database, so that paging
+		 * links remain valid across server restarts. The paging provider is defined in
+		 * hapi-fhir-server-resourceproviders-dstu2.xml, which also enables the scheduled
+		 * task that purges expired searches.
 		 */
-		setPagingProvider(new FifoMemoryPagingProvider(10));
+		setPagingProvider(myAppCtx.getBean("myPagingProvider", DatabaseBackedPagingProvider.class));
+
+		/*
+		 * This allows NDJSON to be POSTed to [base]/$import, streaming the
+		 * resources into the database without buffering the request
+		 */
+		if (fhirVersion == FhirVersionEnum.DSTU2) {
+			registerInterceptor(new NdjsonImportInterceptor(ctx, (JpaSystemProviderDstu2) systemProvider));
+		}
 
 		/*
 		 * Load interceptors for the server from Spring (these are defined in hapi-fhir-server-config.xml
@@ -0,0 +1,125 @@
+package ca.uhn.fhir.context;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.fhir.model.api.IElementFieldAccessor;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.BooleanDt;
+
+/**
+ * Compares reading and writing the child fields of a generated model class through its generated
+ * {@link IElementFieldAccessor} with doing the same through reflection, which is what the {@link FhirContext} used
+ * before the accessors were generated.
+ * <p>
+ * This is not part of the regular build. Run it with:
+ * </p>
+ *
+ * <pre>
+ * mvn -P BENCHMARK test-compile exec:exec
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+public class GeneratedFieldAccessorBenchmark {
+
+	private BooleanDt myActive;
+	private Field myActiveField;
+	private int myActiveIndex;
+	private Field[] myFields;
+	private IElementFieldAccessor myGeneratedAccessor;
+	private int[] myIndexes;
+	private Field myNameField;
+	private int myNameIndex;
+	private Patient myPatient;
+
+	@Benchmark
+	public void getAllByGeneratedAccessor(Blackhole theBlackhole) {
+		for (int i = 0; i < myIndexes.length; i++) {
+			theBlackhole.consume(myGeneratedAccessor.getFieldValue(myPatient, myIndexes[i]));
+		}
+	}
+
+	@Benchmark
+	public void getAllByReflection(Blackhole theBlackhole) throws IllegalAccessException {
+		for (int i = 0; i < myFields.length; i++) {
+			theBlackhole.consume(myFields[i].get(myPatient));
+		}
+	}
+
+	@Benchmark
+	public Object getByGeneratedAccessor() {
+		return myGeneratedAccessor.getFieldValue(myPatient, myNameIndex);
+	}
+
+	@Benchmark
+	public Object getByReflection() throws IllegalAccessException {
+		return myNameField.get(myPatient);
+	}
+
+	@Benchmark
+	public void setByGeneratedAccessor(Blackhole theBlackhole) {
+		myGeneratedAccessor.setFieldValue(myPatient, myActiveIndex, myActive);
+		theBlackhole.consume(myPatient);
+	}
+
+	@Benchmark
+	public void setByReflection(Blackhole theBlackhole) throws IllegalAccessException {
+		myActiveField.set(myPatient, myActive);
+		theBlackhole.consume(myPatient);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		myPatient = new Patient();
+		myPatient.setId("Patient/1");
+		myPatient.setActive(true);
+		myPatient.addName().addFamily("FAMILY").addGiven("GIVEN");
+		myPatient.addContact().getName().addFamily("CONTACT");
+		myActive = new BooleanDt(false);
+
+		myGeneratedAccessor = new Patient.FieldAccessor();
+		myNameField = Patient.class.getDeclaredField("myName");
+		myNameField.setAccessible(true);
+		myNameIndex = myGeneratedAccessor.getFieldIndex("myName");
+		myActiveField = Patient.class.getDeclaredField("myActive");
+		myActiveField.setAccessible(true);
+		myActiveIndex = myGeneratedAccessor.getFieldIndex("myActive");
+
+		// Every child which Patient itself declares, as an encoder walking the resource would visit them
+		List<Field> fields = new ArrayList<Field>();
+		for (BaseRuntimeChildDefinition next : FhirContext.forDstu2().getResourceDefinition(Patient.class).getChildren()) {
+			Field field = ((BaseRuntimeDeclaredChildDefinition) next).getField();
+			if (field.getDeclaringClass().equals(Patient.class)) {
+				fields.add(field);
+			}
+		}
+		myFields = fields.toArray(new Field[fields.size()]);
+		myIndexes = new int[myFields.length];
+		for (int i = 0; i < myFields.length; i++) {
+			myIndexes[i] = myGeneratedAccessor.getFieldIndex(myFields[i].getName());
+			if (myIndexes[i] == -1) {
+				throw new IllegalStateException("No generated accessor for " + myFields[i].getName());
+			}
+		}
+	}
+
+}
@@ -26,12 +26,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
@@ -166,6 +169,65 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 		}
 	}
 
+	/**
+	 * Walks the references of a matched resource and adds any referenced resources which should be included (and have
+	 * not already been added) to <code>theIncludedResources</code>
+	 */
+	private void addIncludedResources(IResource theResource, Set<IdDt> theAddedResourceIds, BundleInclusionRule theBundleInclusionRule, Set<Include> theIncludes, List<IResource> theIncludedResources) {
+		Set<String> containedIds = new HashSet<String>();
+		for (IResource nextContained : theResource.getContained().getContainedResources()) {
+			if (nextContained.getId().isEmpty() == false) {
+				containedIds.add(nextContained.getId().getValue());
+			}
+		}
+
+		if (myContext.getNarrativeGenerator() != null) {
+			String title = myContext.getNarrativeGenerator().generateTitle(theResource);
+			ourLog.trace("Narrative generator created title: {}", title);
+			if (StringUtils.isNotBlank(title)) {
+				ResourceMetadataKeyEnum.TITLE.put(theResource, title);
+			}
+		} else {
+			ourLog.trace("No narrative generator specified");
+		}
+
+		List<ResourceReferenceInfo> references = myContext.newTerser().getAllResourceReferences(theResource);
+		do {
+			List<IResource> addedResourcesThisPass = new ArrayList<IResource>();
+
+			for (ResourceReferenceInfo nextRefInfo : references) {
+				if (!theBundleInclusionRule.shouldIncludeReferencedResource(nextRefInfo, theIncludes))
+					continue;
+
+				IResource nextRes = (IResource) nextRefInfo.getResourceReference().getResource();
+				if (nextRes != null) {
+					if (nextRes.getId().hasIdPart()) {
+						if (containedIds.contains(nextRes.getId().getValue())) {
+							// Don't add contained IDs as top level resources
+							continue;
+						}
+
+						IdDt id = toIncludedResourceId(nextRes);
+						if (!theAddedResourceIds.contains(id)) {
+							theAddedResourceIds.add(id);
+							addedResourcesThisPass.add(nextRes);
+						}
+
+					}
+				}
+			}
+
+			theIncludedResources.addAll(addedResourcesThisPass);
+
+			// Linked resources may themselves have linked resources
+			references = new ArrayList<ResourceReferenceInfo>();
+			for (IResource iResource : addedResourcesThisPass) {
+				List<ResourceReferenceInfo> newReferences = myContext.newTerser().getAllResourceReferences(iResource);
+				references.addAll(newReferences);
+			}
+		} while (references.isEmpty() == false);
+	}
+
 	@Override
 	public void addResourcesToBundle(List<IBaseResource> theResult, BundleTypeEnum theBundleType, String theServerBase, BundleInclusionRule theBundleInclusionRule, Set<Include> theIncludes) {
 		if (myBundle == null) {
@@ -183,85 +245,15 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 
 		for (IBaseResource nextBaseRes : theResult) {
 			IResource next = (IResource) nextBaseRes;
-
-			Set<String> containedIds = new HashSet<String>();
-			for (IResource nextContained : next.getContained().getContainedResources()) {
-				if (nextContained.getId().isEmpty() == false) {
-					containedIds.add(nextContained.getId().getValue());
-				}
-			}
-
-			if (myContext.getNarrativeGenerator() != null) {
-				String title = myContext.getNarrativeGenerator().generateTitle(next);
-				ourLog.trace("Narrative generator created title: {}", title);
-				if (StringUtils.isNotBlank(title)) {
-					ResourceMetadataKeyEnum.TITLE.put(next, title);
-				}
-			} else {
-				ourLog.trace("No narrative generator specified");
-			}
-
-			List<ResourceReferenceInfo> references = myContext.newTerser().getAllResourceReferences(next);
-			do {
-				List<IResource> addedResourcesThisPass = new ArrayList<IResource>();
-
-				for (ResourceReferenceInfo nextRefInfo : references) {
-					if (!theBundleInclusionRule.shouldIncludeReferencedResource(nextRefInfo, theIncludes))
-						continue;
-
-					IResource nextRes = (IResource) nextRefInfo.getResourceReference().getResource();
-					if (nextRes != null) {
-						if (nextRes.getId().hasIdPart()) {
-							if (containedIds.contains(nextRes.getId().getValue())) {
-								// Don't add contained IDs as top level resources
-								continue;
-							}
-
-							IdDt id = nextRes.getId();
-							if (id.hasResourceType() == false) {
-								String resName = myContext.getResourceDefinition(nextRes).getName();
-								id = id.withResourceType(resName);
-							}
-
-							if (!addedResourceIds.contains(id)) {
-								addedResourceIds.add(id);
-								addedResourcesThisPass.add(nextRes);
-							}
-
-						}
-					}
-				}
-
-				includedResources.addAll(addedResourcesThisPass);
-
-				// Linked resources may themselves have linked resources
-				references = new ArrayList<ResourceReferenceInfo>();
-				for (IResource iResource : addedResourcesThisPass) {
-					List<ResourceReferenceInfo> newReferences = myContext.newTerser().getAllResourceReferences(iResource);
-					references.addAll(newReferences);
-				}
-			} while (references.isEmpty() == false);
-
-			Entry entry = myBundle.addEntry().setResource(next);
-			BundleEntryTransactionMethodEnum httpVerb = ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.get(next);
-			if (httpVerb != null) {
-				entry.getRequest().getMethodElement().setValueAsString(httpVerb.getCode());
-			}
-			populateBundleEntryFullUrl(next, entry);
-			
-			BundleEntrySearchModeEnum searchMode = ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get(next);
-			if (searchMode != null) {
-				entry.getSearch().getModeElement().setValue(searchMode.getCode());
-			}
+			addIncludedResources(next, addedResourceIds, theBundleInclusionRule, theIncludes, includedResources);
+			myBundle.addEntry(createMatchEntry(next));
 		}
 
 		/*
 		 * Actually add the resources to the bundle
 		 */
 		for (IResource next : includedResources) {
-			Entry entry = myBundle.addEntry();
-			entry.setResource(next).getSearch().setMode(SearchEntryModeEnum.INCLUDE);
-			populateBundleEntryFullUrl(next, entry);
+			myBundle.addEntry(createIncludeEntry(next));
 		}
 
 	}
@@ -304,6 +296,28 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 		}
 	}
 
+	private Entry createIncludeEntry(IResource theResource) {
+		Entry entry = new Entry();
+		entry.setResource(theResource).getSearch().setMode(SearchEntryModeEnum.INCLUDE);
+		populateBundleEntryFullUrl(theResource, entry);
+		return entry;
+	}
+
+	private Entry createMatchEntry(IResource theResource) {
+		Entry entry = new Entry().setResource(theResource);
+		BundleEntryTransactionMethodEnum httpVerb = ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.get(theResource);
+		if (httpVerb != null) {
+			entry.getRequest().getMethodElement().setValueAsString(httpVerb.getCode());
+		}
+		populateBundleEntryFullUrl(theResource, entry);
+
+		BundleEntrySearchModeEnum searchMode = ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get(theResource);
+		if (searchMode != null) {
+			entry.getSearch().getModeElement().setValue(searchMode.getCode());
+		}
+		return entry;
+	}
+
 	@Override
 	public ca.uhn.fhir.model.api.Bundle getDstu1Bundle() {
 		return null;
@@ -326,20 +340,28 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 	@Override
 	public void initializeBundleFromBundleProvider(RestfulServer theServer, IBundleProvider theResult, EncodingEnum theResponseEncoding, String theServerBase, String theCompleteUrl,
 			boolean thePrettyPrint, int theOffset, Integer theLimit, String theSearchId, BundleTypeEnum theBundleType, Set<Include> theIncludes) {
+		Iterator<IBase> entries = initializeStreamingBundleFromBundleProvider(theServer, theResult, theResponseEncoding, theServerBase, theCompleteUrl, thePrettyPrint, theOffset, theLimit,
+				theSearchId, theBundleType, theIncludes, Integer.MAX_VALUE);
+		while (entries.hasNext()) {
+			myBundle.addEntry((Entry) entries.next());
+		}
+	}
+
+	@Override
+	public Iterator<IBase> initializeStreamingBundleFromBundleProvider(RestfulServer theServer, IBundleProvider theResult, EncodingEnum theResponseEncoding, String theServerBase,
+			String theCompleteUrl, boolean thePrettyPrint, int theOffset, Integer theLimit, String theSearchId, BundleTypeEnum theBundleType, Set<Include> theIncludes, int theChunkSize) {
+		Validate.isTrue(theChunkSize > 0, "theChunkSize must be greater than 0");
 		myBase = theServerBase;
-		
+		if (myBundle == null) {
+			myBundle = new Bundle();
+		}
+
+		int fromIndex;
 		int numToReturn;
 		String searchId = null;
-		List<IBaseResource> resourceList;
 		if (theServer.getPagingProvider() == null) {
+			fromIndex = 0;
 			numToReturn = theResult.size();
-			if (numToReturn > 0) {
-				resourceList = theResult.getResources(0, numToReturn);
-			} else {
-				resourceList = Collections.emptyList();
-			}
-			RestfulServerUtils.validateResourceListNotNull(resourceList);
-
 		} else {
 			IPagingProvider pagingProvider = theServer.getPagingProvider();
 			if (theLimit == null) {
@@ -348,9 +370,8 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 				numToReturn = Math.min(pagingProvider.getMaximumPageSize(), theLimit);
 			}
 
+			fromIndex = theOffset;
 			numToReturn = Math.min(numToReturn, theResult.size() - theOffset);
-			resourceList = theResult.getResources(theOffset, numToReturn + theOffset);
-			RestfulServerUtils.validateResourceListNotNull(resourceList);
 
 			if (theSearchId != null) {
 				searchId = theSearchId;
@@ -362,24 +383,6 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 			}
 		}
 
-		for (IBaseResource next : resourceList) {
-			if (next.getIdElement() == null || next.getIdElement().isEmpty()) {
-				if (!(next instanceof BaseOperationOutcome)) {
-					throw new InternalErrorException("Server method returned resource of type[" + next.getClass().getSimpleName() + "] with no ID specified (IResource#setId(IdDt) must be called)");
-				}
-			}
-		}
-
-		if (theServer.getAddProfileTag() != AddProfileTagEnum.NEVER) {
-			for (IBaseResource nextRes : resourceList) {
-				RuntimeResourceDefinition def = theServer.getFhirContext().getResourceDefinition(nextRes);
-				if (theServer.getAddProfileTag() == AddProfileTagEnum.ALWAYS || !def.isStandardProfile()) {
-					RestfulServerUtils.addProfileToBundleEntry(theServer.getFhirContext(), nextRes, theServerBase);
-				}
-			}
-		}
-
-		addResourcesToBundle(new ArrayList<IBaseResource>(resourceList), theBundleType, theServerBase, theServer.getBundleInclusionRule(), theIncludes);
 		addRootPropertiesToBundle(null, theServerBase, theCompleteUrl, theResult.size(), theBundleType, theResult.getPublished());
 
 		if (theServer.getPagingProvider() != null) {
@@ -399,6 +402,8 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 				}
 			}
 		}
+
+		return new ProviderEntryIterator(theServer, theResult, fromIndex, fromIndex + Math.max(numToReturn, 0), theChunkSize, theIncludes);
 	}
 
 	@Override
@@ -444,6 +449,15 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 		myBundle = (Bundle) theBundle;
 	}
 
+	private IdDt toIncludedResourceId(IResource theResource) {
+		IdDt id = theResource.getId();
+		if (id.hasResourceType() == false) {
+			String resName = myContext.getResourceDefinition(theResource).getName();
+			id = id.withResourceType(resName);
+		}
+		return id;
+	}
+
 	@Override
 	public List<IBaseResource> toListOfResources() {
 		ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
@@ -463,4 +477,109 @@ public class Dstu2BundleFactory implements IVersionSpecificBundleFactory {
 		return retVal;
 	}
 
+	/**
+	 * Loads the resources of a page from an {@link IBundleProvider} a chunk at a time, and returns an entry for each of
+	 * them followed by an entry for each included resource. The entries are the same (and in the same order) as the
+	 * ones {@link #addResourcesToBundle(List, BundleTypeEnum, String, BundleInclusionRule, Set)} would add for the whole
+	 * page.
+	 */
+	private class ProviderEntryIterator implements Iterator<IBase> {
+
+		private final Set<IdDt> myAddedResourceIds = new HashSet<IdDt>();
+		private final int myChunkSize;
+		private Iterator<IBaseResource> myCurrentChunk = Collections.<IBaseResource> emptyList().iterator();
+		private final List<IResource> myIncludedResources = new ArrayList<IResource>();
+		private final Set<Include> myIncludes;
+		private Iterator<IResource> myIncludesIterator;
+		private final Set<IdDt> myMatchIds = new HashSet<IdDt>();
+		private int myNextIndex;
+		private final IBundleProvider myResult;
+		private final RestfulServer myServer;
+		private final int myToIndex;
+
+		public ProviderEntryIterator(RestfulServer theServer, IBundleProvider theResult, int theFromIndex, int theToIndex, int theChunkSize, Set<Include> theIncludes) {
+			myServer = theServer;
+			myResult = theResult;
+			myNextIndex = theFromIndex;
+			myToIndex = theToIndex;
+			myChunkSize = theChunkSize;
+			myIncludes = theIncludes;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!myCurrentChunk.hasNext() && myNextIndex < myToIndex) {
+				loadNextChunk();
+			}
+			if (myCurrentChunk.hasNext()) {
+				return true;
+			}
+
+			if (myIncludesIterator == null) {
+				/*
+				 * A resource included by an earlier chunk may have turned out to be a match in a later one
+				 */
+				for (Iterator<IResource> iter = myIncludedResources.iterator(); iter.hasNext();) {
+					if (myMatchIds.contains(toIncludedResourceId(iter.next()))) {
+						iter.remove();
+					}
+				}
+				myIncludesIterator = myIncludedResources.iterator();
+			}
+			return myIncludesIterator.hasNext();
+		}
+
+		private void loadNextChunk() {
+			int toIndex = myToIndex - myNextIndex > myChunkSize ? myNextIndex + myChunkSize : myToIndex;
+			List<IBaseResource> resourceList = myResult.getResources(myNextIndex, toIndex);
+			RestfulServerUtils.validateResourceListNotNull(resourceList);
+			myNextIndex = toIndex;
+
+			for (IBaseResource next : resourceList) {
+				if (next.getIdElement() == null || next.getIdElement().isEmpty()) {
+					if (!(next instanceof BaseOperationOutcome)) {
+						throw new InternalErrorException("Server method returned resource of type[" + next.getClass().getSimpleName() + "] with no ID specified (IResource#setId(IdDt) must be called)");
+					}
+				}
+			}
+
+			if (myServer.getAddProfileTag() != AddProfileTagEnum.NEVER) {
+				for (IBaseResource nextRes : resourceList) {
+					RuntimeResourceDefinition def = myServer.getFhirContext().getResourceDefinition(nextRes);
+					if (myServer.getAddProfileTag() == AddProfileTagEnum.ALWAYS || !def.isStandardProfile()) {
+						RestfulServerUtils.addProfileToBundleEntry(myServer.getFhirContext(), nextRes, myBase);
+					}
+				}
+			}
+
+			for (IBaseResource next : resourceList) {
+				if (next.getIdElement().isEmpty() == false) {
+					myAddedResourceIds.add((IdDt) next.getIdElement());
+					myMatchIds.add((IdDt) next.getIdElement());
+				}
+			}
+
+			myCurrentChunk = resourceList.iterator();
+		}
+
+		@Override
+		public IBase next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (myCurrentChunk.hasNext()) {
+				IResource next = (IResource) myCurrentChunk.next();
+				addIncludedResources(next, myAddedResourceIds, myServer.getBundleInclusionRule(), myIncludes, myIncludedResources);
+				return createMatchEntry(next);
+			}
+			return createIncludeEntry(myIncludesIterator.next());
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
 }
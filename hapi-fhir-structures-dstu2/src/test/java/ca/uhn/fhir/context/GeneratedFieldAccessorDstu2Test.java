@@ -0,0 +1,171 @@
+package ca.uhn.fhir.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.IElementFieldAccessor;
+import ca.uhn.fhir.model.dstu2.composite.HumanNameDt;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.resource.Patient.Contact;
+import ca.uhn.fhir.model.primitive.BooleanDt;
+
+public class GeneratedFieldAccessorDstu2Test {
+	private static final FhirContext ourCtx = FhirContext.forDstu2();
+
+	private BaseRuntimeDeclaredChildDefinition getChild(BaseRuntimeElementCompositeDefinition<?> theDef, String theName) {
+		return (BaseRuntimeDeclaredChildDefinition) theDef.getChildByName(theName);
+	}
+
+	private static boolean hasGeneratedAccessor(Class<?> theClass) {
+		for (Class<?> next : theClass.getDeclaredClasses()) {
+			if (IElementFieldAccessor.class.isAssignableFrom(next)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a new value which can be stored in the given field, or <code>null</code> if the field's type can't be
+	 * instantiated directly (e.g. a choice of types)
+	 */
+	private static Object newFieldValue(Field theField) {
+		if (List.class.equals(theField.getType())) {
+			return new ArrayList<Object>();
+		}
+		if (theField.getType().isInterface() || Modifier.isAbstract(theField.getType().getModifiers())) {
+			return null;
+		}
+		try {
+			return theField.getType().newInstance();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private Patient newPatient() {
+		Patient retVal = new Patient();
+		retVal.setId("Patient/1");
+		retVal.setActive(true);
+		retVal.addName().addFamily("FAMILY").addGiven("GIVEN");
+		retVal.addContact().getName().addFamily("CONTACT");
+		return retVal;
+	}
+
+	@Test
+	public void testGeneratedAccessorsAreUsed() {
+		RuntimeResourceDefinition def = ourCtx.getResourceDefinition(Patient.class);
+		for (BaseRuntimeChildDefinition next : def.getChildren()) {
+			BaseRuntimeDeclaredChildDefinition child = (BaseRuntimeDeclaredChildDefinition) next;
+			boolean declaredInPatient = child.getField().getDeclaringClass().equals(Patient.class);
+			assertEquals(child.getElementName(), declaredInPatient, child.isGeneratedAccessor());
+		}
+
+		RuntimeChildResourceBlockDefinition contact = (RuntimeChildResourceBlockDefinition) getChild(def, "contact");
+		assertTrue(getChild(contact.getChildByName("contact"), "telecom").isGeneratedAccessor());
+		assertTrue(getChild((BaseRuntimeElementCompositeDefinition<?>) ourCtx.getElementDefinition(HumanNameDt.class), "family").isGeneratedAccessor());
+
+		// Hand written model classes fall back to reflection
+		assertFalse(getChild(def, "text").isGeneratedAccessor());
+	}
+
+	/**
+	 * Every generated resource, resource block and composite datatype must hand out a working accessor for each of
+	 * its own children, so this checks all of them rather than just the ones used above
+	 */
+	@Test
+	public void testGeneratedAccessorsCoverAllStructures() throws Exception {
+		Properties props = new Properties();
+		props.load(ourCtx.getVersion().getFhirVersionPropertiesFile());
+		for (Object next : props.keySet()) {
+			if (((String) next).startsWith("resource.")) {
+				ourCtx.getResourceDefinition(((String) next).substring("resource.".length()));
+			}
+		}
+
+		int checked = 0;
+		for (BaseRuntimeElementDefinition<?> nextDef : new ArrayList<BaseRuntimeElementDefinition<?>>(ourCtx.getElementDefinitions())) {
+			if (!(nextDef instanceof BaseRuntimeElementCompositeDefinition) || !hasGeneratedAccessor(nextDef.getImplementingClass())) {
+				continue;
+			}
+			Object target = nextDef.getImplementingClass().newInstance();
+
+			for (BaseRuntimeChildDefinition nextChild : ((BaseRuntimeElementCompositeDefinition<?>) nextDef).getChildren()) {
+				if (!(nextChild instanceof BaseRuntimeDeclaredChildDefinition)) {
+					continue;
+				}
+				BaseRuntimeDeclaredChildDefinition child = (BaseRuntimeDeclaredChildDefinition) nextChild;
+				Field field = child.getField();
+				if (!field.getDeclaringClass().equals(nextDef.getImplementingClass())) {
+					continue;
+				}
+				String description = nextDef.getName() + "." + child.getElementName();
+				assertTrue(description, child.isGeneratedAccessor());
+
+				// Put a distinct value into the field, and make sure the accessor hands back that one
+				Object value = newFieldValue(field);
+				if (value == null) {
+					continue;
+				}
+				field.set(target, value);
+				List<IBase> values = child.getAccessor().getValues(target);
+				if (value instanceof List) {
+					assertSame(description, value, values);
+				} else {
+					assertEquals(description, 1, values.size());
+					assertSame(description, value, values.get(0));
+				}
+				checked++;
+			}
+		}
+
+		assertTrue("Only checked " + checked + " children", checked > 500);
+	}
+
+	@Test
+	public void testGeneratedAccessorsMatchReflection() throws Exception {
+		RuntimeResourceDefinition def = ourCtx.getResourceDefinition(Patient.class);
+		Patient patient = newPatient();
+
+		for (BaseRuntimeChildDefinition next : def.getChildren()) {
+			BaseRuntimeDeclaredChildDefinition child = (BaseRuntimeDeclaredChildDefinition) next;
+			Object reflected = child.getField().get(patient);
+			List<IBase> values = child.getAccessor().getValues(patient);
+			if (reflected == null) {
+				assertEquals(child.getElementName(), Collections.emptyList(), values);
+			} else if (reflected instanceof List) {
+				assertSame(child.getElementName(), reflected, values);
+			} else {
+				assertEquals(child.getElementName(), 1, values.size());
+				assertSame(child.getElementName(), reflected, values.get(0));
+			}
+		}
+
+		BooleanDt active = new BooleanDt(false);
+		getChild(def, "active").getMutator().setValue(patient, active);
+		assertSame(active, patient.getActiveElement());
+
+		HumanNameDt name = new HumanNameDt();
+		getChild(def, "name").getMutator().addValue(patient, name);
+		assertEquals(2, patient.getName().size());
+		assertSame(name, patient.getName().get(1));
+
+		Contact contact = new Contact();
+		getChild(def, "contact").getMutator().setValue(patient, contact);
+		assertEquals(1, patient.getContact().size());
+		assertSame(contact, patient.getContact().get(0));
+	}
+
+}
@@ -0,0 +1,194 @@
+package ca.uhn.fhir.parser;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Bundle;
+import ca.uhn.fhir.model.api.ExtensionDt;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.StringDt;
+
+/**
+ * Checks that the streaming JSON parser produces the same results as the tree based one
+ */
+public class JsonStreamParserDstu2Test {
+	private static final FhirContext ourCtx = FhirContext.forDstu2();
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JsonStreamParserDstu2Test.class);
+
+	private void assertBundleParsesTheSame(String theJson) {
+		Bundle streamed = newParser(true).parseBundle(theJson);
+		Bundle tree = newParser(false).parseBundle(theJson);
+		assertEquals(ourCtx.newXmlParser().encodeBundleToString(tree), ourCtx.newXmlParser().encodeBundleToString(streamed));
+	}
+
+	private IBaseResource assertParsesTheSame(String theJson) {
+		IBaseResource streamed = newParser(true).parseResource(theJson);
+		IBaseResource tree = newParser(false).parseResource(theJson);
+		assertEquals(ourCtx.newXmlParser().encodeResourceToString(tree), ourCtx.newXmlParser().encodeResourceToString(streamed));
+		return streamed;
+	}
+
+	private String loadResource(String theName) throws IOException {
+		return IOUtils.toString(JsonStreamParserDstu2Test.class.getResourceAsStream(theName));
+	}
+
+	private JsonParser newParser(boolean theStreaming) {
+		JsonParser retVal = (JsonParser) ourCtx.newJsonParser();
+		retVal.setUseStreamingParser(theStreaming);
+		return retVal;
+	}
+
+	@Test
+	public void testAlternateBeforePrimitive() {
+		//@formatter:off
+		String input = "{\"resourceType\":\"Patient\",\"name\":[{" +
+				"\"_given\":[{\"extension\":[{\"url\":\"http://example.com#ext\",\"valueString\":\"EXT1\"}]},{\"id\":\"given2\"}]," +
+				"\"given\":[\"Joe\",\"Shmoe\"]," +
+				"\"family\":[\"Blah\"]," +
+				"\"_family\":[{\"extension\":[{\"url\":\"http://example.com#ext\",\"valueString\":\"EXT2\"}]}]" +
+				"}]}";
+		//@formatter:on
+		Patient parsed = (Patient) assertParsesTheSame(input);
+
+		StringDt given = parsed.getName().get(0).getGiven().get(0);
+		assertEquals("Joe", given.getValue());
+		assertEquals("EXT1", ((StringDt) given.getUndeclaredExtensions().get(0).getValue()).getValue());
+		assertEquals("given2", parsed.getName().get(0).getGiven().get(1).getElementSpecificId());
+
+		StringDt family = parsed.getName().get(0).getFamily().get(0);
+		assertEquals("Blah", family.getValue());
+		assertEquals("EXT2", ((StringDt) family.getUndeclaredExtensions().get(0).getValue()).getValue());
+	}
+
+	@Test
+	public void testBundleExamples() throws Exception {
+		for (String next : new String[] { "/bundle-example.json", "/bundle-transaction.json", "/bundle-transaction2.json" }) {
+			ourLog.info("Parsing {}", next);
+			String input = loadResource(next);
+			assertParsesTheSame(input);
+			assertBundleParsesTheSame(input);
+		}
+	}
+
+	@Test
+	public void testContainedResourceTypeNotFirst() {
+		//@formatter:off
+		String input = "{\"resourceType\":\"Observation\"," +
+				"\"contained\":[{\"id\":\"1\",\"resourceType\":\"Patient\",\"active\":true}]," +
+				"\"subject\":{\"reference\":\"#1\"},\"status\":\"final\"}";
+		//@formatter:on
+		Observation parsed = (Observation) assertParsesTheSame(input);
+		assertEquals(Boolean.TRUE, ((Patient) parsed.getSubject().getResource()).getActive());
+	}
+
+	@Test
+	public void testExamples() throws Exception {
+		assertParsesTheSame(loadResource("/patient-example-dicom.json"));
+	}
+
+	@Test
+	public void testExtensionUrlNotFirst() {
+		String input = "{\"resourceType\":\"Patient\",\"extension\":[{\"valueString\":\"VALUE\",\"url\":\"http://example.com#ext\"}]}";
+		Patient parsed = (Patient) assertParsesTheSame(input);
+
+		ExtensionDt ext = parsed.getUndeclaredExtensions().get(0);
+		assertEquals("http://example.com#ext", ext.getUrl());
+		assertEquals("VALUE", ((StringDt) ext.getValue()).getValue());
+	}
+
+	@Test
+	public void testInvalidJson() {
+		for (boolean streaming : new boolean[] { true, false }) {
+			try {
+				newParser(streaming).parseResource("{\"resourceType\":\"Patient\",\"active\":tru}");
+				fail();
+			} catch (DataFormatException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to parse JSON"));
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidStructure() throws Exception {
+		String input = loadResource("/invalid_metadata.json");
+		for (boolean streaming : new boolean[] { true, false }) {
+			try {
+				newParser(streaming).parseResource(input);
+				fail();
+			} catch (DataFormatException e) {
+				assertEquals("Syntax error parsing JSON FHIR structure: Expected ARRAY at element 'modifierExtension', found 'OBJECT'", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The streaming parser doesn't build a tree of the whole document before creating the model, so it should allocate
+	 * less than the tree based parser does
+	 */
+	@Test
+	public void testLargeBundle() {
+		ca.uhn.fhir.model.dstu2.resource.Bundle bundle = LargeBundleTestUtil.newLargeBundle(2000);
+		final String input = ourCtx.newJsonParser().encodeResourceToString(bundle);
+
+		ca.uhn.fhir.model.dstu2.resource.Bundle parsed = (ca.uhn.fhir.model.dstu2.resource.Bundle) newParser(true).parseResource(input);
+		assertEquals(2000, parsed.getEntry().size());
+		assertEquals(ourCtx.newXmlParser().encodeResourceToString(bundle), ourCtx.newXmlParser().encodeResourceToString(parsed));
+
+		// Run the tree parser once too, so that neither is measured cold
+		newParser(false).parseResource(input);
+		long tree = LargeBundleTestUtil.measureAllocatedBytes(new Runnable() {
+			@Override
+			public void run() {
+				newParser(false).parseResource(input);
+			}
+		});
+		long streamed = LargeBundleTestUtil.measureAllocatedBytes(new Runnable() {
+			@Override
+			public void run() {
+				newParser(true).parseResource(input);
+			}
+		});
+		ourLog.info("Parsing {} chars allocated {} bytes with tree, {} bytes streamed", new Object[] { input.length(), tree, streamed });
+		assumeTrue(tree != -1);
+		assertThat(streamed, lessThan(tree));
+	}
+
+	@Test
+	public void testNumbersAndBooleans() {
+		String input = "{\"resourceType\":\"Observation\",\"status\":\"final\",\"valueQuantity\":{\"value\":1.50E2,\"unit\":\"mg\"},\"extension\":[{\"url\":\"http://example.com#b\",\"valueBoolean\":false},{\"url\":\"http://example.com#i\",\"valueInteger\":-0}]}";
+		Observation parsed = (Observation) assertParsesTheSame(input);
+		assertEquals(150, ((QuantityDt) parsed.getValue()).getValue().intValue());
+	}
+
+	@Test
+	public void testResourceTypeNotFirst() {
+		String input = "{\"id\":\"123\",\"active\":true,\"resourceType\":\"Patient\"}";
+		Patient parsed = (Patient) assertParsesTheSame(input);
+		assertEquals("123", parsed.getIdElement().getIdPart());
+	}
+
+	@Test
+	public void testXmlExamplesAsJson() throws Exception {
+		for (String next : new String[] { "/bundle-example.xml", "/bundle-example2.xml", "/bundle_orion.xml", "/xml-bundle.xml", "/diagnosticreport-examples-lab-text(72ac8493-52ac-41bd-8d5d-7258c289b5ea).xml" }) {
+			ourLog.info("Parsing {}", next);
+			IResource resource = (IResource) ourCtx.newXmlParser().parseResource(loadResource(next));
+			String input = ourCtx.newJsonParser().encodeResourceToString(resource);
+			assertParsesTheSame(input);
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package ca.uhn.fhir.parser;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.primitive.StringDt;
+
+/**
+ * A large bundle for comparing the parsers with, and a way of measuring how much each of them allocates to parse it
+ */
+class LargeBundleTestUtil {
+
+	private LargeBundleTestUtil() {
+		// non instantiable
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread while running the given task, or <code>-1</code> if
+	 * the JVM can't measure this
+	 */
+	static long measureAllocatedBytes(Runnable theTask) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!sunThreadBean.isThreadAllocatedMemorySupported() || !sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = sunThreadBean.getThreadAllocatedBytes(threadId);
+		theTask.run();
+		return sunThreadBean.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	/**
+	 * Creates a transaction bundle containing the given number of patients, each with a narrative, an identifier, a
+	 * name and an extension
+	 */
+	static Bundle newLargeBundle(int theCount) {
+		Bundle retVal = new Bundle();
+		retVal.setType(BundleTypeEnum.TRANSACTION);
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/" + i);
+			patient.getText().setDiv("<div>Patient <b>" + i + "</b></div>");
+			patient.addIdentifier().setSystem("urn:system").setValue("id" + i);
+			patient.addName().addFamily("Family" + i).addGiven("Given" + i).addGiven("Other" + i);
+			patient.getNameFirstRep().getGivenFirstRep().addUndeclaredExtension(false, "http://example.com#ext", new StringDt("ext" + i));
+			retVal.addEntry().setResource(patient).setFullUrl("Patient/" + i);
+		}
+		return retVal;
+	}
+
+}
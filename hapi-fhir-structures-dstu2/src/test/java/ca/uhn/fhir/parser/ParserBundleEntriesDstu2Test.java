@@ -0,0 +1,187 @@
+package ca.uhn.fhir.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+
+public class ParserBundleEntriesDstu2Test {
+	private static final FhirContext ourCtx = FhirContext.forDstu2();
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ParserBundleEntriesDstu2Test.class);
+
+	private List<IParser> allParsers() {
+		List<IParser> retVal = new ArrayList<IParser>();
+		retVal.add(((XmlParser) ourCtx.newXmlParser()).setUseCursorParser(true));
+		retVal.add(((XmlParser) ourCtx.newXmlParser()).setUseCursorParser(false));
+		retVal.add(((JsonParser) ourCtx.newJsonParser()).setUseStreamingParser(true));
+		retVal.add(((JsonParser) ourCtx.newJsonParser()).setUseStreamingParser(false));
+		return retVal;
+	}
+
+	private String encode(IParser theParser, IBaseResource theResource) {
+		if (theParser instanceof XmlParser) {
+			return ourCtx.newXmlParser().encodeResourceToString(theResource);
+		}
+		return ourCtx.newJsonParser().encodeResourceToString(theResource);
+	}
+
+	private String loadResource(String theName) throws IOException {
+		return IOUtils.toString(ParserBundleEntriesDstu2Test.class.getResourceAsStream(theName));
+	}
+
+	@Test
+	public void testEmptyBundle() {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleTypeEnum.SEARCHSET);
+		bundle.setTotal(0);
+
+		for (IParser next : allParsers()) {
+			RecordingHandler handler = new RecordingHandler();
+			Bundle parsed = next.parseBundleEntries(Bundle.class, new StringReader(encode(next, bundle)), handler);
+
+			assertEquals(1, handler.myMetadataCount);
+			assertSame(parsed, handler.myBundle);
+			assertEquals(BundleTypeEnum.SEARCHSET, parsed.getTypeElement().getValueAsEnum());
+			assertEquals(0, handler.myEntries.size());
+		}
+	}
+
+	@Test
+	public void testExamples() throws Exception {
+		for (String nextFile : new String[] { "/bundle-example.json", "/bundle-transaction.json", "/bundle-example.xml", "/xml-bundle.xml" }) {
+			String input = loadResource(nextFile);
+			IParser parser = nextFile.endsWith(".json") ? ourCtx.newJsonParser() : ourCtx.newXmlParser();
+			Bundle expected = parser.parseResource(Bundle.class, input);
+			ourLog.info("Parsing {} with {} entries", nextFile, expected.getEntry().size());
+
+			RecordingHandler handler = new RecordingHandler();
+			Bundle parsed = parser.parseBundleEntries(Bundle.class, new StringReader(input), handler);
+
+			assertEquals(1, handler.myMetadataCount);
+			assertEquals(0, parsed.getEntry().size());
+			assertEquals(expected.getTypeElement().getValue(), parsed.getTypeElement().getValue());
+			assertEquals(expected.getLink().size(), parsed.getLink().size());
+			assertEquals(expected.getEntry().size(), handler.myEntries.size());
+			for (int i = 0; i < expected.getEntry().size(); i++) {
+				Entry expectedEntry = expected.getEntry().get(i);
+				Entry actualEntry = (Entry) handler.myEntries.get(i);
+				assertEquals(expectedEntry.getFullUrl(), actualEntry.getFullUrl());
+				if (expectedEntry.getResource() == null) {
+					assertNull(handler.myResources.get(i));
+				} else {
+					assertSame(actualEntry.getResource(), handler.myResources.get(i));
+					assertEquals(expectedEntry.getResource().getClass(), actualEntry.getResource().getClass());
+					assertEquals(expectedEntry.getResource().getId().getValue(), actualEntry.getResource().getId().getValue());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMetadataBeforeEntries() {
+		Bundle bundle = new Bundle();
+		bundle.setId("BUNDLE");
+		bundle.setType(BundleTypeEnum.TRANSACTION);
+		bundle.setTotal(100);
+		bundle.addLink().setRelation("self").setUrl("http://example.com/self");
+		for (int i = 0; i < 100; i++) {
+			Patient patient = new Patient();
+			patient.addName().addFamily("FAMILY" + i);
+			bundle.addEntry().setFullUrl("http://example.com/Patient/" + i).setResource(patient).getRequest().setMethod(HTTPVerbEnum.POST);
+		}
+		bundle.addEntry().getRequest().setMethod(HTTPVerbEnum.DELETE).setUrl("Patient/1000");
+
+		for (IParser next : allParsers()) {
+			final List<String> events = new ArrayList<String>();
+			next.parseBundleEntries(Bundle.class, new StringReader(encode(next, bundle)), new IBundleEntryHandler() {
+				@Override
+				public void bundleMetadata(IBaseBundle theBundle) {
+					Bundle bundle = (Bundle) theBundle;
+					assertEquals(BundleTypeEnum.TRANSACTION, bundle.getTypeElement().getValueAsEnum());
+					assertEquals(100, bundle.getTotal().intValue());
+					assertEquals(1, bundle.getLink().size());
+					assertEquals(0, bundle.getEntry().size());
+					events.add("metadata");
+				}
+
+				@Override
+				public void entry(IBase theEntry, IBaseResource theResource) {
+					if (theResource == null) {
+						events.add("delete " + ((Entry) theEntry).getRequest().getUrl());
+					} else {
+						Patient patient = (Patient) theResource;
+						events.add(patient.getId().getValue() + " " + patient.getNameFirstRep().getFamilyAsSingleString());
+					}
+				}
+			});
+
+			assertEquals(102, events.size());
+			assertEquals("metadata", events.get(0));
+			assertEquals("http://example.com/Patient/0 FAMILY0", events.get(1));
+			assertEquals("http://example.com/Patient/99 FAMILY99", events.get(100));
+			assertEquals("delete Patient/1000", events.get(101));
+		}
+	}
+
+	@Test
+	public void testNestedBundleIsNotStreamed() {
+		Patient patient = new Patient();
+		patient.setActive(true);
+
+		Bundle inner = new Bundle();
+		inner.setType(BundleTypeEnum.COLLECTION);
+		inner.addEntry().setResource(patient);
+
+		Bundle outer = new Bundle();
+		outer.setType(BundleTypeEnum.COLLECTION);
+		outer.addEntry().setResource(inner);
+
+		for (IParser next : allParsers()) {
+			RecordingHandler handler = new RecordingHandler();
+			next.parseBundleEntries(Bundle.class, new StringReader(encode(next, outer)), handler);
+
+			assertEquals(1, handler.myEntries.size());
+			Bundle parsedInner = (Bundle) handler.myResources.get(0);
+			assertEquals(1, parsedInner.getEntry().size());
+			assertTrue(parsedInner.getEntry().get(0).getResource() instanceof Patient);
+		}
+	}
+
+	private static class RecordingHandler implements IBundleEntryHandler {
+		private IBaseBundle myBundle;
+		private List<IBase> myEntries = new ArrayList<IBase>();
+		private int myMetadataCount;
+		private List<IBaseResource> myResources = new ArrayList<IBaseResource>();
+
+		@Override
+		public void bundleMetadata(IBaseBundle theBundle) {
+			myBundle = theBundle;
+			myMetadataCount++;
+		}
+
+		@Override
+		public void entry(IBase theEntry, IBaseResource theResource) {
+			myEntries.add(theEntry);
+			myResources.add(theResource);
+		}
+	}
+
+}
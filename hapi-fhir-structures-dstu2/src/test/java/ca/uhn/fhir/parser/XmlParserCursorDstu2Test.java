@@ -0,0 +1,146 @@
+package ca.uhn.fhir.parser;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Bundle;
+import ca.uhn.fhir.model.api.ExtensionDt;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.StringDt;
+
+/**
+ * Checks that the cursor based XML parser produces the same results as the event based one
+ */
+public class XmlParserCursorDstu2Test {
+	private static final FhirContext ourCtx = FhirContext.forDstu2();
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(XmlParserCursorDstu2Test.class);
+
+	private void assertBundleParsesTheSame(String theXml) {
+		Bundle cursor = newParser(true).parseBundle(theXml);
+		Bundle event = newParser(false).parseBundle(theXml);
+		assertEquals(ourCtx.newXmlParser().encodeBundleToString(event), ourCtx.newXmlParser().encodeBundleToString(cursor));
+	}
+
+	private IBaseResource assertParsesTheSame(String theXml) {
+		IBaseResource cursor = newParser(true).parseResource(theXml);
+		IBaseResource event = newParser(false).parseResource(theXml);
+		assertEquals(ourCtx.newXmlParser().encodeResourceToString(event), ourCtx.newXmlParser().encodeResourceToString(cursor));
+		return cursor;
+	}
+
+	private String loadResource(String theName) throws IOException {
+		return IOUtils.toString(XmlParserCursorDstu2Test.class.getResourceAsStream(theName));
+	}
+
+	private XmlParser newParser(boolean theCursor) {
+		XmlParser retVal = (XmlParser) ourCtx.newXmlParser();
+		retVal.setUseCursorParser(theCursor);
+		return retVal;
+	}
+
+	@Test
+	public void testBundleExamples() throws Exception {
+		for (String next : new String[] { "/bundle-example.xml", "/bundle-example2.xml", "/bundle_orion.xml", "/xml-bundle.xml" }) {
+			ourLog.info("Parsing {}", next);
+			String input = loadResource(next);
+			assertParsesTheSame(input);
+			assertBundleParsesTheSame(input);
+		}
+	}
+
+	@Test
+	public void testExamples() throws Exception {
+		assertParsesTheSame(loadResource("/diagnosticreport-examples-lab-text(72ac8493-52ac-41bd-8d5d-7258c289b5ea).xml"));
+		assertParsesTheSame(loadResource("/medicationstatement_invalidelement.xml"));
+	}
+
+	@Test
+	public void testExtensionWithoutUrl() {
+		String input = "<Patient xmlns=\"http://hl7.org/fhir\"><extension><valueString value=\"VALUE\"/></extension></Patient>";
+		for (boolean cursor : new boolean[] { true, false }) {
+			try {
+				newParser(cursor).parseResource(input);
+				fail();
+			} catch (DataFormatException e) {
+				assertThat(e.getMessage(), containsString("Extension element has no 'url' attribute"));
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidXml() {
+		for (boolean cursor : new boolean[] { true, false }) {
+			try {
+				newParser(cursor).parseResource("<Patient xmlns=\"http://hl7.org/fhir\"><active value=\"true\"></Patient>");
+				fail();
+			} catch (DataFormatException e) {
+				assertTrue(e.getMessage(), e.getMessage().length() > 0);
+			}
+		}
+	}
+
+	/**
+	 * The cursor parser doesn't create an event object for each part of the document, so it should allocate less than
+	 * the event based parser does
+	 */
+	@Test
+	public void testLargeBundle() {
+		ca.uhn.fhir.model.dstu2.resource.Bundle bundle = LargeBundleTestUtil.newLargeBundle(2000);
+		final String input = ourCtx.newXmlParser().encodeResourceToString(bundle);
+
+		ca.uhn.fhir.model.dstu2.resource.Bundle parsed = (ca.uhn.fhir.model.dstu2.resource.Bundle) newParser(true).parseResource(input);
+		assertEquals(2000, parsed.getEntry().size());
+		assertEquals(ourCtx.newXmlParser().encodeResourceToString(bundle), ourCtx.newXmlParser().encodeResourceToString(parsed));
+
+		// Run the event parser once too, so that neither is measured cold
+		newParser(false).parseResource(input);
+		long event = LargeBundleTestUtil.measureAllocatedBytes(new Runnable() {
+			@Override
+			public void run() {
+				newParser(false).parseResource(input);
+			}
+		});
+		long cursor = LargeBundleTestUtil.measureAllocatedBytes(new Runnable() {
+			@Override
+			public void run() {
+				newParser(true).parseResource(input);
+			}
+		});
+		ourLog.info("Parsing {} chars allocated {} bytes with events, {} bytes with cursor", new Object[] { input.length(), event, cursor });
+		assumeTrue(event != -1);
+		assertThat(cursor, lessThan(event));
+	}
+
+	@Test
+	public void testNarrativeAndExtensions() {
+		//@formatter:off
+		String input = "<Patient xmlns=\"http://hl7.org/fhir\">" +
+				"<text><status value=\"generated\"/><div xmlns=\"http://www.w3.org/1999/xhtml\">Hello <b class=\"x\">World</b><![CDATA[ & more]]><!-- comment --><br/></div></text>" +
+				"<extension url=\"http://example.com#ext\"><valueString value=\"VALUE\"/></extension>" +
+				"<modifierExtension url=\"http://example.com#mod\"><valueString value=\"MOD\"/></modifierExtension>" +
+				"<active value=\"true\"/>" +
+				"</Patient>";
+		//@formatter:on
+		Patient parsed = (Patient) assertParsesTheSame(input);
+
+		assertThat(parsed.getText().getDiv().getValueAsString(), containsString("<b class=\"x\">World</b>"));
+		ExtensionDt ext = parsed.getUndeclaredExtensions().get(0);
+		assertEquals("http://example.com#ext", ext.getUrl());
+		assertEquals("VALUE", ((StringDt) ext.getValue()).getValue());
+		assertEquals("MOD", ((StringDt) parsed.getUndeclaredModifierExtensions().get(0).getValue()).getValue());
+		assertEquals(Boolean.TRUE, parsed.getActive());
+	}
+
+}
@@ -0,0 +1,92 @@
+package ca.uhn.fhir.rest.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.InstantDt;
+
+public class BoundedMemoryPagingProviderDstu2Test {
+
+	/**
+	 * The server modifies resources while encoding a response, so two requests for the same
+	 * cached page must never be given the same resource instances
+	 */
+	@Test
+	public void testCachedPagesAreCopiedForEachRequest() {
+		final Organization org = new Organization();
+		org.setId("Organization/1");
+		org.setName("ORG");
+		final InstantDt updated = new InstantDt("2015-01-01T00:00:00Z");
+		final int[] loadCount = new int[1];
+
+		BoundedMemoryPagingProvider svc = new BoundedMemoryPagingProvider();
+		String id = svc.storeResultList(new IBundleProvider() {
+
+			@Override
+			public InstantDt getPublished() {
+				return InstantDt.withCurrentTime();
+			}
+
+			@Override
+			public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+				loadCount[0]++;
+				List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+				for (int i = theFromIndex; i < theToIndex; i++) {
+					Patient patient = new Patient();
+					patient.setId("Patient/" + i + "/_history/2");
+					patient.addName().addFamily("FAMILY" + i);
+					patient.getManagingOrganization().setResource(org);
+					ResourceMetadataKeyEnum.UPDATED.put(patient, updated);
+					retVal.add(patient);
+				}
+				return retVal;
+			}
+
+			@Override
+			public Integer preferredPageSize() {
+				return null;
+			}
+
+			@Override
+			public int size() {
+				return 2;
+			}
+		});
+
+		List<IBaseResource> first = svc.retrieveResultList(id).getResources(0, 2);
+		Patient firstPatient = (Patient) first.get(0);
+		firstPatient.getNameFirstRep().getFamily().get(0).setValue("CHANGED");
+		ResourceMetadataKeyEnum.TITLE.put(firstPatient, "TITLE");
+
+		List<IBaseResource> second = svc.retrieveResultList(id).getResources(0, 2);
+		List<IBaseResource> third = svc.retrieveResultList(id).getResources(0, 2);
+		assertEquals(1, loadCount[0]);
+
+		Patient secondPatient = (Patient) second.get(0);
+		assertNotSame(firstPatient, secondPatient);
+		assertNotSame(secondPatient, third.get(0));
+		assertEquals("FAMILY0", secondPatient.getNameFirstRep().getFamilyAsSingleString());
+		assertEquals(null, ResourceMetadataKeyEnum.TITLE.get(secondPatient));
+
+		// IDs and metadata survive the copy
+		assertEquals("Patient/0/_history/2", secondPatient.getId().getValue());
+		assertEquals(updated.getValue(), ResourceMetadataKeyEnum.UPDATED.get(secondPatient).getValue());
+
+		// Resources which were shared within the page are still shared within each copy
+		Organization secondOrg = (Organization) secondPatient.getManagingOrganization().getResource();
+		assertNotSame(org, secondOrg);
+		assertSame(secondOrg, ((Patient) second.get(1)).getManagingOrganization().getResource());
+		assertEquals("ORG", secondOrg.getName());
+	}
+
+}
@@ -0,0 +1,181 @@
+package ca.uhn.fhir.rest.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.SearchEntryModeEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.util.PortUtil;
+
+public class SearchStreamingDstu2Test {
+
+	private static CloseableHttpClient ourClient;
+	private static FhirContext ourCtx = FhirContext.forDstu2();
+	private static List<String> ourLoadedRanges = new ArrayList<String>();
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchStreamingDstu2Test.class);
+	private static int ourPort;
+	private static Server ourServer;
+	private static RestfulServer ourServlet;
+
+	@Before
+	public void before() {
+		ourLoadedRanges.clear();
+		ourServlet.setBundleStreamingChunkSize(0);
+	}
+
+	private Bundle search(String theFormat) throws Exception {
+		HttpGet httpGet = new HttpGet("http://localhost:" + ourPort + "/Patient?_format=" + theFormat);
+		HttpResponse status = ourClient.execute(httpGet);
+		String responseContent = IOUtils.toString(status.getEntity().getContent());
+		IOUtils.closeQuietly(status.getEntity().getContent());
+		ourLog.info(responseContent);
+		assertEquals(200, status.getStatusLine().getStatusCode());
+
+		if ("json".equals(theFormat)) {
+			return ourCtx.newJsonParser().parseResource(Bundle.class, responseContent);
+		}
+		return ourCtx.newXmlParser().parseResource(Bundle.class, responseContent);
+	}
+
+	@Test
+	public void testStreamedBundleMatchesBufferedBundle() throws Exception {
+		for (String nextFormat : new String[] { "xml", "json" }) {
+			ourServlet.setBundleStreamingChunkSize(0);
+			ourLoadedRanges.clear();
+			Bundle buffered = search(nextFormat);
+			assertEquals("[0-5]", ourLoadedRanges.toString());
+
+			ourServlet.setBundleStreamingChunkSize(2);
+			ourLoadedRanges.clear();
+			Bundle streamed = search(nextFormat);
+			assertEquals("[0-2, 2-4, 4-5]", ourLoadedRanges.toString());
+
+			assertEquals(buffered.getTotal(), streamed.getTotal());
+			assertEquals(buffered.getLink().size(), streamed.getLink().size());
+			assertEquals(buffered.getEntry().size(), streamed.getEntry().size());
+			for (int i = 0; i < buffered.getEntry().size(); i++) {
+				Entry bufferedEntry = buffered.getEntry().get(i);
+				Entry streamedEntry = streamed.getEntry().get(i);
+				assertEquals(bufferedEntry.getFullUrl(), streamedEntry.getFullUrl());
+				assertEquals(bufferedEntry.getSearch().getMode(), streamedEntry.getSearch().getMode());
+				assertEquals(bufferedEntry.getResource().getId().getValue(), streamedEntry.getResource().getId().getValue());
+			}
+		}
+	}
+
+	@Test
+	public void testStreamedBundleHasIncludesAfterMatches() throws Exception {
+		ourServlet.setBundleStreamingChunkSize(2);
+		Bundle bundle = search("json");
+
+		assertEquals(5, bundle.getTotal().intValue());
+		assertEquals(6, bundle.getEntry().size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Patient.class, bundle.getEntry().get(i).getResource().getClass());
+			assertNull(bundle.getEntry().get(i).getSearch().getMode());
+		}
+		Entry include = bundle.getEntry().get(5);
+		assertEquals(Organization.class, include.getResource().getClass());
+		assertEquals(SearchEntryModeEnum.INCLUDE.getCode(), include.getSearch().getMode());
+	}
+
+	@AfterClass
+	public static void afterClass() throws Exception {
+		ourServer.stop();
+	}
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		ourPort = PortUtil.findFreePort();
+		ourServer = new Server(ourPort);
+
+		ServletHandler proxyHandler = new ServletHandler();
+		ourServlet = new RestfulServer(ourCtx);
+		ourServlet.setResourceProviders(new DummyPatientResourceProvider());
+		ourServlet.setBundleInclusionRule(BundleInclusionRule.BASED_ON_RESOURCE_PRESENCE);
+		ServletHolder servletHolder = new ServletHolder(ourServlet);
+		proxyHandler.addServletWithMapping(servletHolder, "/*");
+		ourServer.setHandler(proxyHandler);
+		ourServer.start();
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(5000, TimeUnit.MILLISECONDS);
+		HttpClientBuilder builder = HttpClientBuilder.create();
+		builder.setConnectionManager(connectionManager);
+		ourClient = builder.build();
+	}
+
+	public static class DummyPatientResourceProvider implements IResourceProvider {
+
+		@Override
+		public Class<? extends IResource> getResourceType() {
+			return Patient.class;
+		}
+
+		@Search
+		public IBundleProvider search() {
+			final Organization org = new Organization();
+			org.setId("Organization/1");
+			org.setName("ORG");
+
+			return new IBundleProvider() {
+
+				@Override
+				public InstantDt getPublished() {
+					return InstantDt.withCurrentTime();
+				}
+
+				@Override
+				public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+					ourLoadedRanges.add(theFromIndex + "-" + theToIndex);
+					List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+					for (int i = theFromIndex; i < theToIndex; i++) {
+						Patient patient = new Patient();
+						patient.setId("Patient/" + i);
+						patient.addName().addFamily("FAMILY" + i);
+						patient.getManagingOrganization().setResource(org);
+						retVal.add(patient);
+					}
+					return retVal;
+				}
+
+				@Override
+				public Integer preferredPageSize() {
+					return null;
+				}
+
+				@Override
+				public int size() {
+					return 5;
+				}
+			};
+		}
+
+	}
+
+}
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -41,6 +42,7 @@ import org.hl7.fhir.instance.model.InstantType;
 import org.hl7.fhir.instance.model.OperationOutcome;
 import org.hl7.fhir.instance.model.Resource;
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IDomainResource;
@@ -414,6 +416,14 @@ public class Dstu2Hl7OrgBundleFactory implements IVersionSpecificBundleFactory {
     myBundle.getTotalElement().setValue(theTotalResults);
   }
 
+  @Override
+  public Iterator<IBase> initializeStreamingBundleFromBundleProvider(RestfulServer theServer, IBundleProvider theResult, EncodingEnum theResponseEncoding, String theServerBase,
+      String theCompleteUrl, boolean thePrettyPrint, int theOffset, Integer theLimit, String theSearchId, BundleTypeEnum theBundleType, Set<Include> theIncludes, int theChunkSize) {
+    // Streaming is not supported for these structures, so the server falls back to
+    // initializeBundleFromBundleProvider and encodes the complete bundle
+    return null;
+  }
+
   @Override
   public void initializeWithBundleResource(IBaseResource theBundle) {
     myBundle = (Bundle) theBundle;
@@ -18,9 +18,9 @@ import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu2;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+import ca.uhn.fhir.rest.server.BoundedMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import ca.uhn.fhir.rest.server.EncodingEnum;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
@@ -100,9 +100,10 @@ public class JpaServerDemo extends RestfulServer {
 		setDefaultResponseEncoding(EncodingEnum.JSON);
 
 		/*
-		 * This is a simple paging strategy that keeps the last 10 searches in memory
+		 * This paging strategy keeps recent searches in memory, up to an estimated
+		 * 64MB, and drops any which have not been used for 10 minutes
 		 */
-		setPagingProvider(new FifoMemoryPagingProvider(10));
+		setPagingProvider(new BoundedMemoryPagingProvider());
 
 		/*
 		 * Load interceptors for the server from Spring (these are defined in hapi-fhir-server-config.xml